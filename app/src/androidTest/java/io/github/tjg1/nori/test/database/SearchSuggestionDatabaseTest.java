@@ -9,18 +9,38 @@ package io.github.tjg1.nori.test.database;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.test.InstrumentationTestCase;
 import android.test.RenamingDelegatingContext;
+import android.util.Log;
+
+import java.util.Locale;
+import java.util.Random;
 
 import io.github.tjg1.nori.database.SearchSuggestionDatabase;
 
+import static io.github.tjg1.nori.database.SearchSuggestionDatabase.COLUMN_FREQUENCY;
 import static io.github.tjg1.nori.database.SearchSuggestionDatabase.COLUMN_ICON;
 import static io.github.tjg1.nori.database.SearchSuggestionDatabase.COLUMN_ID;
+import static io.github.tjg1.nori.database.SearchSuggestionDatabase.COLUMN_LAST_USED;
+import static io.github.tjg1.nori.database.SearchSuggestionDatabase.COLUMN_NAME;
 import static io.github.tjg1.nori.database.SearchSuggestionDatabase.TABLE_NAME;
 import static org.fest.assertions.api.Assertions.assertThat;
 
 /** Tests the {@link SearchSuggestionDatabase} class. */
 public class SearchSuggestionDatabaseTest extends InstrumentationTestCase {
+  /** Log tag used to report benchmark results. */
+  private static final String TAG = "SearchSuggestionDatabaseTest";
+  /** Filename of the database created by {@link SearchSuggestionDatabase}. */
+  private static final String DATABASE_NAME = "search_suggestions.db";
+  /** Number of times the database is created in the benchmark. */
+  private static final int BENCHMARK_RUNS = 5;
+  /** Number of suggestions added to the database in the prefix search benchmark. */
+  private static final int BENCHMARK_ROWS = 100000;
+  /** Number of prefix searches made in the prefix search benchmark. */
+  private static final int BENCHMARK_QUERIES = 200;
+  /** Maximum number of suggestions returned by each query, as in the suggestion provider. */
+  private static final int SUGGESTION_LIMIT = 50;
   /** App context used for testing. */
   private Context context;
 
@@ -46,4 +66,140 @@ public class SearchSuggestionDatabaseTest extends InstrumentationTestCase {
     c.close();
     db.close();
   }
+
+  /** Measure the first-run cost of creating the database and importing the built-in tag data set. */
+  public void testCreationBenchmark() throws Throwable {
+    long totalTime = 0;
+    for (int i = 0; i < BENCHMARK_RUNS; i++) {
+      // Start from scratch, as on the first launch after install.
+      context.deleteDatabase(DATABASE_NAME);
+
+      final long startTime = System.nanoTime();
+      SearchSuggestionDatabase searchSuggestionDatabase = new SearchSuggestionDatabase(context);
+      SQLiteDatabase db = searchSuggestionDatabase.getReadableDatabase();
+      totalTime += System.nanoTime() - startTime;
+
+      db.close();
+    }
+
+    Log.i(TAG, String.format("Created the search suggestion database in %.1f ms",
+        totalTime / 1000000.0 / BENCHMARK_RUNS));
+  }
+
+  /** Test that suggestions are matched by prefix, ignoring case, and ranked by frequency. */
+  public void testGetSuggestions() throws Throwable {
+    context.deleteDatabase(DATABASE_NAME);
+    SearchSuggestionDatabase searchSuggestionDatabase = new SearchSuggestionDatabase(context);
+    searchSuggestionDatabase.insert("test_rank_once");
+    searchSuggestionDatabase.insert("test_rank_twice");
+    // Tags differing only in case are the same suggestion.
+    assertThat(searchSuggestionDatabase.insert("Test_rank_twice")).isEqualTo(-1);
+    searchSuggestionDatabase.insert("testxrank");
+
+    Cursor c = searchSuggestionDatabase.getSuggestions("test_rank", SUGGESTION_LIMIT);
+    assertThat(c.getCount()).isEqualTo(2);
+    c.moveToFirst();
+    assertThat(c.getString(c.getColumnIndex(COLUMN_NAME))).isEqualTo("test_rank_twice");
+    assertThat(c.getInt(c.getColumnIndex(COLUMN_FREQUENCY))).isEqualTo(2);
+    c.close();
+
+    // Underscores are matched literally, not as a LIKE wildcard.
+    c = searchSuggestionDatabase.getSuggestions("test_", SUGGESTION_LIMIT);
+    assertThat(c.getCount()).isEqualTo(2);
+    c.close();
+    searchSuggestionDatabase.close();
+  }
+
+  /** Test that prefixes ending with upper case letters match, including "Z", which NOCASE sorts after "[". */
+  public void testUpperCasePrefix() throws Throwable {
+    context.deleteDatabase(DATABASE_NAME);
+    SearchSuggestionDatabase searchSuggestionDatabase = new SearchSuggestionDatabase(context);
+    searchSuggestionDatabase.insert("test_upper_zebra");
+    searchSuggestionDatabase.insert("TEST_UPPER_ZOO");
+    searchSuggestionDatabase.insert("test_upper_[");
+
+    Cursor c = searchSuggestionDatabase.getSuggestions("TEST_UPPER_Z", SUGGESTION_LIMIT);
+    assertThat(c.getCount()).isEqualTo(2);
+    c.close();
+    c = searchSuggestionDatabase.getSuggestions("test_upper_z", SUGGESTION_LIMIT);
+    assertThat(c.getCount()).isEqualTo(2);
+    c.close();
+    c = searchSuggestionDatabase.getSuggestions("Test_Upper_", SUGGESTION_LIMIT);
+    assertThat(c.getCount()).isEqualTo(3);
+    c.close();
+    searchSuggestionDatabase.close();
+  }
+
+  /** Measure the latency of prefix searches over a large number of suggestions. */
+  public void testPrefixSearchBenchmark() throws Throwable {
+    context.deleteDatabase(DATABASE_NAME);
+    SearchSuggestionDatabase searchSuggestionDatabase = new SearchSuggestionDatabase(context);
+    SQLiteDatabase db = searchSuggestionDatabase.getWritableDatabase();
+    final Random random = new Random(0);
+
+    // Add suggestions with random names and ranking.
+    db.beginTransaction();
+    try {
+      SQLiteStatement insertStatement = db.compileStatement(String.format(Locale.US,
+          "INSERT INTO %s (%s, %s, %s) VALUES (?, ?, ?);", TABLE_NAME, COLUMN_NAME, COLUMN_FREQUENCY, COLUMN_LAST_USED));
+      for (int i = 0; i < BENCHMARK_ROWS; i++) {
+        insertStatement.bindString(1, randomName(random, 12));
+        insertStatement.bindLong(2, random.nextInt(10));
+        insertStatement.bindLong(3, random.nextInt(Integer.MAX_VALUE));
+        insertStatement.executeInsert();
+      }
+      insertStatement.close();
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    // The prefix search should use the index rather than scanning the table.
+    Cursor plan = db.rawQuery(String.format(Locale.US, "EXPLAIN QUERY PLAN SELECT * FROM %s WHERE %s >= ? COLLATE NOCASE AND %s < ? COLLATE NOCASE",
+        TABLE_NAME, COLUMN_NAME, COLUMN_NAME), new String[]{"abc", "abd"});
+    plan.moveToFirst();
+    assertThat(plan.getString(plan.getColumnCount() - 1)).contains("INDEX");
+    plan.close();
+
+    // Compare the indexed prefix search with the LIKE query it replaces.
+    final String[] prefixes = new String[BENCHMARK_QUERIES];
+    for (int i = 0; i < prefixes.length; i++) {
+      prefixes[i] = randomName(random, 3);
+    }
+    long startTime = System.nanoTime();
+    for (String prefix : prefixes) {
+      Cursor c = searchSuggestionDatabase.getSuggestions(prefix, SUGGESTION_LIMIT);
+      c.getCount();
+      c.close();
+    }
+    final long indexedTime = System.nanoTime() - startTime;
+    startTime = System.nanoTime();
+    for (String prefix : prefixes) {
+      Cursor c = db.query(TABLE_NAME, null, COLUMN_NAME + " LIKE ?", new String[]{prefix + "%"}, null, null,
+          COLUMN_ID + " DESC");
+      c.getCount();
+      c.close();
+    }
+    final long likeTime = System.nanoTime() - startTime;
+
+    Log.i(TAG, String.format("Prefix search over %d suggestions: %.2f ms indexed, %.2f ms with LIKE", BENCHMARK_ROWS,
+        indexedTime / 1000000.0 / BENCHMARK_QUERIES, likeTime / 1000000.0 / BENCHMARK_QUERIES));
+    db.close();
+    context.deleteDatabase(DATABASE_NAME);
+  }
+
+  /**
+   * Create a random lower case name.
+   *
+   * @param random Random number generator.
+   * @param length Length of the name.
+   * @return Name.
+   */
+  private static String randomName(Random random, int length) {
+    final char[] name = new char[length];
+    for (int i = 0; i < length; i++) {
+      name[i] = (char) ('a' + random.nextInt(26));
+    }
+    return new String(name);
+  }
 }
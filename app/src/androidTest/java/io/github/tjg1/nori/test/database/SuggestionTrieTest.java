@@ -0,0 +1,186 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.test.database;
+
+import android.content.Context;
+import android.test.InstrumentationTestCase;
+import android.test.RenamingDelegatingContext;
+import android.util.Log;
+
+import java.util.List;
+import java.util.Random;
+
+import io.github.tjg1.nori.database.SearchSuggestionDatabase;
+import io.github.tjg1.nori.database.SuggestionTrie;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/** Tests the {@link SuggestionTrie} class. */
+public class SuggestionTrieTest extends InstrumentationTestCase {
+  /** Log tag used to report benchmark results. */
+  private static final String TAG = "SuggestionTrieTest";
+  /** Filename of the database created by {@link SearchSuggestionDatabase}. */
+  private static final String DATABASE_NAME = "search_suggestions.db";
+  /** Icon of search history suggestions in this test. */
+  private static final String ICON_HISTORY = "history";
+  /** Number of suggestions added to the trie in the benchmark. */
+  private static final int BENCHMARK_SUGGESTIONS = 100000;
+  /** Number of prefix searches made in the benchmark. */
+  private static final int BENCHMARK_QUERIES = 1000;
+  /** Maximum number of suggestions returned by each query, as in the suggestion provider. */
+  private static final int SUGGESTION_LIMIT = 50;
+
+  /** Test that suggestions are matched by prefix, including prefixes ending in the middle of an edge. */
+  public void testGetSuggestions() throws Throwable {
+    final SuggestionTrie trie = new SuggestionTrie();
+    trie.put(new SuggestionTrie.Suggestion(1, "long_hair", null, 0, 0));
+    trie.put(new SuggestionTrie.Suggestion(2, "long_sleeves", null, 0, 0));
+    trie.put(new SuggestionTrie.Suggestion(3, "looking_at_viewer", null, 0, 0));
+    trie.put(new SuggestionTrie.Suggestion(4, "long", null, 0, 0));
+
+    assertThat(names(trie.getSuggestions("lo", SUGGESTION_LIMIT))).containsExactly("long_hair", "long_sleeves",
+        "looking_at_viewer", "long");
+    assertThat(names(trie.getSuggestions("long_", SUGGESTION_LIMIT))).containsExactly("long_hair", "long_sleeves");
+    assertThat(names(trie.getSuggestions("long_s", SUGGESTION_LIMIT))).containsExactly("long_sleeves");
+    assertThat(names(trie.getSuggestions("LONG_H", SUGGESTION_LIMIT))).containsExactly("long_hair");
+    assertThat(trie.getSuggestions("long_x", SUGGESTION_LIMIT)).isEmpty();
+    assertThat(trie.getSuggestions("long_hair_", SUGGESTION_LIMIT)).isEmpty();
+    assertThat(trie.size()).isEqualTo(4);
+  }
+
+  /** Test that the best ranked suggestions are returned, as in {@link SearchSuggestionDatabase}. */
+  public void testRanking() throws Throwable {
+    final SuggestionTrie trie = new SuggestionTrie();
+    trie.put(new SuggestionTrie.Suggestion(1, "tag_a", null, 0, 0));
+    trie.put(new SuggestionTrie.Suggestion(2, "tag_b", null, 0, 0));
+    trie.put(new SuggestionTrie.Suggestion(3, "tag_c", ICON_HISTORY, 1, 100));
+    trie.put(new SuggestionTrie.Suggestion(4, "tag_d", ICON_HISTORY, 1, 200));
+    trie.put(new SuggestionTrie.Suggestion(5, "tag_e", ICON_HISTORY, 2, 50));
+
+    assertThat(names(trie.getSuggestions("tag", 4))).containsExactly("tag_e", "tag_d", "tag_c", "tag_a");
+
+    // Replacing a suggestion updates its ranking.
+    trie.put(new SuggestionTrie.Suggestion(2, "tag_b", null, 3, 300));
+    assertThat(names(trie.getSuggestions("tag", 1))).containsExactly("tag_b");
+    assertThat(trie.size()).isEqualTo(5);
+  }
+
+  /** Test that erasing the search history removes history suggestions and resets the ranking of the others. */
+  public void testEraseSearchHistory() throws Throwable {
+    final SuggestionTrie trie = new SuggestionTrie();
+    trie.put(new SuggestionTrie.Suggestion(1, "tag_a", null, 2, 100));
+    trie.put(new SuggestionTrie.Suggestion(2, "tag_b", null, 0, 0));
+    trie.put(new SuggestionTrie.Suggestion(3, "tag_b_history", ICON_HISTORY, 1, 200));
+
+    trie.eraseSearchHistory(ICON_HISTORY);
+    assertThat(names(trie.getSuggestions("tag", SUGGESTION_LIMIT))).containsExactly("tag_a", "tag_b");
+    assertThat(trie.getSuggestions("tag_a", SUGGESTION_LIMIT).get(0).frequency).isEqualTo(0);
+    assertThat(trie.size()).isEqualTo(2);
+  }
+
+  /** Test that the trie built from the database is kept up to date when the search history changes. */
+  public void testSearchSuggestionDatabase() throws Throwable {
+    final Context context = new RenamingDelegatingContext(getInstrumentation().getTargetContext(), "_test");
+    context.deleteDatabase(DATABASE_NAME);
+    final SearchSuggestionDatabase searchSuggestionDatabase = new SearchSuggestionDatabase(context);
+    final SuggestionTrie trie = searchSuggestionDatabase.buildSuggestionTrie();
+    final int builtInCount = trie.size();
+    assertThat(builtInCount).isEqualTo(962);
+
+    searchSuggestionDatabase.insert("test_trie_tag");
+    searchSuggestionDatabase.insert("test_trie_tag");
+    List<SuggestionTrie.Suggestion> suggestions = trie.getSuggestions("test_trie", SUGGESTION_LIMIT);
+    assertThat(suggestions).hasSize(1);
+    assertThat(suggestions.get(0).frequency).isEqualTo(2);
+
+    searchSuggestionDatabase.eraseSearchHistory();
+    assertThat(trie.getSuggestions("test_trie", SUGGESTION_LIMIT)).isEmpty();
+    assertThat(trie.size()).isEqualTo(builtInCount);
+
+    searchSuggestionDatabase.close();
+    context.deleteDatabase(DATABASE_NAME);
+  }
+
+  /** Test that databases in different files don't share their suggestion tries. */
+  public void testSeparateDatabases() throws Throwable {
+    final Context context = new RenamingDelegatingContext(getInstrumentation().getTargetContext(), "_test");
+    final Context otherContext = new RenamingDelegatingContext(getInstrumentation().getTargetContext(), "_other");
+    context.deleteDatabase(DATABASE_NAME);
+    otherContext.deleteDatabase(DATABASE_NAME);
+    final SearchSuggestionDatabase searchSuggestionDatabase = new SearchSuggestionDatabase(context);
+    final SearchSuggestionDatabase otherDatabase = new SearchSuggestionDatabase(otherContext);
+    final SuggestionTrie trie = searchSuggestionDatabase.buildSuggestionTrie();
+
+    searchSuggestionDatabase.insert("test_trie_separate");
+    assertThat(otherDatabase.buildSuggestionTrie()).isNotSameAs(trie);
+    assertThat(otherDatabase.buildSuggestionTrie().getSuggestions("test_trie", SUGGESTION_LIMIT)).isEmpty();
+    // Instances opening the same file share the trie.
+    final SearchSuggestionDatabase sameDatabase = new SearchSuggestionDatabase(context);
+    assertThat(sameDatabase.buildSuggestionTrie()).isSameAs(trie);
+
+    sameDatabase.close();
+    searchSuggestionDatabase.close();
+    otherDatabase.close();
+    context.deleteDatabase(DATABASE_NAME);
+    otherContext.deleteDatabase(DATABASE_NAME);
+  }
+
+  /** Measure the latency of prefix searches in a large trie. */
+  public void testPrefixSearchBenchmark() throws Throwable {
+    final SuggestionTrie trie = new SuggestionTrie();
+    final Random random = new Random(0);
+
+    long startTime = System.nanoTime();
+    for (int i = 0; i < BENCHMARK_SUGGESTIONS; i++) {
+      trie.put(new SuggestionTrie.Suggestion(i, randomName(random, 12), null, random.nextInt(10),
+          random.nextInt(Integer.MAX_VALUE)));
+    }
+    final long buildTime = System.nanoTime() - startTime;
+
+    final String[] prefixes = new String[BENCHMARK_QUERIES];
+    for (int i = 0; i < prefixes.length; i++) {
+      prefixes[i] = randomName(random, 3);
+    }
+    startTime = System.nanoTime();
+    for (String prefix : prefixes) {
+      trie.getSuggestions(prefix, SUGGESTION_LIMIT);
+    }
+    final long queryTime = System.nanoTime() - startTime;
+
+    Log.i(TAG, String.format("Built a trie of %d suggestions in %.1f ms, prefix search in %.3f ms",
+        BENCHMARK_SUGGESTIONS, buildTime / 1000000.0, queryTime / 1000000.0 / BENCHMARK_QUERIES));
+  }
+
+  /**
+   * Get the names of suggestions.
+   *
+   * @param suggestions Suggestions.
+   * @return Names, in the same order.
+   */
+  private static String[] names(List<SuggestionTrie.Suggestion> suggestions) {
+    final String[] names = new String[suggestions.size()];
+    for (int i = 0; i < names.length; i++) {
+      names[i] = suggestions.get(i).name;
+    }
+    return names;
+  }
+
+  /**
+   * Create a random lower case name.
+   *
+   * @param random Random number generator.
+   * @param length Length of the name.
+   * @return Name.
+   */
+  private static String randomName(Random random, int length) {
+    final char[] name = new char[length];
+    for (int i = 0; i < length; i++) {
+      name[i] = (char) ('a' + random.nextInt(26));
+    }
+    return new String(name);
+  }
+}
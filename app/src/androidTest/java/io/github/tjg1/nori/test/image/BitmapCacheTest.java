@@ -0,0 +1,93 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.test.image;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.test.InstrumentationTestCase;
+
+import io.github.tjg1.nori.image.BitmapCache;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/** Tests the {@link io.github.tjg1.nori.image.BitmapCache} class. */
+public class BitmapCacheTest extends InstrumentationTestCase {
+  /** Width and height of the bitmaps used in tests, in pixels. Each bitmap takes 400 bytes. */
+  private static final int BITMAP_SIZE = 10;
+  /** Maximum size of each cache tier, in bytes. Enough for two bitmaps. */
+  private static final int TIER_MAX_SIZE = 1000;
+  /** Picasso cache keys of thumbnails resized for the search result grid. */
+  private static final String[] THUMBNAIL_KEYS = {"http://example.com/1.jpg\nresize:100x100\n",
+      "http://example.com/2.jpg\nresize:100x100\n", "http://example.com/3.jpg\nresize:100x100\n"};
+  /** Picasso cache keys of full-size images. */
+  private static final String[] IMAGE_KEYS = {"http://example.com/1.jpg\n", "http://example.com/2.jpg\n"};
+
+  /** Test that thumbnails and full-size images are kept in separate tiers, so they don't evict each other. */
+  public void testTierForKey() throws Throwable {
+    final BitmapCache cache = createCache();
+    assertThat(cache.size()).isEqualTo(4 * bitmapByteCount());
+
+    // The third thumbnail only evicts the least recently used thumbnail.
+    cache.set(THUMBNAIL_KEYS[2], createBitmap());
+    assertThat(cache.get(THUMBNAIL_KEYS[0])).isNull();
+    assertThat(cache.get(THUMBNAIL_KEYS[1])).isNotNull();
+    assertThat(cache.get(THUMBNAIL_KEYS[2])).isNotNull();
+    assertThat(cache.get(IMAGE_KEYS[0])).isNotNull();
+    assertThat(cache.get(IMAGE_KEYS[1])).isNotNull();
+  }
+
+  /** Test that full-size images are released before thumbnails as the memory trim level rises. */
+  public void testOnTrimMemory() throws Throwable {
+    BitmapCache cache = createCache();
+    cache.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+    assertThat(cache.get(IMAGE_KEYS[0])).isNull();
+    assertThat(cache.get(IMAGE_KEYS[1])).isNotNull();
+    assertThat(cache.get(THUMBNAIL_KEYS[0])).isNotNull();
+    assertThat(cache.get(THUMBNAIL_KEYS[1])).isNotNull();
+
+    cache = createCache();
+    cache.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+    assertThat(cache.get(IMAGE_KEYS[0])).isNull();
+    assertThat(cache.get(IMAGE_KEYS[1])).isNull();
+    assertThat(cache.size()).isEqualTo(2 * bitmapByteCount());
+
+    cache = createCache();
+    cache.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND);
+    assertThat(cache.get(IMAGE_KEYS[1])).isNull();
+    assertThat(cache.get(THUMBNAIL_KEYS[0])).isNull();
+    assertThat(cache.get(THUMBNAIL_KEYS[1])).isNotNull();
+    assertThat(cache.size()).isEqualTo(bitmapByteCount());
+
+    cache = createCache();
+    cache.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_MODERATE);
+    assertThat(cache.size()).isEqualTo(0);
+  }
+
+  /**
+   * Create a bitmap cache holding two thumbnails and two full-size images, used in that order.
+   *
+   * @return Bitmap cache.
+   */
+  private static BitmapCache createCache() {
+    final BitmapCache cache = new BitmapCache(TIER_MAX_SIZE, TIER_MAX_SIZE);
+    for (int i = 0; i < 2; i++) {
+      cache.set(THUMBNAIL_KEYS[i], createBitmap());
+      cache.set(IMAGE_KEYS[i], createBitmap());
+    }
+    return cache;
+  }
+
+  /** @return New bitmap used as a cached thumbnail or image. */
+  private static Bitmap createBitmap() {
+    return Bitmap.createBitmap(BITMAP_SIZE, BITMAP_SIZE, Bitmap.Config.ARGB_8888);
+  }
+
+  /** @return Memory used by each bitmap created by {@link #createBitmap()}, in bytes. */
+  private static int bitmapByteCount() {
+    return BITMAP_SIZE * BITMAP_SIZE * 4;
+  }
+}
@@ -0,0 +1,252 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.test.image;
+
+import android.graphics.Bitmap;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import io.github.tjg1.nori.image.GifDecoder;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/** Tests the {@link io.github.tjg1.nori.image.GifDecoder} class. */
+public class GifDecoderTest extends InstrumentationTestCase {
+  /** Log tag used to report benchmark results. */
+  private static final String TAG = "GifDecoderTest";
+  /** GIF fixtures in the test assets, used for the benchmark. */
+  private static final String[] FIXTURES = {"static.gif", "animated.gif", "interlaced.gif", "benchmark.gif"};
+  /** Number of times the animation of each fixture is played in the benchmark. */
+  private static final int BENCHMARK_LOOPS = 10;
+  /** Opaque black. */
+  private static final int BLACK = 0xFF000000;
+  /** Opaque white. */
+  private static final int WHITE = 0xFFFFFFFF;
+  /** Opaque red. */
+  private static final int RED = 0xFFFF0000;
+  /** Opaque green. */
+  private static final int GREEN = 0xFF00FF00;
+  /** Opaque blue. */
+  private static final int BLUE = 0xFF0000FF;
+  /** Opaque yellow. */
+  private static final int YELLOW = 0xFFFFFF00;
+  /** Fully transparent. */
+  private static final int TRANSPARENT = 0x00000000;
+
+  /** Test decoding a single-frame image with a global color table. */
+  public void testStaticImage() throws Throwable {
+    GifDecoder decoder = new GifDecoder(readFixture("static.gif"));
+    assertThat(decoder.getWidth()).isEqualTo(16);
+    assertThat(decoder.getHeight()).isEqualTo(16);
+    assertThat(decoder.getFrameCount()).isEqualTo(1);
+    // Images without a loop count extension are played once.
+    assertThat(decoder.getLoopCount()).isEqualTo(1);
+
+    int[] pixels = decoder.renderFrame(0);
+    assertThat(pixel(decoder, pixels, 0, 0)).isEqualTo(RED);
+    assertThat(pixel(decoder, pixels, 15, 0)).isEqualTo(GREEN);
+    assertThat(pixel(decoder, pixels, 0, 15)).isEqualTo(BLUE);
+    assertThat(pixel(decoder, pixels, 15, 15)).isEqualTo(WHITE);
+  }
+
+  /** Test frame delays, transparency, local color tables and disposal methods. */
+  public void testAnimatedImage() throws Throwable {
+    GifDecoder decoder = new GifDecoder(readFixture("animated.gif"));
+    assertThat(decoder.getFrameCount()).isEqualTo(6);
+    assertThat(decoder.getLoopCount()).isEqualTo(0);
+    assertThat(decoder.getFrameDelay(0)).isEqualTo(50);
+    assertThat(decoder.getFrameDelay(1)).isEqualTo(100);
+    // Frames with no delay are displayed for 100ms, as in web browsers.
+    assertThat(decoder.getFrameDelay(4)).isEqualTo(100);
+    assertThat(decoder.getFrameDelay(5)).isEqualTo(200);
+
+    // Opaque background.
+    int[] pixels = decoder.renderFrame(0);
+    assertThat(pixel(decoder, pixels, 3, 11)).isEqualTo(BLACK);
+
+    // Partially transparent frame drawn over the background.
+    pixels = decoder.renderFrame(1);
+    assertThat(pixel(decoder, pixels, 3, 11)).isEqualTo(WHITE);
+    assertThat(pixel(decoder, pixels, 0, 8)).isEqualTo(BLACK);
+
+    // Previous frame disposed to transparent.
+    pixels = decoder.renderFrame(2);
+    assertThat(pixel(decoder, pixels, 3, 11)).isEqualTo(TRANSPARENT);
+    assertThat(pixel(decoder, pixels, 11, 11)).isEqualTo(WHITE);
+    assertThat(pixel(decoder, pixels, 8, 8)).isEqualTo(BLACK);
+
+    // Frame with a local color table, to be restored to the previous state.
+    decoder.renderFrame(3);
+    pixels = decoder.renderFrame(4);
+    assertThat(pixel(decoder, pixels, 19, 11)).isEqualTo(TRANSPARENT);
+    assertThat(pixel(decoder, pixels, 28, 28)).isEqualTo(GREEN);
+
+    // Previous frame restored.
+    pixels = decoder.renderFrame(5);
+    assertThat(pixel(decoder, pixels, 28, 28)).isEqualTo(BLACK);
+    assertThat(pixel(decoder, pixels, 4, 28)).isEqualTo(RED);
+
+    // Loop back to the first frame.
+    pixels = decoder.renderFrame(0);
+    assertThat(pixel(decoder, pixels, 4, 28)).isEqualTo(BLACK);
+  }
+
+  /** Test decoding an interlaced image. */
+  public void testInterlacedImage() throws Throwable {
+    GifDecoder decoder = new GifDecoder(readFixture("interlaced.gif"));
+    assertThat(decoder.getWidth()).isEqualTo(20);
+    assertThat(decoder.getHeight()).isEqualTo(19);
+    // The loop count extension stores the number of repetitions after the first play.
+    assertThat(decoder.getLoopCount()).isEqualTo(4);
+
+    final int[] stripes = {RED, GREEN, BLUE, YELLOW};
+    int[] pixels = decoder.renderFrame(0);
+    for (int y = 0; y < decoder.getHeight(); y++) {
+      assertThat(pixel(decoder, pixels, 10, y)).isEqualTo(stripes[y % 4]);
+    }
+  }
+
+  /** Test rendering frames into a bitmap. */
+  public void testRenderFrameIntoBitmap() throws Throwable {
+    GifDecoder decoder = new GifDecoder(readFixture("animated.gif"));
+    Bitmap bitmap = Bitmap.createBitmap(decoder.getWidth(), decoder.getHeight(), Bitmap.Config.ARGB_8888);
+    decoder.renderFrame(0, bitmap);
+    decoder.renderFrame(1, bitmap);
+    assertThat(bitmap.getPixel(3, 11)).isEqualTo(WHITE);
+    bitmap.recycle();
+  }
+
+  /** Test that truncated images keep the frames that were received in full. */
+  public void testTruncatedImage() throws Throwable {
+    byte[] data = readFixture("benchmark.gif");
+    GifDecoder decoder = new GifDecoder(Arrays.copyOf(data, data.length / 2));
+    assertThat(decoder.getFrameCount()).isGreaterThan(0).isLessThan(16);
+    for (int i = 0; i < decoder.getFrameCount(); i++) {
+      decoder.renderFrame(i);
+    }
+  }
+
+  /** Test that invalid data is rejected. */
+  public void testInvalidImage() throws Throwable {
+    try {
+      new GifDecoder("<html></html>".getBytes("UTF-8"));
+      fail("IOException expected.");
+    } catch (IOException ignored) {
+    }
+  }
+
+  /** Test that images are decoded the same way when streamed into the decoder. */
+  public void testStreamedImage() throws Throwable {
+    InputStream inputStream = getInstrumentation().getContext().getAssets().open("gif/benchmark.gif");
+    GifDecoder streamed;
+    try {
+      streamed = new GifDecoder(inputStream);
+    } finally {
+      inputStream.close();
+    }
+    GifDecoder buffered = new GifDecoder(readFixture("benchmark.gif"));
+
+    assertThat(streamed.getWidth()).isEqualTo(buffered.getWidth());
+    assertThat(streamed.getHeight()).isEqualTo(buffered.getHeight());
+    assertThat(streamed.getFrameCount()).isEqualTo(buffered.getFrameCount());
+    for (int i = 0; i < buffered.getFrameCount(); i++) {
+      assertThat(streamed.renderFrame(i)).isEqualTo(buffered.renderFrame(i));
+    }
+  }
+
+  /** Test that images with dimensions over the pixel limit are rejected, instead of overflowing the canvas size. */
+  public void testOversizedImage() throws Throwable {
+    // 65535x65535 logical screen.
+    byte[] data = {'G', 'I', 'F', '8', '9', 'a', (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0, 0, 0, 0x3B};
+    try {
+      new GifDecoder(data);
+      fail("IOException expected.");
+    } catch (IOException ignored) {
+    }
+    // The header is checked before the rest of the stream is read.
+    try {
+      new GifDecoder(new ByteArrayInputStream(data));
+      fail("IOException expected.");
+    } catch (IOException ignored) {
+    }
+
+    // 16x16 image with a 65535x65535 frame.
+    data = new byte[]{'G', 'I', 'F', '8', '9', 'a', 16, 0, 16, 0, 0, 0, 0,
+        0x2C, 0, 0, 0, 0, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0, 2, 0, 0x3B};
+    try {
+      new GifDecoder(data);
+      fail("IOException expected.");
+    } catch (IOException ignored) {
+    }
+  }
+
+  /** Measure the time it takes to render frames of the test fixtures. */
+  public void testFrameDecodeBenchmark() throws Throwable {
+    for (String fixture : FIXTURES) {
+      GifDecoder decoder = new GifDecoder(readFixture(fixture));
+      Bitmap bitmap = Bitmap.createBitmap(decoder.getWidth(), decoder.getHeight(), Bitmap.Config.ARGB_8888);
+
+      // Warm up.
+      for (int i = 0; i < decoder.getFrameCount(); i++) {
+        decoder.renderFrame(i, bitmap);
+      }
+
+      long startTime = System.nanoTime();
+      for (int loop = 0; loop < BENCHMARK_LOOPS; loop++) {
+        for (int i = 0; i < decoder.getFrameCount(); i++) {
+          decoder.renderFrame(i, bitmap);
+        }
+      }
+      long frameTime = (System.nanoTime() - startTime) / (BENCHMARK_LOOPS * decoder.getFrameCount());
+      bitmap.recycle();
+
+      Log.i(TAG, String.format("%s (%dx%d, %d frames): %.3f ms/frame", fixture, decoder.getWidth(),
+          decoder.getHeight(), decoder.getFrameCount(), frameTime / 1000000.0));
+      assertThat(frameTime).isGreaterThan(0);
+    }
+  }
+
+  /**
+   * Read a GIF fixture from the test assets.
+   *
+   * @param name File name.
+   * @return File contents.
+   */
+  private byte[] readFixture(String name) throws IOException {
+    InputStream inputStream = getInstrumentation().getContext().getAssets().open("gif/" + name);
+    try {
+      ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int count;
+      while ((count = inputStream.read(buffer)) != -1) {
+        outputStream.write(buffer, 0, count);
+      }
+      return outputStream.toByteArray();
+    } finally {
+      inputStream.close();
+    }
+  }
+
+  /**
+   * Get a pixel from a rendered frame.
+   *
+   * @param decoder Decoder the frame was rendered by.
+   * @param pixels  Rendered frame.
+   * @param x       X coordinate.
+   * @param y       Y coordinate.
+   * @return ARGB color.
+   */
+  private static int pixel(GifDecoder decoder, int[] pixels, int x, int y) {
+    return pixels[y * decoder.getWidth() + x];
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.test.image;
+
+import android.content.Context;
+import android.test.InstrumentationTestCase;
+
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.nori.image.ImageStore;
+import io.github.tjg1.nori.net.BulkDownloader;
+import io.github.tjg1.nori.util.StringUtils;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/** Tests the {@link io.github.tjg1.nori.image.ImageStore} class. */
+public class ImageStoreTest extends InstrumentationTestCase {
+  /** Maximum size of the store used in tests, in bytes. */
+  private static final long MAX_SIZE = 20;
+  /** App context used for testing. */
+  private Context context;
+  /** Directory the files are stored in. */
+  private File directory;
+  /** Local HTTP server the requests are sent to. */
+  private MockWebServer server;
+
+  @Override
+  protected void setUp() throws Exception {
+    context = getInstrumentation().getTargetContext();
+    directory = new File(context.getCacheDir(), "ImageStoreTest");
+    deleteDirectory();
+    server = new MockWebServer();
+    server.start();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    server.shutdown();
+    deleteDirectory();
+  }
+
+  /** Test that the same image found under different URLs is only downloaded once. */
+  public void testCrossPostedImage() throws Throwable {
+    final ImageStore imageStore = new ImageStore(context, directory, MAX_SIZE);
+    final Image first = createImage("/service1/image.jpg", "abcdef");
+    final Image second = createImage("/service2/image.jpg", "abcdef");
+    assertThat(imageStore.getStoredFile(first)).isNull();
+
+    server.enqueue(new MockResponse().setBody("abcdef"));
+    final File file = imageStore.getFile(first);
+    assertThat(BulkDownloader.md5(file)).isEqualTo(first.md5);
+    assertThat(imageStore.getFile(second)).isEqualTo(file);
+    assertThat(imageStore.getStoredFile(second)).isEqualTo(file);
+    assertThat(server.getRequestCount()).isEqualTo(1);
+
+    // The store is restored from disk.
+    final ImageStore restoredStore = new ImageStore(context, directory, MAX_SIZE);
+    assertThat(restoredStore.getStoredFile(second)).isEqualTo(file);
+    assertThat(restoredStore.size()).isEqualTo(6);
+  }
+
+  /** Test that files with a different MD5 hash than the Search API returned are not shared with other posts. */
+  public void testMd5Mismatch() throws Throwable {
+    final ImageStore imageStore = new ImageStore(context, directory, MAX_SIZE);
+    final Image image = createImage("/image.jpg", "abcdef");
+
+    server.enqueue(new MockResponse().setBody("ghijkl"));
+    final File file = imageStore.getFile(image);
+    assertThat(file.getName()).isNotEqualTo(image.md5);
+    assertThat(imageStore.getStoredFile(image)).isEqualTo(file);
+    assertThat(imageStore.getStoredFile(createImage("/other.jpg", "abcdef"))).isNull();
+  }
+
+  /** Test that files downloaded elsewhere are copied to the store and not downloaded again. */
+  public void testPut() throws Throwable {
+    final ImageStore imageStore = new ImageStore(context, directory, MAX_SIZE);
+    final Image image = createImage("/image.jpg", "abcdef");
+    final File source = new File(context.getCacheDir(), "ImageStoreTest.jpg");
+    final FileOutputStream outputStream = new FileOutputStream(source);
+    try {
+      outputStream.write("abcdef".getBytes("UTF-8"));
+    } finally {
+      outputStream.close();
+    }
+
+    try {
+      imageStore.put(image, source);
+      final File file = imageStore.getFile(image);
+      assertThat(file).isNotEqualTo(source);
+      assertThat(file.getName()).isEqualTo(image.md5);
+      assertThat(source.exists()).isTrue();
+      assertThat(server.getRequestCount()).isEqualTo(0);
+    } finally {
+      //noinspection ResultOfMethodCallIgnored
+      source.delete();
+    }
+  }
+
+  /** Test that the least recently used files are evicted once the store is full. */
+  public void testEviction() throws Throwable {
+    final ImageStore imageStore = new ImageStore(context, directory, MAX_SIZE);
+    final Image[] images = new Image[3];
+    for (int i = 0; i < images.length; i++) {
+      final String body = "image" + i + "...";
+      images[i] = createImage("/image" + i + ".jpg", body);
+      server.enqueue(new MockResponse().setBody(body));
+    }
+
+    imageStore.getFile(images[0]);
+    imageStore.getFile(images[1]);
+    // Use the first image again, so that the second one is evicted.
+    assertThat(imageStore.getStoredFile(images[0])).isNotNull();
+    imageStore.getFile(images[2]);
+
+    assertThat(imageStore.getCount()).isEqualTo(2);
+    assertThat(imageStore.size()).isLessThanOrEqualTo(MAX_SIZE);
+    assertThat(imageStore.getStoredFile(images[0])).isNotNull();
+    assertThat(imageStore.getStoredFile(images[1])).isNull();
+    assertThat(imageStore.getStoredFile(images[2])).isNotNull();
+  }
+
+  /**
+   * Create an image served by the local server.
+   *
+   * @param path Path of the file URL.
+   * @param body Contents of the file, used to compute the MD5 hash.
+   * @return Image.
+   */
+  private Image createImage(String path, String body) throws Exception {
+    final Image image = new Image();
+    image.fileUrl = server.url(path).toString();
+    image.md5 = StringUtils.toHexString(MessageDigest.getInstance("MD5")
+        .digest(body.getBytes(Charset.forName("UTF-8"))));
+    return image;
+  }
+
+  /** Delete the store directory and its contents. */
+  private void deleteDirectory() {
+    final File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+      }
+    }
+    //noinspection ResultOfMethodCallIgnored
+    directory.delete();
+  }
+}
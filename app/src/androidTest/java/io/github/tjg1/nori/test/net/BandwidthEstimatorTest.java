@@ -0,0 +1,78 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.test.net;
+
+import android.test.InstrumentationTestCase;
+
+import io.github.tjg1.nori.net.BandwidthEstimator;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/** Tests the {@link io.github.tjg1.nori.net.BandwidthEstimator} class. */
+public class BandwidthEstimatorTest extends InstrumentationTestCase {
+  /** Size of the transfers used in tests, in bytes. */
+  private static final long TRANSFER_SIZE = 1024 * 1024;
+
+  /** Test that nothing is estimated before enough bytes have been received. */
+  public void testUnknownBitrate() throws Throwable {
+    final BandwidthEstimator bandwidthEstimator = new BandwidthEstimator(null);
+    assertThat(bandwidthEstimator.getBitrate()).isEqualTo(BandwidthEstimator.UNKNOWN);
+
+    // Small transfers are dominated by latency.
+    bandwidthEstimator.onTransferStart(0);
+    bandwidthEstimator.onBytesTransferred(1024);
+    bandwidthEstimator.onTransferEnd(100);
+    assertThat(bandwidthEstimator.getBitrate()).isEqualTo(BandwidthEstimator.UNKNOWN);
+  }
+
+  /** Test estimating the bandwidth of a single transfer. */
+  public void testSingleTransfer() throws Throwable {
+    final BandwidthEstimator bandwidthEstimator = new BandwidthEstimator(null);
+    bandwidthEstimator.onTransferStart(1000);
+    bandwidthEstimator.onBytesTransferred(TRANSFER_SIZE);
+    bandwidthEstimator.onTransferEnd(2000);
+
+    assertThat(bandwidthEstimator.getBitrate()).isEqualTo(TRANSFER_SIZE * 8);
+  }
+
+  /** Test that transfers running in parallel are measured together and idle time is not counted. */
+  public void testParallelTransfers() throws Throwable {
+    final BandwidthEstimator bandwidthEstimator = new BandwidthEstimator(null);
+    bandwidthEstimator.onTransferStart(0);
+    bandwidthEstimator.onTransferStart(0);
+    bandwidthEstimator.onBytesTransferred(TRANSFER_SIZE / 2);
+    bandwidthEstimator.onTransferEnd(500);
+    bandwidthEstimator.onBytesTransferred(TRANSFER_SIZE / 2);
+    bandwidthEstimator.onTransferEnd(1000);
+    assertThat(bandwidthEstimator.getBitrate()).isEqualTo(TRANSFER_SIZE * 8);
+
+    // A transfer at the same speed after a period without network activity keeps the estimate.
+    bandwidthEstimator.onTransferStart(60000);
+    bandwidthEstimator.onBytesTransferred(TRANSFER_SIZE);
+    bandwidthEstimator.onTransferEnd(61000);
+    assertThat(bandwidthEstimator.getBitrate()).isEqualTo(TRANSFER_SIZE * 8);
+  }
+
+  /** Test that the estimate follows changes in the measured bandwidth. */
+  public void testChangingBandwidth() throws Throwable {
+    final BandwidthEstimator bandwidthEstimator = new BandwidthEstimator(null);
+    bandwidthEstimator.onTransferStart(0);
+    bandwidthEstimator.onBytesTransferred(TRANSFER_SIZE);
+    bandwidthEstimator.onTransferEnd(1000);
+
+    // The connection becomes ten times slower.
+    long time = 1000;
+    for (int i = 0; i < 5; i++) {
+      bandwidthEstimator.onTransferStart(time);
+      bandwidthEstimator.onBytesTransferred(TRANSFER_SIZE);
+      time += 10000;
+      bandwidthEstimator.onTransferEnd(time);
+    }
+    assertThat(bandwidthEstimator.getBitrate()).isLessThan(TRANSFER_SIZE * 8 / 5)
+        .isGreaterThanOrEqualTo(TRANSFER_SIZE * 8 / 10);
+  }
+}
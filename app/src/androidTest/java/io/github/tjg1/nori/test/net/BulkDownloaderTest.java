@@ -0,0 +1,253 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.test.net;
+
+import android.test.InstrumentationTestCase;
+
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.nori.net.BulkDownloader;
+import io.github.tjg1.nori.util.StringUtils;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/** Tests the {@link io.github.tjg1.nori.net.BulkDownloader} class. */
+public class BulkDownloaderTest extends InstrumentationTestCase {
+  /** Maximum time to wait for the downloads to finish, in seconds. */
+  private static final long TIMEOUT = 10;
+  /** Minimum time between requests to the local server used in the rate limit test, in milliseconds. */
+  private static final long HOST_REQUEST_INTERVAL = 200;
+  /** Directory files are downloaded to. */
+  private File directory;
+  /** Local HTTP server the requests are sent to. */
+  private MockWebServer server;
+
+  @Override
+  protected void setUp() throws Exception {
+    directory = new File(getInstrumentation().getTargetContext().getCacheDir(), "BulkDownloaderTest");
+    deleteDirectory();
+    server = new MockWebServer();
+    server.start();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    server.shutdown();
+    deleteDirectory();
+  }
+
+  /** Test downloading several files in parallel. */
+  public void testDownload() throws Throwable {
+    final List<Image> images = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      final String body = "image" + i;
+      server.enqueue(new MockResponse().setBody(body));
+      images.add(createImage("/images/" + i + ".jpg", body));
+    }
+    // Duplicate images are only downloaded once.
+    images.add(images.get(0));
+
+    final BulkDownloader bulkDownloader = new BulkDownloader(new OkHttpClient(), directory, null, 3, 0, null);
+    bulkDownloader.download(images);
+    assertThat(bulkDownloader.awaitCompletion(TIMEOUT, TimeUnit.SECONDS)).isTrue();
+    assertThat(server.getRequestCount()).isEqualTo(4);
+
+    final BulkDownloader.Progress progress = bulkDownloader.getProgress();
+    assertThat(progress.fileCount).isEqualTo(4);
+    assertThat(progress.completedCount).isEqualTo(4);
+    assertThat(progress.failedCount).isEqualTo(0);
+    assertThat(progress.bytesReceived).isEqualTo(4 * "image0".length());
+    for (int i = 0; i < 4; i++) {
+      final File file = new File(directory, i + ".jpg");
+      assertThat(BulkDownloader.md5(file)).isEqualTo(images.get(i).md5);
+      assertThat(new File(file.getPath() + ".part").exists()).isFalse();
+    }
+  }
+
+  /** Test resuming an interrupted download with a HTTP Range request. */
+  public void testResume() throws Throwable {
+    final Image image = createImage("/images/resumed.jpg", "0123456789");
+    assertThat(directory.mkdirs()).isTrue();
+    writeFile(new File(directory, "resumed.jpg.part"), "01234");
+
+    server.enqueue(new MockResponse().setResponseCode(206)
+        .setHeader("Content-Range", "bytes 5-9/10")
+        .setBody("56789"));
+    final BulkDownloader bulkDownloader = new BulkDownloader(new OkHttpClient(), directory, null, 1, 0, null);
+    bulkDownloader.download(Arrays.asList(image));
+    assertThat(bulkDownloader.awaitCompletion(TIMEOUT, TimeUnit.SECONDS)).isTrue();
+
+    final RecordedRequest request = server.takeRequest();
+    assertThat(request.getHeader("Range")).isEqualTo("bytes=5-");
+    assertThat(bulkDownloader.getProgress().completedCount).isEqualTo(1);
+    assertThat(BulkDownloader.md5(new File(directory, "resumed.jpg"))).isEqualTo(image.md5);
+  }
+
+  /** Test that a partial response starting elsewhere than the end of the partial file is not appended to it. */
+  public void testUnexpectedContentRange() throws Throwable {
+    final Image image = createImage("/images/restarted.jpg", "0123456789");
+    assertThat(directory.mkdirs()).isTrue();
+    writeFile(new File(directory, "restarted.jpg.part"), "01234");
+
+    server.enqueue(new MockResponse().setResponseCode(206)
+        .setHeader("Content-Range", "bytes 0-9/10")
+        .setBody("0123456789"));
+    server.enqueue(new MockResponse().setBody("0123456789"));
+    final BulkDownloader bulkDownloader = new BulkDownloader(new OkHttpClient(), directory, null, 1, 0, null);
+    bulkDownloader.download(Arrays.asList(image));
+    assertThat(bulkDownloader.awaitCompletion(TIMEOUT, TimeUnit.SECONDS)).isTrue();
+
+    // The download is started over.
+    assertThat(server.takeRequest().getHeader("Range")).isEqualTo("bytes=5-");
+    assertThat(server.takeRequest().getHeader("Range")).isNull();
+    assertThat(bulkDownloader.getProgress().completedCount).isEqualTo(1);
+    assertThat(BulkDownloader.md5(new File(directory, "restarted.jpg"))).isEqualTo(image.md5);
+  }
+
+  /** Test that cancelling is reported once, and that the listener isn't called about the progress afterwards. */
+  public void testCancel() throws Throwable {
+    final List<Image> images = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      // Send one byte per second, so that the downloads are still running when they are cancelled.
+      server.enqueue(new MockResponse().setBody("image" + i).throttleBody(1, 1, TimeUnit.SECONDS));
+      images.add(createImage("/images/" + i + ".jpg", "image" + i));
+    }
+    final TestListener listener = new TestListener();
+    final BulkDownloader bulkDownloader = new BulkDownloader(new OkHttpClient(), directory, null, 1, 0, listener);
+    bulkDownloader.download(images);
+    server.takeRequest();
+
+    bulkDownloader.cancel();
+    bulkDownloader.cancel();
+    assertThat(bulkDownloader.awaitCompletion(TIMEOUT, TimeUnit.SECONDS)).isTrue();
+    assertThat(bulkDownloader.isIdle()).isTrue();
+    // Queued downloads are dropped without being started.
+    assertThat(server.getRequestCount()).isEqualTo(1);
+    assertThat(listener.events).containsOnly("cancelled");
+  }
+
+  /** Test that files already downloaded are recognised by their MD5 hash and skipped. */
+  public void testSkipExisting() throws Throwable {
+    final Image image = createImage("/images/existing.jpg", "existing");
+    assertThat(directory.mkdirs()).isTrue();
+    writeFile(new File(directory, "existing.jpg"), "existing");
+
+    final BulkDownloader bulkDownloader = new BulkDownloader(new OkHttpClient(), directory, null, 1, 0, null);
+    bulkDownloader.download(Arrays.asList(image));
+    assertThat(bulkDownloader.awaitCompletion(TIMEOUT, TimeUnit.SECONDS)).isTrue();
+
+    assertThat(server.getRequestCount()).isEqualTo(0);
+    assertThat(bulkDownloader.getProgress().skippedCount).isEqualTo(1);
+  }
+
+  /** Test that requests to the same host are spaced out, even when several threads are available. */
+  public void testHostRequestInterval() throws Throwable {
+    final List<Image> images = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      server.enqueue(new MockResponse().setBody("image" + i));
+      images.add(createImage("/images/" + i + ".jpg", "image" + i));
+    }
+
+    final BulkDownloader bulkDownloader = new BulkDownloader(new OkHttpClient(), directory, null, 3,
+        HOST_REQUEST_INTERVAL, null);
+    final long startTime = System.nanoTime();
+    bulkDownloader.download(images);
+    assertThat(bulkDownloader.awaitCompletion(TIMEOUT, TimeUnit.SECONDS)).isTrue();
+
+    assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime))
+        .isGreaterThanOrEqualTo(2 * HOST_REQUEST_INTERVAL);
+    assertThat(bulkDownloader.getProgress().completedCount).isEqualTo(3);
+  }
+
+  /**
+   * Create an image served by the local server.
+   *
+   * @param path Path of the file URL.
+   * @param body Contents of the file, used to compute the MD5 hash.
+   * @return Image.
+   */
+  private Image createImage(String path, String body) throws Exception {
+    final Image image = new Image();
+    image.fileUrl = server.url(path).toString();
+    image.md5 = StringUtils.toHexString(MessageDigest.getInstance("MD5")
+        .digest(body.getBytes(Charset.forName("UTF-8"))));
+    return image;
+  }
+
+  /**
+   * Write a string to a file.
+   *
+   * @param file File.
+   * @param body Contents of the file.
+   */
+  private static void writeFile(File file, String body) throws IOException {
+    final FileOutputStream outputStream = new FileOutputStream(file);
+    try {
+      outputStream.write(body.getBytes(Charset.forName("UTF-8")));
+    } finally {
+      outputStream.close();
+    }
+  }
+
+  /** Delete the download directory and its contents. */
+  private void deleteDirectory() {
+    final File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+      }
+    }
+    //noinspection ResultOfMethodCallIgnored
+    directory.delete();
+  }
+
+  /** Listener recording the end of the downloads, and the progress updates made after they were cancelled. */
+  private static class TestListener implements BulkDownloader.Listener {
+    /** Callbacks made, in order. */
+    private final List<String> events = new CopyOnWriteArrayList<>();
+    /** True once the cancellation has been reported. */
+    private volatile boolean isCancelled;
+
+    @Override
+    public void onProgress(BulkDownloader.Progress progress) {
+      if (isCancelled) {
+        events.add("progress");
+      }
+    }
+
+    @Override
+    public void onFileDownloaded(File file) {
+    }
+
+    @Override
+    public void onFinished(BulkDownloader.Progress progress) {
+      events.add("finished");
+    }
+
+    @Override
+    public void onCancelled(BulkDownloader.Progress progress) {
+      isCancelled = true;
+      events.add("cancelled");
+    }
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.test.net;
+
+import android.content.Context;
+import android.test.InstrumentationTestCase;
+
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import io.github.tjg1.nori.net.CachedImageTransfer;
+import io.github.tjg1.nori.net.HttpEngine;
+import okio.Buffer;
+import okio.Okio;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/** Tests the {@link io.github.tjg1.nori.net.CachedImageTransfer} class. */
+public class CachedImageTransferTest extends InstrumentationTestCase {
+  /** Body of the image served by the local server. */
+  private static final String IMAGE_BODY = "not really a JPEG image";
+  /** App context used for testing. */
+  private Context context;
+  /** Local HTTP server the requests are sent to. */
+  private MockWebServer server;
+  /** File images are copied to. */
+  private File file;
+
+  @Override
+  protected void setUp() throws Exception {
+    context = getInstrumentation().getTargetContext();
+    server = new MockWebServer();
+    server.start();
+    file = new File(context.getCacheDir(), "CachedImageTransferTest.jpg");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    server.shutdown();
+    //noinspection ResultOfMethodCallIgnored
+    file.delete();
+  }
+
+  /** Test that a cached image is copied without using the network. */
+  public void testCopyFromCache() throws Throwable {
+    final String url = server.url("/images/cached.jpg").toString();
+    server.enqueue(new MockResponse()
+        .setHeader("Cache-Control", "max-age=3600")
+        .setBody(IMAGE_BODY));
+
+    // Load the image as the viewer would, to put it in the HTTP cache.
+    assertThat(readString(HttpEngine.openStream(context, url))).isEqualTo(IMAGE_BODY);
+    assertThat(server.getRequestCount()).isEqualTo(1);
+
+    assertThat(CachedImageTransfer.copyFromCache(context, url, file)).isTrue();
+    assertThat(readString(new FileInputStream(file))).isEqualTo(IMAGE_BODY);
+    assertThat(new File(file.getPath() + ".part").exists()).isFalse();
+    assertThat(readString(CachedImageTransfer.openStream(context, url))).isEqualTo(IMAGE_BODY);
+    assertThat(server.getRequestCount()).isEqualTo(1);
+  }
+
+  /** Test that images that aren't cached are only downloaded when the network may be used. */
+  public void testCacheMiss() throws Throwable {
+    final String url = server.url("/images/uncached.jpg").toString();
+    assertThat(CachedImageTransfer.copyFromCache(context, url, file)).isFalse();
+    assertThat(file.exists()).isFalse();
+    assertThat(server.getRequestCount()).isEqualTo(0);
+
+    server.enqueue(new MockResponse().setBody(IMAGE_BODY));
+    CachedImageTransfer.copy(context, url, file);
+    assertThat(readString(new FileInputStream(file))).isEqualTo(IMAGE_BODY);
+    assertThat(server.getRequestCount()).isEqualTo(1);
+  }
+
+  /**
+   * Read a stream to a string and close it.
+   *
+   * @param inputStream Input stream.
+   * @return Contents of the stream.
+   */
+  private static String readString(InputStream inputStream) throws IOException {
+    try {
+      final Buffer buffer = new Buffer();
+      buffer.writeAll(Okio.source(inputStream));
+      return buffer.readUtf8();
+    } finally {
+      inputStream.close();
+    }
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.test.net;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.test.InstrumentationTestCase;
+
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+import com.squareup.picasso.Picasso;
+
+import io.github.tjg1.library.norilib.SearchResult;
+import io.github.tjg1.library.norilib.clients.SearchClient;
+import io.github.tjg1.nori.net.HttpEngine;
+import okio.Buffer;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/** Tests the {@link io.github.tjg1.nori.net.HttpEngine} class. */
+public class HttpEngineTest extends InstrumentationTestCase {
+  /** Empty Gelbooru API search result. */
+  private static final String EMPTY_GELBOORU_RESPONSE = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+      "<posts count=\"0\" offset=\"0\"></posts>";
+  /** App context used for testing. */
+  private Context context;
+  /** Local HTTP server the requests are sent to. */
+  private MockWebServer server;
+
+  @Override
+  protected void setUp() throws Exception {
+    context = getInstrumentation().getTargetContext();
+    server = new MockWebServer();
+    server.start();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    server.shutdown();
+  }
+
+  /** Test if the shared client is created once and has a disk cache. */
+  public void testGetClient() throws Throwable {
+    HttpEngine.install(context);
+    assertThat(HttpEngine.getClient(context)).isSameAs(HttpEngine.getClient(context));
+    assertThat(HttpEngine.getClient(context).getCache()).isNotNull();
+  }
+
+  /** Test if a search followed by thumbnail loads re-uses a single connection. */
+  public void testConnectionReuse() throws Throwable {
+    HttpEngine.install(context);
+
+    // Enqueue a search result and two thumbnails.
+    server.enqueue(new MockResponse().setBody(EMPTY_GELBOORU_RESPONSE));
+    server.enqueue(new MockResponse().setBody(createThumbnail()));
+    server.enqueue(new MockResponse().setBody(createThumbnail()));
+
+    // Search for images.
+    SearchClient searchClient = new SearchClient.Settings(SearchClient.Settings.APIType.GELBOORU, "Test",
+        server.url("/").toString()).createSearchClient();
+    SearchResult searchResult = searchClient.search("test");
+    assertThat(searchResult).isNotNull();
+
+    // Load thumbnails.
+    Bitmap thumbnail = Picasso.with(context).load(server.url("/thumbnail_1.png").toString()).get();
+    assertThat(thumbnail).isNotNull();
+    thumbnail = Picasso.with(context).load(server.url("/thumbnail_2.png").toString()).get();
+    assertThat(thumbnail).isNotNull();
+
+    // All requests should have been sent over the same connection.
+    RecordedRequest request = server.takeRequest();
+    assertThat(request.getSequenceNumber()).isEqualTo(0);
+    request = server.takeRequest();
+    assertThat(request.getPath()).isEqualTo("/thumbnail_1.png");
+    assertThat(request.getSequenceNumber()).isEqualTo(1);
+    request = server.takeRequest();
+    assertThat(request.getPath()).isEqualTo("/thumbnail_2.png");
+    assertThat(request.getSequenceNumber()).isEqualTo(2);
+  }
+
+  /**
+   * Create a small PNG image to serve as a thumbnail.
+   *
+   * @return Buffer containing the encoded image.
+   */
+  private static Buffer createThumbnail() {
+    Bitmap bitmap = Bitmap.createBitmap(8, 8, Bitmap.Config.ARGB_8888);
+    Buffer buffer = new Buffer();
+    bitmap.compress(Bitmap.CompressFormat.PNG, 100, buffer.outputStream());
+    bitmap.recycle();
+    return buffer;
+  }
+}
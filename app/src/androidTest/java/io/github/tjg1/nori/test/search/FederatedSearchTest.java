@@ -0,0 +1,251 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.test.search;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.test.InstrumentationTestCase;
+
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.SocketPolicy;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import io.github.tjg1.library.norilib.Tag;
+import io.github.tjg1.library.norilib.clients.SearchClient;
+import io.github.tjg1.nori.search.FederatedSearch;
+import io.github.tjg1.nori.search.PagedSearchResult;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/** Tests the {@link io.github.tjg1.nori.search.FederatedSearch} class. */
+public class FederatedSearchTest extends InstrumentationTestCase {
+  /** Time given to the services to return their pages, in milliseconds. Longer than the longest request timeout. */
+  private static final long SEARCH_TIMEOUT = 35000;
+  /** App context used for testing. */
+  private Context context;
+  /** Local HTTP server of the first service. */
+  private MockWebServer firstServer;
+  /** Local HTTP server of the second service. */
+  private MockWebServer secondServer;
+  /** Settings of both services. */
+  private List<SearchClient.Settings> settings;
+
+  @Override
+  protected void setUp() throws Exception {
+    context = getInstrumentation().getTargetContext();
+    firstServer = new MockWebServer();
+    firstServer.start();
+    secondServer = new MockWebServer();
+    secondServer.start();
+    settings = Arrays.asList(
+        new SearchClient.Settings(SearchClient.Settings.APIType.GELBOORU, "First", firstServer.url("/").toString()),
+        new SearchClient.Settings(SearchClient.Settings.APIType.GELBOORU, "Second", secondServer.url("/").toString()));
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    firstServer.shutdown();
+    secondServer.shutdown();
+  }
+
+  /** Test that images received from more than one service are only merged once, and remember their service. */
+  public void testMergeDuplicates() throws Throwable {
+    firstServer.enqueue(new MockResponse().setBody(createPage("a", "b")));
+    secondServer.enqueue(new MockResponse().setBody(createPage("b", "c", "d")));
+    final PagedSearchResult searchResult = createSearchResult();
+    final TestListener listener = new TestListener();
+    final FederatedSearch federatedSearch = startSearch(searchResult, listener, null);
+    listener.awaitIdle();
+
+    getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        assertThat(searchResult.getCount()).isEqualTo(4);
+        for (int i = 0; i < searchResult.getCount(); i++) {
+          // Image "b" belongs to the service whose page arrived first.
+          final String md5 = searchResult.getImage(i).md5;
+          if (md5.equals("a")) {
+            assertThat(federatedSearch.getSettings(i)).isSameAs(settings.get(0));
+          } else if (!md5.equals("b")) {
+            assertThat(federatedSearch.getSettings(i)).isSameAs(settings.get(1));
+          }
+        }
+        assertThat(federatedSearch.getSettings(searchResult.getCount())).isNull();
+        federatedSearch.cancel();
+      }
+    });
+    assertThat(listener.errors).isEmpty();
+  }
+
+  /** Test that images merged before the search was restored are not merged again. */
+  public void testRestore() throws Throwable {
+    firstServer.enqueue(new MockResponse().setBody(createPage("a")));
+    secondServer.enqueue(new MockResponse().setBody(createPage("b")));
+    final PagedSearchResult searchResult = createSearchResult();
+    final TestListener listener = new TestListener();
+    final FederatedSearch federatedSearch = startSearch(searchResult, listener, null);
+    listener.awaitIdle();
+
+    final Bundle savedInstanceState = new Bundle();
+    getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        federatedSearch.onSaveInstanceState(savedInstanceState);
+        federatedSearch.cancel();
+      }
+    });
+
+    // The next pages repeat the images received before.
+    firstServer.enqueue(new MockResponse().setBody(createPage("b", "c")));
+    secondServer.enqueue(new MockResponse().setBody(createPage("a")));
+    final TestListener restoredListener = new TestListener();
+    final FederatedSearch restoredSearch = startSearch(searchResult, restoredListener, savedInstanceState);
+    restoredListener.awaitIdle();
+
+    getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        assertThat(searchResult.getCount()).isEqualTo(3);
+        assertThat(searchResult.getImage(2).md5).isEqualTo("c");
+        assertThat(restoredSearch.getSettings(2)).isSameAs(settings.get(0));
+        restoredSearch.cancel();
+      }
+    });
+  }
+
+  /** Test that malformed responses are reported as failures instead of crashing the request thread. */
+  public void testMalformedResponse() throws Throwable {
+    firstServer.enqueue(new MockResponse().setBody(createPage("a").replace("width=\"100\"", "width=\"wide\"")));
+    secondServer.enqueue(new MockResponse().setBody(createPage("b")));
+    final PagedSearchResult searchResult = createSearchResult();
+    final TestListener listener = new TestListener();
+    final FederatedSearch federatedSearch = startSearch(searchResult, listener, null);
+    listener.awaitIdle();
+
+    assertThat(listener.errors).hasSize(1);
+    getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        assertThat(searchResult.getCount()).isEqualTo(1);
+        federatedSearch.cancel();
+      }
+    });
+  }
+
+  /** Test that a service that doesn't respond times out without holding back the other service. */
+  public void testTimeout() throws Throwable {
+    firstServer.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.NO_RESPONSE));
+    secondServer.enqueue(new MockResponse().setBody(createPage("b")));
+    final PagedSearchResult searchResult = createSearchResult();
+    final TestListener listener = new TestListener();
+    final FederatedSearch federatedSearch = startSearch(searchResult, listener, null);
+    listener.awaitIdle();
+
+    assertThat(listener.errors).hasSize(1);
+    assertThat(listener.errors.get(0)).isInstanceOf(InterruptedIOException.class);
+    getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        assertThat(searchResult.getCount()).isEqualTo(1);
+        federatedSearch.cancel();
+      }
+    });
+  }
+
+  /**
+   * Create an empty search result on the UI thread.
+   *
+   * @return Search result.
+   */
+  private PagedSearchResult createSearchResult() {
+    final PagedSearchResult[] searchResult = new PagedSearchResult[1];
+    getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        searchResult[0] = new PagedSearchResult(context, Tag.arrayFromString("test"));
+      }
+    });
+    return searchResult[0];
+  }
+
+  /**
+   * Start a federated search of both services on the UI thread.
+   *
+   * @param searchResult       Search result the pages are merged into.
+   * @param listener           Listener notified of the search progress.
+   * @param savedInstanceState State to resume the search from. May be null.
+   * @return Federated search.
+   */
+  private FederatedSearch startSearch(final PagedSearchResult searchResult, final TestListener listener,
+                                      final Bundle savedInstanceState) {
+    final FederatedSearch[] federatedSearch = new FederatedSearch[1];
+    getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        federatedSearch[0] = new FederatedSearch(context, settings, searchResult, listener);
+        federatedSearch[0].onRestoreInstanceState(savedInstanceState);
+        federatedSearch[0].fetchMore();
+      }
+    });
+    return federatedSearch[0];
+  }
+
+  /**
+   * Create a page of posts, as returned by the Gelbooru API.
+   *
+   * @param md5s MD5 checksums of the posts, also used as their IDs.
+   * @return Response body.
+   */
+  private static String createPage(String... md5s) {
+    final StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+    sb.append("<posts count=\"").append(md5s.length).append("\" offset=\"0\">");
+    for (String md5 : md5s) {
+      sb.append("<post height=\"100\" score=\"1\" file_url=\"http://example.com/images/").append(md5)
+          .append(".jpg\" parent_id=\"\" sample_url=\"http://example.com/samples/").append(md5)
+          .append(".jpg\" sample_width=\"100\" sample_height=\"100\" preview_url=\"http://example.com/thumbnails/")
+          .append(md5).append(".jpg\" rating=\"s\" tags=\"test\" id=\"").append(md5.hashCode())
+          .append("\" width=\"100\" change=\"1400000000\" md5=\"").append(md5)
+          .append("\" creator_id=\"1\" has_children=\"false\" created_at=\"Tue May 13 16:53:20 +0000 2014\"")
+          .append(" status=\"active\" source=\"\" has_notes=\"false\" has_comments=\"false\" preview_width=\"100\"")
+          .append(" preview_height=\"100\"/>");
+    }
+    return sb.append("</posts>").toString();
+  }
+
+  /** Listener recording the failed requests. */
+  private static class TestListener implements FederatedSearch.Listener {
+    /** Errors reported by the federated search. */
+    private final List<IOException> errors = new CopyOnWriteArrayList<>();
+    /** Counted down when the search stops fetching pages. */
+    private final CountDownLatch idleLatch = new CountDownLatch(1);
+
+    @Override
+    public void onServiceFailed(SearchClient.Settings settings, IOException e) {
+      errors.add(e);
+    }
+
+    @Override
+    public void onFetchingStateChanged(boolean isFetching) {
+      if (!isFetching) {
+        idleLatch.countDown();
+      }
+    }
+
+    /** Wait until every service has returned its page or failed. */
+    public void awaitIdle() throws InterruptedException {
+      assertThat(idleLatch.await(SEARCH_TIMEOUT, TimeUnit.MILLISECONDS)).isTrue();
+    }
+  }
+}
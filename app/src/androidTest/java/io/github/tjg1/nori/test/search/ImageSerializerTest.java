@@ -0,0 +1,83 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.test.search;
+
+import android.test.InstrumentationTestCase;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.Tag;
+import io.github.tjg1.nori.search.ImageSerializer;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/** Tests the {@link io.github.tjg1.nori.search.ImageSerializer} class. */
+public class ImageSerializerTest extends InstrumentationTestCase {
+
+  /** Test that images are read back with the same field values. */
+  public void testRoundTrip() throws Throwable {
+    final Image image = new Image();
+    image.id = "123";
+    image.fileUrl = "http://example.com/images/123.jpg";
+    image.sampleUrl = "http://example.com/samples/123.jpg";
+    image.previewUrl = "http://example.com/thumbnails/123.jpg";
+    image.width = 1000;
+    image.height = 2000;
+    image.tags = new Tag[]{new Tag("test_serializer_artist", Tag.Type.ARTIST), new Tag("test_serializer_general")};
+    image.obscenityRating = Image.ObscenityRating.SAFE;
+    image.md5 = "d41d8cd98f00b204e9800998ecf8427e";
+    image.source = "ソース";
+    image.createdAt = new Date(1400000000000L);
+    final Image empty = new Image();
+
+    final Image[] images = ImageSerializer.deserialize(ImageSerializer.serialize(new Image[]{image, empty}));
+    assertThat(images).hasSize(2);
+    final Image copy = images[0];
+    assertThat(copy.id).isEqualTo(image.id);
+    assertThat(copy.fileUrl).isEqualTo(image.fileUrl);
+    assertThat(copy.sampleUrl).isEqualTo(image.sampleUrl);
+    assertThat(copy.previewUrl).isEqualTo(image.previewUrl);
+    assertThat(copy.width).isEqualTo(1000);
+    assertThat(copy.height).isEqualTo(2000);
+    assertThat(copy.tags).hasSize(2);
+    assertThat(copy.tags[0].getName()).isEqualTo("test_serializer_artist");
+    assertThat(copy.tags[0].getType()).isEqualTo(Tag.Type.ARTIST);
+    assertThat(copy.tags[1].getName()).isEqualTo("test_serializer_general");
+    assertThat(copy.obscenityRating).isEqualTo(Image.ObscenityRating.SAFE);
+    assertThat(copy.md5).isEqualTo(image.md5);
+    assertThat(copy.source).isEqualTo(image.source);
+    assertThat(copy.createdAt).isEqualTo(image.createdAt);
+
+    // Missing fields stay null.
+    assertThat(images[1].id).isNull();
+    assertThat(images[1].tags).isNull();
+    assertThat(images[1].obscenityRating).isNull();
+    assertThat(images[1].createdAt).isNull();
+  }
+
+  /** Test that corrupted or truncated data is rejected with an IOException. */
+  public void testCorruptedData() throws Throwable {
+    final Image image = new Image();
+    image.id = "123";
+    image.tags = Tag.arrayFromString("tagme");
+    final byte[] data = ImageSerializer.serialize(new Image[]{image});
+
+    try {
+      ImageSerializer.deserialize(Arrays.copyOf(data, data.length - 1));
+      fail("IOException expected.");
+    } catch (IOException ignored) {
+    }
+    try {
+      ImageSerializer.deserialize("Not serialized images.".getBytes("UTF-8"));
+      fail("IOException expected.");
+    } catch (IOException ignored) {
+    }
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.test.search;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import java.io.File;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.SearchResult;
+import io.github.tjg1.library.norilib.Tag;
+import io.github.tjg1.library.norilib.clients.SearchClient;
+import io.github.tjg1.nori.search.FilteredSearchTask;
+import io.github.tjg1.nori.search.LaunchSnapshot;
+import io.github.tjg1.nori.search.SearchPageCache;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/** Tests the {@link io.github.tjg1.nori.search.LaunchSnapshot} class. */
+public class LaunchSnapshotTest extends InstrumentationTestCase {
+  /** Log tag used to report benchmark results. */
+  private static final String TAG = "LaunchSnapshotTest";
+  /** Number of images in the first page, as returned by most Search APIs. */
+  private static final int PAGE_SIZE = 100;
+  /** Number of times the snapshot is read in the benchmark. */
+  private static final int BENCHMARK_READS = 20;
+  /** Default query of the service used in tests. */
+  private static final String QUERY = "rating:safe";
+  /** Settings of the service used in tests. */
+  private static final SearchClient.Settings SETTINGS = new SearchClient.Settings(
+      SearchClient.Settings.APIType.GELBOORU, "Test", "http://example.com/");
+
+  /** Test that the snapshot is only read back for the service it was written for. */
+  public void testWriteAndRead() throws Throwable {
+    final Context context = getInstrumentation().getTargetContext();
+    writeSnapshot(context);
+
+    final SearchResult page = LaunchSnapshot.read(context, 1L);
+    assertThat(page).isNotNull();
+    assertThat(page.getImages()).hasSize(PAGE_SIZE);
+    assertThat(page.getImages()[PAGE_SIZE - 1].id).isEqualTo(String.valueOf(PAGE_SIZE - 1));
+    assertThat(Tag.stringFromArray(page.getQuery())).isEqualTo("rating:safe");
+    assertThat(page.getCurrentOffset()).isEqualTo(0);
+
+    assertThat(LaunchSnapshot.read(context, 2L)).isNull();
+  }
+
+  /** Test that the snapshot is gone once its page is no longer in the search page cache. */
+  public void testEvictedPage() throws Throwable {
+    final Context context = getInstrumentation().getTargetContext();
+    writeSnapshot(context);
+    final File[] files = new File(context.getCacheDir(), "search_pages").listFiles();
+    assertThat(files).isNotNull();
+    for (File file : files) {
+      //noinspection ResultOfMethodCallIgnored
+      file.delete();
+    }
+    assertThat(LaunchSnapshot.read(context, 1L)).isNull();
+  }
+
+  /**
+   * Measure the time needed to read the snapshot on launch. This is the time to first search result with the snapshot,
+   * compared to the time needed to load the service settings and search the API without it. The time to first
+   * thumbnail on an actual launch is logged by SearchActivity.
+   */
+  public void testReadBenchmark() throws Throwable {
+    final Context context = getInstrumentation().getTargetContext();
+    writeSnapshot(context);
+
+    final long startTime = SystemClock.elapsedRealtime();
+    for (int i = 0; i < BENCHMARK_READS; i++) {
+      assertThat(LaunchSnapshot.read(context, 1L)).isNotNull();
+    }
+    final long elapsedTime = SystemClock.elapsedRealtime() - startTime;
+
+    Log.i(TAG, String.format("Read a %d image launch snapshot in %.1f ms", PAGE_SIZE,
+        (double) elapsedTime / BENCHMARK_READS));
+  }
+
+  /**
+   * Cache the first page of the default query and point the snapshot at it.
+   *
+   * @param context Android context.
+   */
+  private static void writeSnapshot(Context context) {
+    SearchPageCache.put(context, SETTINGS, QUERY, FilteredSearchTask.FIRST_PAGE, createImages(), 0);
+    LaunchSnapshot.write(context, 1L, SETTINGS, QUERY);
+  }
+
+  /** @return Safe for work images with sequential IDs. */
+  private static Image[] createImages() {
+    final Image[] images = new Image[PAGE_SIZE];
+    for (int i = 0; i < images.length; i++) {
+      final Image image = new Image();
+      image.id = String.valueOf(i);
+      image.fileUrl = "http://example.com/images/" + image.id + ".jpg";
+      image.sampleUrl = "http://example.com/samples/" + image.id + ".jpg";
+      image.previewUrl = "http://example.com/thumbnails/" + image.id + ".jpg";
+      image.tags = Tag.arrayFromString("tagme");
+      image.obscenityRating = Image.ObscenityRating.SAFE;
+      image.width = 1000;
+      image.height = 1000;
+      images[i] = image;
+    }
+    return images;
+  }
+}
@@ -0,0 +1,407 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.test.search;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.SearchResult;
+import io.github.tjg1.library.norilib.Tag;
+import io.github.tjg1.nori.search.PagedSearchResult;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/** Tests the {@link io.github.tjg1.nori.search.PagedSearchResult} class. */
+public class PagedSearchResultTest extends InstrumentationTestCase {
+  /** Log tag used to report benchmark results. */
+  private static final String TAG = "PagedSearchResultTest";
+  /** Number of pages appended in the benchmark. */
+  private static final int BENCHMARK_PAGES = 100;
+  /** Number of images in each page. Not a multiple of the chunk size, so that pages span chunks. */
+  private static final int PAGE_SIZE = 42;
+  /** Number of images in a chunk of {@link PagedSearchResult}. */
+  private static final int CHUNK_SIZE = 64;
+  /** Number of random reads made after each page is appended in the benchmark. */
+  private static final int BENCHMARK_READS_PER_PAGE = 200;
+  /** Time given to the background thread to write snapshots and read chunks, in milliseconds. */
+  private static final long SNAPSHOT_TIMEOUT = 5000;
+
+  /** Test indexed access to images appended across many pages. */
+  public void testGetImage() throws Throwable {
+    PagedSearchResult searchResult = createSearchResult(BENCHMARK_PAGES);
+    assertThat(searchResult.getCount()).isEqualTo(BENCHMARK_PAGES * PAGE_SIZE);
+    assertThat(searchResult.getCurrentOffset()).isEqualTo(BENCHMARK_PAGES - 1);
+
+    // Scrolling to the end drops the first pages from memory, so they have to be read back from disk.
+    searchResult.setVisibleRange(searchResult.getCount() - 10, searchResult.getCount() - 1);
+    for (int i = 0; i < searchResult.getCount(); i++) {
+      assertThat(awaitImage(searchResult, i).id).isEqualTo(String.valueOf(i));
+    }
+    close(searchResult);
+  }
+
+  /** Test that chunks dropped from memory are read back in the background and observers are notified. */
+  public void testSpillAndReload() throws Throwable {
+    final PagedSearchResult searchResult = createSearchResult(BENCHMARK_PAGES);
+    final int count = searchResult.getCount();
+    awaitChunksWritten(searchResult);
+    final CountDownLatch loaded = new CountDownLatch(1);
+    final int[] loadedCount = {-1};
+    getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        searchResult.registerObserver(new PagedSearchResult.Observer() {
+          @Override
+          public void onImagesAdded(int positionStart, int itemCount) {
+          }
+
+          @Override
+          public void onImagesLoaded(int positionStart, int itemCount) {
+            // The chunks around the visible range are loaded as well.
+            if (positionStart == 0) {
+              loadedCount[0] = itemCount;
+              loaded.countDown();
+            }
+          }
+        });
+        // Scroll to the end, then back to the start. The first images are no longer in memory.
+        searchResult.setVisibleRange(count - 10, count - 1);
+        assertThat(searchResult.getImage(0)).isNull();
+        assertThat(searchResult.getImage(count - 1)).isNotNull();
+      }
+    });
+
+    assertThat(loaded.await(SNAPSHOT_TIMEOUT, TimeUnit.MILLISECONDS)).isTrue();
+    assertThat(loadedCount[0]).isEqualTo(CHUNK_SIZE);
+    getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        assertThat(searchResult.getImage(0).id).isEqualTo("0");
+      }
+    });
+    close(searchResult);
+  }
+
+  /** Test reading all images, including the ones dropped from memory, in the background. */
+  public void testGetAllImages() throws Throwable {
+    final PagedSearchResult searchResult = createSearchResult(BENCHMARK_PAGES);
+    awaitChunksWritten(searchResult);
+    final List<Image> images = getAllImages(searchResult);
+    assertThat(images).hasSize(searchResult.getCount());
+    for (int i = 0; i < images.size(); i++) {
+      assertThat(images.get(i).id).isEqualTo(String.valueOf(i));
+    }
+    close(searchResult);
+  }
+
+  /** Test that images in chunks that can't be read from disk are reported as missing, instead of crashing. */
+  public void testUnreadableChunk() throws Throwable {
+    final Context context = getInstrumentation().getTargetContext();
+    final PagedSearchResult searchResult = createSearchResult(10);
+    final PagedSearchResult restored = saveAndRestore(searchResult);
+    searchResult.close();
+
+    // Truncate the chunk file, as if the cache directory had been cleared.
+    final RandomAccessFile chunkFile = new RandomAccessFile(
+        new File(new File(context.getCacheDir(), "search_results"), restored.getId() + ".chunks"), "rw");
+    try {
+      chunkFile.setLength(0);
+    } finally {
+      chunkFile.close();
+    }
+
+    getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        assertThat(restored.getImage(0)).isNull();
+      }
+    });
+    // Only the last chunk, which is stored in the snapshot, can still be read.
+    final List<Image> images = getAllImages(restored);
+    assertThat(images).hasSize(10 * PAGE_SIZE % CHUNK_SIZE);
+    getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        assertThat(restored.getImage(0)).isNull();
+        assertThat(restored.getImage(restored.getCount() - 1).id).isEqualTo(String.valueOf(restored.getCount() - 1));
+      }
+    });
+    close(restored);
+  }
+
+  /** Test that observers are notified of the range of added images. */
+  public void testObserver() throws Throwable {
+    final PagedSearchResult searchResult = createSearchResult(1);
+    final int[] addedRange = {-1, -1};
+    searchResult.registerObserver(new PagedSearchResult.Observer() {
+      @Override
+      public void onImagesAdded(int positionStart, int itemCount) {
+        addedRange[0] = positionStart;
+        addedRange[1] = itemCount;
+      }
+
+      @Override
+      public void onImagesLoaded(int positionStart, int itemCount) {
+      }
+    });
+
+    searchResult.addImages(createImages(PAGE_SIZE, 10), 1);
+    assertThat(addedRange[0]).isEqualTo(PAGE_SIZE);
+    assertThat(addedRange[1]).isEqualTo(10);
+    assertThat(searchResult.getCount()).isEqualTo(PAGE_SIZE + 10);
+    searchResult.close();
+  }
+
+  /** Test restoring a search result from a snapshot. */
+  public void testRestore() throws Throwable {
+    final PagedSearchResult searchResult = createSearchResult(10);
+    searchResult.onLastPage();
+    final PagedSearchResult restored = saveAndRestore(searchResult);
+    searchResult.close();
+
+    assertThat(restored.getCount()).isEqualTo(10 * PAGE_SIZE);
+    assertThat(restored.getCurrentOffset()).isEqualTo(9);
+    assertThat(restored.hasNextPage()).isFalse();
+    assertThat(Tag.stringFromArray(restored.getQuery())).isEqualTo("tagme");
+    for (int i = 0; i < restored.getCount(); i++) {
+      assertThat(awaitImage(restored, i).id).isEqualTo(String.valueOf(i));
+    }
+    close(restored);
+  }
+
+  /**
+   * Compare the time it takes to append 100 pages of images and read random images while scrolling through them with
+   * {@link SearchResult}, which copies all images on every call to {@link SearchResult#getImages()}.
+   */
+  public void testAppendAndRandomAccessBenchmark() throws Throwable {
+    // Warm up.
+    runSearchResultBenchmark(new Random(0));
+    runPagedSearchResultBenchmark(new Random(0));
+
+    final long searchResultTime = runSearchResultBenchmark(new Random(1));
+    final long pagedSearchResultTime = runPagedSearchResultBenchmark(new Random(1));
+    Log.i(TAG, String.format("%d pages, %d reads per page: SearchResult %.3f ms, PagedSearchResult %.3f ms",
+        BENCHMARK_PAGES, BENCHMARK_READS_PER_PAGE, searchResultTime / 1000000.0, pagedSearchResultTime / 1000000.0));
+    assertThat(pagedSearchResultTime).isGreaterThan(0);
+  }
+
+  /**
+   * Append pages to a {@link SearchResult} and read random images from it, as the grid adapter used to.
+   *
+   * @param random Random number generator used to pick the images read.
+   * @return Time taken, in nanoseconds.
+   */
+  private static long runSearchResultBenchmark(Random random) {
+    final long startTime = System.nanoTime();
+    final SearchResult searchResult = new SearchResult(createImages(0, PAGE_SIZE), Tag.arrayFromString("tagme"), 0);
+    for (int page = 1; page < BENCHMARK_PAGES; page++) {
+      searchResult.addImages(createImages(page * PAGE_SIZE, PAGE_SIZE), page);
+      final int count = searchResult.getImages().length;
+      for (int i = 0; i < BENCHMARK_READS_PER_PAGE; i++) {
+        assertNotNull(searchResult.getImages()[readPosition(random, count)]);
+      }
+    }
+    return System.nanoTime() - startTime;
+  }
+
+  /**
+   * Append pages to a {@link PagedSearchResult} and read random images from it, as the grid adapter does. Runs on the
+   * UI thread, where chunks read back from disk are delivered. Images that aren't in memory are requested from disk,
+   * as the grid adapter would show a placeholder for them.
+   *
+   * @param random Random number generator used to pick the images read.
+   * @return Time taken, in nanoseconds.
+   */
+  private long runPagedSearchResultBenchmark(final Random random) {
+    final long[] time = new long[1];
+    getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        final long startTime = System.nanoTime();
+        final PagedSearchResult searchResult = new PagedSearchResult(getInstrumentation().getTargetContext(),
+            new SearchResult(createImages(0, PAGE_SIZE), Tag.arrayFromString("tagme"), 0));
+        int hits = 0;
+        for (int page = 1; page < BENCHMARK_PAGES; page++) {
+          searchResult.addImages(createImages(page * PAGE_SIZE, PAGE_SIZE), page);
+          final int count = searchResult.getCount();
+          for (int i = 0; i < BENCHMARK_READS_PER_PAGE; i++) {
+            if (searchResult.getImage(readPosition(random, count)) != null) {
+              hits++;
+            }
+          }
+        }
+        time[0] = System.nanoTime() - startTime;
+        searchResult.close();
+        // Most reads are close to the end of the list, which is always in memory.
+        assertThat(hits).isGreaterThan(BENCHMARK_PAGES * BENCHMARK_READS_PER_PAGE / 2);
+      }
+    });
+    return time[0];
+  }
+
+  /**
+   * Wait for an image to be available, reading it on the UI thread.
+   *
+   * @param searchResult Search result.
+   * @param position     Image position.
+   * @return Image.
+   */
+  private Image awaitImage(final PagedSearchResult searchResult, final int position) throws InterruptedException {
+    final Image[] image = new Image[1];
+    final long deadline = SystemClock.uptimeMillis() + SNAPSHOT_TIMEOUT;
+    while (true) {
+      getInstrumentation().runOnMainSync(new Runnable() {
+        @Override
+        public void run() {
+          image[0] = searchResult.getImage(position);
+        }
+      });
+      if (image[0] != null) {
+        return image[0];
+      }
+      assertThat(SystemClock.uptimeMillis()).isLessThan(deadline);
+      Thread.sleep(10);
+    }
+  }
+
+  /**
+   * Read all images of a search result using {@link PagedSearchResult#getAllImages}.
+   *
+   * @param searchResult Search result.
+   * @return Images.
+   */
+  private List<Image> getAllImages(final PagedSearchResult searchResult) throws InterruptedException {
+    final CountDownLatch latch = new CountDownLatch(1);
+    final Object[] images = new Object[1];
+    getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        searchResult.getAllImages(new PagedSearchResult.AllImagesCallback() {
+          @Override
+          public void onAllImagesLoaded(List<Image> result) {
+            images[0] = result;
+            latch.countDown();
+          }
+        });
+      }
+    });
+    assertThat(latch.await(SNAPSHOT_TIMEOUT, TimeUnit.MILLISECONDS)).isTrue();
+    //noinspection unchecked
+    return (List<Image>) images[0];
+  }
+
+  /**
+   * Wait until the full chunks of a search result have been written to disk, so that they can be dropped from memory.
+   * Chunks are written on the same background thread as {@link PagedSearchResult#getAllImages}.
+   *
+   * @param searchResult Search result.
+   */
+  private void awaitChunksWritten(PagedSearchResult searchResult) throws InterruptedException {
+    getAllImages(searchResult);
+  }
+
+  /**
+   * Write a snapshot of a search result and restore it.
+   *
+   * @param searchResult Search result.
+   * @return Restored search result.
+   */
+  private PagedSearchResult saveAndRestore(PagedSearchResult searchResult) throws Exception {
+    final Context context = getInstrumentation().getTargetContext();
+    searchResult.saveSnapshot();
+
+    // The snapshot is written in the background.
+    final long deadline = SystemClock.uptimeMillis() + SNAPSHOT_TIMEOUT;
+    while (true) {
+      try {
+        return PagedSearchResult.restore(context, searchResult.getId());
+      } catch (IOException e) {
+        if (SystemClock.uptimeMillis() > deadline) {
+          throw e;
+        }
+        Thread.sleep(50);
+      }
+    }
+  }
+
+  /**
+   * Close a search result on the UI thread, where chunks read back from disk are delivered.
+   *
+   * @param searchResult Search result.
+   */
+  private void close(final PagedSearchResult searchResult) {
+    getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        searchResult.close();
+      }
+    });
+  }
+
+  /**
+   * Pick the position of an image to read. Most reads are close to the end of the list, where the user is scrolling.
+   *
+   * @param random Random number generator.
+   * @param count  Number of images.
+   * @return Image position.
+   */
+  private static int readPosition(Random random, int count) {
+    if (random.nextInt(10) == 0) {
+      return random.nextInt(count);
+    }
+    return Math.max(0, count - 1 - random.nextInt(2 * PAGE_SIZE));
+  }
+
+  /**
+   * Create a search result with given number of pages.
+   *
+   * @param pageCount Number of pages.
+   * @return Search result.
+   */
+  private PagedSearchResult createSearchResult(int pageCount) {
+    final PagedSearchResult searchResult = new PagedSearchResult(getInstrumentation().getTargetContext(),
+        new SearchResult(createImages(0, PAGE_SIZE), Tag.arrayFromString("tagme"), 0));
+    for (int page = 1; page < pageCount; page++) {
+      searchResult.addImages(createImages(page * PAGE_SIZE, PAGE_SIZE), page);
+    }
+    return searchResult;
+  }
+
+  /**
+   * Create images with sequential IDs.
+   *
+   * @param start ID of the first image.
+   * @param count Number of images.
+   * @return Images.
+   */
+  private static Image[] createImages(int start, int count) {
+    final Image[] images = new Image[count];
+    for (int i = 0; i < count; i++) {
+      final Image image = new Image();
+      image.id = String.valueOf(start + i);
+      image.fileUrl = "http://example.com/images/" + image.id + ".jpg";
+      image.sampleUrl = "http://example.com/samples/" + image.id + ".jpg";
+      image.previewUrl = "http://example.com/thumbnails/" + image.id + ".jpg";
+      image.tags = Tag.arrayFromString("tagme");
+      image.width = 1000;
+      image.height = 1000;
+      images[i] = image;
+    }
+    return images;
+  }
+}
@@ -0,0 +1,348 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.test.search;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.test.InstrumentationTestCase;
+
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.SocketPolicy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.SearchResult;
+import io.github.tjg1.library.norilib.clients.SearchClient;
+import io.github.tjg1.nori.R;
+import io.github.tjg1.nori.search.FilteredSearchTask;
+import io.github.tjg1.nori.search.SearchPageCache;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/** Tests the {@link io.github.tjg1.nori.search.SearchPageCache} class. */
+public class SearchPageCacheTest extends InstrumentationTestCase {
+  /** Query used in tests. */
+  private static final String QUERY = "test_search_page_cache";
+  /** Page offset used in tests. */
+  private static final int OFFSET = 0;
+  /** Time given to the search task to finish, in seconds. */
+  private static final long TASK_TIMEOUT = 10;
+  /** App context used for testing. */
+  private Context context;
+  /** Local HTTP server the requests are sent to. */
+  private MockWebServer server;
+  /** Settings of the service used in tests. */
+  private SearchClient.Settings settings;
+  /** Time-to-live preference set before the test. */
+  private String timeToLivePreference;
+
+  @Override
+  protected void setUp() throws Exception {
+    context = getInstrumentation().getTargetContext();
+    deleteCachedPages();
+    server = new MockWebServer();
+    server.start();
+    settings = new SearchClient.Settings(SearchClient.Settings.APIType.GELBOORU, "Test", server.url("/").toString());
+    timeToLivePreference = getPreferences().getString(context.getString(R.string.preference_searchCacheTtl_key), null);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    server.shutdown();
+    getPreferences().edit().putString(context.getString(R.string.preference_searchCacheTtl_key), timeToLivePreference)
+        .commit();
+    deleteCachedPages();
+  }
+
+  /** Test the freshness of cached pages with each time-to-live. */
+  public void testTimeToLive() throws Throwable {
+    SearchPageCache.put(context, settings, QUERY, OFFSET, createImages("1", "2"), 0);
+    final SearchPageCache.Entry entry = SearchPageCache.get(context, settings, QUERY, OFFSET);
+    assertThat(entry).isNotNull();
+    assertThat(entry.images).hasSize(2);
+    assertThat(entry.isFresh(TimeUnit.MINUTES.toMillis(5))).isTrue();
+    // "Every time" always revalidates.
+    assertThat(entry.isFresh(0)).isFalse();
+
+    setTimeToLive("-1");
+    assertThat(SearchPageCache.getTimeToLive(context)).isEqualTo(SearchPageCache.DISABLED);
+    setTimeToLive("0");
+    assertThat(SearchPageCache.getTimeToLive(context)).isEqualTo(0);
+    setTimeToLive("300");
+    assertThat(SearchPageCache.getTimeToLive(context)).isEqualTo(300000);
+  }
+
+  /** Test that pages are only shared between clients with the same credentials. */
+  public void testCredentials() throws Throwable {
+    final SearchClient.Settings authenticatedSettings = new SearchClient.Settings(
+        SearchClient.Settings.APIType.GELBOORU, "Test", server.url("/").toString(), "user", "secret");
+    SearchPageCache.put(context, authenticatedSettings, QUERY, OFFSET, createImages("1"), 0);
+    assertThat(SearchPageCache.get(context, settings, QUERY, OFFSET)).isNull();
+    assertThat(SearchPageCache.get(context, new SearchClient.Settings(SearchClient.Settings.APIType.GELBOORU, "Test",
+        server.url("/").toString(), "user", "other_secret"), QUERY, OFFSET)).isNull();
+    assertThat(SearchPageCache.get(context, authenticatedSettings, QUERY, OFFSET)).isNotNull();
+
+    // Credentials are never written to disk in clear text.
+    final File[] files = getCacheDirectory().listFiles();
+    assertThat(files).hasSize(1);
+    final byte[] data = new byte[(int) files[0].length()];
+    final RandomAccessFile file = new RandomAccessFile(files[0], "r");
+    try {
+      file.readFully(data);
+    } finally {
+      file.close();
+    }
+    assertThat(new String(data, "ISO-8859-1")).doesNotContain("secret");
+  }
+
+  /** Test that pages older than a week are only returned when stale pages are allowed. */
+  public void testStalePage() throws Throwable {
+    assertThat(SearchPageCache.get(context, settings, QUERY, OFFSET, true)).isNull();
+    SearchPageCache.put(context, settings, QUERY, OFFSET, createImages("1"), 0);
+    assertThat(SearchPageCache.get(context, settings, QUERY, OFFSET, false)).isNotNull();
+    setFetchedAt(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(8));
+
+    assertThat(SearchPageCache.get(context, settings, QUERY, OFFSET)).isNull();
+    assertThat(SearchPageCache.get(context, settings, QUERY, OFFSET, false)).isNull();
+    final SearchPageCache.Entry entry = SearchPageCache.get(context, settings, QUERY, OFFSET, true);
+    assertThat(entry).isNotNull();
+    assertThat(entry.images[0].id).isEqualTo("1");
+  }
+
+  /** Test that an outdated page is delivered with the error, not as an offline page, if the API fails while online. */
+  public void testApiFailure() throws Throwable {
+    setTimeToLive("0");
+    SearchPageCache.put(context, settings, QUERY, OFFSET, createImages("1"), 0);
+    // Every request fails, including the ones retried by the HTTP client.
+    for (int i = 0; i < 4; i++) {
+      server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START));
+    }
+
+    final TestCallback callback = new TestCallback();
+    execute(callback);
+    assertThat(callback.stalePage).isNotNull();
+    assertThat(callback.stalePage.getImages()[0].id).isEqualTo("1");
+    assertThat(callback.error).isNotNull();
+    assertThat(callback.offlinePage).isNull();
+    assertThat(callback.page).isNull();
+
+    // A revalidating callback already shows the cached page, so it only receives the error.
+    final RevalidatingTestCallback revalidatingCallback = new RevalidatingTestCallback();
+    execute(revalidatingCallback);
+    assertThat(revalidatingCallback.cachedPage).isNotNull();
+    assertThat(revalidatingCallback.error).isNotNull();
+    assertThat(revalidatingCallback.stalePage).isNull();
+  }
+
+  /** Test that an outdated page is shown while it is revalidated, and that unchanged pages aren't delivered twice. */
+  public void testRevalidation() throws Throwable {
+    setTimeToLive("0");
+    SearchPageCache.put(context, settings, QUERY, OFFSET, createImages("1"), 0);
+
+    // The API returns the same page.
+    server.enqueue(new MockResponse().setBody(createPage("1")));
+    RevalidatingTestCallback callback = search();
+    assertThat(callback.cachedPage).isNotNull();
+    assertThat(callback.isNotModified).isTrue();
+    assertThat(callback.page).isNull();
+    assertThat(server.getRequestCount()).isEqualTo(1);
+
+    // The API returns a new page.
+    server.enqueue(new MockResponse().setBody(createPage("2", "1")));
+    callback = search();
+    assertThat(callback.cachedPage).isNotNull();
+    assertThat(callback.isNotModified).isFalse();
+    assertThat(callback.page.getImages()).hasSize(2);
+    assertThat(SearchPageCache.get(context, settings, QUERY, OFFSET).images).hasSize(2);
+  }
+
+  /**
+   * Search the service on the UI thread and wait for the page to be fetched.
+   *
+   * @return Callback the result was delivered to.
+   */
+  private RevalidatingTestCallback search() throws Throwable {
+    final RevalidatingTestCallback callback = new RevalidatingTestCallback();
+    execute(callback);
+    assertThat(callback.error).isNull();
+    return callback;
+  }
+
+  /**
+   * Start a search task on the UI thread and wait for it to finish.
+   *
+   * @param callback Callback the result is delivered to.
+   */
+  private void execute(final TestCallback callback) throws Throwable {
+    getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        FilteredSearchTask.execute(context, settings.createSearchClient(), QUERY, OFFSET, callback);
+      }
+    });
+    assertThat(callback.latch.await(TASK_TIMEOUT, TimeUnit.SECONDS)).isTrue();
+  }
+
+  /**
+   * Overwrite the time the only cached page was received at.
+   *
+   * @param fetchedAt Time, in milliseconds since the epoch.
+   */
+  private void setFetchedAt(long fetchedAt) throws IOException {
+    final File[] files = getCacheDirectory().listFiles();
+    assertThat(files).hasSize(1);
+    final RandomAccessFile file = new RandomAccessFile(files[0], "rw");
+    try {
+      // Skip the format version and the cache key.
+      file.readInt();
+      file.readUTF();
+      file.writeLong(fetchedAt);
+    } finally {
+      file.close();
+    }
+  }
+
+  /**
+   * Set the time-to-live preference.
+   *
+   * @param timeToLive Time-to-live, in seconds.
+   */
+  private void setTimeToLive(String timeToLive) {
+    getPreferences().edit().putString(context.getString(R.string.preference_searchCacheTtl_key), timeToLive).commit();
+  }
+
+  /** @return Default shared preferences. */
+  private SharedPreferences getPreferences() {
+    return PreferenceManager.getDefaultSharedPreferences(context);
+  }
+
+  /** @return Directory the cached pages are stored in. */
+  private File getCacheDirectory() {
+    return new File(context.getCacheDir(), "search_pages");
+  }
+
+  /** Delete all cached pages. */
+  private void deleteCachedPages() {
+    final File[] files = getCacheDirectory().listFiles();
+    if (files != null) {
+      for (File file : files) {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+      }
+    }
+  }
+
+  /**
+   * Create images to cache.
+   *
+   * @param ids Image IDs.
+   * @return Images.
+   */
+  private static Image[] createImages(String... ids) {
+    final Image[] images = new Image[ids.length];
+    for (int i = 0; i < ids.length; i++) {
+      images[i] = new Image();
+      images[i].id = ids[i];
+      images[i].fileUrl = "http://example.com/images/" + ids[i] + ".jpg";
+    }
+    return images;
+  }
+
+  /**
+   * Create a page of posts, as returned by the Gelbooru API.
+   *
+   * @param ids Post IDs.
+   * @return Response body.
+   */
+  private static String createPage(String... ids) {
+    final StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+    sb.append("<posts count=\"").append(ids.length).append("\" offset=\"0\">");
+    for (String id : ids) {
+      sb.append("<post height=\"100\" score=\"1\" file_url=\"http://example.com/images/").append(id)
+          .append(".jpg\" parent_id=\"\" sample_url=\"http://example.com/images/").append(id)
+          .append(".jpg\" sample_width=\"100\" sample_height=\"100\" preview_url=\"http://example.com/images/")
+          .append(id).append(".jpg\" rating=\"s\" tags=\"test\" id=\"").append(id)
+          .append("\" width=\"100\" change=\"1400000000\" md5=\"").append(id)
+          .append("\" creator_id=\"1\" has_children=\"false\" created_at=\"Tue May 13 16:53:20 +0000 2014\"")
+          .append(" status=\"active\" source=\"\" has_notes=\"false\" has_comments=\"false\" preview_width=\"100\"")
+          .append(" preview_height=\"100\"/>");
+    }
+    return sb.append("</posts>").toString();
+  }
+
+  /** Callback recording the pages delivered by the search task. */
+  private static class TestCallback implements FilteredSearchTask.Callback {
+    /** Counted down once the task has finished. */
+    final CountDownLatch latch = new CountDownLatch(1);
+    /** Page fetched from the API. */
+    SearchResult page;
+    /** Cached page delivered while the device was offline. */
+    SearchResult offlinePage;
+    /** Cached page delivered because the API request failed. */
+    SearchResult stalePage;
+    /** Error, if the page couldn't be fetched. */
+    IOException error;
+
+    @Override
+    public void onFailure(IOException e) {
+      error = e;
+      latch.countDown();
+    }
+
+    @Override
+    public void onSuccess(SearchResult page, boolean isLastPage) {
+      this.page = page;
+      latch.countDown();
+    }
+
+    @Override
+    public void onOfflinePage(SearchResult page, boolean isLastPage) {
+      offlinePage = page;
+      latch.countDown();
+    }
+
+    @Override
+    public void onStalePage(SearchResult page, boolean isLastPage, IOException e) {
+      stalePage = page;
+      error = e;
+      latch.countDown();
+    }
+  }
+
+  /** Callback also recording the cached page delivered while the page is revalidated. */
+  private static class RevalidatingTestCallback extends TestCallback
+      implements FilteredSearchTask.RevalidatingCallback {
+    /** Cached page delivered while revalidating. */
+    private SearchResult cachedPage;
+    /** True if the fetched page was the same as the cached page. */
+    private boolean isNotModified;
+
+    @Override
+    public void onCachedPage(SearchResult page, boolean isLastPage) {
+      cachedPage = page;
+    }
+
+    @Override
+    public void onNotModified() {
+      isNotModified = true;
+      latch.countDown();
+    }
+
+    @Override
+    public void onOfflinePage(SearchResult page, boolean isLastPage) {
+      error = new IOException("Unexpected offline page.");
+      latch.countDown();
+    }
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.test.search;
+
+import android.test.InstrumentationTestCase;
+
+import io.github.tjg1.nori.search.SearchPagePrefetcher;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/** Tests the {@link io.github.tjg1.nori.search.SearchPagePrefetcher} class. */
+public class SearchPagePrefetcherTest extends InstrumentationTestCase {
+  /** Average page size used in tests. */
+  private static final float PAGE_SIZE = 20;
+  /** Minimum number of items kept loaded past the scroll position. */
+  private static final float MIN_ITEMS_AHEAD = 10;
+
+  /** Test that no pages are requested while enough items are loaded past the scroll position. */
+  public void testEnoughItemsAhead() throws Throwable {
+    assertThat(SearchPagePrefetcher.getPagesToRequest(30, 0, PAGE_SIZE, MIN_ITEMS_AHEAD)).isEqualTo(0);
+    // Pages already in flight count towards the items ahead.
+    assertThat(SearchPagePrefetcher.getPagesToRequest(5, 1, PAGE_SIZE, MIN_ITEMS_AHEAD)).isEqualTo(0);
+  }
+
+  /** Test that a single page is requested when the user reaches the end of the list slowly. */
+  public void testEndOfList() throws Throwable {
+    assertThat(SearchPagePrefetcher.getPagesToRequest(0, 0, PAGE_SIZE, MIN_ITEMS_AHEAD)).isEqualTo(1);
+  }
+
+  /** Test that more pages are requested when the user scrolls fast, up to the maximum number of pages in flight. */
+  public void testFastScrolling() throws Throwable {
+    // The user will scroll past 50 items while waiting for a page.
+    assertThat(SearchPagePrefetcher.getPagesToRequest(0, 0, PAGE_SIZE, 50)).isEqualTo(3);
+    assertThat(SearchPagePrefetcher.getPagesToRequest(0, 1, PAGE_SIZE, 50)).isEqualTo(2);
+    assertThat(SearchPagePrefetcher.getPagesToRequest(0, 0, PAGE_SIZE, 1000)).isEqualTo(3);
+    assertThat(SearchPagePrefetcher.getPagesToRequest(0, 3, PAGE_SIZE, 1000)).isEqualTo(0);
+  }
+
+  /** Test that the retry delay doubles after each failure and is capped. */
+  public void testRetryDelay() throws Throwable {
+    assertThat(SearchPagePrefetcher.getRetryDelay(0)).isEqualTo(0);
+    final long firstDelay = SearchPagePrefetcher.getRetryDelay(1);
+    assertThat(firstDelay).isGreaterThan(0);
+    assertThat(SearchPagePrefetcher.getRetryDelay(2)).isEqualTo(2 * firstDelay);
+    assertThat(SearchPagePrefetcher.getRetryDelay(3)).isEqualTo(4 * firstDelay);
+    assertThat(SearchPagePrefetcher.getRetryDelay(100)).isEqualTo(SearchPagePrefetcher.getRetryDelay(50))
+        .isGreaterThan(firstDelay);
+  }
+}
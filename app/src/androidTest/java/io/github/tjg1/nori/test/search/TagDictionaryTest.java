@@ -0,0 +1,137 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.test.search;
+
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.Tag;
+import io.github.tjg1.nori.search.TagDictionary;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/** Tests the {@link io.github.tjg1.nori.search.TagDictionary} class. */
+public class TagDictionaryTest extends InstrumentationTestCase {
+  /** Log tag used to report benchmark results. */
+  private static final String TAG = "TagDictionaryTest";
+  /** Number of images in the synthetic search result. */
+  private static final int BENCHMARK_IMAGES = 5000;
+  /** Number of tags on each image. */
+  private static final int TAGS_PER_IMAGE = 30;
+  /** Number of distinct tags used by the images. */
+  private static final int VOCABULARY_SIZE = 500;
+
+  /** Test that interned images share the same tag instances. */
+  public void testIntern() throws Throwable {
+    final Image first = new Image();
+    first.tags = Tag.arrayFromString("test_intern_a test_intern_b");
+    final Image second = new Image();
+    second.tags = Tag.arrayFromString("test_intern_b test_intern_c");
+
+    TagDictionary.intern(first);
+    TagDictionary.intern(second);
+    assertThat(second.tags[0]).isSameAs(first.tags[1]);
+    assertThat(second.tags[1].getName()).isEqualTo("test_intern_c");
+
+    // Tags of different types share the name, but not the instance.
+    final Tag artist = TagDictionary.intern(new Tag("test_intern_a", Tag.Type.ARTIST));
+    assertThat(artist).isNotSameAs(first.tags[0]);
+    assertThat(artist.getType()).isEqualTo(Tag.Type.ARTIST);
+    assertThat(artist.getName()).isSameAs(first.tags[0].getName());
+  }
+
+  /**
+   * Test that interning a large synthetic search result leaves a single tag instance and name string per distinct
+   * tag, however many images use it.
+   */
+  public void testInternSharesInstances() throws Throwable {
+    final Image[] images = createImages(new Random(0));
+    TagDictionary.intern(images);
+
+    final Map<Tag, Boolean> tagInstances = new IdentityHashMap<>();
+    final Map<String, Boolean> nameInstances = new IdentityHashMap<>();
+    for (Image image : images) {
+      assertThat(image.tags).hasSize(TAGS_PER_IMAGE);
+      for (Tag tag : image.tags) {
+        tagInstances.put(tag, true);
+        nameInstances.put(tag.getName(), true);
+        assertThat(TagDictionary.intern(new Tag(new String(tag.getName()))).getName()).isSameAs(tag.getName());
+      }
+    }
+    assertThat(tagInstances.size()).isLessThanOrEqualTo(VOCABULARY_SIZE);
+    assertThat(nameInstances.size()).isEqualTo(tagInstances.size());
+  }
+
+  /** Test that the dictionary is cleared once full, and keeps working afterwards. */
+  public void testMaxSize() throws Throwable {
+    final Tag before = TagDictionary.intern(new Tag("test_max_size"));
+    for (int i = 0; i <= TagDictionary.MAX_SIZE; i++) {
+      TagDictionary.intern(new Tag("test_max_size_" + i));
+    }
+    assertThat(TagDictionary.size()).isLessThanOrEqualTo(TagDictionary.MAX_SIZE);
+
+    // Tags interned before the dictionary was cleared are still valid, but are no longer shared.
+    assertThat(before.getName()).isEqualTo("test_max_size");
+    final Tag after = TagDictionary.intern(new Tag("test_max_size"));
+    assertThat(after.getName()).isEqualTo("test_max_size");
+    assertThat(TagDictionary.intern(new Tag("test_max_size"))).isSameAs(after);
+  }
+
+  /**
+   * Measure the heap used by a large synthetic search result before and after its tags are interned. The result is
+   * only logged, as the heap delta depends on the garbage collector.
+   */
+  public void testHeapUsageBenchmark() throws Throwable {
+    final long baseline = usedMemory();
+    final Image[] images = createImages(new Random(0));
+    final long beforeIntern = usedMemory() - baseline;
+
+    TagDictionary.intern(images);
+    final long afterIntern = usedMemory() - baseline;
+
+    Log.i(TAG, String.format("%d images, %d tags each, %d distinct: %d KiB before interning, %d KiB after",
+        images.length, TAGS_PER_IMAGE, VOCABULARY_SIZE, beforeIntern / 1024, afterIntern / 1024));
+    assertThat(images[images.length - 1].tags).hasSize(TAGS_PER_IMAGE);
+  }
+
+  /**
+   * Create images with tags parsed from strings, as the API clients do, so that every image has its own tag objects.
+   *
+   * @param random Random number generator used to pick the tags.
+   * @return Images.
+   */
+  private static Image[] createImages(Random random) {
+    final Image[] images = new Image[BENCHMARK_IMAGES];
+    final StringBuilder tags = new StringBuilder();
+    for (int i = 0; i < images.length; i++) {
+      tags.setLength(0);
+      for (int j = 0; j < TAGS_PER_IMAGE; j++) {
+        tags.append("benchmark_tag_").append(random.nextInt(VOCABULARY_SIZE)).append(' ');
+      }
+      final Image image = new Image();
+      image.id = String.valueOf(i);
+      image.tags = Tag.arrayFromString(tags.toString());
+      images[i] = image;
+    }
+    return images;
+  }
+
+  /** @return Heap memory in use after garbage collection, in bytes. */
+  private static long usedMemory() {
+    final Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      System.runFinalization();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
@@ -0,0 +1,254 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.test.search;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.test.InstrumentationTestCase;
+import android.test.RenamingDelegatingContext;
+
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import io.github.tjg1.library.norilib.clients.SearchClient;
+import io.github.tjg1.nori.database.SearchSuggestionDatabase;
+import io.github.tjg1.nori.database.SuggestionTrie;
+import io.github.tjg1.nori.search.TagVocabulary;
+
+import static io.github.tjg1.nori.database.SearchSuggestionDatabase.COLUMN_NAME;
+import static io.github.tjg1.nori.database.SearchSuggestionDatabase.COLUMN_POST_COUNT;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/** Tests the {@link io.github.tjg1.nori.search.TagVocabulary} class. */
+public class TagVocabularyTest extends InstrumentationTestCase {
+  /** Filename of the database created by {@link SearchSuggestionDatabase}. */
+  private static final String DATABASE_NAME = "search_suggestions.db";
+  /** Database row ID of the service used in tests. */
+  private static final long SERVICE_ID = 1L;
+  /** Maximum number of suggestions returned by each query, as in the suggestion provider. */
+  private static final int SUGGESTION_LIMIT = 50;
+  /** Newest tag, as returned by the Gelbooru tag API. */
+  private static final String GELBOORU_NEWEST_TAG = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+      "<tags type=\"array\">" +
+      "<tag type=\"0\" count=\"0\" name=\"newest_tag\" ambiguous=\"false\" id=\"45\"/>" +
+      "</tags>";
+  /** Number of tags per page requested by {@link TagVocabulary}. */
+  private static final int PAGE_SIZE = 500;
+  /** Maximum number of pages of new tags fetched by {@link TagVocabulary} in an incremental refresh. */
+  private static final int MAX_NEW_TAG_PAGES = 10;
+  /** Page of the most popular tags, as returned by the Gelbooru tag API. */
+  private static final String GELBOORU_POPULAR_TAGS = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+      "<tags type=\"array\">" +
+      "<tag type=\"0\" count=\"1200\" name=\"long_hair\" ambiguous=\"false\" id=\"12\"/>" +
+      "<tag type=\"0\" count=\"800\" name=\"long_sleeves\" ambiguous=\"false\" id=\"40\"/>" +
+      "<tag type=\"0\" count=\"0\" name=\"long_unused_tag\" ambiguous=\"false\" id=\"41\"/>" +
+      "</tags>";
+  /** Page of new tags, as returned by the Gelbooru tag API. */
+  private static final String GELBOORU_NEW_TAGS = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+      "<tags type=\"array\">" +
+      "<tag type=\"0\" count=\"3\" name=\"long_new_tag\" ambiguous=\"false\" id=\"50\"/>" +
+      "</tags>";
+  /** App context used for testing. */
+  private Context context;
+  /** Local HTTP server the requests are sent to. */
+  private MockWebServer server;
+
+  @Override
+  protected void setUp() throws Exception {
+    context = new RenamingDelegatingContext(getInstrumentation().getTargetContext(), "_test");
+    context.deleteDatabase(DATABASE_NAME);
+    server = new MockWebServer();
+    server.start();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    server.shutdown();
+    context.deleteDatabase(DATABASE_NAME);
+  }
+
+  /** Test that the most popular tags are fetched first, and only new tags are fetched afterwards. */
+  public void testRefresh() throws Throwable {
+    final SearchSuggestionDatabase db = new SearchSuggestionDatabase(context);
+    final SearchClient.Settings settings = new SearchClient.Settings(SearchClient.Settings.APIType.GELBOORU, "Test",
+        server.url("/").toString());
+    assertThat(TagVocabulary.isRefreshDue(db.getVocabularyState(SERVICE_ID), System.currentTimeMillis())).isTrue();
+
+    // Fetch the most popular tags. Tags without posts are left out.
+    server.enqueue(new MockResponse().setBody(GELBOORU_NEWEST_TAG));
+    server.enqueue(new MockResponse().setBody(GELBOORU_POPULAR_TAGS));
+    assertThat(TagVocabulary.refresh(getInstrumentation().getTargetContext(), db, SERVICE_ID, settings)).isEqualTo(2);
+    RecordedRequest request = server.takeRequest();
+    assertThat(request.getPath()).startsWith("/index.php?page=dapi&s=tag&q=index");
+    assertThat(request.getPath()).contains("limit=1&orderby=date&order=DESC");
+    request = server.takeRequest();
+    assertThat(request.getPath()).startsWith("/index.php?page=dapi&s=tag&q=index");
+    assertThat(request.getPath()).contains("orderby=count");
+
+    Cursor c = db.getServiceTagSuggestions(SERVICE_ID, "LONG_", SUGGESTION_LIMIT);
+    assertThat(c.getCount()).isEqualTo(2);
+    c.moveToFirst();
+    assertThat(c.getString(c.getColumnIndex(COLUMN_NAME))).isEqualTo("long_hair");
+    assertThat(c.getLong(c.getColumnIndex(COLUMN_POST_COUNT))).isEqualTo(1200);
+    c.close();
+    // The cursor starts at the newest tag, not at the newest of the popular tags.
+    assertThat(db.getVocabularyState(SERVICE_ID).maxTagId).isEqualTo(45);
+    assertThat(TagVocabulary.isRefreshDue(db.getVocabularyState(SERVICE_ID), System.currentTimeMillis())).isFalse();
+
+    // Fetch the tags created since.
+    server.enqueue(new MockResponse().setBody(GELBOORU_NEW_TAGS));
+    assertThat(TagVocabulary.refresh(getInstrumentation().getTargetContext(), db, SERVICE_ID, settings)).isEqualTo(1);
+    request = server.takeRequest();
+    assertThat(request.getPath()).contains("after_id=45");
+
+    c = db.getServiceTagSuggestions(SERVICE_ID, "long", SUGGESTION_LIMIT);
+    assertThat(c.getCount()).isEqualTo(3);
+    c.close();
+    assertThat(db.getVocabularyState(SERVICE_ID).maxTagId).isEqualTo(50);
+
+    // Other services have their own vocabulary.
+    c = db.getServiceTagSuggestions(SERVICE_ID + 1, "long", SUGGESTION_LIMIT);
+    assertThat(c.getCount()).isEqualTo(0);
+    c.close();
+
+    assertThat(db.deleteServiceTags(SERVICE_ID)).isEqualTo(3);
+    assertThat(db.getVocabularyState(SERVICE_ID)).isNull();
+    db.close();
+  }
+
+  /** Test that the cursor isn't moved past new tags left unfetched when a refresh stops at the page limit. */
+  public void testNewTagPageLimit() throws Throwable {
+    final SearchSuggestionDatabase db = new SearchSuggestionDatabase(context);
+    final SearchClient.Settings settings = new SearchClient.Settings(SearchClient.Settings.APIType.GELBOORU, "Test",
+        server.url("/").toString());
+    final long now = System.currentTimeMillis();
+    db.setVocabularyState(SERVICE_ID,
+        new SearchSuggestionDatabase.VocabularyState(100, now - TagVocabulary.REFRESH_INTERVAL, now));
+
+    // Gelbooru pages are fetched by number, so the cursor stays put until every page has been fetched.
+    for (int page = 0; page < MAX_NEW_TAG_PAGES; page++) {
+      server.enqueue(new MockResponse().setBody(createGelbooruPage(100 + page * PAGE_SIZE + 1, PAGE_SIZE)));
+    }
+    assertThat(TagVocabulary.refresh(getInstrumentation().getTargetContext(), db, SERVICE_ID, settings))
+        .isEqualTo(MAX_NEW_TAG_PAGES * PAGE_SIZE);
+    assertThat(server.getRequestCount()).isEqualTo(MAX_NEW_TAG_PAGES);
+    assertThat(db.getVocabularyState(SERVICE_ID).maxTagId).isEqualTo(100);
+    db.close();
+  }
+
+  /** Test that Danbooru pages of new tags start after the last page, and move the cursor along. */
+  public void testContiguousNewTagPages() throws Throwable {
+    final SearchSuggestionDatabase db = new SearchSuggestionDatabase(context);
+    final SearchClient.Settings settings = new SearchClient.Settings(SearchClient.Settings.APIType.DANBOORU, "Test",
+        server.url("/").toString());
+    final long now = System.currentTimeMillis();
+    db.setVocabularyState(SERVICE_ID,
+        new SearchSuggestionDatabase.VocabularyState(100, now - TagVocabulary.REFRESH_INTERVAL, now));
+
+    for (int page = 0; page < MAX_NEW_TAG_PAGES; page++) {
+      server.enqueue(new MockResponse().setBody(createDanbooruPage(100 + page * PAGE_SIZE + 1, PAGE_SIZE)));
+    }
+    TagVocabulary.refresh(getInstrumentation().getTargetContext(), db, SERVICE_ID, settings);
+    assertThat(server.takeRequest().getPath()).contains("page=a100");
+    assertThat(server.takeRequest().getPath()).contains("page=a" + (100 + PAGE_SIZE));
+    assertThat(db.getVocabularyState(SERVICE_ID).maxTagId).isEqualTo(100 + MAX_NEW_TAG_PAGES * PAGE_SIZE);
+    db.close();
+  }
+
+  /** Test that the suggestion trie of a service is kept up to date with its vocabulary. */
+  public void testServiceTagTrie() throws Throwable {
+    final SearchSuggestionDatabase db = new SearchSuggestionDatabase(context);
+    final SuggestionTrie trie = db.buildServiceTagTrie(SERVICE_ID);
+    assertThat(trie.size()).isEqualTo(0);
+
+    db.putServiceTags(SERVICE_ID, Arrays.asList(new SearchSuggestionDatabase.ServiceTag(1, "long_hair", 1200),
+        new SearchSuggestionDatabase.ServiceTag(2, "long_sleeves", 800)));
+    db.putServiceTags(SERVICE_ID + 1, Arrays.asList(new SearchSuggestionDatabase.ServiceTag(1, "long_other", 5000)));
+    List<SuggestionTrie.Suggestion> suggestions = trie.getSuggestions("LONG_", SUGGESTION_LIMIT);
+    assertThat(suggestions).hasSize(2);
+    assertThat(suggestions.get(0).name).isEqualTo("long_hair");
+    assertThat(db.getServiceTagTrie(SERVICE_ID)).isSameAs(trie);
+
+    // Removing the vocabulary discards the trie.
+    db.deleteServiceTags(SERVICE_ID);
+    assertThat(db.buildServiceTagTrie(SERVICE_ID).size()).isEqualTo(0);
+    db.close();
+  }
+
+  /** Test that an unsuccessful response leaves the vocabulary state unchanged, so the refresh is retried. */
+  public void testRefreshError() throws Throwable {
+    final SearchSuggestionDatabase db = new SearchSuggestionDatabase(context);
+    final SearchClient.Settings settings = new SearchClient.Settings(SearchClient.Settings.APIType.DANBOORU, "Test",
+        server.url("/").toString());
+
+    server.enqueue(new MockResponse().setResponseCode(500));
+    try {
+      TagVocabulary.refresh(getInstrumentation().getTargetContext(), db, SERVICE_ID, settings);
+      fail("Expected an IOException.");
+    } catch (IOException ignored) {
+      // Expected.
+    }
+    assertThat(server.takeRequest().getPath()).startsWith("/tags.json");
+    assertThat(db.getVocabularyState(SERVICE_ID)).isNull();
+    db.close();
+  }
+
+  /**
+   * Create a page of tags with consecutive IDs, as returned by the Gelbooru tag API.
+   *
+   * @param firstId ID of the first tag.
+   * @param count   Number of tags.
+   * @return Response body.
+   */
+  private static String createGelbooruPage(long firstId, int count) {
+    final StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?><tags type=\"array\">");
+    for (long id = firstId; id < firstId + count; id++) {
+      sb.append("<tag type=\"0\" count=\"1\" name=\"tag_").append(id).append("\" ambiguous=\"false\" id=\"")
+          .append(id).append("\"/>");
+    }
+    return sb.append("</tags>").toString();
+  }
+
+  /**
+   * Create a page of tags with consecutive IDs, as returned by the Danbooru tag API.
+   *
+   * @param firstId ID of the first tag.
+   * @param count   Number of tags.
+   * @return Response body.
+   */
+  private static String createDanbooruPage(long firstId, int count) {
+    final StringBuilder sb = new StringBuilder("[");
+    for (long id = firstId; id < firstId + count; id++) {
+      if (id > firstId) {
+        sb.append(',');
+      }
+      sb.append("{\"id\":").append(id).append(",\"name\":\"tag_").append(id).append("\",\"post_count\":1}");
+    }
+    return sb.append(']').toString();
+  }
+
+  /** Test parsing the tag API responses of Danbooru and Moebooru. */
+  public void testParseJsonTags() throws Throwable {
+    List<SearchSuggestionDatabase.ServiceTag> tags = TagVocabulary.parseTags(
+        SearchClient.Settings.APIType.DANBOORU,
+        "[{\"id\":470575,\"name\":\"1girl\",\"post_count\":2600000,\"category\":0}]");
+    assertThat(tags).hasSize(1);
+    assertThat(tags.get(0).id).isEqualTo(470575);
+    assertThat(tags.get(0).name).isEqualTo("1girl");
+    assertThat(tags.get(0).postCount).isEqualTo(2600000);
+
+    tags = TagVocabulary.parseTags(SearchClient.Settings.APIType.DANBOORU_LEGACY,
+        "[{\"id\":5,\"name\":\"landscape\",\"count\":30000,\"type\":0,\"ambiguous\":false}]");
+    assertThat(tags).hasSize(1);
+    assertThat(tags.get(0).postCount).isEqualTo(30000);
+  }
+}
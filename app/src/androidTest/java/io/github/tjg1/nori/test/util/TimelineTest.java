@@ -0,0 +1,50 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.test.util;
+
+import android.test.InstrumentationTestCase;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import io.github.tjg1.nori.util.Timeline;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/** Tests the {@link io.github.tjg1.nori.util.Timeline} class. */
+public class TimelineTest extends InstrumentationTestCase {
+
+  /** Test that recorded spans are exported in the Trace Event Format. */
+  public void testToJson() throws Throwable {
+    final long startTime = Timeline.beginSection("TimelineTest.section");
+    Thread.sleep(5);
+    Timeline.endSection("TimelineTest.section", startTime);
+    Timeline.mark("TimelineTest.mark");
+
+    final JSONObject trace = new JSONObject(Timeline.toJson(getInstrumentation().getTargetContext()));
+    final JSONArray events = trace.getJSONArray("traceEvents");
+    JSONObject section = null;
+    JSONObject mark = null;
+    for (int i = 0; i < events.length(); i++) {
+      final JSONObject event = events.getJSONObject(i);
+      if (event.getString("name").equals("TimelineTest.section")) {
+        section = event;
+      } else if (event.getString("name").equals("TimelineTest.mark")) {
+        mark = event;
+      }
+    }
+
+    assertThat(section).isNotNull();
+    assertThat(section.getString("ph")).isEqualTo("X");
+    assertThat(section.getLong("dur")).isGreaterThanOrEqualTo(5000);
+    assertThat(section.getLong("tid")).isEqualTo(Thread.currentThread().getId());
+    assertThat(mark).isNotNull();
+    assertThat(mark.getString("ph")).isEqualTo("i");
+    assertThat(mark.getLong("ts")).isGreaterThanOrEqualTo(section.getLong("ts") + section.getLong("dur"));
+    assertThat(trace.getJSONObject("otherData").has("versionName")).isTrue();
+  }
+}
@@ -8,14 +8,18 @@ package io.github.tjg1.nori;
 
 import android.Manifest;
 import android.app.DownloadManager;
+import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
+import android.media.MediaScannerConnection;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Environment;
 import android.preference.PreferenceManager;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentManager;
@@ -24,6 +28,7 @@ import android.support.v4.view.ViewPager;
 import android.support.v7.app.ActionBar;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.Toolbar;
+import android.util.Log;
 import android.view.GestureDetector;
 import android.view.MenuItem;
 import android.view.MotionEvent;
@@ -32,32 +37,45 @@ import android.view.WindowManager;
 import android.widget.ProgressBar;
 import android.widget.Toast;
 
+import java.io.File;
 import java.io.IOException;
 
 import io.github.tjg1.library.norilib.Image;
 import io.github.tjg1.library.norilib.SearchResult;
-import io.github.tjg1.library.norilib.Tag;
 import io.github.tjg1.library.norilib.clients.SearchClient;
+import io.github.tjg1.nori.fragment.GifImageFragment;
 import io.github.tjg1.nori.fragment.ImageFragment;
 import io.github.tjg1.nori.fragment.PicassoImageFragment;
-import io.github.tjg1.nori.fragment.WebViewImageFragment;
+import io.github.tjg1.nori.fragment.TiledImageFragment;
+import io.github.tjg1.nori.image.ImagePreloader;
+import io.github.tjg1.nori.image.ImageStore;
+import io.github.tjg1.nori.net.CachedImageTransfer;
+import io.github.tjg1.nori.net.OfflineException;
+import io.github.tjg1.nori.search.PagedSearchResult;
+import io.github.tjg1.nori.search.SearchPagePrefetcher;
+import io.github.tjg1.nori.search.SearchResultStore;
 import io.github.tjg1.nori.view.ImageViewerPager;
 
 /** Activity used to display full-screen images. */
 public class ImageViewerActivity extends AppCompatActivity implements ViewPager.OnPageChangeListener,
-    ImageFragment.ImageFragmentListener, ImageViewerPager.OnMotionEventListener {
-  /** Identifier used to keep the displayed {@link io.github.tjg1.library.norilib.SearchResult} in {@link #onSaveInstanceState(android.os.Bundle)}. */
-  private static final String BUNDLE_ID_SEARCH_RESULT = "io.github.tjg1.nori.SearchResult";
+    ImageFragment.ImageFragmentListener, ImageViewerPager.OnMotionEventListener, SearchPagePrefetcher.Listener,
+    PagedSearchResult.Observer {
+  /** Log tag. */
+  private static final String TAG = "ImageViewerActivity";
+  /** Identifier used to keep the {@link io.github.tjg1.nori.search.SearchResultStore} token of the displayed {@link io.github.tjg1.library.norilib.SearchResult} in {@link #onSaveInstanceState(android.os.Bundle)}. */
+  private static final String BUNDLE_ID_SEARCH_RESULT_TOKEN = "io.github.tjg1.nori.SearchResult.Token";
   /** Identifier used to keep the position of the selected {@link io.github.tjg1.library.norilib.Image} in {@link #onSaveInstanceState(android.os.Bundle)}. */
   private static final String BUNDLE_ID_IMAGE_INDEX = "io.github.tjg1.nori.ImageIndex";
   /** Identifier used to keep {@link #searchClient} settings in {@link #onSaveInstanceState(android.os.Bundle)}. */
   private static final String BUNDLE_ID_SEARCH_CLIENT_SETTINGS = "io.github.tjg1.nori.SearchClient.Settings";
-  /** Identifier used to keep a queued {@link android.app.DownloadManager.Request} while we wait for user to grant permissions. */
+  /** Identifier used to keep {@link #isFederatedSearch} in {@link #onSaveInstanceState(android.os.Bundle)}. */
+  private static final String BUNDLE_ID_FEDERATED_SEARCH = "io.github.tjg1.nori.FederatedSearch";
+  /** Identifier used to keep an image queued for download while we wait for user to grant permissions. */
   private static final String BUNDLE_ID_QUEUED_DOWNLOAD_REQUEST = "io.github.tjg1.nori.QueuedDownloadImageRequest";
+  /** Identifier used to keep the URL of the image file shown when the queued download was requested. */
+  private static final String BUNDLE_ID_QUEUED_DOWNLOAD_URL = "io.github.tjg1.nori.QueuedDownloadImageUrl";
   /** Identifier used to ask permission to download an image to the SD card. */
   private static final int PERMISSION_REQUEST_DOWNLOAD_IMAGE = 0x00;
-  /** Fetch more images when the displayed image is this far from the last {@link io.github.tjg1.library.norilib.Image} in the current {@link io.github.tjg1.library.norilib.SearchResult}. */
-  private static final int INFINITE_SCROLLING_THRESHOLD = 3;
   /** Default shared preferences. */
   private SharedPreferences sharedPreferences;
   /** Used to detect single taps on the ViewPager widget which toggle the visibility of this activity's ActionBar. */
@@ -73,19 +91,29 @@ public class ImageViewerActivity extends AppCompatActivity implements ViewPager.
   /** View pager used to display the images. */
   private ImageViewerPager viewPager;
   /** Search result shown by the {@link android.support.v4.app.FragmentStatePagerAdapter}. */
-  private SearchResult searchResult;
+  private PagedSearchResult searchResult;
+  /** Token of {@link #searchResult} in the {@link io.github.tjg1.nori.search.SearchResultStore}. */
+  private String searchResultToken;
   /** Adapter used to populate the {@link android.support.v4.view.ViewPager} used to display and flip through the images. */
   private ImagePagerAdapter imagePagerAdapter;
   /** Search API client used to retrieve more search results for infinite scrolling. */
   private SearchClient searchClient;
-  /** Callback waiting to receive another page of {@link io.github.tjg1.library.norilib.Image}s for the current {@link io.github.tjg1.library.norilib.SearchResult}. */
-  private SearchClient.SearchCallback searchCallback;
+  /** True if the search result is merged from several services. More pages are only fetched by {@link SearchActivity} then. */
+  private boolean isFederatedSearch;
+  /** Fetches pages of {@link io.github.tjg1.library.norilib.Image}s for the current {@link io.github.tjg1.library.norilib.SearchResult} ahead of the displayed image. */
+  private SearchPagePrefetcher pagePrefetcher;
+  /** Preloads the images next to the displayed one into the HTTP disk cache. */
+  private ImagePreloader imagePreloader;
   /** {@link android.widget.ProgressBar} used to indicated Search API activity. */
   private ProgressBar searchProgressBar;
   /** {@link DownloadManager} used to download images. */
   private DownloadManager downloadManager;
-  /** URL to an image to be downloaded once the user grants us permission to write to the SD card. */
-  private String queuedDownloadRequestUrl;
+  /** Callback waiting for the search result to be acquired from the {@link SearchResultStore}. */
+  private SearchResultCallback searchResultCallback;
+  /** Image to be downloaded once the user grants us permission to write to the SD card. */
+  private Image queuedDownloadImage;
+  /** URL of the image file shown when the queued download was requested. */
+  private String queuedDownloadUrl;
 
   @Override
   protected void onCreate(Bundle savedInstanceState) {
@@ -99,25 +127,28 @@ public class ImageViewerActivity extends AppCompatActivity implements ViewPager.
     // state.
     int imageIndex;
     if (savedInstanceState != null && savedInstanceState.containsKey(BUNDLE_ID_IMAGE_INDEX) &&
-        savedInstanceState.containsKey(BUNDLE_ID_SEARCH_RESULT)) {
+        savedInstanceState.containsKey(BUNDLE_ID_SEARCH_RESULT_TOKEN)) {
       imageIndex = savedInstanceState.getInt(BUNDLE_ID_IMAGE_INDEX);
-      searchResult = savedInstanceState.getParcelable(BUNDLE_ID_SEARCH_RESULT);
+      searchResultToken = savedInstanceState.getString(BUNDLE_ID_SEARCH_RESULT_TOKEN);
       SearchClient.Settings searchClientSettings = savedInstanceState.getParcelable(BUNDLE_ID_SEARCH_CLIENT_SETTINGS);
       if (searchClientSettings != null) {
         searchClient = searchClientSettings.createSearchClient();
       }
-      if (savedInstanceState.containsKey(BUNDLE_ID_QUEUED_DOWNLOAD_REQUEST)) {
-        String fileUrl = savedInstanceState.getString(BUNDLE_ID_QUEUED_DOWNLOAD_REQUEST);
-        if (fileUrl != null) {
-          queuedDownloadRequestUrl = savedInstanceState.getString(BUNDLE_ID_QUEUED_DOWNLOAD_REQUEST);
-        }
-      }
+      isFederatedSearch = savedInstanceState.getBoolean(BUNDLE_ID_FEDERATED_SEARCH, false);
+      queuedDownloadImage = savedInstanceState.getParcelable(BUNDLE_ID_QUEUED_DOWNLOAD_REQUEST);
+      queuedDownloadUrl = savedInstanceState.getString(BUNDLE_ID_QUEUED_DOWNLOAD_URL);
     } else {
       final Intent intent = getIntent();
       imageIndex = intent.getIntExtra(SearchActivity.BUNDLE_ID_IMAGE_INDEX, 0);
-      searchResult = intent.getParcelableExtra(SearchActivity.BUNDLE_ID_SEARCH_RESULT);
+      searchResultToken = intent.getStringExtra(SearchActivity.BUNDLE_ID_SEARCH_RESULT_TOKEN);
       searchClient = ((SearchClient.Settings) intent.getParcelableExtra(SearchActivity.BUNDLE_ID_SEARCH_CLIENT_SETTINGS))
           .createSearchClient();
+      isFederatedSearch = intent.getBooleanExtra(SearchActivity.BUNDLE_ID_FEDERATED_SEARCH, false);
+    }
+
+    if (searchResultToken == null) {
+      finish();
+      return;
     }
 
     // Keep screen on, if enabled by the user.
@@ -139,19 +170,56 @@ public class ImageViewerActivity extends AppCompatActivity implements ViewPager.
       actionBar.hide();
     }
 
+    // Set up the image preloader. Only the image behind the displayed one is kept for swiping back.
+    final int preloadCount = Integer.parseInt(sharedPreferences.getString(
+        getString(R.string.preference_image_viewer_preloadCount_key),
+        getString(R.string.preference_image_viewer_preloadCount_default)));
+    imagePreloader = new ImagePreloader(this, preloadCount, Math.min(1, preloadCount));
+
+    // Set up the GestureDetector used to toggle the action bar.
+    viewPager = (ImageViewerPager) findViewById(R.id.image_pager);
+    gestureDetector = new GestureDetector(this, gestureListener);
+    viewPager.setOnMotionEventListener(this);
+
+    // Get the search result shared with SearchActivity. If the process has been restarted, it is restored from disk in
+    // the background, and the progress bar is shown until the pager can be populated.
+    searchProgressBar.setVisibility(View.VISIBLE);
+    searchResultCallback = new SearchResultCallback(imageIndex);
+    SearchResultStore.acquire(this, searchResultToken, searchResultCallback);
+  }
+
+  /**
+   * Show the search result once it has been acquired from the {@link SearchResultStore}.
+   *
+   * @param searchResult Search result. Null if it couldn't be restored.
+   * @param imageIndex   Index of the image to show.
+   */
+  private void onSearchResultAcquired(PagedSearchResult searchResult, int imageIndex) {
+    searchProgressBar.setVisibility(View.GONE);
+    if (searchResult == null || searchResult.getCount() == 0) {
+      if (searchResult != null) {
+        SearchResultStore.release(searchResultToken);
+      }
+      searchResultToken = null;
+      finish();
+      return;
+    }
+    this.searchResult = searchResult;
+    imageIndex = Math.min(imageIndex, searchResult.getCount() - 1);
+
     // Create and set the image viewer Fragment pager adapter.
     imagePagerAdapter = new ImagePagerAdapter(getSupportFragmentManager());
-    viewPager = (ImageViewerPager) findViewById(R.id.image_pager);
     viewPager.setAdapter(imagePagerAdapter);
     viewPager.addOnPageChangeListener(this);
     viewPager.setCurrentItem(imageIndex);
-
-    // Set up the GestureDetector used to toggle the action bar.
-    gestureDetector = new GestureDetector(this, gestureListener);
-    viewPager.setOnMotionEventListener(this);
+    preloadImages(imageIndex);
+    searchResult.registerObserver(this);
 
     // Set activity title.
-    setTitle(searchResult.getImages()[imageIndex]);
+    final Image image = searchResult.getImage(imageIndex);
+    if (image != null) {
+      setTitle(image);
+    }
   }
 
   @Override
@@ -172,12 +240,23 @@ public class ImageViewerActivity extends AppCompatActivity implements ViewPager.
    * @param image Image to get the metadata from.
    */
   private void setTitle(Image image) {
-    String title = String.format(getString(R.string.activity_image_viewer_titleFormat),
-        image.id, Tag.stringFromArray(image.tags));
+    final int maxLength = getResources().getInteger(R.integer.activity_image_viewer_titleMaxLength);
+
+    // Only join as many of the shared tag names as can fit in the title.
+    final StringBuilder tags = new StringBuilder(maxLength + 1);
+    if (image.tags != null) {
+      for (int i = 0; i < image.tags.length && tags.length() <= maxLength; i++) {
+        if (i > 0) {
+          tags.append(' ');
+        }
+        tags.append(image.tags[i].getName());
+      }
+    }
+    String title = String.format(getString(R.string.activity_image_viewer_titleFormat), image.id, tags);
 
     // Truncate string with ellipsis at the end, if needed.
-    if (title.length() > getResources().getInteger(R.integer.activity_image_viewer_titleMaxLength)) {
-      title = title.substring(0, getResources().getInteger(R.integer.activity_image_viewer_titleMaxLength)) + "…";
+    if (title.length() > maxLength) {
+      title = title.substring(0, maxLength) + "…";
     }
 
     ActionBar actionBar = getSupportActionBar();
@@ -187,18 +266,52 @@ public class ImageViewerActivity extends AppCompatActivity implements ViewPager.
   }
 
   /**
-   * Fetch images from the next page of the {@link io.github.tjg1.library.norilib.SearchResult}, if available.
+   * Fetch images from the next pages of the {@link io.github.tjg1.library.norilib.SearchResult} ahead of the displayed
+   * image, if available.
+   *
+   * @param position Position of the displayed image.
    */
-  private void fetchMoreImages() {
-    // Ignore request if there is another API request pending.
-    if (searchCallback != null) {
+  private void fetchMoreImages(int position) {
+    // The single search client can't continue a search result merged from several services.
+    if (isFederatedSearch || !searchResult.hasNextPage()) {
       return;
     }
-    // Show the indeterminate progress bar in the action bar.
-    searchProgressBar.setVisibility(View.VISIBLE);
-    // Request search result from API client.
-    searchCallback = new InfiniteScrollingSearchCallback(searchResult);
-    searchClient.search(Tag.stringFromArray(searchResult.getQuery()), searchResult.getCurrentOffset() + 1, searchCallback);
+    if (pagePrefetcher == null) {
+      pagePrefetcher = new SearchPagePrefetcher(this, searchClient, searchResult, this);
+    }
+    pagePrefetcher.onPositionChanged(position, searchResult.getCount());
+  }
+
+  /**
+   * Preload the images next to the displayed one.
+   *
+   * @param position Position of the displayed image.
+   */
+  private void preloadImages(int position) {
+    searchResult.setVisibleRange(position, position);
+    imagePreloader.onPageSelected(searchResult, position, ImageFragment.shouldLoadImageSamples(this));
+  }
+
+  @Override
+  protected void onDestroy() {
+    super.onDestroy();
+
+    // Cancel pending API callbacks.
+    if (pagePrefetcher != null) {
+      pagePrefetcher.cancel();
+    }
+    // Cancel pending image preloads.
+    if (imagePreloader != null) {
+      imagePreloader.cancel();
+    }
+    // Release the search result. A search result still being restored is released once it has been read.
+    if (searchResultCallback != null) {
+      searchResultCallback.cancel();
+    }
+    if (searchResultToken != null && searchResult != null) {
+      searchResult.unregisterObserver(this);
+      SearchResultStore.release(searchResultToken);
+    }
   }
 
   @Override
@@ -206,11 +319,21 @@ public class ImageViewerActivity extends AppCompatActivity implements ViewPager.
     super.onSaveInstanceState(outState);
 
     // Keep search result and the index of currently displayed image.
-    outState.putParcelable(BUNDLE_ID_SEARCH_RESULT, searchResult);
-    outState.putInt(BUNDLE_ID_IMAGE_INDEX, viewPager.getCurrentItem());
+    // Only the token is kept in the Bundle. A snapshot is written to disk in case the process is killed.
+    outState.putString(BUNDLE_ID_SEARCH_RESULT_TOKEN, searchResultToken);
+    if (searchResult != null) {
+      searchResult.saveSnapshot();
+    }
+    if (searchResult != null) {
+      outState.putInt(BUNDLE_ID_IMAGE_INDEX, viewPager.getCurrentItem());
+    } else if (searchResultCallback != null) {
+      outState.putInt(BUNDLE_ID_IMAGE_INDEX, searchResultCallback.imageIndex);
+    }
     outState.putParcelable(BUNDLE_ID_SEARCH_CLIENT_SETTINGS, searchClient.getSettings());
-    if (queuedDownloadRequestUrl != null) {
-      outState.putString(BUNDLE_ID_QUEUED_DOWNLOAD_REQUEST, queuedDownloadRequestUrl);
+    outState.putBoolean(BUNDLE_ID_FEDERATED_SEARCH, isFederatedSearch);
+    if (queuedDownloadImage != null) {
+      outState.putParcelable(BUNDLE_ID_QUEUED_DOWNLOAD_REQUEST, queuedDownloadImage);
+      outState.putString(BUNDLE_ID_QUEUED_DOWNLOAD_URL, queuedDownloadUrl);
     }
   }
 
@@ -222,13 +345,16 @@ public class ImageViewerActivity extends AppCompatActivity implements ViewPager.
   @Override
   public void onPageSelected(int position) {
     // Set activity title to image metadata.
-    setTitle(searchResult.getImages()[position]);
-
-    // Fetch more images for infinite scrolling, if available and there isn't another search request being waited on.
-    if (searchCallback == null && searchResult.hasNextPage()
-        && (searchResult.getImages().length - position) <= INFINITE_SCROLLING_THRESHOLD) {
-      fetchMoreImages();
+    final Image image = searchResult.getImage(position);
+    if (image != null) {
+      setTitle(image);
     }
+
+    // Preload the next images in the swiping direction.
+    preloadImages(position);
+
+    // Fetch more images for infinite scrolling, if available.
+    fetchMoreImages(position);
   }
 
   @Override
@@ -236,6 +362,59 @@ public class ImageViewerActivity extends AppCompatActivity implements ViewPager.
     // Do nothing.
   }
 
+  @Override
+  public void onPageFetched(PagedSearchResult searchResult, SearchResult page, boolean isLastPage) {
+    // Update the search result. The page has already been filtered in the background.
+    // The ViewPager adapter is notified in onImagesAdded.
+    searchResult.addImages(page.getImages(), page.getCurrentOffset());
+
+    if (isLastPage) {
+      // Just mark the current SearchResult as having reached the last page.
+      searchResult.onLastPage();
+    } else if (page.getImages().length == 0) {
+      // If all images in the current search result were filtered out, try fetching the next page.
+      fetchMoreImages(viewPager.getCurrentItem());
+    }
+  }
+
+  @Override
+  public void onImagesAdded(int positionStart, int itemCount) {
+    // Notify the ViewPager adapter that the data set has changed and preload the added images, if within range.
+    imagePagerAdapter.notifyDataSetChanged();
+    imagePreloader.onImagesAdded(searchResult, positionStart, itemCount, ImageFragment.shouldLoadImageSamples(this));
+  }
+
+  @Override
+  public void onImagesLoaded(int positionStart, int itemCount) {
+    // Replace the placeholder pages shown while the images were read from disk.
+    imagePagerAdapter.notifyDataSetChanged();
+    final int position = viewPager.getCurrentItem();
+    if (position >= positionStart && position < positionStart + itemCount) {
+      setTitle(searchResult.getImage(position));
+      preloadImages(position);
+    }
+  }
+
+  @Override
+  public void onPageFetchFailed(IOException e) {
+    if (e instanceof OfflineException) {
+      // Not an error: only the pages cached before the device went offline can be shown. They are requested again
+      // when the next image is selected.
+      return;
+    }
+    // Display error toast notification to the user.
+    Toast.makeText(ImageViewerActivity.this,
+        String.format(getString(R.string.toast_infiniteScrollingFetchError),
+            e.getLocalizedMessage()), Toast.LENGTH_LONG
+    ).show();
+  }
+
+  @Override
+  public void onFetchingStateChanged(boolean isFetching) {
+    // Show the indeterminate progress bar in the action bar while waiting for more images.
+    searchProgressBar.setVisibility(isFetching ? View.VISIBLE : View.GONE);
+  }
+
   @Override
   public void onMotionEvent(MotionEvent ev) {
     gestureDetector.onTouchEvent(ev);
@@ -261,12 +440,14 @@ public class ImageViewerActivity extends AppCompatActivity implements ViewPager.
   }
 
   @Override
-  public void downloadImage(@NonNull String fileUrl) {
+  public void downloadImage(@NonNull Image image, @Nullable String loadedUrl) {
     if (ActivityCompat.checkSelfPermission(this, Manifest.permission.WRITE_EXTERNAL_STORAGE) == PackageManager.PERMISSION_GRANTED) {
-      queuedDownloadRequestUrl = null;
-      getDownloadManager().enqueue(getImageDownloadRequest(fileUrl));
+      queuedDownloadImage = null;
+      queuedDownloadUrl = null;
+      saveImage(image, loadedUrl);
     } else {
-      queuedDownloadRequestUrl = fileUrl;
+      queuedDownloadImage = image;
+      queuedDownloadUrl = loadedUrl;
       ActivityCompat.requestPermissions(this, new String[]{Manifest.permission.WRITE_EXTERNAL_STORAGE}, PERMISSION_REQUEST_DOWNLOAD_IMAGE);
     }
   }
@@ -275,15 +456,71 @@ public class ImageViewerActivity extends AppCompatActivity implements ViewPager.
   public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions, @NonNull int[] grantResults) {
     super.onRequestPermissionsResult(requestCode, permissions, grantResults);
     if (requestCode == PERMISSION_REQUEST_DOWNLOAD_IMAGE) {
-      if (grantResults[0] == PackageManager.PERMISSION_GRANTED && queuedDownloadRequestUrl != null) {
-        getDownloadManager().enqueue(getImageDownloadRequest(queuedDownloadRequestUrl));
-        queuedDownloadRequestUrl = null;
+      if (grantResults[0] == PackageManager.PERMISSION_GRANTED && queuedDownloadImage != null) {
+        saveImage(queuedDownloadImage, queuedDownloadUrl);
+        queuedDownloadImage = null;
+        queuedDownloadUrl = null;
       } else if (grantResults[0] == PackageManager.PERMISSION_DENIED) {
         Toast.makeText(this, R.string.toast_imageDownloadPermissionDenied, Toast.LENGTH_LONG).show();
       }
     }
   }
 
+  /**
+   * Save an image to the downloads directory. The original file is downloaded to the {@link ImageStore}, unless it is
+   * already stored, and copied from there. If it can't be downloaded, e.g. while offline, the file shown in the viewer
+   * is copied from the HTTP disk cache instead, and images that aren't cached either are left to the
+   * {@link DownloadManager}.
+   *
+   * @param image     Image to save.
+   * @param loadedUrl URL of the image file shown in the viewer. Null if unknown.
+   */
+  private void saveImage(@NonNull final Image image, @Nullable final String loadedUrl) {
+    final Context context = getApplicationContext();
+    final String fileUrl = image.fileUrl;
+    final File directory = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
+    final File file = new File(directory, fileUrl.substring(fileUrl.lastIndexOf("/") + 1));
+
+    new AsyncTask<Void, Void, File>() {
+      @Override
+      protected File doInBackground(Void... ignored) {
+        // Create download directory, if it does not already exist.
+        //noinspection ResultOfMethodCallIgnored
+        directory.mkdirs();
+        try {
+          CachedImageTransfer.copyFile(ImageStore.get(context).getFile(image), file);
+          return file;
+        } catch (IOException e) {
+          Log.w(TAG, "Could not save " + fileUrl + " through the image store", e);
+        }
+        // The viewer usually shows the sample, which is the only file in the cache then.
+        if (loadedUrl != null && !loadedUrl.equals(fileUrl)) {
+          final File loadedFile = new File(directory, loadedUrl.substring(loadedUrl.lastIndexOf("/") + 1));
+          try {
+            if (CachedImageTransfer.copyFromCache(context, loadedUrl, loadedFile)) {
+              return loadedFile;
+            }
+          } catch (IOException e) {
+            Log.w(TAG, "Could not copy " + loadedUrl + " from the cache", e);
+          }
+        }
+        return null;
+      }
+
+      @Override
+      protected void onPostExecute(File file) {
+        if (file != null) {
+          // Add the image to the system gallery app.
+          MediaScannerConnection.scanFile(context, new String[]{file.getPath()}, null, null);
+          Toast.makeText(context, context.getString(R.string.toast_imageSaved, file.getName()), Toast.LENGTH_SHORT)
+              .show();
+        } else {
+          getDownloadManager().enqueue(getImageDownloadRequest(fileUrl));
+        }
+      }
+    }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+  }
+
   /**
    * Create a new {@link DownloadManager} or re-use the existing one.
    * @return {@link DownloadManager} used to download images.
@@ -327,29 +564,45 @@ public class ImageViewerActivity extends AppCompatActivity implements ViewPager.
     @Override
     public Fragment getItem(int position) {
       // Create a new instance of ImageFragment for the given image.
-      Image image = searchResult.getImages()[position];
-
-      if (shouldUseWebViewImageFragment(image)) {
-        return WebViewImageFragment.newInstance(image);
+      Image image = searchResult.getImage(position);
+
+      if (image == null) {
+        // The image is being read back from disk. The placeholder is replaced in onImagesLoaded.
+        return new Fragment();
+      } else if (shouldUseGifImageFragment(image)) {
+        return GifImageFragment.newInstance(image);
+      } else if (shouldUseTiledImageFragment(image)) {
+        return TiledImageFragment.newInstance(image);
       } else {
         return PicassoImageFragment.newInstance(image);
       }
     }
 
     /**
-     * Check if {@link io.github.tjg1.nori.fragment.WebViewImageFragment} should be used to display given image object.
+     * Check if {@link io.github.tjg1.nori.fragment.GifImageFragment} should be used to display given image object.
      *
      * @param image Image object.
-     * @return True if the WebKit-based fragment should be used, instead of the ImageView based one.
+     * @return True if the image is an animated GIF.
      */
-    @SuppressWarnings("RedundantIfStatement")
-    private boolean shouldUseWebViewImageFragment(Image image) {
-      // GIF images should use the WebKit fragment.
-      String path = Uri.parse(image.fileUrl).getPath();
-      if (path.contains(".") && path.substring(path.lastIndexOf(".") + 1).equals("gif")) {
-        return true;
-      }
-      return false;
+    private boolean shouldUseGifImageFragment(Image image) {
+      return GifImageFragment.isGif(image.fileUrl);
+    }
+
+    /**
+     * Check if {@link io.github.tjg1.nori.fragment.TiledImageFragment} should be used to display given image object.
+     *
+     * @param image Image object.
+     * @return True if the full-size image is displayed and too large to be decoded into a single bitmap.
+     */
+    private boolean shouldUseTiledImageFragment(Image image) {
+      return !ImageFragment.shouldLoadImageSamples(ImageViewerActivity.this)
+          && TiledImageFragment.isLargeImage(ImageViewerActivity.this, image);
+    }
+
+    @Override
+    public int getItemPosition(Object object) {
+      // Placeholders are re-created once their image has been loaded.
+      return object instanceof ImageFragment ? POSITION_UNCHANGED : POSITION_NONE;
     }
 
     @Override
@@ -358,71 +611,42 @@ public class ImageViewerActivity extends AppCompatActivity implements ViewPager.
       if (searchResult == null) {
         return 0;
       }
-      return searchResult.getImages().length;
+      return searchResult.getCount();
     }
   }
 
-  /** Callback waiting to receive more images for infinite scrolling. */
-  private class InfiniteScrollingSearchCallback implements SearchClient.SearchCallback {
-    private final SearchResult searchResult;
+  /** Callback showing the search result once it has been acquired from the {@link SearchResultStore}. */
+  private class SearchResultCallback implements SearchResultStore.AcquireCallback {
+    /** Index of the image to show once the search result has been acquired. */
+    private final int imageIndex;
+    /** Callback cancelled and should no longer respond to the restored search result. */
+    private boolean isCancelled = false;
 
     /**
-     * Create a new InfiniteScrollingSearchCallback.
+     * Create a new callback showing the search result.
      *
-     * @param searchResult Search result to append new results to.
+     * @param imageIndex Index of the image to show.
      */
-    public InfiniteScrollingSearchCallback(SearchResult searchResult) {
-      this.searchResult = searchResult;
+    public SearchResultCallback(int imageIndex) {
+      this.imageIndex = imageIndex;
     }
 
     @Override
-    public void onFailure(IOException e) {
-      // Clear the active search callback and hide the progress bar in the action bar.
-      searchCallback = null;
-      searchProgressBar.setVisibility(View.GONE);
-
-      // Display error toast notification to the user.
-      Toast.makeText(ImageViewerActivity.this,
-          String.format(getString(R.string.toast_infiniteScrollingFetchError),
-              e.getLocalizedMessage()), Toast.LENGTH_LONG
-      ).show();
-    }
-
-    @Override
-    public void onSuccess(SearchResult searchResult) {
-      // Clear the active search callback and hide the progress bar in the action bar.
-      searchCallback = null;
-      searchProgressBar.setVisibility(View.GONE);
-
-      if (searchResult.getImages().length == 0) {
-        // Just mark the current SearchResult as having reached the last page.
-        this.searchResult.onLastPage();
-      } else {
-        // Filter the received SearchResult.
-        if (sharedPreferences.contains(getString(R.string.preference_nsfwFilter_key))) {
-          // Get filter from shared preferences.
-          searchResult.filter(Image.ObscenityRating.arrayFromStrings(
-              sharedPreferences.getString(getString(R.string.preference_nsfwFilter_key), "").split(" ")));
-        } else {
-          // Get default filter from resources.
-          searchResult.filter(Image.ObscenityRating.arrayFromStrings(getResources().getStringArray(R.array.preference_nsfwFilter_defaultValues)));
-        }
-        if (sharedPreferences.contains(getString(R.string.preference_tagFilter_key))) {
-          // Get tag filters from shared preferences and filter the result.
-          searchResult.filter(Tag.arrayFromString(sharedPreferences.getString(getString(R.string.preference_tagFilter_key), "")));
-        }
-
-        // Update the search result and notify the ViewPager adapter that the data set has changed.
-        this.searchResult.addImages(searchResult.getImages(), searchResult.getCurrentOffset());
-        imagePagerAdapter.notifyDataSetChanged();
-
-        // If all images in the current search result were filtered out, try fetching the next page.
-        if (searchResult.getImages().length == 0) {
-          fetchMoreImages();
+    public void onSearchResultAcquired(@Nullable PagedSearchResult searchResult) {
+      if (isCancelled) {
+        // The reference taken for the destroyed activity is released straight away.
+        if (searchResult != null) {
+          SearchResultStore.release(searchResultToken);
         }
+        return;
       }
+      searchResultCallback = null;
+      ImageViewerActivity.this.onSearchResultAcquired(searchResult, imageIndex);
     }
-  }
-
 
+    /** Cancels this callback. */
+    public void cancel() {
+      this.isCancelled = true;
+    }
+  }
 }
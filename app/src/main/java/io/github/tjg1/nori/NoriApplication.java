@@ -0,0 +1,46 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori;
+
+import android.app.Application;
+
+import io.github.tjg1.nori.image.BitmapCache;
+import io.github.tjg1.nori.net.HttpEngine;
+import io.github.tjg1.nori.util.Timeline;
+
+/** Sets up process-wide state shared by all activities and services. */
+public class NoriApplication extends Application {
+
+  @Override
+  public void onCreate() {
+    final long startTime = Timeline.beginSection("Application.onCreate");
+    try {
+      super.onCreate();
+
+      // Set up the shared HTTP engine before any network requests are made.
+      HttpEngine.install(this);
+    } finally {
+      Timeline.endSection("Application.onCreate", startTime);
+    }
+  }
+
+  @Override
+  public void onTrimMemory(int level) {
+    super.onTrimMemory(level);
+
+    // Release cached bitmaps when the system is running low on memory.
+    BitmapCache.get(this).onTrimMemory(level);
+  }
+
+  @Override
+  public void onLowMemory() {
+    super.onLowMemory();
+
+    // Release all cached bitmaps.
+    BitmapCache.get(this).clear();
+  }
+}
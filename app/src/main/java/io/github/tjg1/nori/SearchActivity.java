@@ -6,12 +6,20 @@
 
 package io.github.tjg1.nori;
 
+import android.Manifest;
 import android.app.SearchManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
 import android.database.Cursor;
+import android.net.ConnectivityManager;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
+import android.support.annotation.NonNull;
+import android.support.v4.app.ActivityCompat;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.content.Loader;
 import android.support.v4.view.MenuItemCompat;
@@ -20,7 +28,7 @@ import android.support.v7.app.ActionBar;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.SearchView;
 import android.support.v7.widget.Toolbar;
-import android.text.TextUtils;
+import android.util.Log;
 import android.util.Pair;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
@@ -36,6 +44,7 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 import io.github.tjg1.library.norilib.Image;
@@ -44,16 +53,34 @@ import io.github.tjg1.library.norilib.Tag;
 import io.github.tjg1.library.norilib.clients.SearchClient;
 import io.github.tjg1.nori.database.APISettingsDatabase;
 import io.github.tjg1.nori.database.SearchSuggestionDatabase;
+import io.github.tjg1.nori.database.SearchSuggestionProvider;
 import io.github.tjg1.nori.fragment.SearchResultGridFragment;
+import io.github.tjg1.nori.search.FederatedSearch;
+import io.github.tjg1.nori.net.OfflineException;
+import io.github.tjg1.nori.search.FilteredSearchTask;
+import io.github.tjg1.nori.search.LaunchSnapshot;
+import io.github.tjg1.nori.search.PagedSearchResult;
+import io.github.tjg1.nori.search.SearchPagePrefetcher;
+import io.github.tjg1.nori.service.BulkDownloadService;
+import io.github.tjg1.nori.service.TagVocabularyService;
+import io.github.tjg1.nori.util.NetworkUtils;
+import io.github.tjg1.nori.util.Timeline;
 
 /** Searches for images and displays the results in a scrollable grid of thumbnails. */
-public class SearchActivity extends AppCompatActivity implements SearchResultGridFragment.OnSearchResultGridFragmentInteractionListener {
-  /** Identifier used to send the active {@link io.github.tjg1.library.norilib.SearchResult} to {@link io.github.tjg1.nori.ImageViewerActivity}. */
-  public static final String BUNDLE_ID_SEARCH_RESULT = "io.github.tjg1.nori.SearchResult";
+public class SearchActivity extends AppCompatActivity implements SearchResultGridFragment.OnSearchResultGridFragmentInteractionListener,
+    SearchPagePrefetcher.Listener, FederatedSearch.Listener {
+  /** Log tag. */
+  private static final String TAG = "SearchActivity";
+  /** Identifier used to send the {@link io.github.tjg1.nori.search.SearchResultStore} token of the active {@link io.github.tjg1.library.norilib.SearchResult} to {@link io.github.tjg1.nori.ImageViewerActivity}. */
+  public static final String BUNDLE_ID_SEARCH_RESULT_TOKEN = "io.github.tjg1.nori.SearchResult.Token";
   /** Identifier used to send the position of the selected {@link io.github.tjg1.library.norilib.Image} to {@link io.github.tjg1.nori.ImageViewerActivity}. */
   public static final String BUNDLE_ID_IMAGE_INDEX = "io.github.tjg1.nori.ImageIndex";
   /** Identifier used to send {@link io.github.tjg1.library.norilib.clients.SearchClient} settings to {@link io.github.tjg1.nori.ImageViewerActivity}. */
   public static final String BUNDLE_ID_SEARCH_CLIENT_SETTINGS = "io.github.tjg1.nori.SearchClient.Settings";
+  /** Identifier used to tell {@link io.github.tjg1.nori.ImageViewerActivity} that the search result is merged from several services by a {@link io.github.tjg1.nori.search.FederatedSearch}. */
+  public static final String BUNDLE_ID_FEDERATED_SEARCH = "io.github.tjg1.nori.FederatedSearch";
+  /** Identifier used for the list of {@link SearchClient.Settings} of the services searched by a {@link io.github.tjg1.nori.search.FederatedSearch}. */
+  public static final String BUNDLE_ID_FEDERATED_SEARCH_SETTINGS = "io.github.tjg1.nori.FederatedSearch.Settings";
   /** Identifier used for the query string to search when starting this activity with an {@link android.content.Intent} */
   public static final String INTENT_EXTRA_SEARCH_QUERY = "io.github.tjg1.nori.SearchQuery";
   /** Identifier used to include {@link SearchClient.Settings} objects in search intents. */
@@ -64,14 +91,36 @@ public class SearchActivity extends AppCompatActivity implements SearchResultGri
   private static final String BUNDLE_ID_SEARCH_VIEW_IS_EXPANDED = "io.github.tjg1.nori.SearchView.isExpanded";
   /** Identifier used to preserve search view focused state. */
   private static final String BUNDLE_ID_SEARCH_VIEW_IS_FOCUSED = "io.github.tjg1.nori.SearchView.isFocused";
+  /** Identifier used to preserve the progress of the {@link #federatedSearch} in {@link #onSaveInstanceState(android.os.Bundle)}. */
+  private static final String BUNDLE_ID_FEDERATED_SEARCH_STATE = "io.github.tjg1.nori.FederatedSearch.State";
+  /** Identifier used for the permission request made before all images of the search result are downloaded. */
+  private static final int PERMISSION_REQUEST_DOWNLOAD_ALL = 0x00;
   /** Default {@link android.content.SharedPreferences} object. */
   private SharedPreferences sharedPreferences;
   /* {@link SearchClient.Settings} object selected from the service dropdown menu. */
   private SearchClient.Settings searchClientSettings;
+  /** Settings of all services, if the federated search entry was selected from the service dropdown menu. */
+  private ArrayList<SearchClient.Settings> federatedSearchSettings;
   /** Search API client. */
   private SearchClient searchClient;
+  /** Settings of the services searched for the displayed search result, if it was merged from several services. */
+  private ArrayList<SearchClient.Settings> federatedSearchServices;
+  /** Merges pages from several services into the displayed search result. */
+  private FederatedSearch federatedSearch;
+  /** Progress of the federated search saved before the activity was recreated. */
+  private Bundle federatedSearchState;
   /** Search API activity indicator. */
   private ProgressBar searchProgressBar;
+  /** Banner shown while images are read from the cache because the device is offline. */
+  private View offlineBanner;
+  /** Receiver resuming the search when a network connection becomes available. */
+  private BroadcastReceiver connectivityReceiver;
+  /** True if images couldn't be fetched because the device was offline. */
+  private boolean isOffline = false;
+  /** Query searched again once the device is back online, if the first page was read from the cache or failed. */
+  private String offlineQuery;
+  /** True if {@link #offlineQuery} is the default query searched on launch. */
+  private boolean isOfflineQueryDefault;
   /** Search API service dropdown. */
   private Spinner serviceSpinner;
   /** Search view menu item. */
@@ -80,6 +129,14 @@ public class SearchActivity extends AppCompatActivity implements SearchResultGri
   private SearchView searchView;
   /** Search callback currently awaiting a response from the Search API. */
   private SearchResultCallback searchCallback;
+  /** Callback waiting for the {@link LaunchSnapshot} to be read. */
+  private LaunchSnapshotCallback launchSnapshotCallback;
+  /** True if the {@link LaunchSnapshot} is shown while the default query is being searched. */
+  private boolean isLaunchSnapshotShown = false;
+  /** {@link Timeline} time the app was launched at, used to measure the time to first thumbnail. 0 if not launched from the home screen. */
+  private long launchTime = 0;
+  /** Fetches more pages of the displayed search result ahead of the grid's scroll position. */
+  private SearchPagePrefetcher pagePrefetcher;
   /** Search result grid fragment shown in this activity. */
   private SearchResultGridFragment searchResultGridFragment;
   /** Bundle used when restoring saved instance state (after screen rotation, app restored from background, etc.) */
@@ -93,7 +150,7 @@ public class SearchActivity extends AppCompatActivity implements SearchResultGri
   private void setUpSearchView(Menu menu) {
     // Extract SearchView from the MenuItem object.
     searchMenuItem = menu.findItem(R.id.action_search);
-    searchMenuItem.setVisible(searchClientSettings != null);
+    searchMenuItem.setVisible(isServiceSelected());
     searchView = (SearchView) MenuItemCompat.getActionView(searchMenuItem);
 
     // Set Searchable XML configuration.
@@ -110,12 +167,9 @@ public class SearchActivity extends AppCompatActivity implements SearchResultGri
       @Override
       public boolean onEditorAction(TextView textView, int i, KeyEvent keyEvent) {
         CharSequence query = textView.getText();
-        if (query != null && searchClientSettings != null) {
+        if (query != null && isServiceSelected()) {
           // Prepare a intent to send to a new instance of this activity.
-          Intent intent = new Intent(SearchActivity.this, SearchActivity.class);
-          intent.setAction(Intent.ACTION_SEARCH);
-          intent.putExtra(BUNDLE_ID_SEARCH_CLIENT_SETTINGS, searchClientSettings);
-          intent.putExtra(BUNDLE_ID_SEARCH_QUERY, query.toString());
+          Intent intent = createSearchIntent(query.toString());
 
           // Collapse the ActionView. This makes navigating through previous results using the back key less painful.
           MenuItemCompat.collapseActionView(searchMenuItem);
@@ -137,19 +191,15 @@ public class SearchActivity extends AppCompatActivity implements SearchResultGri
 
       @Override
       public boolean onSuggestionClick(int position) {
-        if (searchClientSettings != null) {
+        if (isServiceSelected()) {
           // Get the SearchView's suggestion adapter.
           CursorAdapter adapter = searchView.getSuggestionsAdapter();
           // Get the suggestion at given position.
           Cursor c = adapter.getCursor();
           c.moveToPosition(position);
 
-          // Create and send a search intent.
-          Intent intent = new Intent(SearchActivity.this, SearchActivity.class);
-          intent.setAction(Intent.ACTION_SEARCH);
-          intent.putExtra(BUNDLE_ID_SEARCH_CLIENT_SETTINGS, searchClientSettings);
-          intent.putExtra(BUNDLE_ID_SEARCH_QUERY, c.getString(c.getColumnIndex(SearchSuggestionDatabase.COLUMN_NAME)));
-          startActivity(intent);
+          // Create and send a search intent. The suggested query keeps the tags typed before the suggested tag.
+          startActivity(createSearchIntent(c.getString(c.getColumnIndex(SearchManager.SUGGEST_COLUMN_QUERY))));
 
           // Release native resources.
           c.close();
@@ -185,6 +235,10 @@ public class SearchActivity extends AppCompatActivity implements SearchResultGri
     Toolbar toolBar = (Toolbar) findViewById(R.id.toolbar);
     setSupportActionBar(toolBar);
     searchProgressBar = (ProgressBar) toolBar.findViewById(R.id.progressBar);
+    // Show progress while the search result shown before the process was killed is read from disk.
+    if (searchResultGridFragment.isRestoringSearchResult()) {
+      searchProgressBar.setVisibility(View.VISIBLE);
+    }
 
     ActionBar actionBar = getSupportActionBar();
     if (actionBar != null) {
@@ -202,16 +256,101 @@ public class SearchActivity extends AppCompatActivity implements SearchResultGri
   /**
    * Request a {@link SearchResult} object to be fetched from the background.
    *
-   * @param query Query string (a space-separated list of tags).
+   * @param query           Query string (a space-separated list of tags).
+   * @param isDefaultSearch True if searching for the default query on launch, to update the {@link LaunchSnapshot}.
    */
-  private void doSearch(String query) {
+  private void doSearch(String query, boolean isDefaultSearch) {
     // Show progress bar in ActionBar.
     if (searchProgressBar != null) {
       searchProgressBar.setVisibility(View.VISIBLE);
     }
-    // Request a search result from the API client.
-    searchCallback = new SearchResultCallback();
-    searchClient.search(query, searchCallback);
+    // Request a search result from the API client. Images hidden by the user's filters are removed in the background.
+    searchCallback = new SearchResultCallback(query, isDefaultSearch);
+    FilteredSearchTask.execute(this, searchClient, query, FilteredSearchTask.FIRST_PAGE, searchCallback);
+  }
+
+  /**
+   * Show or hide the offline banner.
+   *
+   * @param isOffline True if images couldn't be fetched because the device is offline.
+   */
+  private void setOffline(boolean isOffline) {
+    this.isOffline = isOffline;
+    if (offlineBanner != null) {
+      offlineBanner.setVisibility(isOffline ? View.VISIBLE : View.GONE);
+    }
+  }
+
+  /** Resume searching once a network connection is available, after images couldn't be fetched while offline. */
+  private void onConnectionAvailable() {
+    if (!isOffline || !NetworkUtils.isConnected(this)) {
+      return;
+    }
+    setOffline(false);
+    if (offlineQuery != null && searchCallback == null) {
+      // Replace the cached first page with a fresh copy. More pages are fetched once it has been received.
+      final String query = offlineQuery;
+      offlineQuery = null;
+      doSearch(query, isOfflineQueryDefault);
+    } else if (pagePrefetcher != null) {
+      // Fetch the pages that failed to load at the current scroll position.
+      pagePrefetcher.retry();
+    }
+  }
+
+  /**
+   * Search all services selected for a federated search, merging their pages into a single search result as they
+   * arrive.
+   *
+   * @param query Query string (a space-separated list of tags).
+   */
+  private void doFederatedSearch(String query) {
+    final PagedSearchResult searchResult = new PagedSearchResult(this, Tag.arrayFromString(query));
+    searchResultGridFragment.setSearchResult(searchResult);
+    federatedSearch = new FederatedSearch(this, federatedSearchServices, searchResult, this);
+    federatedSearch.fetchMore();
+    addSearchHistoryEntry(query);
+  }
+
+  /** @return True if a single service or the federated search entry is selected in the service dropdown menu. */
+  private boolean isServiceSelected() {
+    return searchClientSettings != null || federatedSearchSettings != null;
+  }
+
+  /**
+   * Create an intent to search the services selected in the service dropdown menu in a new instance of this activity.
+   *
+   * @param query Query string (a space-separated list of tags).
+   * @return Search intent.
+   */
+  private Intent createSearchIntent(String query) {
+    Intent intent = new Intent(SearchActivity.this, SearchActivity.class);
+    intent.setAction(Intent.ACTION_SEARCH);
+    if (federatedSearchSettings != null) {
+      intent.putParcelableArrayListExtra(BUNDLE_ID_FEDERATED_SEARCH_SETTINGS, federatedSearchSettings);
+    } else {
+      intent.putExtra(BUNDLE_ID_SEARCH_CLIENT_SETTINGS, searchClientSettings);
+    }
+    intent.putExtra(BUNDLE_ID_SEARCH_QUERY, query);
+    return intent;
+  }
+
+  /**
+   * Adds a new entry to the {@link SearchSuggestionDatabase} on a background thread
+   * (to prevent blocking the UI thread with database I/O).
+   *
+   * @param query Query string searched for by the user.
+   */
+  private void addSearchHistoryEntry(final String query) {
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        // Add query string to the database.
+        SearchSuggestionDatabase searchSuggestionDatabase = new SearchSuggestionDatabase(SearchActivity.this);
+        searchSuggestionDatabase.insert(query);
+        searchSuggestionDatabase.close();
+      }
+    }).start();
   }
 
   /**
@@ -231,24 +370,44 @@ public class SearchActivity extends AppCompatActivity implements SearchResultGri
     }
     // Expand the SearchView when an API is selected manually by the user.
     // (and not automatically restored from previous state when the app is first launched)
-    if (searchClientSettings != null && searchMenuItem != null) {
+    if (isServiceSelected() && searchMenuItem != null) {
       MenuItemCompat.expandActionView(searchMenuItem);
     }
 
     searchClientSettings = settings;
+    federatedSearchSettings = null;
 
     // If a SearchClient wasn't included in the Intent that started this activity, create one now and search for the default query.
     // Only do this if NSFW images would not be included in the search result.
-    if (searchClient == null && searchResultGridFragment.getSearchResult() == null) {
+    // The launch snapshot is replaced once the default query has been searched again.
+    if (searchClient == null && federatedSearchServices == null
+        && ((searchResultGridFragment.getSearchResult() == null && !searchResultGridFragment.isRestoringSearchResult())
+        || isLaunchSnapshotShown)) {
       searchClient = settings.createSearchClient();
       if (shouldLoadDefaultQuery()) {
-        doSearch(searchClient.getDefaultQuery());
+        doSearch(searchClient.getDefaultQuery(), true);
       } else if (searchMenuItem != null) {
         MenuItemCompat.expandActionView(searchMenuItem);
       }
     }
   }
 
+  /**
+   * Called when the federated search entry is selected by the user from the action bar dropdown.
+   *
+   * @param settings Settings of all services in the {@link APISettingsDatabase}.
+   */
+  protected void onFederatedSearchSelected(ArrayList<SearchClient.Settings> settings) {
+    // Show search action bar icon and expand the SearchView, as each service has its own default query.
+    if (searchMenuItem != null) {
+      searchMenuItem.setVisible(true);
+      MenuItemCompat.expandActionView(searchMenuItem);
+    }
+
+    searchClientSettings = null;
+    federatedSearchSettings = settings;
+  }
+
   /**
    * Only load the default query on app launch if NSFW images would not be shown.
    *
@@ -262,41 +421,61 @@ public class SearchActivity extends AppCompatActivity implements SearchResultGri
 
   @Override
   protected void onCreate(Bundle savedInstanceState) {
-    // Restore state from savedInstanceState.
-    super.onCreate(savedInstanceState);
-
-    // Get shared preferences.
-    sharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
-
-    // Inflate views.
-    setContentView(R.layout.activity_search);
-
-    // Get search result grid fragment from fragment manager.
-    searchResultGridFragment = (SearchResultGridFragment) getSupportFragmentManager().findFragmentById(R.id.fragment_searchResultGrid);
-
-
-
-    SearchClient.Settings searchClientSettings;
-    // Try restoring the SearchClient from savedInstanceState
-    if (savedInstanceState != null) {
-      if (this.searchClient == null && savedInstanceState.containsKey(BUNDLE_ID_SEARCH_CLIENT_SETTINGS)) {
-        searchClientSettings = savedInstanceState.getParcelable(BUNDLE_ID_SEARCH_CLIENT_SETTINGS);
-        if (searchClientSettings != null) {
-          searchClient = searchClientSettings.createSearchClient();
+    final long startTime = Timeline.beginSection("SearchActivity.onCreate");
+    try {
+      // Restore state from savedInstanceState.
+      super.onCreate(savedInstanceState);
+
+      // Get shared preferences.
+      sharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
+
+      // Inflate views.
+      setContentView(R.layout.activity_search);
+      offlineBanner = findViewById(R.id.offlineBanner);
+
+      // Get search result grid fragment from fragment manager.
+      searchResultGridFragment = (SearchResultGridFragment) getSupportFragmentManager().findFragmentById(R.id.fragment_searchResultGrid);
+
+      SearchClient.Settings searchClientSettings;
+      // Try restoring the SearchClient from savedInstanceState
+      if (savedInstanceState != null) {
+        if (this.searchClient == null && savedInstanceState.containsKey(BUNDLE_ID_SEARCH_CLIENT_SETTINGS)) {
+          searchClientSettings = savedInstanceState.getParcelable(BUNDLE_ID_SEARCH_CLIENT_SETTINGS);
+          if (searchClientSettings != null) {
+            searchClient = searchClientSettings.createSearchClient();
+          }
+        }
+        // The federated search is resumed once the grid fragment has restored its search result.
+        federatedSearchServices = savedInstanceState.getParcelableArrayList(BUNDLE_ID_FEDERATED_SEARCH_SETTINGS);
+        federatedSearchState = savedInstanceState.getBundle(BUNDLE_ID_FEDERATED_SEARCH_STATE);
+      } else {
+        Intent intent = getIntent();
+        // If the activity was started from a Search intent, create the SearchClient object and submit search.
+        if (intent != null && intent.getAction().equals(Intent.ACTION_SEARCH) && searchResultGridFragment.getSearchResult() == null) {
+          if (intent.hasExtra(BUNDLE_ID_FEDERATED_SEARCH_SETTINGS)) {
+            // Search all services selected for a federated search.
+            federatedSearchServices = intent.getParcelableArrayListExtra(BUNDLE_ID_FEDERATED_SEARCH_SETTINGS);
+            doFederatedSearch(intent.getStringExtra(BUNDLE_ID_SEARCH_QUERY));
+          } else {
+            searchClientSettings = intent.getParcelableExtra(BUNDLE_ID_SEARCH_CLIENT_SETTINGS);
+            searchClient = searchClientSettings.createSearchClient();
+            doSearch(intent.getStringExtra(BUNDLE_ID_SEARCH_QUERY), false);
+          }
+        } else if (searchResultGridFragment.getSearchResult() == null && shouldLoadDefaultQuery()) {
+          // Show the first page of the default query from the last launch, while the service settings are loaded and
+          // the default query is searched again.
+          launchTime = Timeline.now();
+          launchSnapshotCallback = new LaunchSnapshotCallback();
+          LaunchSnapshot.load(this, sharedPreferences.getLong(ServiceDropdownAdapter.SHARED_PREFERENCE_LAST_SELECTED_INDEX,
+              ServiceDropdownAdapter.DEFAULT_SELECTED_ITEM), launchSnapshotCallback);
         }
       }
-    } else {
-      Intent intent = getIntent();
-      // If the activity was started from a Search intent, create the SearchClient object and submit search.
-      if (intent != null && intent.getAction().equals(Intent.ACTION_SEARCH) && searchResultGridFragment.getSearchResult() == null) {
-        searchClientSettings = intent.getParcelableExtra(BUNDLE_ID_SEARCH_CLIENT_SETTINGS);
-        searchClient = searchClientSettings.createSearchClient();
-        doSearch(intent.getStringExtra(BUNDLE_ID_SEARCH_QUERY));
-      }
-    }
 
-    // Set up the dropdown API server picker.
-    setUpActionBar();
+      // Set up the dropdown API server picker.
+      setUpActionBar();
+    } finally {
+      Timeline.endSection("SearchActivity.onCreate", startTime);
+    }
   }
 
   @Override
@@ -307,6 +486,47 @@ public class SearchActivity extends AppCompatActivity implements SearchResultGri
     if (searchCallback != null) {
       searchCallback.cancel();
     }
+    if (launchSnapshotCallback != null) {
+      launchSnapshotCallback.cancel();
+    }
+    if (pagePrefetcher != null) {
+      pagePrefetcher.cancel();
+    }
+    if (federatedSearch != null) {
+      federatedSearch.cancel();
+    }
+  }
+
+  @Override
+  protected void onStart() {
+    super.onStart();
+
+    // Resume searching when the device comes back online. The sticky broadcast delivered right away covers
+    // connections that became available while the activity was stopped.
+    connectivityReceiver = new BroadcastReceiver() {
+      @Override
+      public void onReceive(Context context, Intent intent) {
+        onConnectionAvailable();
+      }
+    };
+    registerReceiver(connectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+  }
+
+  @Override
+  protected void onStop() {
+    super.onStop();
+
+    if (connectivityReceiver != null) {
+      unregisterReceiver(connectivityReceiver);
+      connectivityReceiver = null;
+    }
+
+    // The search result is shared with the image viewer, which fetches its own pages while it is shown.
+    // A new prefetcher is created when the grid is scrolled again.
+    if (pagePrefetcher != null) {
+      pagePrefetcher.cancel();
+      pagePrefetcher = null;
+    }
   }
 
   @Override
@@ -328,6 +548,17 @@ public class SearchActivity extends AppCompatActivity implements SearchResultGri
         outState.putParcelable(BUNDLE_ID_SEARCH_CLIENT_SETTINGS, searchClient.getSettings());
       }
     }
+    // Preserve the services searched for a federated search result and their progress.
+    if (federatedSearchServices != null) {
+      outState.putParcelableArrayList(BUNDLE_ID_FEDERATED_SEARCH_SETTINGS, federatedSearchServices);
+      if (federatedSearch != null) {
+        final Bundle state = new Bundle();
+        federatedSearch.onSaveInstanceState(state);
+        outState.putBundle(BUNDLE_ID_FEDERATED_SEARCH_STATE, state);
+      } else if (federatedSearchState != null) {
+        outState.putBundle(BUNDLE_ID_FEDERATED_SEARCH_STATE, federatedSearchState);
+      }
+    }
   }
 
   @Override
@@ -348,122 +579,327 @@ public class SearchActivity extends AppCompatActivity implements SearchResultGri
       case R.id.action_settings:
         startActivity(new Intent(SearchActivity.this, SettingsActivity.class));
         return true;
+      case R.id.action_downloadAll:
+        downloadAll();
+        return true;
       default:
         return super.onOptionsItemSelected(item);
     }
   }
 
+  @Override
+  public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions, @NonNull int[] grantResults) {
+    super.onRequestPermissionsResult(requestCode, permissions, grantResults);
+    if (requestCode == PERMISSION_REQUEST_DOWNLOAD_ALL && grantResults.length > 0) {
+      if (grantResults[0] == PackageManager.PERMISSION_GRANTED) {
+        downloadAll();
+      } else {
+        Toast.makeText(this, R.string.toast_imageDownloadPermissionDenied, Toast.LENGTH_LONG).show();
+      }
+    }
+  }
+
+  /** Download the original files of all images in the displayed search result in the background. */
+  private void downloadAll() {
+    final PagedSearchResult searchResult = searchResultGridFragment.getSearchResult();
+    if (searchResult == null) {
+      return;
+    }
+    if (ActivityCompat.checkSelfPermission(this, Manifest.permission.WRITE_EXTERNAL_STORAGE) != PackageManager.PERMISSION_GRANTED) {
+      ActivityCompat.requestPermissions(this, new String[]{Manifest.permission.WRITE_EXTERNAL_STORAGE}, PERMISSION_REQUEST_DOWNLOAD_ALL);
+      return;
+    }
+
+    // Images that have been dropped from memory are read back from disk in the background.
+    searchResult.getAllImages(new PagedSearchResult.AllImagesCallback() {
+      @Override
+      public void onAllImagesLoaded(@NonNull List<Image> images) {
+        BulkDownloadService.download(SearchActivity.this, images);
+      }
+    });
+  }
+
   @Override
   public void onImageSelected(Image image, int position) {
+    // The launch snapshot can be shown before the service settings have been loaded.
+    if (searchClient == null && federatedSearchServices == null) {
+      return;
+    }
     // Open ImageViewerActivity.
     final Intent intent = new Intent(SearchActivity.this, ImageViewerActivity.class);
     intent.putExtra(BUNDLE_ID_IMAGE_INDEX, position);
-    intent.putExtra(BUNDLE_ID_SEARCH_RESULT, searchResultGridFragment.getSearchResult());
-    intent.putExtra(BUNDLE_ID_SEARCH_CLIENT_SETTINGS, searchClient.getSettings());
+    intent.putExtra(BUNDLE_ID_SEARCH_RESULT_TOKEN, searchResultGridFragment.getSearchResultToken());
+    if (federatedSearchServices != null) {
+      // The image viewer uses the settings of the service the image came from, and doesn't fetch more pages.
+      final SearchClient.Settings settings = getFederatedSearch(searchResultGridFragment.getSearchResult())
+          .getSettings(position);
+      if (settings == null) {
+        // Not merged by the federated search.
+        return;
+      }
+      intent.putExtra(BUNDLE_ID_SEARCH_CLIENT_SETTINGS, settings);
+      intent.putExtra(BUNDLE_ID_FEDERATED_SEARCH, true);
+    } else {
+      intent.putExtra(BUNDLE_ID_SEARCH_CLIENT_SETTINGS, searchClient.getSettings());
+    }
     startActivity(intent);
   }
 
   @Override
-  public void fetchMoreImages(SearchResult searchResult) {
-    // Ignore request if there is another API request pending.
-    if (searchCallback != null) {
+  public void onScrollPositionChanged(PagedSearchResult searchResult, int lastVisibleItem, int totalItemCount) {
+    // Fetch more pages from every service for federated search results.
+    if (federatedSearchServices != null) {
+      final FederatedSearch federatedSearch = getFederatedSearch(searchResult);
+      if (federatedSearch.isSearching(searchResult)) {
+        federatedSearch.onPositionChanged(lastVisibleItem, totalItemCount);
+      }
       return;
     }
-    // Show progress bar in ActionBar.
-    searchProgressBar.setVisibility(View.VISIBLE);
-    // Request search result from API client.
-    searchCallback = new SearchResultCallback(searchResult);
-    searchClient.search(Tag.stringFromArray(searchResult.getQuery()), searchResult.getCurrentOffset() + 1, searchCallback);
+    // Wait for the first page of a new search to be received.
+    if (searchCallback != null || searchClient == null) {
+      return;
+    }
+    // Start fetching pages for a newly displayed search result.
+    if (pagePrefetcher == null || !pagePrefetcher.isPrefetching(searchResult)) {
+      if (pagePrefetcher != null) {
+        pagePrefetcher.cancel();
+      }
+      pagePrefetcher = new SearchPagePrefetcher(this, searchClient, searchResult, this);
+    }
+    pagePrefetcher.onPositionChanged(lastVisibleItem, totalItemCount);
+  }
+
+  /**
+   * Get the federated search merging pages into the displayed search result. The search is resumed from the saved
+   * instance state if the search result has been restored by the grid fragment.
+   *
+   * @param searchResult Displayed search result.
+   * @return Federated search.
+   */
+  @NonNull
+  private FederatedSearch getFederatedSearch(@NonNull PagedSearchResult searchResult) {
+    if (federatedSearch == null) {
+      federatedSearch = new FederatedSearch(this, federatedSearchServices, searchResult, this);
+      federatedSearch.onRestoreInstanceState(federatedSearchState);
+      federatedSearchState = null;
+    }
+    return federatedSearch;
+  }
+
+  @Override
+  public void onFirstThumbnailLoaded() {
+    // Report the time to first thumbnail after launching the app from the home screen.
+    Timeline.mark("First thumbnail");
+    if (launchTime != 0) {
+      final String launchSnapshotState = isLaunchSnapshotShown ? "with" : "without";
+      Log.i(TAG, String.format("Time to first thumbnail: %d ms (%s launch snapshot)",
+          (Timeline.now() - launchTime) / 1000000, launchSnapshotState));
+      Timeline.record("Time to first thumbnail (" + launchSnapshotState + " launch snapshot)", launchTime);
+      launchTime = 0;
+    }
+  }
+
+  @Override
+  public void onSearchResultRestored(PagedSearchResult searchResult) {
+    // Hide progress indicator in Action Bar, unless a new search has been started in the meantime.
+    if (searchProgressBar != null && searchCallback == null) {
+      searchProgressBar.setVisibility(View.GONE);
+    }
+  }
+
+  @Override
+  public void onPageFetched(PagedSearchResult searchResult, SearchResult page, boolean isLastPage) {
+    // Extend existing search result for endless scrolling. The page has already been filtered.
+    // The grid fragment is notified of the added images by the search result.
+    searchResult.addImages(page.getImages(), page.getCurrentOffset());
+    if (isLastPage) {
+      // Set onLastPage if no more images can be fetched.
+      searchResult.onLastPage();
+    }
+  }
+
+  @Override
+  public void onPageFetchFailed(IOException e) {
+    if (e instanceof OfflineException) {
+      // The pages are fetched once the device is back online.
+      setOffline(true);
+      return;
+    }
+    // Show error message to user.
+    Toast.makeText(SearchActivity.this, String.format(getString(R.string.toast_infiniteScrollingFetchError),
+        e.getLocalizedMessage()), Toast.LENGTH_LONG).show();
+  }
+
+  @Override
+  public void onServiceFailed(SearchClient.Settings settings, IOException e) {
+    // Show error message to user. The other services are still searched.
+    Toast.makeText(SearchActivity.this, String.format(getString(R.string.toast_federatedSearchError),
+        settings.getName(), e.getLocalizedMessage()), Toast.LENGTH_SHORT).show();
+  }
+
+  @Override
+  public void onFetchingStateChanged(boolean isFetching) {
+    // Show progress bar in ActionBar while waiting for more images.
+    if (searchProgressBar != null && searchCallback == null) {
+      searchProgressBar.setVisibility(isFetching ? View.VISIBLE : View.GONE);
+    }
   }
 
   /** Callback waiting for a SearchResult received on a background thread from the Search API. */
-  private class SearchResultCallback implements SearchClient.SearchCallback {
-    /** Search result to extend when fetching more images for endless scrolling. */
-    private final SearchResult searchResult;
+  private class SearchResultCallback implements FilteredSearchTask.RevalidatingCallback {
     /** Callback cancelled and should no longer respond to received SearchResult. */
     private boolean isCancelled = false;
+    /** True if a cached copy of the search result is shown while it is being fetched again. */
+    private boolean isCachedPageShown = false;
+    /** Query string searched for. */
+    private final String query;
+    /** True if searching for the default query on launch, to update the {@link LaunchSnapshot}. */
+    private final boolean isDefaultSearch;
+    /** {@link Timeline} time the search was started at. */
+    private final long startTime = Timeline.now();
 
-    /** Default constructor. */
-    public SearchResultCallback() {
-      this.searchResult = null;
+    /**
+     * Create a new search callback.
+     *
+     * @param query           Query string searched for.
+     * @param isDefaultSearch True if searching for the default query on launch, to update the {@link LaunchSnapshot}.
+     */
+    public SearchResultCallback(String query, boolean isDefaultSearch) {
+      this.query = query;
+      this.isDefaultSearch = isDefaultSearch;
     }
 
-    /** Constructor used to add more images to an existing SearchResult to implement endless scrolling. */
-    public SearchResultCallback(SearchResult searchResult) {
-      this.searchResult = searchResult;
+    @Override
+    public void onFailure(IOException e) {
+      Timeline.record("Search (failed)", startTime);
+      if (!isCancelled) {
+        if (e instanceof OfflineException) {
+          // Search again once the device is back online.
+          setOfflineQuery();
+        } else {
+          // Show error message to user.
+          Toast.makeText(SearchActivity.this, String.format(getString(R.string.toast_networkError), e.getLocalizedMessage()), Toast.LENGTH_LONG).show();
+        }
+        // Clear callback and hide progress indicator in Action Bar.
+        searchProgressBar.setVisibility(View.GONE);
+        searchCallback = null;
+      }
     }
 
     @Override
-    public void onFailure(IOException e) {
+    public void onOfflinePage(SearchResult searchResult, boolean isLastPage) {
+      Timeline.record("Search (offline)", startTime);
       if (!isCancelled) {
-        // Show error message to user.
-        Toast.makeText(SearchActivity.this, String.format(getString(R.string.toast_networkError), e.getLocalizedMessage()), Toast.LENGTH_LONG).show();
         // Clear callback and hide progress indicator in Action Bar.
         searchProgressBar.setVisibility(View.GONE);
         searchCallback = null;
+
+        // Show the cached search result until the device is back online. More cached pages are shown when scrolling.
+        searchResultGridFragment.setSearchResult(new PagedSearchResult(SearchActivity.this, searchResult));
+        isLaunchSnapshotShown = false;
+        setOfflineQuery();
       }
     }
 
     @Override
-    public void onSuccess(SearchResult searchResult) {
+    public void onStalePage(SearchResult searchResult, boolean isLastPage, IOException e) {
+      Timeline.record("Search (stale)", startTime);
       if (!isCancelled) {
         // Clear callback and hide progress indicator in Action Bar.
         searchProgressBar.setVisibility(View.GONE);
         searchCallback = null;
 
-        // Filter the received SearchResult.
-        final int resultCount = searchResult.getImages().length;
-        if (sharedPreferences.contains(getString(R.string.preference_nsfwFilter_key)) &&
-            !TextUtils.isEmpty(sharedPreferences.getString(getString(R.string.preference_nsfwFilter_key), "").trim())) {
-          // Get filter from shared preferences.
-          searchResult.filter(Image.ObscenityRating.arrayFromStrings(
-              sharedPreferences.getString(getString(R.string.preference_nsfwFilter_key), "").split(" ")));
-        } else {
-          // Get default filter from resources.
-          searchResult.filter(Image.ObscenityRating.arrayFromStrings(getResources().getStringArray(R.array.preference_nsfwFilter_defaultValues)));
-        }
-        if (sharedPreferences.contains(getString(R.string.preference_tagFilter_key))) {
-          // Get tag filters from shared preferences and filter the result.
-          searchResult.filter(Tag.arrayFromString(sharedPreferences.getString(getString(R.string.preference_tagFilter_key), "")));
-        }
+        // The device is online, so show the cached search result with the error instead of the offline banner.
+        searchResultGridFragment.setSearchResult(new PagedSearchResult(SearchActivity.this, searchResult));
+        isLaunchSnapshotShown = false;
+        Toast.makeText(SearchActivity.this, String.format(getString(R.string.toast_networkError),
+            e.getLocalizedMessage()), Toast.LENGTH_LONG).show();
+      }
+    }
 
-        if (this.searchResult != null) {
-          // Set onLastPage if no more images were fetched.
-          if (resultCount == 0) {
-            this.searchResult.onLastPage();
-          } else {
-            // Extend existing search result for endless scrolling.
-            this.searchResult.addImages(searchResult.getImages(), searchResult.getCurrentOffset());
-            searchResultGridFragment.setSearchResult(this.searchResult);
-          }
-        } else {
-          // Show search result.
-          if (resultCount == 0) {
-            searchResult.onLastPage();
-          } else {
-            addSearchHistoryEntry(Tag.stringFromArray(searchResult.getQuery()));
-          }
-          searchResultGridFragment.setSearchResult(searchResult);
+    @Override
+    public void onSuccess(SearchResult searchResult, boolean isLastPage) {
+      Timeline.record("Search", startTime);
+      if (!isCancelled) {
+        // Clear callback and hide progress indicator in Action Bar.
+        searchProgressBar.setVisibility(View.GONE);
+        searchCallback = null;
+
+        // Show search result. It has already been filtered in the background and marked as the last page if the API
+        // returned no images. Replaces the cached copy, if one was shown, with the new posts.
+        if (!isLastPage && !isCachedPageShown) {
+          addSearchHistoryEntry(Tag.stringFromArray(searchResult.getQuery()));
         }
+        searchResultGridFragment.setSearchResult(new PagedSearchResult(SearchActivity.this, searchResult));
+        isLaunchSnapshotShown = false;
+        saveLaunchSnapshot();
       }
     }
 
-    /**
-     * Adds a new entry to the {@link SearchSuggestionDatabase} on a background thread
-     * (to prevent blocking the UI thread with database I/O).
-     *
-     * @param query Query string searched for by the user.
-     */
-    private void addSearchHistoryEntry(final String query) {
-      new Thread(new Runnable() {
-        @Override
-        public void run() {
-          // Add query string to the database.
-          SearchSuggestionDatabase searchSuggestionDatabase = new SearchSuggestionDatabase(SearchActivity.this);
-          searchSuggestionDatabase.insert(query);
-          searchSuggestionDatabase.close();
+    @Override
+    public void onCachedPage(SearchResult searchResult, boolean isLastPage) {
+      Timeline.record("Search (cached page)", startTime);
+      if (!isCancelled) {
+        // Show the cached search result right away. The callback isn't cleared, so that more pages aren't fetched
+        // until the first page has been refreshed and the offsets of the following pages are known to match it.
+        isCachedPageShown = true;
+        if (!isLastPage) {
+          addSearchHistoryEntry(Tag.stringFromArray(searchResult.getQuery()));
+        }
+        // The launch snapshot is the same page, so it is kept to avoid redrawing the grid.
+        if (!isLaunchSnapshotShown) {
+          searchResultGridFragment.setSearchResult(new PagedSearchResult(SearchActivity.this, searchResult));
         }
-      }).start();
+      }
+    }
+
+    @Override
+    public void onNotModified() {
+      Timeline.record("Search (not modified)", startTime);
+      if (!isCancelled) {
+        // Keep showing the cached search result. Clear callback and hide progress indicator in Action Bar.
+        searchProgressBar.setVisibility(View.GONE);
+        searchCallback = null;
+        isLaunchSnapshotShown = false;
+        saveLaunchSnapshot();
+      }
+    }
+
+    /** Cancels this callback. */
+    public void cancel() {
+      this.isCancelled = true;
+    }
+
+    /** Point the {@link LaunchSnapshot} at the cached page of the default query. */
+    private void saveLaunchSnapshot() {
+      if (isDefaultSearch) {
+        LaunchSnapshot.save(SearchActivity.this, sharedPreferences.getLong(
+            ServiceDropdownAdapter.SHARED_PREFERENCE_LAST_SELECTED_INDEX, ServiceDropdownAdapter.DEFAULT_SELECTED_ITEM),
+            searchClient.getSettings(), query);
+      }
+    }
+
+    /** Search again and show the offline banner once the device is back online. */
+    private void setOfflineQuery() {
+      offlineQuery = query;
+      isOfflineQueryDefault = isDefaultSearch;
+      setOffline(true);
+    }
+  }
+
+  /** Callback waiting for the {@link LaunchSnapshot} to be read. */
+  private class LaunchSnapshotCallback implements LaunchSnapshot.Callback {
+    /** Callback cancelled and should no longer respond to the read snapshot. */
+    private boolean isCancelled = false;
+
+    @Override
+    public void onSnapshotLoaded(SearchResult page) {
+      // Only show the snapshot if the search result hasn't been received in the meantime.
+      if (!isCancelled && searchResultGridFragment.getSearchResult() == null) {
+        isLaunchSnapshotShown = true;
+        searchResultGridFragment.setSearchResult(new PagedSearchResult(SearchActivity.this, page));
+      }
+      launchSnapshotCallback = null;
     }
 
     /** Cancels this callback. */
@@ -478,6 +914,10 @@ public class SearchActivity extends AppCompatActivity implements SearchResultGri
     private static final int LOADER_ID_API_SETTINGS = 0x00;
     /** Shared preference key used to store the last active {@link io.github.tjg1.library.norilib.clients.SearchClient}. */
     private static final String SHARED_PREFERENCE_LAST_SELECTED_INDEX = "io.github.tjg1.nori.SearchActivity.lastSelectedServiceIndex";
+    /** Database row ID of the service selected if no service has been selected before. */
+    private static final long DEFAULT_SELECTED_ITEM = 1L;
+    /** Item ID of the federated search entry, shown after the services when there are more than one. Never used as a database row ID. */
+    private static final long ITEM_ID_FEDERATED_SEARCH = -1L;
     /** List of service settings loaded from {@link io.github.tjg1.nori.database.APISettingsDatabase}. */
     private List<Pair<Integer, SearchClient.Settings>> settingsList;
     /** ID of the last selected item. */
@@ -485,7 +925,7 @@ public class SearchActivity extends AppCompatActivity implements SearchResultGri
 
     public ServiceDropdownAdapter() {
       // Restore last active item from SharedPreferences.
-      lastSelectedItem = sharedPreferences.getLong(SHARED_PREFERENCE_LAST_SELECTED_INDEX, 1L);
+      lastSelectedItem = sharedPreferences.getLong(SHARED_PREFERENCE_LAST_SELECTED_INDEX, DEFAULT_SELECTED_ITEM);
       // Initialize the search client settings database loader.
       getSupportLoaderManager().initLoader(LOADER_ID_API_SETTINGS, null, this);
     }
@@ -494,6 +934,9 @@ public class SearchActivity extends AppCompatActivity implements SearchResultGri
     public int getCount() {
       if (settingsList == null) {
         return 0;
+      } else if (settingsList.size() > 1) {
+        // Include the federated search entry.
+        return settingsList.size() + 1;
       } else {
         return settingsList.size();
       }
@@ -501,15 +944,31 @@ public class SearchActivity extends AppCompatActivity implements SearchResultGri
 
     @Override
     public SearchClient.Settings getItem(int position) {
+      // The federated search entry has no settings of its own.
+      if (position == settingsList.size()) {
+        return null;
+      }
       return settingsList.get(position).second;
     }
 
     @Override
     public long getItemId(int position) {
+      if (position == settingsList.size()) {
+        return ITEM_ID_FEDERATED_SEARCH;
+      }
       // Return database row ID.
       return settingsList.get(position).first;
     }
 
+    /** @return Settings of all services in the database, searched by the federated search entry. */
+    public ArrayList<SearchClient.Settings> getAllSettings() {
+      final ArrayList<SearchClient.Settings> allSettings = new ArrayList<>(settingsList.size());
+      for (Pair<Integer, SearchClient.Settings> settings : settingsList) {
+        allSettings.add(settings.second);
+      }
+      return allSettings;
+    }
+
     /**
      * Get position of the item with given database row ID.
      *
@@ -538,7 +997,7 @@ public class SearchActivity extends AppCompatActivity implements SearchResultGri
       // Populate views with content.
       SearchClient.Settings settings = getItem(position);
       TextView text1 = (TextView) view.findViewById(android.R.id.text1);
-      text1.setText(settings.getName());
+      text1.setText(settings != null ? settings.getName() : getString(R.string.service_federatedSearch));
 
       return view;
     }
@@ -576,8 +1035,15 @@ public class SearchActivity extends AppCompatActivity implements SearchResultGri
       // Save last active item to SharedPreferences.
       lastSelectedItem = id;
       sharedPreferences.edit().putLong(SHARED_PREFERENCE_LAST_SELECTED_INDEX, id).apply();
+      // Suggest tags from the vocabulary of the selected service, fetching it if it is out of date.
+      SearchSuggestionProvider.setServiceId(id);
       // Notify parent activity.
-      onSearchAPISelected(getItem(position));
+      if (id == ITEM_ID_FEDERATED_SEARCH) {
+        onFederatedSearchSelected(getAllSettings());
+      } else {
+        onSearchAPISelected(getItem(position));
+        TagVocabularyService.start(SearchActivity.this, id, getItem(position));
+      }
     }
 
     @Override
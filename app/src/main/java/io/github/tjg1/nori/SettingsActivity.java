@@ -10,6 +10,7 @@ import android.annotation.SuppressLint;
 import android.app.ActionBar;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import android.preference.EditTextPreference;
@@ -18,8 +19,13 @@ import android.preference.Preference;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceScreen;
 import android.view.MenuItem;
+import android.widget.Toast;
+
+import java.io.File;
+import java.io.IOException;
 
 import io.github.tjg1.nori.service.ClearSearchHistoryService;
+import io.github.tjg1.nori.util.Timeline;
 
 /** Main settings activity managing all the core preferences for the app, launched from {@link io.github.tjg1.nori.SearchActivity}. */
 @SuppressWarnings("deprecation")
@@ -93,11 +99,34 @@ public class SettingsActivity extends PreferenceActivity implements SharedPrefer
       Intent intent = new Intent(this, ClearSearchHistoryService.class);
       startService(intent);
       return true;
+    } else if (preference.getKey() != null && preference.getKey().equals("preference_exportTrace")) {
+      exportTrace();
+      return true;
     } else {
       return super.onPreferenceTreeClick(preferenceScreen, preference);
     }
   }
 
+  /** Write the {@link Timeline} to a JSON trace file in the background and show its path to the user. */
+  private void exportTrace() {
+    new AsyncTask<Void, Void, String>() {
+      @Override
+      protected String doInBackground(Void... params) {
+        try {
+          final File file = Timeline.export(getApplicationContext());
+          return String.format(getString(R.string.toast_traceExported), file.getPath());
+        } catch (IOException e) {
+          return String.format(getString(R.string.toast_traceExportError), e.getLocalizedMessage());
+        }
+      }
+
+      @Override
+      protected void onPostExecute(String message) {
+        Toast.makeText(getApplicationContext(), message, Toast.LENGTH_LONG).show();
+      }
+    }.execute();
+  }
+
   @Override
   protected void onPause() {
     super.onPause();
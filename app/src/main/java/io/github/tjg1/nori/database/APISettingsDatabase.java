@@ -19,6 +19,7 @@ import android.support.v4.content.LocalBroadcastManager;
 import android.util.Pair;
 
 import io.github.tjg1.library.norilib.clients.SearchClient;
+import io.github.tjg1.nori.util.Timeline;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -118,21 +119,27 @@ public class APISettingsDatabase extends SQLiteOpenHelper {
    * @return List of pairs mapping database IDs to {@link SearchClient.Settings} objects.
    */
   public List<Pair<Integer, SearchClient.Settings>> getAll() {
-    // Query the database.
-    SQLiteDatabase db = getReadableDatabase();
-    Cursor c = db.query(TABLE_NAME, null, null, null, null, null, COLUMN_ID);
-
-    // Convert database Cursor to List.
-    final List<Pair<Integer, SearchClient.Settings>> settingsList = new ArrayList<>(c.getCount());
-    while (c.moveToNext()) {
-      settingsList.add(new Pair<>(c.getInt(c.getColumnIndex(COLUMN_ID)), cursorToSearchClientSettings(c)));
-    }
+    // Opening the database is part of the time it takes to show the service dropdown on launch.
+    final long startTime = Timeline.beginSection("APISettingsDatabase.getAll");
+    try {
+      // Query the database.
+      SQLiteDatabase db = getReadableDatabase();
+      Cursor c = db.query(TABLE_NAME, null, null, null, null, null, COLUMN_ID);
+
+      // Convert database Cursor to List.
+      final List<Pair<Integer, SearchClient.Settings>> settingsList = new ArrayList<>(c.getCount());
+      while (c.moveToNext()) {
+        settingsList.add(new Pair<>(c.getInt(c.getColumnIndex(COLUMN_ID)), cursorToSearchClientSettings(c)));
+      }
 
-    // Clean up native resources.
-    c.close();
-    db.close();
+      // Clean up native resources.
+      c.close();
+      db.close();
 
-    return settingsList;
+      return settingsList;
+    } finally {
+      Timeline.endSection("APISettingsDatabase.getAll", startTime);
+    }
   }
 
   /**
@@ -164,6 +171,8 @@ public class APISettingsDatabase extends SQLiteOpenHelper {
     final int rows = db.update(TABLE_NAME, searchClientSettingsToContentValues(settings), COLUMN_ID + " = ?",
         new String[]{Long.toString(id)});
     db.close();
+    // The endpoint may have changed, so the tag vocabulary of the service is fetched again.
+    deleteServiceTags(id);
 
     sendUpdateNotification();
     return rows;
@@ -180,11 +189,23 @@ public class APISettingsDatabase extends SQLiteOpenHelper {
     SQLiteDatabase db = getWritableDatabase();
     final int rows = db.delete(TABLE_NAME, COLUMN_ID + " = ?", new String[]{Long.toString(id)});
     db.close();
+    deleteServiceTags(id);
 
     sendUpdateNotification();
     return rows;
   }
 
+  /**
+   * Remove the tag vocabulary of a service from the {@link SearchSuggestionDatabase}.
+   *
+   * @param id Row ID of the service.
+   */
+  private void deleteServiceTags(long id) {
+    SearchSuggestionDatabase searchSuggestionDatabase = new SearchSuggestionDatabase(context);
+    searchSuggestionDatabase.deleteServiceTags(id);
+    searchSuggestionDatabase.close();
+  }
+
   /**
    * Notify observers that the data in the database has changed.
    */
@@ -9,15 +9,26 @@ package io.github.tjg1.nori.database;
 import android.app.SearchManager;
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Process;
 
 import io.github.tjg1.nori.R;
+import io.github.tjg1.nori.util.Timeline;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Backing store for the custom search suggestions in {@link io.github.tjg1.nori.SearchActivity}.
@@ -31,29 +42,80 @@ public class SearchSuggestionDatabase extends SQLiteOpenHelper {
   public static final String TABLE_NAME = "search_suggestions";
   /** Unique ID (primary key) column. */
   public static final String COLUMN_ID = "_id";
-  /** Tag name column. These values are presented as search suggestions. */
+  /** Tag name column. These values are presented as search suggestions. Unique and compared case-insensitively. */
   public static final String COLUMN_NAME = SearchManager.SUGGEST_COLUMN_TEXT_1;
   /** Column holding the resource ID of the icon displayed next to the suggestion to indicate its type (recent/Safebooru top 1000). */
   public static final String COLUMN_ICON = SearchManager.SUGGEST_COLUMN_ICON_1;
+  /** Column holding the number of times the suggestion was searched for. */
+  public static final String COLUMN_FREQUENCY = "frequency";
+  /** Column holding the time the suggestion was last searched for, in milliseconds since the epoch. 0 if never searched. */
+  public static final String COLUMN_LAST_USED = "last_used";
+  /** Columns included in suggestion queries. */
+  private static final String[] SUGGESTION_COLUMNS = {COLUMN_ID, COLUMN_NAME, COLUMN_ICON, COLUMN_FREQUENCY};
+  /** Order of suggestions: most frequently searched first, then most recently searched, then built-in tags by popularity. */
+  private static final String SUGGESTION_ORDER = COLUMN_FREQUENCY + " DESC, " + COLUMN_LAST_USED + " DESC, " + COLUMN_ID;
   /** Resource ID of the icon used to represent recent search history items. */
   private static final String RESOURCE_ICON_RECENT_HISTORY = Integer.toString(R.drawable.ic_search_suggestion_recent);
   /** Resource ID of the icon used to represent suggestions from the built-in tag data set */
   private static final String RESOURCE_ICON_BUILT_IN = Integer.toString(R.drawable.ic_search_suggestion_builtin);
+  /** Table holding the tag vocabulary of each service, fetched from its tag API. */
+  public static final String SERVICE_TAGS_TABLE_NAME = "service_tags";
+  /** Service tag column holding the database row ID of the service in {@link APISettingsDatabase}. */
+  public static final String COLUMN_SERVICE_ID = "service_id";
+  /** Service tag column holding the ID of the tag on the service. */
+  public static final String COLUMN_TAG_ID = "tag_id";
+  /** Service tag column holding the tag name. Compared case-insensitively. */
+  public static final String COLUMN_TAG_NAME = "name";
+  /** Service tag column holding the number of posts with the tag, used to rank suggestions. */
+  public static final String COLUMN_POST_COUNT = "post_count";
+  /** Table holding the time each service tag vocabulary was last refreshed. */
+  private static final String VOCABULARY_STATE_TABLE_NAME = "service_tag_vocabularies";
+  /** Vocabulary state column holding the highest tag ID fetched from the service. New tags are fetched after it. */
+  private static final String COLUMN_MAX_TAG_ID = "max_tag_id";
+  /** Vocabulary state column holding the time of the last refresh, in milliseconds since the epoch. */
+  private static final String COLUMN_REFRESHED_AT = "refreshed_at";
+  /** Vocabulary state column holding the time the most popular tags were last fetched, in milliseconds since the epoch. */
+  private static final String COLUMN_FULL_REFRESHED_AT = "full_refreshed_at";
+  /** Resource ID of the icon used to represent suggestions from the vocabulary of the selected service. */
+  private static final String RESOURCE_ICON_SERVICE = Integer.toString(R.drawable.ic_search_suggestion_builtin);
   /** Database schema version. */
-  private static final int SCHEMA_VERSION = 1;
+  private static final int SCHEMA_VERSION = 4;
+  /** In-memory suggestions of each database file opened in the process, keyed by the absolute path of the file. */
+  private static final Map<String, SuggestionState> suggestionStates = new HashMap<>();
   /** Android activity context. */
   private final Context context;
+  /** In-memory suggestions of the database file, shared by all instances opening the same file. */
+  private final SuggestionState suggestionState;
 
   public SearchSuggestionDatabase(Context context) {
     super(context, DATABASE_NAME, null, SCHEMA_VERSION);
     this.context = context;
+    this.suggestionState = getSuggestionState(context.getDatabasePath(DATABASE_NAME).getAbsolutePath());
   }
 
   /**
-   * Insert a new search history item into the search suggestion database.
+   * Get the in-memory suggestions of a database file.
+   *
+   * @param path Absolute path of the database file.
+   * @return In-memory suggestions of the database file.
+   */
+  private static SuggestionState getSuggestionState(String path) {
+    synchronized (suggestionStates) {
+      SuggestionState state = suggestionStates.get(path);
+      if (state == null) {
+        state = new SuggestionState();
+        suggestionStates.put(path, state);
+      }
+      return state;
+    }
+  }
+
+  /**
+   * Insert a new search history item into the search suggestion database. If the tag is already suggested, it is
+   * ranked higher in the suggestions instead.
    *
    * @param tag Name of the tag to be added into the database.
-   * @return ID of the newly inserted row.
+   * @return ID of the newly inserted row. -1 if the tag was already in the database.
    */
   public long insert(String tag) {
     // Don't add queries shorter than 3 characters,
@@ -62,16 +124,66 @@ public class SearchSuggestionDatabase extends SQLiteOpenHelper {
       return -1;
     }
 
+    synchronized (suggestionState.lock) {
+      return insertLocked(tag);
+    }
+  }
+
+  /**
+   * Insert a new search history item into the database and the suggestion trie, if it has been built.
+   *
+   * @param tag Name of the tag to be added into the database.
+   * @return ID of the newly inserted row. -1 if the tag was already in the database.
+   */
+  private long insertLocked(String tag) {
     // Get a writable instance of the database.
     SQLiteDatabase db = getWritableDatabase();
+    final long now = System.currentTimeMillis();
+    SuggestionTrie.Suggestion suggestion = null;
+    long id = -1;
 
-    // Convert the tag into a ContentValues object.
-    ContentValues values = new ContentValues();
-    values.put(COLUMN_NAME, tag);
-    values.put(COLUMN_ICON, RESOURCE_ICON_RECENT_HISTORY);
+    db.beginTransaction();
+    try {
+      // Bump the frequency and recency of the tag, if it is already in the database.
+      SQLiteStatement updateStatement = db.compileStatement(String.format(Locale.US,
+          "UPDATE %s SET %s = %s + 1, %s = ? WHERE %s = ?;",
+          TABLE_NAME, COLUMN_FREQUENCY, COLUMN_FREQUENCY, COLUMN_LAST_USED, COLUMN_NAME));
+      updateStatement.bindLong(1, now);
+      updateStatement.bindString(2, tag);
+      final int updatedRows = updateStatement.executeUpdateDelete();
+      updateStatement.close();
 
-    // Insert the tag into the database.
-    long id = db.insert(TABLE_NAME, null, values);
+      if (updatedRows == 0) {
+        // Convert the tag into a ContentValues object.
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_NAME, tag);
+        values.put(COLUMN_ICON, RESOURCE_ICON_RECENT_HISTORY);
+        values.put(COLUMN_FREQUENCY, 1);
+        values.put(COLUMN_LAST_USED, now);
+
+        // Insert the tag into the database.
+        id = db.insert(TABLE_NAME, null, values);
+        if (id != -1) {
+          suggestion = new SuggestionTrie.Suggestion(id, tag, RESOURCE_ICON_RECENT_HISTORY, 1, now);
+        }
+      } else if (suggestionState.suggestionTrie != null) {
+        // Read back the new ranking of the tag for the suggestion trie. The stored name may differ in case.
+        Cursor c = db.query(TABLE_NAME, new String[]{COLUMN_ID, COLUMN_NAME, COLUMN_ICON, COLUMN_FREQUENCY},
+            COLUMN_NAME + " = ?", new String[]{tag}, null, null, null);
+        if (c.moveToFirst()) {
+          suggestion = new SuggestionTrie.Suggestion(c.getLong(0), c.getString(1), c.getString(2), c.getInt(3), now);
+        }
+        c.close();
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    // Keep the suggestion trie up to date.
+    if (suggestionState.suggestionTrie != null && suggestion != null) {
+      suggestionState.suggestionTrie.put(suggestion);
+    }
 
     // Close the database and return id of the newly created row.
     db.close();
@@ -79,51 +191,546 @@ public class SearchSuggestionDatabase extends SQLiteOpenHelper {
   }
 
   /**
-   * Remove all search history entries from the database. This does not affect the built-in Safebooru.org tag data set.
+   * Remove all search history entries from the database. This does not affect the built-in Safebooru.org tag data set,
+   * but resets its ranking.
    *
    * @return Number of database rows removed.
    */
   public int eraseSearchHistory() {
+    synchronized (suggestionState.lock) {
+      return eraseSearchHistoryLocked();
+    }
+  }
+
+  /**
+   * Remove all search history entries from the database and the suggestion trie, if it has been built.
+   *
+   * @return Number of database rows removed.
+   */
+  private int eraseSearchHistoryLocked() {
     // Get a writable instance of the database.
     SQLiteDatabase db = getWritableDatabase();
 
     // Remove search history entries from the database.
     int rows = db.delete(TABLE_NAME, COLUMN_ICON + " = ?", new String[]{RESOURCE_ICON_RECENT_HISTORY});
+    // Forget which built-in tags were searched for.
+    ContentValues values = new ContentValues();
+    values.put(COLUMN_FREQUENCY, 0);
+    values.put(COLUMN_LAST_USED, 0);
+    db.update(TABLE_NAME, values, null, null);
+    // Keep the suggestion trie up to date.
+    if (suggestionState.suggestionTrie != null) {
+      suggestionState.suggestionTrie.eraseSearchHistory(RESOURCE_ICON_RECENT_HISTORY);
+    }
 
     // Close the database and return the number of affected rows.
     db.close();
     return rows;
   }
 
+  /**
+   * Get suggestions for tags starting with given prefix, ignoring case.
+   * <p/>
+   * The prefix is matched with a range query on the case-insensitive unique index, instead of a LIKE pattern. LIKE is
+   * case-insensitive by default, so SQLite can't use the index for it and has to scan the whole table.
+   *
+   * @param prefix Prefix of the suggested tags. Null to get all suggestions.
+   * @param limit  Maximum number of suggestions.
+   * @return Database cursor with the suggestions, ranked by frequency and recency.
+   */
+  public Cursor getSuggestions(String prefix, int limit) {
+    // Get a read-only instance of the database.
+    SQLiteDatabase db = getReadableDatabase();
+
+    if (prefix == null || prefix.isEmpty()) {
+      return db.query(TABLE_NAME, SUGGESTION_COLUMNS, null, null, null, null, SUGGESTION_ORDER,
+          Integer.toString(limit));
+    }
+    final String upperBound = getPrefixUpperBound(prefix);
+    if (upperBound == null) {
+      return db.query(TABLE_NAME, SUGGESTION_COLUMNS, COLUMN_NAME + " >= ? COLLATE NOCASE",
+          new String[]{prefix}, null, null, SUGGESTION_ORDER, Integer.toString(limit));
+    }
+    return db.query(TABLE_NAME, SUGGESTION_COLUMNS,
+        COLUMN_NAME + " >= ? COLLATE NOCASE AND " + COLUMN_NAME + " < ? COLLATE NOCASE",
+        new String[]{prefix, upperBound}, null, null, SUGGESTION_ORDER, Integer.toString(limit));
+  }
+
+  /**
+   * Get suggestions from the tag vocabulary of a service, for tags starting with given prefix, ignoring case.
+   *
+   * @param serviceId Database row ID of the service in {@link APISettingsDatabase}.
+   * @param prefix    Prefix of the suggested tags.
+   * @param limit     Maximum number of suggestions.
+   * @return Database cursor with the suggestions, with the most used tags first. Empty if the vocabulary of the
+   * service hasn't been fetched yet.
+   */
+  public Cursor getServiceTagSuggestions(long serviceId, String prefix, int limit) {
+    // Get a read-only instance of the database.
+    SQLiteDatabase db = getReadableDatabase();
+    final String[] columns = {COLUMN_ID, COLUMN_TAG_NAME + " AS " + COLUMN_NAME,
+        "'" + RESOURCE_ICON_SERVICE + "' AS " + COLUMN_ICON, COLUMN_POST_COUNT};
+    final String order = COLUMN_POST_COUNT + " DESC";
+
+    if (prefix == null || prefix.isEmpty()) {
+      return db.query(SERVICE_TAGS_TABLE_NAME, columns, COLUMN_SERVICE_ID + " = ?",
+          new String[]{Long.toString(serviceId)}, null, null, order, Integer.toString(limit));
+    }
+    // The name column is declared COLLATE NOCASE, so the range query uses the (service ID, name) index.
+    final String upperBound = getPrefixUpperBound(prefix);
+    if (upperBound == null) {
+      return db.query(SERVICE_TAGS_TABLE_NAME, columns, COLUMN_SERVICE_ID + " = ? AND " + COLUMN_TAG_NAME + " >= ?",
+          new String[]{Long.toString(serviceId), prefix}, null, null, order, Integer.toString(limit));
+    }
+    return db.query(SERVICE_TAGS_TABLE_NAME, columns,
+        COLUMN_SERVICE_ID + " = ? AND " + COLUMN_TAG_NAME + " >= ? AND " + COLUMN_TAG_NAME + " < ?",
+        new String[]{Long.toString(serviceId), prefix, upperBound}, null, null, order, Integer.toString(limit));
+  }
+
+  /**
+   * Add tags fetched from the tag API of a service to its vocabulary, replacing the post counts of tags already in
+   * it.
+   *
+   * @param serviceId Database row ID of the service in {@link APISettingsDatabase}.
+   * @param tags      Tags fetched from the service.
+   */
+  public void putServiceTags(long serviceId, List<ServiceTag> tags) {
+    synchronized (suggestionState.lock) {
+      putServiceTagsLocked(serviceId, tags);
+    }
+  }
+
+  /**
+   * Add tags fetched from the tag API of a service to its vocabulary and to its suggestion trie, if it has been built.
+   *
+   * @param serviceId Database row ID of the service in {@link APISettingsDatabase}.
+   * @param tags      Tags fetched from the service.
+   */
+  private void putServiceTagsLocked(long serviceId, List<ServiceTag> tags) {
+    // Get a writable instance of the database.
+    SQLiteDatabase db = getWritableDatabase();
+    final long[] ids = new long[tags.size()];
+
+    // Insert all tags in a single transaction, reusing the compiled statement.
+    db.beginTransaction();
+    final SQLiteStatement insertStatement = db.compileStatement(String.format(Locale.US,
+        "INSERT OR REPLACE INTO %s (%s, %s, %s, %s) VALUES (?, ?, ?, ?);",
+        SERVICE_TAGS_TABLE_NAME, COLUMN_SERVICE_ID, COLUMN_TAG_ID, COLUMN_TAG_NAME, COLUMN_POST_COUNT));
+    try {
+      insertStatement.bindLong(1, serviceId);
+      for (int i = 0; i < tags.size(); i++) {
+        final ServiceTag tag = tags.get(i);
+        insertStatement.bindLong(2, tag.id);
+        insertStatement.bindString(3, tag.name);
+        insertStatement.bindLong(4, tag.postCount);
+        ids[i] = insertStatement.executeInsert();
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      insertStatement.close();
+      db.endTransaction();
+    }
+
+    // Keep the suggestion trie of the service up to date. Replaced tags get a new row ID.
+    final SuggestionTrie trie = suggestionState.serviceTagTries.get(serviceId);
+    if (trie != null) {
+      for (int i = 0; i < tags.size(); i++) {
+        trie.put(createServiceTagSuggestion(ids[i], tags.get(i).name, tags.get(i).postCount));
+      }
+    }
+  }
+
+  /**
+   * Get the state of the tag vocabulary of a service.
+   *
+   * @param serviceId Database row ID of the service in {@link APISettingsDatabase}.
+   * @return State of the vocabulary. Null if it has never been fetched.
+   */
+  public VocabularyState getVocabularyState(long serviceId) {
+    // Get a read-only instance of the database.
+    SQLiteDatabase db = getReadableDatabase();
+    Cursor c = db.query(VOCABULARY_STATE_TABLE_NAME,
+        new String[]{COLUMN_MAX_TAG_ID, COLUMN_REFRESHED_AT, COLUMN_FULL_REFRESHED_AT},
+        COLUMN_SERVICE_ID + " = ?", new String[]{Long.toString(serviceId)}, null, null, null);
+    final VocabularyState state = c.moveToFirst() ? new VocabularyState(c.getLong(0), c.getLong(1), c.getLong(2)) : null;
+    c.close();
+    return state;
+  }
+
+  /**
+   * Record that the tag vocabulary of a service has been refreshed.
+   *
+   * @param serviceId Database row ID of the service in {@link APISettingsDatabase}.
+   * @param state     New state of the vocabulary.
+   */
+  public void setVocabularyState(long serviceId, VocabularyState state) {
+    // Get a writable instance of the database.
+    SQLiteDatabase db = getWritableDatabase();
+    ContentValues values = new ContentValues();
+    values.put(COLUMN_SERVICE_ID, serviceId);
+    values.put(COLUMN_MAX_TAG_ID, state.maxTagId);
+    values.put(COLUMN_REFRESHED_AT, state.refreshedAt);
+    values.put(COLUMN_FULL_REFRESHED_AT, state.fullRefreshedAt);
+    db.insertWithOnConflict(VOCABULARY_STATE_TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+  }
+
+  /**
+   * Remove the tag vocabulary of a service, e.g. when the service is removed or its endpoint changes.
+   *
+   * @param serviceId Database row ID of the service in {@link APISettingsDatabase}.
+   * @return Number of tags removed.
+   */
+  public int deleteServiceTags(long serviceId) {
+    synchronized (suggestionState.lock) {
+      // Get a writable instance of the database.
+      SQLiteDatabase db = getWritableDatabase();
+      final String[] whereArgs = {Long.toString(serviceId)};
+
+      db.beginTransaction();
+      try {
+        final int rows = db.delete(SERVICE_TAGS_TABLE_NAME, COLUMN_SERVICE_ID + " = ?", whereArgs);
+        db.delete(VOCABULARY_STATE_TABLE_NAME, COLUMN_SERVICE_ID + " = ?", whereArgs);
+        db.setTransactionSuccessful();
+        // The suggestion trie of the service is built again, once the vocabulary is fetched again.
+        suggestionState.serviceTagTries.remove(serviceId);
+        suggestionState.requestedServiceTagTries.remove(serviceId);
+        return rows;
+      } finally {
+        db.endTransaction();
+      }
+    }
+  }
+
+  /**
+   * Get the in-memory suggestion trie, if it has been built. The first call starts building it in the background,
+   * so that suggestions can be served from memory by the time the user types the next character.
+   *
+   * @return Suggestion trie, or null if it isn't built yet. Use {@link #getSuggestions(String, int)} in the meantime.
+   */
+  public SuggestionTrie getSuggestionTrie() {
+    if (suggestionState.suggestionTrie == null
+        && suggestionState.isSuggestionTrieRequested.compareAndSet(false, true)) {
+      new Thread(new Runnable() {
+        @Override
+        public void run() {
+          Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+          buildSuggestionTrie();
+        }
+      }, "SuggestionTrie").start();
+    }
+    return suggestionState.suggestionTrie;
+  }
+
+  /**
+   * Build the in-memory suggestion trie from the database, if it hasn't been built yet. Performs disk I/O and should
+   * not be called from the UI thread.
+   *
+   * @return Suggestion trie.
+   */
+  public SuggestionTrie buildSuggestionTrie() {
+    synchronized (suggestionState.lock) {
+      // Get a read-only instance of the database. Creating the database discards the trie of a previous copy.
+      SQLiteDatabase db = getReadableDatabase();
+      if (suggestionState.suggestionTrie != null) {
+        return suggestionState.suggestionTrie;
+      }
+      final long startTime = Timeline.beginSection("SearchSuggestionDatabase.buildSuggestionTrie");
+      try {
+        SuggestionTrie trie = new SuggestionTrie();
+
+        // Copy all suggestions into the trie.
+        Cursor c = db.query(TABLE_NAME, new String[]{COLUMN_ID, COLUMN_NAME, COLUMN_ICON, COLUMN_FREQUENCY,
+            COLUMN_LAST_USED}, null, null, null, null, null);
+        while (c.moveToNext()) {
+          trie.put(new SuggestionTrie.Suggestion(c.getLong(0), c.getString(1), c.getString(2), c.getInt(3),
+              c.getLong(4)));
+        }
+        c.close();
+
+        suggestionState.suggestionTrie = trie;
+        return trie;
+      } finally {
+        Timeline.endSection("SearchSuggestionDatabase.buildSuggestionTrie", startTime);
+      }
+    }
+  }
+
+  /**
+   * Get the in-memory suggestion trie of the tag vocabulary of a service, if it has been built. The first call starts
+   * building it in the background, as in {@link #getSuggestionTrie()}.
+   *
+   * @param serviceId Database row ID of the service in {@link APISettingsDatabase}.
+   * @return Suggestion trie, or null if it isn't built yet. Use {@link #getServiceTagSuggestions(long, String, int)}
+   * in the meantime.
+   */
+  public SuggestionTrie getServiceTagTrie(final long serviceId) {
+    final SuggestionTrie trie = suggestionState.serviceTagTries.get(serviceId);
+    if (trie == null && suggestionState.requestedServiceTagTries.add(serviceId)) {
+      new Thread(new Runnable() {
+        @Override
+        public void run() {
+          Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+          buildServiceTagTrie(serviceId);
+        }
+      }, "ServiceTagTrie").start();
+    }
+    return trie;
+  }
+
+  /**
+   * Build the in-memory suggestion trie of the tag vocabulary of a service, if it hasn't been built yet. Performs disk
+   * I/O and should not be called from the UI thread.
+   *
+   * @param serviceId Database row ID of the service in {@link APISettingsDatabase}.
+   * @return Suggestion trie. Empty if the vocabulary of the service hasn't been fetched yet.
+   */
+  public SuggestionTrie buildServiceTagTrie(long serviceId) {
+    synchronized (suggestionState.lock) {
+      // Get a read-only instance of the database. Creating the database discards the tries of a previous copy.
+      SQLiteDatabase db = getReadableDatabase();
+      SuggestionTrie trie = suggestionState.serviceTagTries.get(serviceId);
+      if (trie != null) {
+        return trie;
+      }
+      final long startTime = Timeline.beginSection("SearchSuggestionDatabase.buildServiceTagTrie");
+      try {
+        trie = new SuggestionTrie();
+
+        // Copy the whole vocabulary of the service into the trie.
+        Cursor c = db.query(SERVICE_TAGS_TABLE_NAME, new String[]{COLUMN_ID, COLUMN_TAG_NAME, COLUMN_POST_COUNT},
+            COLUMN_SERVICE_ID + " = ?", new String[]{Long.toString(serviceId)}, null, null, null);
+        while (c.moveToNext()) {
+          trie.put(createServiceTagSuggestion(c.getLong(0), c.getString(1), c.getLong(2)));
+        }
+        c.close();
+
+        suggestionState.serviceTagTries.put(serviceId, trie);
+        return trie;
+      } finally {
+        Timeline.endSection("SearchSuggestionDatabase.buildServiceTagTrie", startTime);
+      }
+    }
+  }
+
+  /**
+   * Create the suggestion trie entry of a service tag. Service tags are ranked by their post count, as in
+   * {@link #getServiceTagSuggestions(long, String, int)}.
+   *
+   * @param id        Database row ID of the tag.
+   * @param name      Tag name.
+   * @param postCount Number of posts with the tag.
+   * @return Suggestion.
+   */
+  private static SuggestionTrie.Suggestion createServiceTagSuggestion(long id, String name, long postCount) {
+    return new SuggestionTrie.Suggestion(id, name, RESOURCE_ICON_SERVICE, (int) Math.min(postCount, Integer.MAX_VALUE),
+        0);
+  }
+
+  /**
+   * Get the smallest string greater than all strings starting with given prefix, in the NOCASE collation order.
+   *
+   * @param prefix Prefix.
+   * @return Exclusive upper bound of strings starting with the prefix. Null if there is none.
+   */
+  private static String getPrefixUpperBound(String prefix) {
+    // Drop trailing characters that can't be incremented.
+    int end = prefix.length();
+    while (end > 0 && prefix.charAt(end - 1) == Character.MAX_VALUE) {
+      end--;
+    }
+    if (end == 0) {
+      return null;
+    }
+
+    // NOCASE folds upper case ASCII letters (and only those) to lower case, so the bound is computed on the folded
+    // prefix: "Z" is followed by "{", not "[".
+    final char[] bound = prefix.substring(0, end).toCharArray();
+    for (int i = 0; i < bound.length; i++) {
+      if (bound[i] >= 'A' && bound[i] <= 'Z') {
+        bound[i] += 'a' - 'A';
+      }
+    }
+    char last = (char) (bound[end - 1] + 1);
+    // '@' is followed by '[' rather than 'A'.
+    if (last >= 'A' && last <= 'Z') {
+      last = '[';
+    }
+    bound[end - 1] = last;
+    return new String(bound);
+  }
 
   @Override
   public void onCreate(SQLiteDatabase db) {
+    final long startTime = Timeline.beginSection("SearchSuggestionDatabase.onCreate");
+    try {
+      createDatabase(db);
+    } finally {
+      Timeline.endSection("SearchSuggestionDatabase.onCreate", startTime);
+    }
+  }
+
+  /**
+   * Create the table schema and pre-populate it with the built-in tag data set.
+   *
+   * @param db Database being created.
+   */
+  private void createDatabase(SQLiteDatabase db) {
+    // Tries built from a previous copy of the database are out of date.
+    suggestionState.reset();
+
     // Execute query to create the table schema.
-    db.execSQL(String.format(Locale.US, "CREATE TABLE %s (%s INTEGER PRIMARY KEY AUTOINCREMENT, %s TEXT NOT NULL UNIQUE ON CONFLICT IGNORE, %s TEXT);",
-        TABLE_NAME, COLUMN_ID, COLUMN_NAME, COLUMN_ICON));
+    createSuggestionTable(db, TABLE_NAME);
+    createServiceTagTables(db);
 
+    // Compile the insert statement once and reuse it for every line. onCreate runs inside the transaction started by
+    // SQLiteOpenHelper, so all rows are committed together.
+    final SQLiteStatement insertStatement = db.compileStatement(String.format(Locale.US,
+        "INSERT INTO %s (%s, %s) VALUES (?, ?);", TABLE_NAME, COLUMN_NAME, COLUMN_ICON));
     try {
       // Pre-populate the database with the Safebooru.org Top 1000 tags data set.
       // Open the file containing the tag data set from app assets.
-      BufferedReader in = new BufferedReader(new InputStreamReader(context.getAssets().open("tags.txt")));
+      BufferedReader in = new BufferedReader(new InputStreamReader(context.getAssets().open("tags.txt"), "UTF-8"));
       String line;
 
       // Insert each line into the database.
+      insertStatement.bindString(2, RESOURCE_ICON_BUILT_IN);
       while ((line = in.readLine()) != null) {
-        db.execSQL(String.format(Locale.US, "INSERT INTO %s (%s, %s) VALUES (?, ?);",
-                TABLE_NAME, COLUMN_NAME, COLUMN_ICON),
-            new String[]{line, RESOURCE_ICON_BUILT_IN});
+        insertStatement.bindString(1, line);
+        insertStatement.executeInsert();
       }
 
       // Close the file.
       in.close();
     } catch (IOException ignored) {
       // Too bad :(
+    } finally {
+      insertStatement.close();
     }
   }
 
+  /**
+   * Create the suggestion table. Declaring the name COLLATE NOCASE makes tags differing only in case the same
+   * suggestion, and lets prefix searches use the unique index.
+   *
+   * @param db        Database.
+   * @param tableName Name of the table.
+   */
+  private static void createSuggestionTable(SQLiteDatabase db, String tableName) {
+    db.execSQL(String.format(Locale.US, "CREATE TABLE %s (%s INTEGER PRIMARY KEY AUTOINCREMENT, %s TEXT NOT NULL COLLATE NOCASE UNIQUE ON CONFLICT IGNORE, %s TEXT, %s INTEGER NOT NULL DEFAULT 0, %s INTEGER NOT NULL DEFAULT 0);",
+        tableName, COLUMN_ID, COLUMN_NAME, COLUMN_ICON, COLUMN_FREQUENCY, COLUMN_LAST_USED));
+  }
+
+  /**
+   * Create the tables holding the tag vocabulary of each service.
+   *
+   * @param db Database.
+   */
+  private static void createServiceTagTables(SQLiteDatabase db) {
+    // Declaring the name COLLATE NOCASE makes the unique index usable for case-insensitive prefix searches.
+    db.execSQL(String.format(Locale.US, "CREATE TABLE %s (%s INTEGER PRIMARY KEY, %s INTEGER NOT NULL, %s INTEGER NOT NULL, %s TEXT NOT NULL COLLATE NOCASE, %s INTEGER NOT NULL, UNIQUE (%s, %s));",
+        SERVICE_TAGS_TABLE_NAME, COLUMN_ID, COLUMN_SERVICE_ID, COLUMN_TAG_ID, COLUMN_TAG_NAME, COLUMN_POST_COUNT,
+        COLUMN_SERVICE_ID, COLUMN_TAG_NAME));
+    db.execSQL(String.format(Locale.US, "CREATE TABLE %s (%s INTEGER PRIMARY KEY, %s INTEGER NOT NULL, %s INTEGER NOT NULL, %s INTEGER NOT NULL);",
+        VOCABULARY_STATE_TABLE_NAME, COLUMN_SERVICE_ID, COLUMN_MAX_TAG_ID, COLUMN_REFRESHED_AT, COLUMN_FULL_REFRESHED_AT));
+  }
+
   @Override
   public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-    // Do nothing.
+    if (oldVersion < 2) {
+      // Add ranking columns and the index used for prefix searches.
+      db.execSQL(String.format(Locale.US, "ALTER TABLE %s ADD COLUMN %s INTEGER NOT NULL DEFAULT 0;",
+          TABLE_NAME, COLUMN_FREQUENCY));
+      db.execSQL(String.format(Locale.US, "ALTER TABLE %s ADD COLUMN %s INTEGER NOT NULL DEFAULT 0;",
+          TABLE_NAME, COLUMN_LAST_USED));
+      // The time of existing history entries is unknown, but row IDs keep them in the order they were added.
+      db.execSQL(String.format(Locale.US, "UPDATE %s SET %s = 1, %s = %s WHERE %s = ?;",
+          TABLE_NAME, COLUMN_FREQUENCY, COLUMN_LAST_USED, COLUMN_ID, COLUMN_ICON), new String[]{RESOURCE_ICON_RECENT_HISTORY});
+    }
+    if (oldVersion < 3) {
+      createServiceTagTables(db);
+    }
+    if (oldVersion < 4) {
+      // Rebuild the suggestion table with a case-insensitive name, merging tags that only differ in case. A merged tag
+      // stays built-in if any of its copies was. Dropping the old table also drops the separate NOCASE index it had.
+      final String newTableName = TABLE_NAME + "_new";
+      createSuggestionTable(db, newTableName);
+      db.execSQL(String.format(Locale.US, "INSERT INTO %s (%s, %s, %s, %s, %s) SELECT MIN(%s), %s, CASE WHEN MAX(%s = ?) THEN ? ELSE MIN(%s) END, SUM(%s), MAX(%s) FROM %s GROUP BY %s COLLATE NOCASE;",
+          newTableName, COLUMN_ID, COLUMN_NAME, COLUMN_ICON, COLUMN_FREQUENCY, COLUMN_LAST_USED,
+          COLUMN_ID, COLUMN_NAME, COLUMN_ICON, COLUMN_ICON, COLUMN_FREQUENCY, COLUMN_LAST_USED, TABLE_NAME, COLUMN_NAME),
+          new String[]{RESOURCE_ICON_BUILT_IN, RESOURCE_ICON_BUILT_IN});
+      db.execSQL(String.format(Locale.US, "DROP TABLE %s;", TABLE_NAME));
+      db.execSQL(String.format(Locale.US, "ALTER TABLE %s RENAME TO %s;", newTableName, TABLE_NAME));
+      // The suggestion trie may hold the merged duplicates.
+      suggestionState.reset();
+    }
+  }
+
+  /** In-memory suggestions of a database file. */
+  private static class SuggestionState {
+    /** Lock held while the suggestion trie is built and while suggestions are changed, so that no change is missed. */
+    private final Object lock = new Object();
+    /** Set once the suggestion trie has started building in the background. */
+    private final AtomicBoolean isSuggestionTrieRequested = new AtomicBoolean();
+    /** In-memory copy of all suggestions. Null until it has been built. */
+    private volatile SuggestionTrie suggestionTrie;
+    /** In-memory copy of the tag vocabulary of each service, keyed by the service ID. */
+    private final Map<Long, SuggestionTrie> serviceTagTries = new ConcurrentHashMap<>();
+    /** IDs of the services whose suggestion trie has started building in the background. */
+    private final Set<Long> requestedServiceTagTries =
+        Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+    /** Discard all tries, e.g. when the database is created again. */
+    private void reset() {
+      suggestionTrie = null;
+      isSuggestionTrieRequested.set(false);
+      serviceTagTries.clear();
+      requestedServiceTagTries.clear();
+    }
+  }
+
+  /** Tag fetched from the tag API of a service. */
+  public static class ServiceTag {
+    /** ID of the tag on the service. */
+    public final long id;
+    /** Tag name. */
+    public final String name;
+    /** Number of posts with the tag. */
+    public final long postCount;
+
+    /**
+     * Create a new service tag.
+     *
+     * @param id        ID of the tag on the service.
+     * @param name      Tag name.
+     * @param postCount Number of posts with the tag.
+     */
+    public ServiceTag(long id, String name, long postCount) {
+      this.id = id;
+      this.name = name;
+      this.postCount = postCount;
+    }
+  }
+
+  /** State of the tag vocabulary of a service, used to refresh it incrementally. */
+  public static class VocabularyState {
+    /** Highest tag ID fetched from the service. New tags are fetched after it. */
+    public final long maxTagId;
+    /** Time of the last refresh, in milliseconds since the epoch. */
+    public final long refreshedAt;
+    /** Time the most popular tags were last fetched, in milliseconds since the epoch. */
+    public final long fullRefreshedAt;
+
+    /**
+     * Create a new vocabulary state.
+     *
+     * @param maxTagId        Highest tag ID fetched from the service.
+     * @param refreshedAt     Time of the last refresh, in milliseconds since the epoch.
+     * @param fullRefreshedAt Time the most popular tags were last fetched, in milliseconds since the epoch.
+     */
+    public VocabularyState(long maxTagId, long refreshedAt, long fullRefreshedAt) {
+      this.maxTagId = maxTagId;
+      this.refreshedAt = refreshedAt;
+      this.fullRefreshedAt = fullRefreshedAt;
+    }
   }
 }
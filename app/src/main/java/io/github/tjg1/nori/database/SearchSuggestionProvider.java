@@ -11,22 +11,29 @@ import android.content.ContentProvider;
 import android.content.ContentValues;
 import android.content.UriMatcher;
 import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
+import android.database.MatrixCursor;
 import android.net.Uri;
 import android.support.annotation.NonNull;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
-
-import static io.github.tjg1.nori.database.SearchSuggestionDatabase.COLUMN_ICON;
-import static io.github.tjg1.nori.database.SearchSuggestionDatabase.COLUMN_ID;
-import static io.github.tjg1.nori.database.SearchSuggestionDatabase.COLUMN_NAME;
-import static io.github.tjg1.nori.database.SearchSuggestionDatabase.TABLE_NAME;
+import java.util.Set;
 
 public class SearchSuggestionProvider extends ContentProvider {
   /** Content provider authority. (Unique ID) */
   public static String AUTHORITY = "io.github.tjg1.nori.SearchSuggestionProvider";
-  /** Read-only instance of the SQLite database. */
-  private SQLiteDatabase db;
+  /** Maximum number of suggestions returned, if the query doesn't set a limit. */
+  private static final int DEFAULT_SUGGESTION_LIMIT = 50;
+  /** Columns of the returned suggestion cursors. */
+  private static final String[] SUGGESTION_COLUMNS = {SearchSuggestionDatabase.COLUMN_ID,
+      SearchSuggestionDatabase.COLUMN_NAME, SearchSuggestionDatabase.COLUMN_ICON, SearchManager.SUGGEST_COLUMN_QUERY};
+  /** Database row ID of the selected service, whose tag vocabulary is suggested. -1 if no service is selected. */
+  private static volatile long serviceId = -1L;
+  /** Helper used to access the SQLite database. The database is opened when suggestions are first queried. */
+  private SearchSuggestionDatabase dbHelper;
 
   /**
    * Uri path ID for queried suggestions data.
@@ -43,34 +50,119 @@ public class SearchSuggestionProvider extends ContentProvider {
   /** URI parser used to match content provider paths. */
   private static final UriMatcher sURIMatcher;
 
-  /** Columns to include in queries to the underlying SQLite database. */
-  private static final String[] COLUMNS = {
-      COLUMN_ID,
-      COLUMN_NAME,
-      COLUMN_ICON
-  };
-
   @Override
   public boolean onCreate() {
-    // Open the search suggestion SQLite database in read-only mode.
-    SearchSuggestionDatabase dbHelper = new SearchSuggestionDatabase(getContext());
-    db = dbHelper.getReadableDatabase();
+    // Content providers are created on the main thread before the app is started, so the database isn't opened
+    // here. On first run, opening it creates the database and imports the built-in tags.
+    dbHelper = new SearchSuggestionDatabase(getContext());
 
     return true;
   }
 
   /**
-   * Get tag suggestions from the underlying SQLite database.
+   * Set the service whose tag vocabulary is suggested.
+   *
+   * @param serviceId Database row ID of the service in {@link APISettingsDatabase}. -1 if no single service is
+   *                  selected.
+   */
+  public static void setServiceId(long serviceId) {
+    SearchSuggestionProvider.serviceId = serviceId;
+  }
+
+  /**
+   * Get tag suggestions for the last tag in the query.
+   * <p/>
+   * The search history and the tag vocabulary of the selected service are served from in-memory
+   * {@link SuggestionTrie}s, so that they keep up with typing. The database is only queried while the tries are being
+   * built. Once the tag vocabulary of the selected service has been fetched, its tags are suggested instead of the
+   * built-in Safebooru tags.
    *
-   * @param query Query the database for tags starting with this substring.
-   * @return Database cursor with returned suggestion.
+   * @param query Query typed by the user. Tags are suggested for the last space-separated tag in the query.
+   * @param limit Maximum number of suggestions.
+   * @return Cursor with the suggested tags, and the queries with the last tag replaced by each of them.
    */
-  private Cursor getSuggestions(String query) {
-    // Query the database for search suggestions.
-    if (query == null) {
-      return db.query(TABLE_NAME, COLUMNS, null, null, null, null, COLUMN_ID + " DESC");
+  private Cursor getSuggestions(String query, int limit) {
+    // Split the query into the tags already typed and the prefix of the last tag.
+    final int lastTagStart = query != null ? query.lastIndexOf(' ') + 1 : 0;
+    final String precedingTags = query != null ? query.substring(0, lastTagStart) : "";
+    final String prefix = query != null ? query.substring(lastTagStart) : "";
+    final MatrixCursor cursor = new MatrixCursor(SUGGESTION_COLUMNS);
+    final Set<String> names = new HashSet<>();
+
+    // Called from a background thread, so the database is opened here on the first query.
+    final List<SuggestionTrie.Suggestion> serviceTags = getServiceTagSuggestions(serviceId, prefix, limit);
+    final boolean hasServiceTags = !serviceTags.isEmpty();
+
+    // Suggest tags searched for before first. Built-in tags are only suggested if there are no service tags.
+    final SuggestionTrie suggestionTrie = dbHelper.getSuggestionTrie();
+    if (suggestionTrie != null) {
+      final List<SuggestionTrie.Suggestion> suggestions = suggestionTrie.getSuggestions(prefix, limit);
+      for (SuggestionTrie.Suggestion suggestion : suggestions) {
+        if (!hasServiceTags || suggestion.frequency > 0) {
+          addSuggestion(cursor, names, suggestion.id, suggestion.name, suggestion.icon, precedingTags);
+        }
+      }
     } else {
-      return db.query(TABLE_NAME, COLUMNS, COLUMN_NAME + " LIKE ?", new String[]{query + "%"}, null, null, COLUMN_ID + " DESC");
+      final Cursor c = dbHelper.getSuggestions(prefix, limit);
+      while (c.moveToNext()) {
+        if (!hasServiceTags || c.getInt(3) > 0) {
+          addSuggestion(cursor, names, c.getLong(0), c.getString(1), c.getString(2), precedingTags);
+        }
+      }
+      c.close();
+    }
+
+    // Fill the remaining suggestions with the most used tags of the selected service.
+    for (int i = 0; i < serviceTags.size() && cursor.getCount() < limit; i++) {
+      // Use negative row IDs, so they can't collide with the IDs of the other suggestions.
+      final SuggestionTrie.Suggestion suggestion = serviceTags.get(i);
+      addSuggestion(cursor, names, -suggestion.id, suggestion.name, suggestion.icon, precedingTags);
+    }
+    return cursor;
+  }
+
+  /**
+   * Get suggestions from the tag vocabulary of a service, for tags starting with given prefix.
+   *
+   * @param serviceId Database row ID of the service in {@link APISettingsDatabase}. -1 if no service is selected.
+   * @param prefix    Prefix of the suggested tags.
+   * @param limit     Maximum number of suggestions.
+   * @return Suggestions, with the most used tags first. Empty if no service is selected or its vocabulary hasn't been
+   * fetched yet.
+   */
+  private List<SuggestionTrie.Suggestion> getServiceTagSuggestions(long serviceId, String prefix, int limit) {
+    if (serviceId == -1L) {
+      return Collections.emptyList();
+    }
+    final SuggestionTrie serviceTagTrie = dbHelper.getServiceTagTrie(serviceId);
+    if (serviceTagTrie != null) {
+      return serviceTagTrie.getSuggestions(prefix, limit);
+    }
+
+    // Query the database while the trie is being built.
+    final Cursor c = dbHelper.getServiceTagSuggestions(serviceId, prefix, limit);
+    final List<SuggestionTrie.Suggestion> suggestions = new ArrayList<>(c.getCount());
+    while (c.moveToNext()) {
+      suggestions.add(new SuggestionTrie.Suggestion(c.getLong(0), c.getString(1), c.getString(2), 0, 0));
+    }
+    c.close();
+    return suggestions;
+  }
+
+  /**
+   * Add a suggestion to the cursor, unless a tag with the same name has already been suggested.
+   *
+   * @param cursor        Cursor with the suggestions.
+   * @param names         Lower case names of the tags already suggested.
+   * @param id            Row ID of the suggestion.
+   * @param name          Tag name.
+   * @param icon          Resource ID of the icon shown next to the suggestion.
+   * @param precedingTags Tags typed before the last tag in the query, followed by a space.
+   */
+  private static void addSuggestion(MatrixCursor cursor, Set<String> names, long id, String name, String icon,
+                                    String precedingTags) {
+    if (names.add(name.toLowerCase(Locale.US))) {
+      cursor.addRow(new Object[]{id, name, icon, precedingTags + name});
     }
   }
 
@@ -83,7 +175,8 @@ public class SearchSuggestionProvider extends ContentProvider {
         if (uri.getPathSegments().size() > 1) {
           query = uri.getLastPathSegment().toLowerCase(Locale.US);
         }
-        return getSuggestions(query);
+        String limit = uri.getQueryParameter(SearchManager.SUGGEST_PARAMETER_LIMIT);
+        return getSuggestions(query, limit != null ? Integer.parseInt(limit) : DEFAULT_SUGGESTION_LIMIT);
       case SHORTCUT_REFRESH:
         // This is not implemented since the SUGGEST_COLUMN_SHORTCUT_ID column is not defined.
         // It's only useful when providing suggestions for the Quick Search Box (search from the launch screen).
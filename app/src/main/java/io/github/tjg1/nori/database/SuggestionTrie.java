@@ -0,0 +1,314 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.database;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+
+/**
+ * In-memory index of the search suggestions, used to suggest tags without querying SQLite on every keystroke.
+ * <p/>
+ * Suggestions are stored in a compressed (radix) trie keyed by their lower case name: chains of nodes with a single
+ * child are merged into a single edge labelled with a substring of the name. Finding the suggestions starting with a
+ * prefix walks down one edge per shared substring, then collects the best ranked suggestions below it.
+ * <p/>
+ * All methods are thread-safe.
+ */
+public class SuggestionTrie {
+  /** Orders suggestions from the best to the worst ranked, as in {@link SearchSuggestionDatabase}. */
+  private static final Comparator<Suggestion> RANKING = new Comparator<Suggestion>() {
+    @Override
+    public int compare(Suggestion lhs, Suggestion rhs) {
+      if (lhs.frequency != rhs.frequency) {
+        return lhs.frequency > rhs.frequency ? -1 : 1;
+      }
+      if (lhs.lastUsed != rhs.lastUsed) {
+        return lhs.lastUsed > rhs.lastUsed ? -1 : 1;
+      }
+      return lhs.id < rhs.id ? -1 : (lhs.id == rhs.id ? 0 : 1);
+    }
+  };
+  /** Root node, labelled with the empty string. */
+  private final Node root = new Node("");
+  /** Number of suggestions in the trie. */
+  private int size = 0;
+
+  /**
+   * Add a suggestion, replacing the suggestion with the same name, if any.
+   *
+   * @param suggestion Suggestion.
+   */
+  public synchronized void put(@NonNull Suggestion suggestion) {
+    final String key = suggestion.name.toLowerCase(Locale.US);
+    Node node = root;
+    int position = 0;
+
+    // Walk down the trie, splitting the edge where the key diverges from its label.
+    while (position < key.length()) {
+      final Node child = node.getChild(key.charAt(position));
+      if (child == null) {
+        final Node leaf = new Node(key.substring(position));
+        node.addChild(leaf);
+        node = leaf;
+        break;
+      }
+      final int commonLength = getCommonPrefixLength(child.label, key, position);
+      if (commonLength < child.label.length()) {
+        final Node split = new Node(child.label.substring(0, commonLength));
+        node.replaceChild(split);
+        child.label = child.label.substring(commonLength);
+        split.addChild(child);
+      }
+      node = node.getChild(key.charAt(position));
+      position += commonLength;
+    }
+
+    // Names differing only in case share the node.
+    if (node.suggestions == null) {
+      node.suggestions = new ArrayList<>(1);
+    }
+    for (int i = 0; i < node.suggestions.size(); i++) {
+      if (node.suggestions.get(i).name.equals(suggestion.name)) {
+        node.suggestions.set(i, suggestion);
+        return;
+      }
+    }
+    node.suggestions.add(suggestion);
+    size++;
+  }
+
+  /**
+   * Get the best ranked suggestions starting with a prefix, ignoring case.
+   *
+   * @param prefix Prefix. Empty to get the best ranked suggestions.
+   * @param limit  Maximum number of suggestions.
+   * @return Suggestions, from the best to the worst ranked.
+   */
+  @NonNull
+  public synchronized List<Suggestion> getSuggestions(@NonNull String prefix, int limit) {
+    final String key = prefix.toLowerCase(Locale.US);
+    Node node = root;
+    int position = 0;
+
+    // Find the node below which all keys start with the prefix. The prefix may end in the middle of its label.
+    while (position < key.length()) {
+      node = node.getChild(key.charAt(position));
+      if (node == null) {
+        return Collections.emptyList();
+      }
+      final int length = Math.min(node.label.length(), key.length() - position);
+      if (!node.label.regionMatches(0, key, position, length)) {
+        return Collections.emptyList();
+      }
+      position += length;
+    }
+
+    // Keep the best ranked suggestions in a heap with the worst of them on top.
+    final PriorityQueue<Suggestion> best = new PriorityQueue<>(Math.max(1, limit), Collections.reverseOrder(RANKING));
+    collect(node, best, limit);
+    final Suggestion[] suggestions = best.toArray(new Suggestion[best.size()]);
+    Arrays.sort(suggestions, RANKING);
+    return Arrays.asList(suggestions);
+  }
+
+  /**
+   * Remove the suggestions with given icon and reset the ranking of the others, as
+   * {@link SearchSuggestionDatabase#eraseSearchHistory()} does in the database.
+   *
+   * @param historyIcon Icon of search history suggestions.
+   */
+  public synchronized void eraseSearchHistory(@NonNull String historyIcon) {
+    eraseSearchHistory(root, historyIcon);
+  }
+
+  /** @return Number of suggestions in the trie. */
+  public synchronized int size() {
+    return size;
+  }
+
+  /**
+   * Collect the best ranked suggestions below a node.
+   *
+   * @param node  Node.
+   * @param best  Heap of the best ranked suggestions found so far, with the worst of them on top.
+   * @param limit Maximum number of suggestions in the heap.
+   */
+  private static void collect(Node node, PriorityQueue<Suggestion> best, int limit) {
+    if (node.suggestions != null) {
+      for (Suggestion suggestion : node.suggestions) {
+        if (best.size() < limit) {
+          best.add(suggestion);
+        } else if (limit > 0 && RANKING.compare(suggestion, best.peek()) < 0) {
+          best.poll();
+          best.add(suggestion);
+        }
+      }
+    }
+    for (int i = 0; i < node.childCount; i++) {
+      collect(node.children[i], best, limit);
+    }
+  }
+
+  /**
+   * Remove search history suggestions below a node and prune the nodes left empty.
+   *
+   * @param node        Node.
+   * @param historyIcon Icon of search history suggestions.
+   * @return True if the node has no suggestions and no children left.
+   */
+  private boolean eraseSearchHistory(Node node, String historyIcon) {
+    if (node.suggestions != null) {
+      for (int i = node.suggestions.size() - 1; i >= 0; i--) {
+        final Suggestion suggestion = node.suggestions.get(i);
+        if (historyIcon.equals(suggestion.icon)) {
+          node.suggestions.remove(i);
+          size--;
+        } else if (suggestion.frequency != 0 || suggestion.lastUsed != 0) {
+          node.suggestions.set(i, new Suggestion(suggestion.id, suggestion.name, suggestion.icon, 0, 0));
+        }
+      }
+      if (node.suggestions.isEmpty()) {
+        node.suggestions = null;
+      }
+    }
+    for (int i = node.childCount - 1; i >= 0; i--) {
+      if (eraseSearchHistory(node.children[i], historyIcon)) {
+        node.removeChild(i);
+      }
+    }
+    return node.suggestions == null && node.childCount == 0;
+  }
+
+  /**
+   * Get the length of the common prefix of an edge label and the rest of a key.
+   *
+   * @param label    Edge label.
+   * @param key      Key.
+   * @param position Position in the key the label starts at.
+   * @return Number of leading characters shared by the label and the key.
+   */
+  private static int getCommonPrefixLength(String label, String key, int position) {
+    final int maxLength = Math.min(label.length(), key.length() - position);
+    int length = 0;
+    while (length < maxLength && label.charAt(length) == key.charAt(position + length)) {
+      length++;
+    }
+    return length;
+  }
+
+  /** Suggestion stored in the trie. Immutable. */
+  public static class Suggestion {
+    /** Database row ID. */
+    public final long id;
+    /** Tag name, as shown to the user. */
+    public final String name;
+    /** Resource ID of the icon shown next to the suggestion. */
+    public final String icon;
+    /** Number of times the suggestion was searched for. */
+    public final int frequency;
+    /** Time the suggestion was last searched for, in milliseconds since the epoch. 0 if never searched. */
+    public final long lastUsed;
+
+    /**
+     * Create a new suggestion.
+     *
+     * @param id        Database row ID.
+     * @param name      Tag name, as shown to the user.
+     * @param icon      Resource ID of the icon shown next to the suggestion.
+     * @param frequency Number of times the suggestion was searched for.
+     * @param lastUsed  Time the suggestion was last searched for, in milliseconds since the epoch.
+     */
+    public Suggestion(long id, @NonNull String name, String icon, int frequency, long lastUsed) {
+      this.id = id;
+      this.name = name;
+      this.icon = icon;
+      this.frequency = frequency;
+      this.lastUsed = lastUsed;
+    }
+  }
+
+  /** Trie node. Children are kept in an array, as most nodes only have a few. */
+  private static class Node {
+    /** Label of the edge leading to this node. Never empty, except for the root. */
+    private String label;
+    /** Child nodes, each starting with a different character. */
+    private Node[] children;
+    /** Number of child nodes in {@link #children}. */
+    private int childCount;
+    /** Suggestions whose lower case name ends at this node. Null if there are none. */
+    private List<Suggestion> suggestions;
+
+    /**
+     * Create a new node.
+     *
+     * @param label Label of the edge leading to this node.
+     */
+    private Node(String label) {
+      this.label = label;
+    }
+
+    /**
+     * Get the child whose label starts with given character.
+     *
+     * @param c First character of the label.
+     * @return Child, or null if there is none.
+     */
+    private Node getChild(char c) {
+      for (int i = 0; i < childCount; i++) {
+        if (children[i].label.charAt(0) == c) {
+          return children[i];
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Add a child. There must be no child whose label starts with the same character.
+     *
+     * @param child Child.
+     */
+    private void addChild(Node child) {
+      if (children == null) {
+        children = new Node[2];
+      } else if (childCount == children.length) {
+        children = Arrays.copyOf(children, childCount * 2);
+      }
+      children[childCount++] = child;
+    }
+
+    /**
+     * Replace the child whose label starts with the same character as the new child's.
+     *
+     * @param child New child.
+     */
+    private void replaceChild(Node child) {
+      for (int i = 0; i < childCount; i++) {
+        if (children[i].label.charAt(0) == child.label.charAt(0)) {
+          children[i] = child;
+          return;
+        }
+      }
+    }
+
+    /**
+     * Remove a child.
+     *
+     * @param index Index of the child in {@link #children}.
+     */
+    private void removeChild(int index) {
+      System.arraycopy(children, index + 1, children, index, childCount - index - 1);
+      children[--childCount] = null;
+    }
+  }
+}
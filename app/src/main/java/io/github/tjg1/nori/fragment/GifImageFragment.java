@@ -0,0 +1,231 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.fragment;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+
+import com.squareup.picasso.Picasso;
+
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.nori.R;
+import io.github.tjg1.nori.image.GifDecoder;
+import io.github.tjg1.nori.image.GifDrawable;
+import io.github.tjg1.nori.image.ImageStore;
+import io.github.tjg1.nori.net.HttpEngine;
+
+import it.sephiroth.android.library.imagezoom.ImageViewTouch;
+
+/**
+ * Fragment used to display animated GIF images, using the {@link io.github.tjg1.nori.image.GifDecoder} to play them
+ * inside the {@link it.sephiroth.android.library.imagezoom.ImageViewTouch} widget.
+ * <p/>
+ * The image is downloaded through the shared HTTP engine, so it is read from the HTTP disk cache when the fragment is
+ * re-created. The animation only runs while the fragment is the current page of the image viewer.
+ */
+public class GifImageFragment extends PicassoImageFragment {
+  /** Task downloading and parsing the image. */
+  private LoadGifTask loadGifTask;
+  /** Drawable playing the animation. */
+  private GifDrawable gifDrawable;
+
+  /**
+   * Factory method used to construct new fragments
+   *
+   * @param image Image object to display in the created fragment.
+   * @return New GifImageFragment with the image object appended to its arguments bundle.
+   */
+  public static GifImageFragment newInstance(Image image) {
+    // Create a new instance of the fragment.
+    GifImageFragment fragment = new GifImageFragment();
+
+    // Add the image object to the fragment's arguments Bundle.
+    Bundle arguments = new Bundle();
+    arguments.putParcelable(BUNDLE_ID_IMAGE, image);
+    fragment.setArguments(arguments);
+
+    return fragment;
+  }
+
+  /** Required public empty constructor. */
+  public GifImageFragment() {
+  }
+
+  /**
+   * Check if an image is a GIF.
+   *
+   * @param imageUrl Image URL.
+   * @return True if the URL points to a GIF image.
+   */
+  public static boolean isGif(String imageUrl) {
+    final String path = imageUrl != null ? Uri.parse(imageUrl).getPath() : null;
+    return path != null && path.endsWith(".gif");
+  }
+
+  @Override
+  public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
+    View view = inflater.inflate(R.layout.fragment_picasso_image, container, false);
+
+    // Initialize the ImageView widget.
+    imageView = (ImageViewTouch) view.findViewById(R.id.imageView);
+
+    // Show the static preview of the image while the GIF is being downloaded.
+    final String imageUrl = shouldLoadImageSamples() ? image.sampleUrl : image.fileUrl;
+    if (isGif(imageUrl)) {
+      Picasso.with(getContext())
+          .load(image.previewUrl)
+          .into(imageView);
+
+      loadGifTask = new LoadGifTask(getContext(), imageUrl);
+      loadGifTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    } else {
+      // Some APIs provide static sample images for animated GIFs.
+      Picasso.with(getContext())
+          .load(imageUrl)
+          .into(imageView);
+    }
+
+    return view;
+  }
+
+  @Override
+  public void setUserVisibleHint(boolean isVisibleToUser) {
+    super.setUserVisibleHint(isVisibleToUser);
+
+    // Only play the animation of the page displayed in the view pager.
+    if (gifDrawable != null) {
+      if (isVisibleToUser) {
+        gifDrawable.start();
+      } else {
+        gifDrawable.stop();
+      }
+    }
+  }
+
+  @Override
+  public void onResume() {
+    super.onResume();
+    if (gifDrawable != null && getUserVisibleHint()) {
+      gifDrawable.start();
+    }
+  }
+
+  @Override
+  public void onPause() {
+    super.onPause();
+    if (gifDrawable != null) {
+      gifDrawable.stop();
+    }
+  }
+
+  @Override
+  public void onDestroyView() {
+    super.onDestroyView();
+
+    // Cancel the download and release the frame bitmaps.
+    if (loadGifTask != null) {
+      loadGifTask.cancel(true);
+      loadGifTask = null;
+    }
+    if (gifDrawable != null) {
+      gifDrawable.recycle();
+      gifDrawable = null;
+    }
+    imageView = null;
+  }
+
+  @Override
+  protected String getLoadedImageUrl() {
+    return shouldLoadImageSamples() ? image.sampleUrl : image.fileUrl;
+  }
+
+  /** Task downloading the GIF image and rendering its first frame. */
+  private class LoadGifTask extends AsyncTask<Void, Void, GifDrawable> {
+    /** Application context. */
+    private final Context context;
+    /** URL of the GIF image. */
+    private final String imageUrl;
+
+    /**
+     * Create a new task loading the GIF image.
+     *
+     * @param context  Android context.
+     * @param imageUrl URL of the GIF image.
+     */
+    public LoadGifTask(Context context, String imageUrl) {
+      this.context = context.getApplicationContext();
+      this.imageUrl = imageUrl;
+    }
+
+    @Override
+    protected GifDrawable doInBackground(Void... ignored) {
+      try {
+        // Original files are shared with other posts of the same image through the image store.
+        final InputStream inputStream = imageUrl.equals(image.fileUrl)
+            ? new FileInputStream(ImageStore.get(context).getFile(image)) : HttpEngine.openStream(context, imageUrl);
+        // The image is streamed straight into the decoder, which stops reading when the task is cancelled.
+        final GifDecoder decoder;
+        try {
+          decoder = new GifDecoder(new FilterInputStream(inputStream) {
+            @Override
+            public int read(@NonNull byte[] buffer, int offset, int count) throws IOException {
+              if (isCancelled()) {
+                throw new InterruptedIOException("GIF download cancelled.");
+              }
+              return super.read(buffer, offset, count);
+            }
+          });
+        } finally {
+          inputStream.close();
+        }
+        return new GifDrawable(decoder);
+      } catch (IOException | RuntimeException | OutOfMemoryError e) {
+        // Corrupted or oversized images keep the preview on screen instead of crashing the app.
+        return null;
+      }
+    }
+
+    @Override
+    protected void onPostExecute(GifDrawable drawable) {
+      if (drawable == null) {
+        // The preview image stays on screen if the GIF couldn't be loaded.
+        return;
+      }
+      if (imageView == null) {
+        drawable.recycle();
+        return;
+      }
+
+      // Replace the preview image with the animation.
+      Picasso.with(context).cancelRequest(imageView);
+      gifDrawable = drawable;
+      imageView.setImageDrawable(gifDrawable);
+      if (getUserVisibleHint() && isResumed()) {
+        gifDrawable.start();
+      }
+    }
+
+    @Override
+    protected void onCancelled(GifDrawable drawable) {
+      if (drawable != null) {
+        drawable.recycle();
+      }
+    }
+  }
+}
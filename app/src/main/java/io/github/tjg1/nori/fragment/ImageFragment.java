@@ -16,6 +16,7 @@ import android.os.AsyncTask;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.v4.app.DialogFragment;
 import android.support.v4.app.Fragment;
 import android.support.v4.view.MenuItemCompat;
@@ -29,13 +30,14 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Toast;
 
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.URL;
 
 import io.github.tjg1.library.norilib.Image;
 import io.github.tjg1.library.norilib.clients.SearchClient;
 import io.github.tjg1.nori.R;
+import io.github.tjg1.nori.image.ImageStore;
 import io.github.tjg1.nori.util.NetworkUtils;
 
 
@@ -136,10 +138,30 @@ public abstract class ImageFragment extends Fragment {
    * @return True if lower resolution images should be used.
    */
   protected boolean shouldLoadImageSamples() {
-    SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(getContext());
+    return shouldLoadImageSamples(getContext());
+  }
+
+  /**
+   * Evaluate the current network conditions using the {@link io.github.tjg1.nori.util.NetworkUtils} class to decide
+   * if lower resolution images should be loaded to conserve bandwidth.
+   *
+   * @param context Android context.
+   * @return True if lower resolution images should be used.
+   */
+  public static boolean shouldLoadImageSamples(Context context) {
+    return isConserveBandwidthEnabled(context) || NetworkUtils.shouldFetchImageSamples(context);
+  }
+
+  /**
+   * Check if the user asked to always load lower resolution images to conserve bandwidth.
+   *
+   * @param context Android context.
+   * @return True if full-size images should never be loaded unless requested explicitly.
+   */
+  public static boolean isConserveBandwidthEnabled(Context context) {
+    SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
 
-    return preferences.getBoolean(getString(R.string.preference_image_viewer_conserveBandwidth_key), false)
-        || NetworkUtils.shouldFetchImageSamples(getContext());
+    return preferences.getBoolean(context.getString(R.string.preference_image_viewer_conserveBandwidth_key), false);
   }
 
   /**
@@ -168,10 +190,20 @@ public abstract class ImageFragment extends Fragment {
    */
   protected void downloadImage() {
     if (listener != null) {
-      listener.downloadImage(image.fileUrl);
+      listener.downloadImage(image, getLoadedImageUrl());
     }
   }
 
+  /**
+   * Get the URL of the image file shown by this fragment, so that it can be saved without being downloaded again.
+   *
+   * @return URL of the shown image file. The original file, unless the fragment shows the sample.
+   */
+  @Nullable
+  protected String getLoadedImageUrl() {
+    return image.fileUrl;
+  }
+
   /**
    * Opens the image Danbooru page in the system web browser.
    */
@@ -191,20 +223,25 @@ public abstract class ImageFragment extends Fragment {
   }
 
   /**
-   * Downloads the full-resolution image in the background and sets it as the wallpaper.
+   * Sets the full-resolution image as the wallpaper, downloading it in the background if it isn't cached.
    */
   protected void setAsWallpaper() {
     // Fetch and set full-screen image as wallpaper on background thread.
     final Context context = getContext();
-    final String imageUrl = image.fileUrl;
+    final Image image = this.image;
     final WallpaperManager wallpaperManager = WallpaperManager.getInstance(getContext());
 
     new AsyncTask<Void, Void, Exception>() {
       @Override
       protected Exception doInBackground(Void... ignored) {
         try {
-          InputStream inputStream = new URL(imageUrl).openStream();
-          wallpaperManager.setStream(inputStream);
+          // Hand the file to the wallpaper service as-is. Viewed images are read from the image store.
+          InputStream inputStream = new FileInputStream(ImageStore.get(context).getFile(image));
+          try {
+            wallpaperManager.setStream(inputStream);
+          } finally {
+            inputStream.close();
+          }
         } catch (IOException e) {
           return e;
         }
@@ -228,7 +265,12 @@ public abstract class ImageFragment extends Fragment {
      */
     public SearchClient.Settings getSearchClientSettings();
 
-    /** Downloads an image using {@link android.app.DownloadManager}, asking the user to grant storage write permission, if necessary. */
-    public void downloadImage(@NonNull String fireUrl);
+    /**
+     * Saves an image to the downloads directory, asking the user to grant storage write permission, if necessary.
+     *
+     * @param image     Image to save.
+     * @param loadedUrl URL of the image file shown by the fragment, either the sample or the original file.
+     */
+    public void downloadImage(@NonNull Image image, @Nullable String loadedUrl);
   }
 }
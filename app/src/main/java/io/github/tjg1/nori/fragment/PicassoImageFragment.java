@@ -6,26 +6,74 @@
 
 package io.github.tjg1.nori.fragment;
 
+import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Rect;
 import android.graphics.RectF;
+import android.graphics.drawable.Drawable;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.view.LayoutInflater;
+import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewGroup;
 
+import java.io.File;
+import java.io.IOException;
+
 import io.github.tjg1.nori.R;
 import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.nori.image.ImageStore;
+import io.github.tjg1.nori.net.BandwidthEstimator;
+import io.github.tjg1.nori.util.NetworkUtils;
+import com.squareup.picasso.Callback;
 import com.squareup.picasso.Picasso;
+import com.squareup.picasso.Target;
 
 import it.sephiroth.android.library.imagezoom.ImageViewTouch;
+import it.sephiroth.android.library.imagezoom.ImageViewTouchBase;
 
 /**
  * Fragment using the {@link it.sephiroth.android.library.imagezoom.ImageViewTouch} widget
  * and the Picasso HTTP image loading library to display images.
+ * <p/>
+ * If the lower resolution sample is shown, it is replaced with the full-size image once the user zooms in, or stays
+ * on the image for a while on a fast connection that isn't metered.
+ * <p/>
+ * Full-size images are always downloaded to and read from the {@link ImageStore}, off the UI thread, so they can be
+ * saved or set as wallpaper without downloading them again.
  */
 public class PicassoImageFragment extends ImageFragment {
+  /** Time the image has to be shown before the sample is replaced with the full-size image, in milliseconds. */
+  private static final long LINGER_UPGRADE_DELAY = 3000;
+  /** Time to wait for zoom animations to finish before checking the zoom level after a touch, in milliseconds. */
+  private static final long ZOOM_CHECK_DELAY = 500;
   /** Widget used to display the image. */
-  private ImageViewTouch imageView;
+  protected ImageViewTouch imageView;
+  /** True if the sample is shown instead of the full-size image. */
+  private boolean isSampleShown;
+  /** URL of the image file shown in the view. Null until an image has been loaded. */
+  private String loadedUrl;
+  /** Task reading the original file from the {@link ImageStore}. */
+  private LoadOriginalTask loadTask;
+  /** Target receiving the full-size image. Kept here, as Picasso only holds weak references to targets. */
+  private Target upgradeTarget;
+  /** Replaces the sample with the full-size image once the user has stayed on the image. */
+  private final Runnable lingerUpgradeRunnable = new Runnable() {
+    @Override
+    public void run() {
+      upgradeToOriginal();
+    }
+  };
+  /** Replaces the sample with the full-size image if the user has zoomed in. */
+  private final Runnable zoomCheckRunnable = new Runnable() {
+    @Override
+    public void run() {
+      if (imageView != null && imageView.getScale() > 1f) {
+        upgradeToOriginal();
+      }
+    }
+  };
 
   /**
    * Factory method used to construct new fragments
@@ -77,12 +125,222 @@ public class PicassoImageFragment extends ImageFragment {
     // Initialize the ImageView widget.
     imageView = (ImageViewTouch) view.findViewById(R.id.imageView);
 
-    // Load image into the view.
-    String imageUrl = shouldLoadImageSamples() ? image.sampleUrl : image.fileUrl;
-    Picasso.with(getContext())
-        .load(imageUrl)
-        .into(imageView);
+    // Load image into the view. Use the original file if it has already been downloaded to the image store.
+    // Originals are read from the store on a background thread, and samples are loaded from the network only if
+    // the original isn't stored yet.
+    final boolean loadSample = shouldLoadImageSamples() && image.sampleUrl != null
+        && !image.sampleUrl.equals(image.fileUrl);
+    loadTask = new LoadOriginalTask(getContext(), !loadSample, false);
+    loadTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+
+    // Check the zoom level once a gesture ends. Returns false, so that the touch is still handled by the widget.
+    imageView.setOnTouchListener(new View.OnTouchListener() {
+      @Override
+      public boolean onTouch(View v, MotionEvent event) {
+        if (isSampleShown && event.getActionMasked() == MotionEvent.ACTION_UP) {
+          v.removeCallbacks(zoomCheckRunnable);
+          v.postDelayed(zoomCheckRunnable, ZOOM_CHECK_DELAY);
+        }
+        return false;
+      }
+    });
 
     return view;
   }
+
+  @Override
+  public void onDestroyView() {
+    super.onDestroyView();
+    if (imageView != null) {
+      imageView.removeCallbacks(lingerUpgradeRunnable);
+      imageView.removeCallbacks(zoomCheckRunnable);
+    }
+    if (loadTask != null) {
+      loadTask.cancel(false);
+      loadTask = null;
+    }
+    if (upgradeTarget != null) {
+      Picasso.with(getContext()).cancelRequest(upgradeTarget);
+      upgradeTarget = null;
+    }
+    isSampleShown = false;
+    loadedUrl = null;
+    imageView = null;
+  }
+
+  @Override
+  protected String getLoadedImageUrl() {
+    return loadedUrl != null ? loadedUrl : image.fileUrl;
+  }
+
+  @Override
+  public void setUserVisibleHint(boolean isVisibleToUser) {
+    super.setUserVisibleHint(isVisibleToUser);
+    scheduleLingerUpgrade();
+  }
+
+  /**
+   * Start or stop waiting for the user to stay on this image, depending on whether it is displayed in the view pager.
+   * The full-size image is only loaded without zooming in if the user doesn't pay for bandwidth, and the measured
+   * bandwidth is high enough to fetch full-size images by default.
+   */
+  private void scheduleLingerUpgrade() {
+    if (imageView == null) {
+      return;
+    }
+    imageView.removeCallbacks(lingerUpgradeRunnable);
+    if (isSampleShown && getUserVisibleHint() && !NetworkUtils.isActiveNetworkMetered(getContext())
+        && BandwidthEstimator.get(getContext()).getBitrate() >= NetworkUtils.ORIGINAL_IMAGE_MIN_BITRATE) {
+      imageView.postDelayed(lingerUpgradeRunnable, LINGER_UPGRADE_DELAY);
+    }
+  }
+
+  /**
+   * Replace the sample with the full-size image, keeping the zoom level and position. Images too large to be decoded
+   * into a single bitmap and users conserving bandwidth keep the sample.
+   */
+  private void upgradeToOriginal() {
+    if (!isSampleShown || upgradeTarget != null || imageView == null || image.fileUrl == null
+        || isConserveBandwidthEnabled(getContext()) || TiledImageFragment.isLargeImage(getContext(), image)) {
+      return;
+    }
+
+    upgradeTarget = new Target() {
+      @Override
+      public void onBitmapLoaded(Bitmap bitmap, Picasso.LoadedFrom from) {
+        if (imageView != null) {
+          // The display matrix is applied on top of fitting the image to the view. The sample has the same aspect
+          // ratio as the full-size image, so the same part of the image stays on screen.
+          imageView.setImageBitmap(bitmap, imageView.getDisplayMatrix(), ImageViewTouchBase.ZOOM_INVALID,
+              ImageViewTouchBase.ZOOM_INVALID);
+          isSampleShown = false;
+          loadedUrl = image.fileUrl;
+        }
+      }
+
+      @Override
+      public void onBitmapFailed(Drawable errorDrawable) {
+        // Keep showing the sample. Try again on the next zoom.
+        upgradeTarget = null;
+      }
+
+      @Override
+      public void onPrepareLoad(Drawable placeHolderDrawable) {
+      }
+    };
+    // Download the original to the image store first, so that saving it later doesn't download it again.
+    loadTask = new LoadOriginalTask(getContext(), true, true);
+    loadTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+  }
+
+  /**
+   * Show the original file of the image, once it has been read from the {@link ImageStore}.
+   *
+   * @param file Stored original file.
+   */
+  private void showOriginal(File file) {
+    Picasso.with(getContext())
+        .load(file)
+        .error(android.R.drawable.ic_menu_report_image)
+        .into(imageView, new Callback.EmptyCallback() {
+          @Override
+          public void onSuccess() {
+            loadedUrl = image.fileUrl;
+            isSampleShown = false;
+          }
+        });
+  }
+
+  /**
+   * Show the sample of the image.
+   *
+   * @param isOriginalRequested True if the original couldn't be downloaded, so there is nothing left to fall back to.
+   */
+  private void showSample(final boolean isOriginalRequested) {
+    if (image.sampleUrl == null || image.sampleUrl.equals(image.fileUrl)) {
+      imageView.setImageResource(android.R.drawable.ic_menu_report_image);
+      return;
+    }
+    Picasso.with(getContext())
+        .load(image.sampleUrl)
+        .into(imageView, new Callback.EmptyCallback() {
+          @Override
+          public void onSuccess() {
+            loadedUrl = image.sampleUrl;
+            isSampleShown = true;
+            scheduleLingerUpgrade();
+          }
+
+          @Override
+          public void onError() {
+            if (imageView == null || getContext() == null) {
+              return;
+            }
+            if (isOriginalRequested) {
+              imageView.setImageResource(android.R.drawable.ic_menu_report_image);
+            } else {
+              // While offline, only the original may have been cached.
+              loadTask = new LoadOriginalTask(getContext(), true, false);
+              loadTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+            }
+          }
+        });
+  }
+
+  /** Task reading the original file from the {@link ImageStore}, downloading it first if requested. */
+  private class LoadOriginalTask extends AsyncTask<Void, Void, File> {
+    /** Application context. */
+    private final Context context;
+    /** True if the original should be downloaded if it isn't stored. */
+    private final boolean isDownloadRequested;
+    /** True if the original replaces the sample shown in the view. */
+    private final boolean isUpgrade;
+
+    /**
+     * Create a new task reading the original file from the image store.
+     *
+     * @param context             Android context.
+     * @param isDownloadRequested True if the original should be downloaded if it isn't stored.
+     * @param isUpgrade           True if the original replaces the sample shown in the view.
+     */
+    public LoadOriginalTask(Context context, boolean isDownloadRequested, boolean isUpgrade) {
+      this.context = context.getApplicationContext();
+      this.isDownloadRequested = isDownloadRequested;
+      this.isUpgrade = isUpgrade;
+    }
+
+    @Override
+    protected File doInBackground(Void... ignored) {
+      final ImageStore imageStore = ImageStore.get(context);
+      try {
+        return isDownloadRequested ? imageStore.getFile(image) : imageStore.getStoredFile(image);
+      } catch (IOException e) {
+        return null;
+      }
+    }
+
+    @Override
+    protected void onPostExecute(File file) {
+      if (loadTask == this) {
+        loadTask = null;
+      }
+      if (imageView == null) {
+        return;
+      }
+      if (isUpgrade) {
+        if (file != null && upgradeTarget != null) {
+          Picasso.with(getContext())
+              .load(file)
+              .into(upgradeTarget);
+        } else {
+          // Keep showing the sample. Try again on the next zoom.
+          upgradeTarget = null;
+        }
+      } else if (file != null) {
+        showOriginal(file);
+      } else {
+        showSample(isDownloadRequested);
+      }
+    }
+  }
 }
@@ -21,23 +21,66 @@ import android.widget.BaseAdapter;
 import android.widget.GridView;
 import android.widget.ImageView;
 
+import com.squareup.picasso.Callback;
 import com.squareup.picasso.Picasso;
+import com.squareup.picasso.RequestCreator;
 
 import io.github.tjg1.library.norilib.Image;
-import io.github.tjg1.library.norilib.SearchResult;
 import io.github.tjg1.nori.R;
+import io.github.tjg1.nori.image.ThumbnailPrefetcher;
+import io.github.tjg1.nori.search.PagedSearchResult;
+import io.github.tjg1.nori.search.SearchResultStore;
 import io.github.tjg1.nori.widget.SquareImageView;
 
-/** Shows images from a {@link SearchResult} as a scrollable grid of thumbnails. */
+/** Shows images from a {@link PagedSearchResult} as a scrollable grid of thumbnails. */
 public class SearchResultGridFragment extends Fragment implements AdapterView.OnItemClickListener, AbsListView.OnScrollListener {
-  /** Identifier used for saving currently displayed search result in {@link #onSaveInstanceState(android.os.Bundle)}. */
-  private static final String BUNDLE_ID_SEARCH_RESULT = "io.github.tjg1.nori.SearchResult";
+  /** Identifier used for saving the {@link io.github.tjg1.nori.search.SearchResultStore} token of the currently displayed search result in {@link #onSaveInstanceState(android.os.Bundle)}. */
+  private static final String BUNDLE_ID_SEARCH_RESULT_TOKEN = "io.github.tjg1.nori.SearchResult.Token";
   /** Interface used for communication with parent class. */
   private OnSearchResultGridFragmentInteractionListener mListener;
   /** GridView used to display the thumbnails. */
   private GridView gridView;
   /** Search result displayed by the SearchResultGridFragment. */
-  private SearchResult searchResult;
+  private PagedSearchResult searchResult;
+  /** Token of {@link #searchResult} in the {@link io.github.tjg1.nori.search.SearchResultStore}. */
+  private String searchResultToken;
+  /** Callback waiting for the search result to be restored from disk after process death. */
+  private RestoreCallback restoreCallback;
+  /** Updates the grid when images are added to the search result, e.g. by the image viewer. */
+  private final PagedSearchResult.Observer searchResultObserver = new PagedSearchResult.Observer() {
+    @Override
+    public void onImagesAdded(int positionStart, int itemCount) {
+      // BaseAdapter has no way to notify about a range of items.
+      gridAdapter.notifyDataSetChanged();
+    }
+
+    @Override
+    public void onImagesLoaded(int positionStart, int itemCount) {
+      // Replace the placeholders shown while the images were read from disk.
+      gridAdapter.notifyDataSetChanged();
+    }
+  };
+  /** Prefetches thumbnails for the rows below the visible range. */
+  private ThumbnailPrefetcher thumbnailPrefetcher;
+  /** True once the first thumbnail has been shown in the grid. */
+  private boolean isFirstThumbnailLoaded = false;
+  /** Notifies the parent activity when the first thumbnail has been shown in the grid. */
+  private final Callback firstThumbnailCallback = new Callback() {
+    @Override
+    public void onSuccess() {
+      if (!isFirstThumbnailLoaded) {
+        isFirstThumbnailLoaded = true;
+        if (mListener != null) {
+          mListener.onFirstThumbnailLoaded();
+        }
+      }
+    }
+
+    @Override
+    public void onError() {
+      // Wait for another thumbnail.
+    }
+  };
   /** Adapter used by the GridView in this fragment. */
   private BaseAdapter gridAdapter = new BaseAdapter() {
     @Override
@@ -46,18 +89,19 @@ public class SearchResultGridFragment extends Fragment implements AdapterView.On
       if (searchResult == null) {
         return 0;
       }
-      return searchResult.getImages().length;
+      return searchResult.getCount();
     }
 
     @Override
     public Image getItem(int position) {
       // Return image at given position.
-      return searchResult.getImages()[position];
+      return searchResult.getImage(position);
     }
 
     @Override
     public long getItemId(int position) {
-      return Long.valueOf(getItem(position).id);
+      final Image image = getItem(position);
+      return image != null ? Long.valueOf(image.id) : position;
     }
 
     @Override
@@ -73,22 +117,28 @@ public class SearchResultGridFragment extends Fragment implements AdapterView.On
         imageView.setLayoutParams(new GridView.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
       }
 
-      int previewSize;
-      if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
-        // Resize thumbnails to actual GridView column width on Jelly Bean and above.
-        previewSize = gridView.getColumnWidth();
-      } else {
-        // Fallback to requested column width on older versions.
-        previewSize = getGridViewColumnWidth();
+      // Show a placeholder while the image is read back from disk. The grid is refreshed once it has been loaded.
+      if (image == null) {
+        Picasso.with(getContext()).cancelRequest(imageView);
+        imageView.setImageResource(R.color.network_thumbnail_placeholder);
+        return imageView;
       }
 
+      int previewSize = getPreviewSize();
+      thumbnailPrefetcher.onThumbnailBound(image.previewUrl);
+
       // Load image into view.
-      Picasso.with(getContext())
+      RequestCreator request = Picasso.with(getContext())
           .load(image.previewUrl)
           .resize(previewSize, previewSize)
           .centerCrop()
           .placeholder(R.color.network_thumbnail_placeholder)
-          .into(imageView);
+          .error(android.R.drawable.ic_menu_report_image);
+      if (isFirstThumbnailLoaded) {
+        request.into(imageView);
+      } else {
+        request.into(imageView, firstThumbnailCallback);
+      }
 
       return imageView;
     }
@@ -103,16 +153,56 @@ public class SearchResultGridFragment extends Fragment implements AdapterView.On
    *
    * @return Search result shown in this fragment.
    */
-  public SearchResult getSearchResult() {
+  public PagedSearchResult getSearchResult() {
     return this.searchResult;
   }
 
+  /**
+   * Get the {@link io.github.tjg1.nori.search.SearchResultStore} token of the search result displayed by this fragment.
+   *
+   * @return Search result token. Null if no search result is shown.
+   */
+  public String getSearchResultToken() {
+    return this.searchResultToken;
+  }
+
+  /**
+   * Check if the search result shown before the process was killed is being restored from disk. The grid stays empty
+   * until it has been restored.
+   *
+   * @return True if the search result is being restored.
+   */
+  public boolean isRestoringSearchResult() {
+    return restoreCallback != null;
+  }
+
   /**
    * Update the SearchResult displayed by this fragment.
    *
    * @param searchResult Search result. Set to null to hide the current search result.
    */
-  public void setSearchResult(SearchResult searchResult) {
+  public void setSearchResult(PagedSearchResult searchResult) {
+    // The restored search result is replaced.
+    if (restoreCallback != null) {
+      restoreCallback.cancel();
+      restoreCallback = null;
+    }
+    // Keep a reference to the search result in the SearchResultStore, so it can be shared with the image viewer.
+    if (searchResult != this.searchResult) {
+      // Thumbnails of the previous search result are no longer needed.
+      if (thumbnailPrefetcher != null) {
+        thumbnailPrefetcher.cancel();
+      }
+      if (searchResultToken != null) {
+        this.searchResult.unregisterObserver(searchResultObserver);
+        SearchResultStore.release(searchResultToken);
+      }
+      searchResultToken = searchResult != null ? SearchResultStore.acquire(searchResult) : null;
+      if (searchResult != null) {
+        searchResult.registerObserver(searchResultObserver);
+      }
+    }
+
     if (searchResult == null) {
       this.searchResult = null;
       gridAdapter.notifyDataSetInvalidated();
@@ -127,9 +217,15 @@ public class SearchResultGridFragment extends Fragment implements AdapterView.On
     // Inflate the layout for this fragment
     View view = inflater.inflate(R.layout.fragment_search_result_grid, container, false);
     // Restore SearchResult from saved instance state to preserve search results across screen rotations.
-    if (savedInstanceState != null && savedInstanceState.containsKey(BUNDLE_ID_SEARCH_RESULT)) {
-      searchResult = savedInstanceState.getParcelable(BUNDLE_ID_SEARCH_RESULT);
+    // After process death, it is read from disk in the background.
+    if (searchResult == null && restoreCallback == null && savedInstanceState != null
+        && savedInstanceState.containsKey(BUNDLE_ID_SEARCH_RESULT_TOKEN)) {
+      final String token = savedInstanceState.getString(BUNDLE_ID_SEARCH_RESULT_TOKEN);
+      restoreCallback = new RestoreCallback(token);
+      SearchResultStore.acquire(getContext(), token, restoreCallback);
     }
+    // Set up the thumbnail prefetcher.
+    thumbnailPrefetcher = new ThumbnailPrefetcher(getContext());
     // Set adapter for GridView.
     gridView = (GridView) view.findViewById(R.id.image_grid);
     gridView.setColumnWidth(getGridViewColumnWidth());
@@ -141,6 +237,21 @@ public class SearchResultGridFragment extends Fragment implements AdapterView.On
     return view;
   }
 
+  /**
+   * Get the size thumbnails are resized to before they are shown in the grid.
+   *
+   * @return Thumbnail width and height, in pixels.
+   */
+  private int getPreviewSize() {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+      // Resize thumbnails to actual GridView column width on Jelly Bean and above.
+      return gridView.getColumnWidth();
+    } else {
+      // Fallback to requested column width on older versions.
+      return getGridViewColumnWidth();
+    }
+  }
+
   /**
    * Get the grid view column size from the thumbnail size shared preference.
    *
@@ -185,35 +296,78 @@ public class SearchResultGridFragment extends Fragment implements AdapterView.On
     mListener = null;
   }
 
+  @Override
+  public void onStop() {
+    super.onStop();
+    // Stop prefetching thumbnails while the grid isn't shown. Prefetching resumes when the grid is scrolled again.
+    thumbnailPrefetcher.cancel();
+  }
+
+  @Override
+  public void onDestroyView() {
+    super.onDestroyView();
+    // Stop prefetching thumbnails.
+    thumbnailPrefetcher.cancel();
+  }
+
+  @Override
+  public void onDestroy() {
+    super.onDestroy();
+    // The search result being restored is released once it has been read.
+    if (restoreCallback != null) {
+      restoreCallback.cancel();
+      restoreCallback = null;
+    }
+    // Release the search result.
+    if (searchResultToken != null) {
+      searchResult.unregisterObserver(searchResultObserver);
+      SearchResultStore.release(searchResultToken);
+      searchResultToken = null;
+    }
+  }
+
   @Override
   public void onSaveInstanceState(Bundle outState) {
     super.onSaveInstanceState(outState);
     // Preserve currently displayed SearchResult.
-    if (searchResult != null) {
-      outState.putParcelable(BUNDLE_ID_SEARCH_RESULT, searchResult);
+    // Only the token is kept in the Bundle. A snapshot is written to disk in case the process is killed.
+    if (searchResultToken != null) {
+      outState.putString(BUNDLE_ID_SEARCH_RESULT_TOKEN, searchResultToken);
+      searchResult.saveSnapshot();
+    } else if (restoreCallback != null) {
+      // Still restoring the snapshot written before.
+      outState.putString(BUNDLE_ID_SEARCH_RESULT_TOKEN, restoreCallback.token);
     }
   }
 
   @Override
   public void onItemClick(AdapterView<?> adapterView, View view, int position, long l) {
-    if (mListener != null) {
+    final Image image = (Image) gridAdapter.getItem(position);
+    if (mListener != null && image != null) {
       // Notify parent Context that image has been clicked.
-      mListener.onImageSelected((Image) gridAdapter.getItem(position), position);
+      mListener.onImageSelected(image, position);
     }
   }
 
   @Override
   public void onScrollStateChanged(AbsListView view, int scrollState) {
-    // Do nothing.
+    thumbnailPrefetcher.onScrollStateChanged(scrollState);
   }
 
   @Override
   public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+    // Prefetch thumbnails for the rows below the visible range.
+    if (searchResult != null) {
+      // Keep the images around the visible range in memory.
+      searchResult.setVisibleRange(firstVisibleItem, firstVisibleItem + visibleItemCount - 1);
+      thumbnailPrefetcher.setThumbnailSize(getPreviewSize());
+      thumbnailPrefetcher.onScroll(gridAdapter, firstVisibleItem, visibleItemCount, gridView.getNumColumns());
+    }
+
     // Implement endless scrolling.
-    // Fetch more images if near the end of the list and more images are available for the SearchResult.
-    if ((totalItemCount - visibleItemCount) <= (firstVisibleItem + 10) && searchResult != null
-        && searchResult.hasNextPage() && mListener != null) {
-      mListener.fetchMoreImages(searchResult);
+    // Let the parent Context fetch more images ahead of the scroll position, if more are available for the SearchResult.
+    if (searchResult != null && searchResult.hasNextPage() && mListener != null) {
+      mListener.onScrollPositionChanged(searchResult, firstVisibleItem + visibleItemCount - 1, totalItemCount);
     }
   }
 
@@ -222,17 +376,71 @@ public class SearchResultGridFragment extends Fragment implements AdapterView.On
      * Called when {@link io.github.tjg1.library.norilib.Image} in the search result grid is selected by the user.
      *
      * @param image    Image selected.
-     * @param position Index of the image in the {@link SearchResult}.
+     * @param position Index of the image in the {@link PagedSearchResult}.
      */
     public void onImageSelected(Image image, int position);
 
     /**
-     * Called when the user scrolls the thumbnail {@link android.widget.GridView} near the end and more images should be fetched
-     * to implement "endless scrolling".
+     * Called when the user scrolls the thumbnail {@link android.widget.GridView}, so that more images can be fetched
+     * ahead of the scroll position to implement "endless scrolling".
+     *
+     * @param searchResult    Search result for which more images should be fetched.
+     * @param lastVisibleItem Position of the last visible thumbnail.
+     * @param totalItemCount  Number of thumbnails in the grid.
+     */
+    public void onScrollPositionChanged(PagedSearchResult searchResult, int lastVisibleItem, int totalItemCount);
+
+    /** Called once, when the first thumbnail has been shown in the grid. Used to measure the launch time. */
+    public void onFirstThumbnailLoaded();
+
+    /**
+     * Called when the search result shown before the process was killed has been restored from disk.
+     *
+     * @param searchResult Restored search result. Null if it couldn't be restored.
+     */
+    public void onSearchResultRestored(PagedSearchResult searchResult);
+  }
+
+  /** Callback waiting for the search result to be restored from disk. */
+  private class RestoreCallback implements SearchResultStore.AcquireCallback {
+    /** Token of the search result. */
+    private final String token;
+    /** Callback cancelled and should release the search result once it has been restored. */
+    private boolean isCancelled = false;
+
+    /**
+     * Create a new restore callback.
      *
-     * @param searchResult Search result for which more images should be fetched.
+     * @param token Token of the search result.
      */
-    public void fetchMoreImages(SearchResult searchResult);
+    public RestoreCallback(String token) {
+      this.token = token;
+    }
+
+    @Override
+    public void onSearchResultAcquired(PagedSearchResult restoredSearchResult) {
+      if (isCancelled) {
+        if (restoredSearchResult != null) {
+          SearchResultStore.release(token);
+        }
+        return;
+      }
+      restoreCallback = null;
+      if (restoredSearchResult != null) {
+        searchResult = restoredSearchResult;
+        searchResultToken = token;
+        searchResult.registerObserver(searchResultObserver);
+        gridAdapter.notifyDataSetChanged();
+      }
+      if (mListener != null) {
+        mListener.onSearchResultRestored(restoredSearchResult);
+      }
+    }
+
+    /** Cancels this callback. */
+    public void cancel() {
+      this.isCancelled = true;
+    }
   }
 
 }
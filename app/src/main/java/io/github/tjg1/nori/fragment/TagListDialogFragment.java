@@ -27,6 +27,7 @@ import io.github.tjg1.library.norilib.Tag;
 import io.github.tjg1.library.norilib.clients.SearchClient;
 import io.github.tjg1.nori.R;
 import io.github.tjg1.nori.SearchActivity;
+import io.github.tjg1.nori.search.TagDictionary;
 
 /** Dialog showing a list of tags for given image in {@link io.github.tjg1.nori.ImageViewerActivity}. */
 public class TagListDialogFragment extends DialogFragment implements ListView.OnItemClickListener {
@@ -68,6 +69,8 @@ public class TagListDialogFragment extends DialogFragment implements ListView.On
     // Extract data from the arguments bundle.
     image = getArguments().getParcelable(BUNDLE_ID_IMAGE);
     settings = getArguments().getParcelable(BUNDLE_ID_SEARCH_CLIENT_SETTINGS);
+    // Unparcelling creates new Tag objects, replace them with the shared instances from the dictionary.
+    TagDictionary.intern(image);
 
     // Create and initialize the ListView.
     final ListView listView = new ListView(getContext());
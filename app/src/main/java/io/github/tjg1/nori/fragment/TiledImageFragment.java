@@ -0,0 +1,191 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.fragment;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.util.DisplayMetrics;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+
+import com.squareup.picasso.Picasso;
+
+import java.io.File;
+import java.io.IOException;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.nori.R;
+import io.github.tjg1.nori.image.ImageStore;
+import io.github.tjg1.nori.widget.TiledImageView;
+
+/**
+ * Fragment used to display very large images, using the {@link io.github.tjg1.nori.widget.TiledImageView} widget
+ * to decode only the parts of the image visible on screen.
+ * <p/>
+ * The sample image is shown using Picasso while the full-size image is being downloaded.
+ */
+public class TiledImageFragment extends PicassoImageFragment {
+  /** Images with more pixels than this many screens are displayed using this fragment. */
+  private static final int LARGE_IMAGE_MIN_SCREENS = 4;
+  /** Task downloading the image and decoding its base layer. */
+  private LoadImageTask loadImageTask;
+
+  /**
+   * Factory method used to construct new fragments
+   *
+   * @param image Image object to display in the created fragment.
+   * @return New TiledImageFragment with the image object appended to its arguments bundle.
+   */
+  public static TiledImageFragment newInstance(Image image) {
+    // Create a new instance of the fragment.
+    TiledImageFragment fragment = new TiledImageFragment();
+
+    // Add the image object to the fragment's arguments Bundle.
+    Bundle arguments = new Bundle();
+    arguments.putParcelable(BUNDLE_ID_IMAGE, image);
+    fragment.setArguments(arguments);
+
+    return fragment;
+  }
+
+  /** Required public empty constructor. */
+  public TiledImageFragment() {
+  }
+
+  /**
+   * Check if an image is too large to be decoded into a single bitmap and supported by
+   * {@link android.graphics.BitmapRegionDecoder}.
+   *
+   * @param context Android context.
+   * @param image   Image object.
+   * @return True if the full-size image should be displayed using this fragment.
+   */
+  public static boolean isLargeImage(Context context, Image image) {
+    // BitmapRegionDecoder only supports JPEG and PNG images.
+    final String path = Uri.parse(image.fileUrl).getPath();
+    if (path == null || !(path.endsWith(".jpg") || path.endsWith(".jpeg") || path.endsWith(".png"))) {
+      return false;
+    }
+
+    final DisplayMetrics displayMetrics = context.getResources().getDisplayMetrics();
+    final long screenPixels = (long) displayMetrics.widthPixels * displayMetrics.heightPixels;
+    return image.width > TiledImageView.MAX_TEXTURE_SIZE || image.height > TiledImageView.MAX_TEXTURE_SIZE
+        || (long) image.width * image.height > LARGE_IMAGE_MIN_SCREENS * screenPixels;
+  }
+
+  @Override
+  public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
+    View view = inflater.inflate(R.layout.fragment_tiled_image, container, false);
+
+    // Initialize the ImageView widget.
+    imageView = (TiledImageView) view.findViewById(R.id.imageView);
+
+    // Show the sample image while the full-size image is being downloaded.
+    Picasso.with(getContext())
+        .load(image.sampleUrl)
+        .into(imageView);
+
+    // Download the full-size image and decode its base layer in the background.
+    loadImageTask = new LoadImageTask(getContext(), image);
+    loadImageTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+
+    return view;
+  }
+
+  @Override
+  public void onDestroyView() {
+    super.onDestroyView();
+
+    // Cancel the download and release the region decoder.
+    if (loadImageTask != null) {
+      loadImageTask.cancel(true);
+      loadImageTask = null;
+    }
+    ((TiledImageView) imageView).recycle();
+    imageView = null;
+  }
+
+  /** Task downloading the image to the {@link ImageStore} and decoding its base layer. */
+  private class LoadImageTask extends AsyncTask<Void, Void, Boolean> {
+    /** Application context. */
+    private final Context context;
+    /** Image to load. */
+    private final Image image;
+    /** Region decoder used to decode tiles of the image. */
+    private BitmapRegionDecoder regionDecoder;
+    /** Subsampled version of the entire image. */
+    private Bitmap baseLayer;
+    /** Bitmap config used to decode the image. */
+    private Bitmap.Config config;
+
+    /**
+     * Create a new task loading the image.
+     *
+     * @param context Android context.
+     * @param image   Image to load.
+     */
+    public LoadImageTask(Context context, Image image) {
+      this.context = context.getApplicationContext();
+      this.image = image;
+    }
+
+    @Override
+    protected Boolean doInBackground(Void... ignored) {
+      try {
+        // Download the image, unless it is in the store already (e.g. found on another service or viewed before).
+        final File file = ImageStore.get(context).getFile(image);
+        if (isCancelled()) {
+          return false;
+        }
+
+        // Read the image dimensions and format. JPEG images have no alpha channel, so use half the memory per pixel.
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+        config = "image/jpeg".equals(options.outMimeType) ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+
+        // Decode the base layer and open the region decoder.
+        options.inJustDecodeBounds = false;
+        options.inPreferredConfig = config;
+        options.inSampleSize = TiledImageView.getBaseLayerSampleSize(context, options.outWidth, options.outHeight);
+        baseLayer = BitmapFactory.decodeFile(file.getPath(), options);
+        if (baseLayer == null) {
+          return false;
+        }
+        regionDecoder = BitmapRegionDecoder.newInstance(file.getPath(), false);
+        return true;
+      } catch (IOException | OutOfMemoryError e) {
+        return false;
+      }
+    }
+
+    @Override
+    protected void onPostExecute(Boolean success) {
+      if (success && imageView != null) {
+        // Replace the sample image with the base layer.
+        Picasso.with(context).cancelRequest(imageView);
+        ((TiledImageView) imageView).setImageRegionDecoder(regionDecoder, baseLayer, config);
+      } else if (regionDecoder != null) {
+        // The sample image stays on screen if the full-size image couldn't be loaded.
+        regionDecoder.recycle();
+      }
+    }
+
+    @Override
+    protected void onCancelled(Boolean success) {
+      if (regionDecoder != null) {
+        regionDecoder.recycle();
+      }
+    }
+  }
+}
@@ -0,0 +1,191 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.image;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
+import android.support.v4.graphics.BitmapCompat;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import com.squareup.picasso.Cache;
+
+import java.util.Locale;
+
+/**
+ * Picasso memory cache with separate byte budgets for thumbnails and full-size images.
+ * <p/>
+ * The search result grid shows many small, resized thumbnails, while the image viewer shows a few very large
+ * bitmaps. With a single LRU, one full-resolution image can evict every thumbnail in the grid. Splitting the cache
+ * into two tiers keeps the grid responsive when returning from the image viewer.
+ */
+public class BitmapCache implements Cache {
+  /** Log tag. */
+  private static final String TAG = "BitmapCache";
+  /** Fraction of the app's memory class used for thumbnails. */
+  private static final float THUMBNAIL_HEAP_FRACTION = 0.1f;
+  /** Fraction of the app's memory class used for full-size images. */
+  private static final float IMAGE_HEAP_FRACTION = 0.25f;
+  /** Picasso adds this to the cache key of every request resized to a target size (i.e. every thumbnail). */
+  private static final String RESIZED_KEY_MARKER = "\nresize:";
+  /** Character used by Picasso to separate the image URI from the transformations in the cache key. */
+  private static final char KEY_SEPARATOR = '\n';
+  /** Process-wide instance. */
+  private static BitmapCache instance;
+  /** Cache tier for thumbnails. */
+  private final Tier thumbnails;
+  /** Cache tier for full-size images. */
+  private final Tier images;
+
+  /**
+   * Create a new bitmap cache.
+   *
+   * @param thumbnailMaxSize Maximum size of the thumbnail tier, in bytes.
+   * @param imageMaxSize     Maximum size of the full-size image tier, in bytes.
+   */
+  public BitmapCache(int thumbnailMaxSize, int imageMaxSize) {
+    this.thumbnails = new Tier(thumbnailMaxSize);
+    this.images = new Tier(imageMaxSize);
+  }
+
+  /**
+   * Get the process-wide bitmap cache, sized according to the device's per-app memory class.
+   *
+   * @param context Android context.
+   * @return Shared bitmap cache.
+   */
+  @NonNull
+  public static synchronized BitmapCache get(Context context) {
+    if (instance == null) {
+      final ActivityManager activityManager = (ActivityManager) context.getApplicationContext()
+          .getSystemService(Context.ACTIVITY_SERVICE);
+      final int heapSize = activityManager.getMemoryClass() * 1024 * 1024;
+      instance = new BitmapCache((int) (heapSize * THUMBNAIL_HEAP_FRACTION), (int) (heapSize * IMAGE_HEAP_FRACTION));
+    }
+    return instance;
+  }
+
+  @Override
+  public Bitmap get(String key) {
+    return tierForKey(key).get(key);
+  }
+
+  @Override
+  public void set(String key, Bitmap bitmap) {
+    if (key == null || bitmap == null) {
+      throw new NullPointerException("key == null || bitmap == null");
+    }
+    final Tier tier = tierForKey(key);
+    // A bitmap larger than the whole tier would evict everything else and then itself.
+    if (BitmapCompat.getAllocationByteCount(bitmap) <= tier.maxSize()) {
+      tier.put(key, bitmap);
+    }
+  }
+
+  @Override
+  public int size() {
+    return thumbnails.size() + images.size();
+  }
+
+  @Override
+  public int maxSize() {
+    return thumbnails.maxSize() + images.maxSize();
+  }
+
+  @Override
+  public void clear() {
+    thumbnails.evictAll();
+    images.evictAll();
+  }
+
+  @Override
+  public void clearKeyUri(String uri) {
+    thumbnails.removeUri(uri);
+    images.removeUri(uri);
+  }
+
+  /**
+   * Release memory in response to {@link ComponentCallbacks2#onTrimMemory(int)}. Full-size images are released first,
+   * as they are cheap to reload from the HTTP disk cache compared to the space they take. The occupancy of both tiers
+   * before and after trimming is logged at debug level.
+   *
+   * @param level Memory trim level.
+   */
+  public void onTrimMemory(int level) {
+    final String before = Log.isLoggable(TAG, Log.DEBUG) ? toString() : null;
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+      // App is near the end of the background LRU list and about to be killed.
+      clear();
+    } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+      images.evictAll();
+      thumbnails.trimToSize(thumbnails.maxSize() / 2);
+    } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+      images.evictAll();
+    } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+      images.trimToSize(images.maxSize() / 2);
+    }
+    if (before != null) {
+      Log.d(TAG, String.format(Locale.US, "Trim level %d: %s -> %s", level, before, this));
+    }
+  }
+
+  @Override
+  public String toString() {
+    return String.format(Locale.US, "BitmapCache[thumbnails=%s; images=%s]", thumbnails.describe(),
+        images.describe());
+  }
+
+  /**
+   * Get the cache tier a Picasso cache key belongs to.
+   *
+   * @param key Picasso cache key.
+   * @return Thumbnail tier for resized requests, full-size image tier otherwise.
+   */
+  private Tier tierForKey(String key) {
+    return key.contains(RESIZED_KEY_MARKER) ? thumbnails : images;
+  }
+
+  /** Single cache tier, sized by the memory used by the cached bitmaps. */
+  private static class Tier extends LruCache<String, Bitmap> {
+    /**
+     * Create a new cache tier.
+     *
+     * @param maxSize Maximum size, in bytes.
+     */
+    public Tier(int maxSize) {
+      super(Math.max(1, maxSize));
+    }
+
+    @Override
+    protected int sizeOf(String key, Bitmap value) {
+      return BitmapCompat.getAllocationByteCount(value);
+    }
+
+    /**
+     * Remove all cached versions of an image.
+     *
+     * @param uri Image URI, as used in the Picasso cache key.
+     */
+    public void removeUri(String uri) {
+      final int uriLength = uri.length();
+      for (String key : snapshot().keySet()) {
+        if (key.startsWith(uri) && key.length() > uriLength && key.charAt(uriLength) == KEY_SEPARATOR) {
+          remove(key);
+        }
+      }
+    }
+
+    /** @return Human-readable summary of the tier's occupancy and hit rate. */
+    public String describe() {
+      return String.format(Locale.US, "%d bitmaps, %d/%d KiB, %d hits, %d misses, %d evictions",
+          snapshot().size(), size() / 1024, maxSize() / 1024, hitCount(), missCount(), evictionCount());
+    }
+  }
+}
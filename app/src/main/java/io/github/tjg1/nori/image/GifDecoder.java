@@ -0,0 +1,608 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.image;
+
+import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Decoder for animated GIF images.
+ * <p/>
+ * The encoded image is parsed once to find the position of every frame. Frames are then decoded one at a time into a
+ * single ARGB canvas, so memory use doesn't grow with the number of frames. Frames have to be rendered in order
+ * (looping back to the first frame is allowed), as every frame is drawn on top of the ones before it. Images whose
+ * canvas or frames exceed {@link #MAX_PIXEL_COUNT} are rejected before any pixel buffers are allocated.
+ * <p/>
+ * This class is not thread-safe.
+ */
+public class GifDecoder {
+  /** Maximum number of pixels in the image and in each of its frames. */
+  public static final int MAX_PIXEL_COUNT = 4096 * 4096;
+  /** Disposal method: clear the frame's area to transparent. */
+  private static final int DISPOSAL_BACKGROUND = 2;
+  /** Disposal method: restore the frame's area to what it was before the frame was drawn. */
+  private static final int DISPOSAL_PREVIOUS = 3;
+  /** Frame delay used for frames with no or very short delays, as in web browsers. In milliseconds. */
+  private static final int DEFAULT_FRAME_DELAY = 100;
+  /** Frames with a delay shorter than this use {@link #DEFAULT_FRAME_DELAY}. In milliseconds. */
+  private static final int MIN_FRAME_DELAY = 20;
+  /** Maximum number of entries in the LZW code table. */
+  private static final int MAX_LZW_CODES = 4096;
+  /** Maximum size of an encoded image read from a stream, in bytes. */
+  private static final int MAX_DATA_SIZE = 64 * 1024 * 1024;
+  /** Initial size of the buffer used to read images from a stream, in bytes. */
+  private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+  /** Size of the GIF header and logical screen dimensions, in bytes. */
+  private static final int HEADER_SIZE = 10;
+  /** Encoded GIF image. May be longer than the image, see {@link #length}. */
+  private final byte[] data;
+  /** Length of the encoded image in {@link #data}. */
+  private final int length;
+  /** Frames of the image. */
+  private final List<Frame> frames = new ArrayList<>();
+  /** Image width, in pixels. */
+  private int width;
+  /** Image height, in pixels. */
+  private int height;
+  /** Number of times the animation should be played. 0 to loop forever. */
+  private int loopCount = 1;
+  /** Global color table. */
+  private int[] globalColorTable;
+  /** Read position in {@link #data} while parsing. */
+  private int position;
+  /** ARGB pixels of the image, with all frames up to {@link #currentFrame} drawn. */
+  private int[] canvas;
+  /** Copy of {@link #canvas} used to restore frames with the {@link #DISPOSAL_PREVIOUS} disposal method. */
+  private int[] previousCanvas;
+  /** Color table indices of the frame being decoded. */
+  private byte[] frameIndices;
+  /** LZW code table: prefix codes. */
+  private final short[] lzwPrefix = new short[MAX_LZW_CODES];
+  /** LZW code table: last byte of each code. */
+  private final byte[] lzwSuffix = new byte[MAX_LZW_CODES];
+  /** LZW decoding stack. */
+  private final byte[] lzwStack = new byte[MAX_LZW_CODES + 1];
+  /** Index of the last frame drawn to the canvas. -1 if no frames have been drawn yet. */
+  private int currentFrame = -1;
+
+  /**
+   * Create a new decoder and parse the structure of the image.
+   *
+   * @param data Encoded GIF image.
+   * @throws IOException The data is not a valid GIF image.
+   */
+  public GifDecoder(@NonNull byte[] data) throws IOException {
+    this.data = data;
+    this.length = data.length;
+    parse();
+    canvas = new int[width * height];
+  }
+
+  /**
+   * Create a new decoder reading the image from a stream. The image dimensions are checked as soon as the header is
+   * received, so oversized images are rejected without downloading the rest of the file. The stream is not closed.
+   *
+   * @param inputStream Stream to read the encoded GIF image from.
+   * @throws IOException Error reading the stream, or the data is not a valid GIF image.
+   */
+  public GifDecoder(@NonNull InputStream inputStream) throws IOException {
+    byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+    int count = 0;
+    boolean isHeaderChecked = false;
+    int read;
+    while ((read = inputStream.read(buffer, count, buffer.length - count)) != -1) {
+      count += read;
+      if (!isHeaderChecked && count >= HEADER_SIZE) {
+        checkImageSize(readShort(buffer, 6), readShort(buffer, 8));
+        isHeaderChecked = true;
+      }
+      if (count == buffer.length) {
+        // Grow the buffer.
+        if (buffer.length >= MAX_DATA_SIZE) {
+          throw new IOException("GIF image is too large.");
+        }
+        buffer = Arrays.copyOf(buffer, Math.min(buffer.length * 2, MAX_DATA_SIZE));
+      }
+    }
+    this.data = buffer;
+    this.length = count;
+    parse();
+    canvas = new int[width * height];
+  }
+
+  /** @return Image width, in pixels. */
+  public int getWidth() {
+    return width;
+  }
+
+  /** @return Image height, in pixels. */
+  public int getHeight() {
+    return height;
+  }
+
+  /** @return Number of frames in the image. */
+  public int getFrameCount() {
+    return frames.size();
+  }
+
+  /** @return Number of times the animation should be played. 0 to loop forever. */
+  public int getLoopCount() {
+    return loopCount;
+  }
+
+  /**
+   * Get the time a frame should be displayed for.
+   *
+   * @param index Frame index.
+   * @return Frame delay, in milliseconds.
+   */
+  public int getFrameDelay(int index) {
+    final int delay = frames.get(index).delay;
+    return delay < MIN_FRAME_DELAY ? DEFAULT_FRAME_DELAY : delay;
+  }
+
+  /**
+   * Render a frame into a bitmap.
+   *
+   * @param index  Frame index. Has to be the frame following the last rendered frame, or the first frame.
+   * @param bitmap Mutable ARGB_8888 bitmap the size of the image.
+   */
+  public void renderFrame(int index, @NonNull Bitmap bitmap) {
+    bitmap.setPixels(renderFrame(index), 0, width, 0, 0, width, height);
+  }
+
+  /**
+   * Render a frame.
+   *
+   * @param index Frame index. Has to be the frame following the last rendered frame, or the first frame.
+   * @return ARGB pixels of the rendered frame. The array is re-used by the next call to this method.
+   */
+  @NonNull
+  public int[] renderFrame(int index) {
+    if (index == 0) {
+      // Start over with a transparent canvas.
+      Arrays.fill(canvas, 0);
+      currentFrame = -1;
+    } else if (index != currentFrame + 1) {
+      throw new IllegalArgumentException("Frames must be rendered in order (expected frame "
+          + (currentFrame + 1) + ", got " + index + ").");
+    }
+
+    // Dispose of the previous frame.
+    if (currentFrame >= 0) {
+      final Frame previous = frames.get(currentFrame);
+      if (previous.disposal == DISPOSAL_BACKGROUND) {
+        fillRect(previous, 0);
+      } else if (previous.disposal == DISPOSAL_PREVIOUS && previousCanvas != null) {
+        System.arraycopy(previousCanvas, 0, canvas, 0, canvas.length);
+      }
+    }
+
+    // Keep a copy of the canvas, if this frame will have to be restored.
+    final Frame frame = frames.get(index);
+    if (frame.disposal == DISPOSAL_PREVIOUS) {
+      if (previousCanvas == null) {
+        previousCanvas = new int[canvas.length];
+      }
+      System.arraycopy(canvas, 0, previousCanvas, 0, canvas.length);
+    }
+
+    decodeFrameIndices(frame);
+    drawFrame(frame);
+    currentFrame = index;
+
+    return canvas;
+  }
+
+  /**
+   * Parse the structure of the image, without decoding any frames.
+   *
+   * @throws IOException The data is not a valid GIF image.
+   */
+  private void parse() throws IOException {
+    // Read the header.
+    if (length < 6 || data[0] != 'G' || data[1] != 'I' || data[2] != 'F') {
+      throw new IOException("Not a GIF image.");
+    }
+    position = 6;
+
+    try {
+      // Read the logical screen descriptor.
+      width = readShort();
+      height = readShort();
+      checkImageSize(width, height);
+      final int packed = readByte();
+      position += 2; // Background color index and pixel aspect ratio.
+      if ((packed & 0x80) != 0) {
+        globalColorTable = readColorTable(2 << (packed & 0x07));
+      }
+
+      // Read blocks until the trailer.
+      int delay = 0;
+      int disposal = 0;
+      int transparentIndex = -1;
+      boolean done = false;
+      while (!done) {
+        switch (readByte()) {
+          case 0x2C: // Image descriptor.
+            final Frame frame = readFrame(delay, disposal, transparentIndex);
+            checkImageSize(frame.width, frame.height);
+            frames.add(frame);
+            delay = 0;
+            disposal = 0;
+            transparentIndex = -1;
+            break;
+          case 0x21: // Extension.
+            final int label = readByte();
+            if (label == 0xF9) {
+              // Graphic control extension.
+              position++; // Block size.
+              final int extensionFlags = readByte();
+              delay = readShort() * 10;
+              final int index = readByte();
+              disposal = (extensionFlags >> 2) & 0x07;
+              transparentIndex = (extensionFlags & 0x01) != 0 ? index : -1;
+              skipBlocks();
+            } else if (label == 0xFF) {
+              // Application extension.
+              readApplicationExtension();
+            } else {
+              skipBlocks();
+            }
+            break;
+          case 0x3B: // Trailer.
+            done = true;
+            break;
+          default:
+            // Unknown block. Stop parsing, but keep the frames parsed so far.
+            done = true;
+        }
+      }
+    } catch (EOFException e) {
+      // Truncated image. Keep the frames parsed so far.
+    }
+
+    if (width <= 0 || height <= 0 || frames.isEmpty()) {
+      throw new IOException("GIF image contains no frames.");
+    }
+  }
+
+  /**
+   * Check that an image or frame doesn't exceed {@link #MAX_PIXEL_COUNT}. GIF dimensions are 16-bit values, so their
+   * product can overflow an int.
+   *
+   * @param width  Width, in pixels.
+   * @param height Height, in pixels.
+   * @throws IOException The image is too large to be decoded.
+   */
+  private static void checkImageSize(int width, int height) throws IOException {
+    if ((long) width * height > MAX_PIXEL_COUNT) {
+      throw new IOException("GIF image is too large (" + width + "x" + height + ").");
+    }
+  }
+
+  /**
+   * Read an image descriptor and skip over its image data.
+   *
+   * @param delay            Frame delay, in milliseconds.
+   * @param disposal         Disposal method.
+   * @param transparentIndex Index of the transparent color. -1 if the frame is opaque.
+   * @return Parsed frame.
+   * @throws EOFException Unexpected end of data.
+   */
+  private Frame readFrame(int delay, int disposal, int transparentIndex) throws EOFException {
+    final Frame frame = new Frame();
+    frame.x = readShort();
+    frame.y = readShort();
+    frame.width = readShort();
+    frame.height = readShort();
+    final int packed = readByte();
+    frame.isInterlaced = (packed & 0x40) != 0;
+    frame.colorTable = (packed & 0x80) != 0 ? readColorTable(2 << (packed & 0x07)) : globalColorTable;
+    frame.delay = delay;
+    frame.disposal = disposal;
+    frame.transparentIndex = transparentIndex;
+    frame.lzwMinimumCodeSize = readByte();
+    frame.dataPosition = position;
+
+    // Image data is decoded when the frame is rendered. Frames with incomplete image data are dropped.
+    skipBlocks();
+
+    return frame;
+  }
+
+  /**
+   * Read an application extension. Only the NETSCAPE2.0 loop count extension is supported.
+   *
+   * @throws EOFException Unexpected end of data.
+   */
+  private void readApplicationExtension() throws EOFException {
+    final int blockSize = readByte();
+    final boolean isNetscape = blockSize == 11 && position + 11 <= length
+        && new String(data, position, 11).equals("NETSCAPE2.0");
+    position += blockSize;
+
+    if (isNetscape && position + 4 <= length && data[position] == 3 && data[position + 1] == 1) {
+      position += 2;
+      // The extension stores the number of times the animation is repeated after being played once.
+      final int repeatCount = readShort();
+      loopCount = repeatCount == 0 ? 0 : repeatCount + 1;
+    }
+    skipBlocks();
+  }
+
+  /**
+   * Read a color table.
+   *
+   * @param size Number of colors in the table.
+   * @return ARGB colors.
+   * @throws EOFException Unexpected end of data.
+   */
+  private int[] readColorTable(int size) throws EOFException {
+    if (position + size * 3 > length) {
+      throw new EOFException();
+    }
+    // Tables are padded to 256 colors, so that out-of-range color indices in corrupted images can't crash the decoder.
+    final int[] colorTable = new int[256];
+    for (int i = 0; i < size; i++) {
+      colorTable[i] = 0xFF000000 | ((data[position] & 0xFF) << 16) | ((data[position + 1] & 0xFF) << 8)
+          | (data[position + 2] & 0xFF);
+      position += 3;
+    }
+    return colorTable;
+  }
+
+  /**
+   * Skip a sequence of data sub-blocks, up to and including the block terminator.
+   *
+   * @throws EOFException Unexpected end of data.
+   */
+  private void skipBlocks() throws EOFException {
+    int blockSize;
+    while ((blockSize = readByte()) > 0) {
+      position += blockSize;
+    }
+  }
+
+  /**
+   * Read an unsigned byte.
+   *
+   * @return Byte value.
+   * @throws EOFException Unexpected end of data.
+   */
+  private int readByte() throws EOFException {
+    if (position >= length) {
+      throw new EOFException();
+    }
+    return data[position++] & 0xFF;
+  }
+
+  /**
+   * Read an unsigned little-endian 16-bit integer.
+   *
+   * @return Integer value.
+   * @throws EOFException Unexpected end of data.
+   */
+  private int readShort() throws EOFException {
+    return readByte() | (readByte() << 8);
+  }
+
+  /**
+   * Read an unsigned little-endian 16-bit integer from a buffer.
+   *
+   * @param buffer Buffer.
+   * @param offset Offset of the integer in the buffer.
+   * @return Integer value.
+   */
+  private static int readShort(byte[] buffer, int offset) {
+    return (buffer[offset] & 0xFF) | ((buffer[offset + 1] & 0xFF) << 8);
+  }
+
+  /**
+   * Decode the LZW-compressed color table indices of a frame into {@link #frameIndices}. Missing pixels in corrupted
+   * images are set to index 0.
+   *
+   * @param frame Frame to decode.
+   */
+  private void decodeFrameIndices(Frame frame) {
+    final int pixelCount = frame.width * frame.height;
+    if (frameIndices == null || frameIndices.length < pixelCount) {
+      frameIndices = new byte[pixelCount];
+    }
+    final byte[] pixels = frameIndices;
+    final short[] prefix = lzwPrefix;
+    final byte[] suffix = lzwSuffix;
+    final byte[] stack = lzwStack;
+
+    // Initialize the code table.
+    final int minimumCodeSize = Math.min(frame.lzwMinimumCodeSize, 11);
+    final int clearCode = 1 << minimumCodeSize;
+    final int endCode = clearCode + 1;
+    int codeSize = minimumCodeSize + 1;
+    int codeMask = (1 << codeSize) - 1;
+    int available = clearCode + 2;
+    int oldCode = -1;
+    int first = 0;
+    for (int code = 0; code < clearCode; code++) {
+      prefix[code] = 0;
+      suffix[code] = (byte) code;
+    }
+
+    int bits = 0;
+    int datum = 0;
+    int blockRemaining = 0;
+    int top = 0;
+    int pixel = 0;
+    int dataPosition = frame.dataPosition;
+    final int dataLength = length;
+
+    decode:
+    while (pixel < pixelCount) {
+      if (top == 0) {
+        // Read the next code.
+        while (bits < codeSize) {
+          if (blockRemaining == 0) {
+            if (dataPosition >= dataLength || (blockRemaining = data[dataPosition++] & 0xFF) == 0) {
+              break decode;
+            }
+          }
+          if (dataPosition >= dataLength) {
+            break decode;
+          }
+          datum |= (data[dataPosition++] & 0xFF) << bits;
+          bits += 8;
+          blockRemaining--;
+        }
+        int code = datum & codeMask;
+        datum >>>= codeSize;
+        bits -= codeSize;
+
+        if (code == clearCode) {
+          codeSize = minimumCodeSize + 1;
+          codeMask = (1 << codeSize) - 1;
+          available = clearCode + 2;
+          oldCode = -1;
+          continue;
+        } else if (code == endCode || code > available) {
+          break;
+        } else if (oldCode == -1) {
+          pixels[pixel++] = suffix[code];
+          oldCode = code;
+          first = code;
+          continue;
+        }
+
+        // Push the string for the code onto the stack.
+        final int inCode = code;
+        if (code == available) {
+          stack[top++] = (byte) first;
+          code = oldCode;
+        }
+        while (code > clearCode) {
+          stack[top++] = suffix[code];
+          code = prefix[code];
+        }
+        first = suffix[code] & 0xFF;
+        stack[top++] = (byte) first;
+
+        // Add a new code to the table, unless it's full.
+        if (available < MAX_LZW_CODES) {
+          prefix[available] = (short) oldCode;
+          suffix[available] = (byte) first;
+          available++;
+          if ((available & codeMask) == 0 && available < MAX_LZW_CODES) {
+            codeSize++;
+            codeMask += available;
+          }
+        }
+        oldCode = inCode;
+      }
+
+      // Pop a pixel off the stack.
+      pixels[pixel++] = stack[--top];
+    }
+
+    // Clear any pixels missing from corrupted images.
+    if (pixel < pixelCount) {
+      Arrays.fill(pixels, pixel, pixelCount, (byte) 0);
+    }
+  }
+
+  /**
+   * Draw the decoded color table indices of a frame onto the canvas.
+   *
+   * @param frame Frame to draw.
+   */
+  private void drawFrame(Frame frame) {
+    final int[] colorTable = frame.colorTable;
+    if (colorTable == null) {
+      return;
+    }
+    final byte[] pixels = frameIndices;
+    final int transparentIndex = frame.transparentIndex;
+    final int right = Math.min(frame.x + frame.width, width);
+
+    int pass = 0;
+    int step = frame.isInterlaced ? 8 : 1;
+    int row = 0;
+    for (int i = 0; i < frame.height; i++) {
+      // Interlaced images store every 8th row first, followed by the rows in between.
+      if (row >= frame.height && frame.isInterlaced) {
+        do {
+          pass++;
+          row = pass == 1 ? 4 : (pass == 2 ? 2 : 1);
+          step = pass == 1 ? 8 : (pass == 2 ? 4 : 2);
+        } while (row >= frame.height && pass < 3);
+      }
+
+      final int y = frame.y + row;
+      if (y < height) {
+        int source = i * frame.width;
+        int destination = y * width + frame.x;
+        final int end = y * width + right;
+        while (destination < end) {
+          final int index = pixels[source++] & 0xFF;
+          if (index != transparentIndex) {
+            canvas[destination] = colorTable[index];
+          }
+          destination++;
+        }
+      }
+      row += step;
+    }
+  }
+
+  /**
+   * Fill the area of a frame on the canvas with a color.
+   *
+   * @param frame Frame.
+   * @param color ARGB color.
+   */
+  private void fillRect(Frame frame, int color) {
+    final int right = Math.min(frame.x + frame.width, width);
+    final int bottom = Math.min(frame.y + frame.height, height);
+    if (right <= frame.x) {
+      return;
+    }
+    for (int y = frame.y; y < bottom; y++) {
+      Arrays.fill(canvas, y * width + frame.x, y * width + right, color);
+    }
+  }
+
+  /** Position and metadata of a single frame. */
+  private static class Frame {
+    /** Left edge of the frame, in pixels. */
+    public int x;
+    /** Top edge of the frame, in pixels. */
+    public int y;
+    /** Frame width, in pixels. */
+    public int width;
+    /** Frame height, in pixels. */
+    public int height;
+    /** True if the rows of the frame are interlaced. */
+    public boolean isInterlaced;
+    /** Color table used by the frame. */
+    public int[] colorTable;
+    /** Time the frame is displayed for, in milliseconds. */
+    public int delay;
+    /** Disposal method. */
+    public int disposal;
+    /** Index of the transparent color. -1 if the frame is opaque. */
+    public int transparentIndex;
+    /** LZW minimum code size. */
+    public int lzwMinimumCodeSize;
+    /** Position of the first LZW data sub-block of the frame. */
+    public int dataPosition;
+  }
+}
@@ -0,0 +1,214 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.image;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.drawable.Animatable;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Drawable playing an animated GIF decoded by a {@link GifDecoder}.
+ * <p/>
+ * Frames are rendered on a background thread into one of two bitmaps, while the other one is being displayed, so
+ * memory use doesn't depend on the number of frames. The next frame is always rendered ahead of time, so it can be
+ * swapped in as soon as the current frame's delay has elapsed.
+ * <p/>
+ * All methods must be called from the UI thread.
+ */
+public class GifDrawable extends Drawable implements Animatable {
+  /** Background thread used to render frames, shared by all instances. */
+  private static final ExecutorService renderExecutor = Executors.newSingleThreadExecutor();
+  /** Handler used to swap rendered frames in on the UI thread. */
+  private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+  /** Decoder used to render frames. Only accessed from {@link #renderExecutor}. */
+  private final GifDecoder decoder;
+  /** Paint used to draw frames. */
+  private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG);
+  /** Number of frames in the image. */
+  private final int frameCount;
+  /** Number of times the animation should be played. 0 to loop forever. */
+  private final int loopCount;
+  /** Bitmap containing the displayed frame. */
+  private Bitmap frontBitmap;
+  /** Bitmap the next frame is rendered into. */
+  private Bitmap backBitmap;
+  /** Index of the displayed frame. */
+  private int currentFrame;
+  /** Time the displayed frame was swapped in at. */
+  private long currentFrameTime;
+  /** Number of times the animation has been played so far. */
+  private int loopsPlayed;
+  /** True if the animation is running. */
+  private boolean isRunning;
+  /** True while the next frame is being rendered. */
+  private boolean isRendering;
+  /** True once the bitmaps have been recycled. */
+  private boolean isRecycled;
+
+  /**
+   * Create a new GIF drawable and render the first frame. Can be called from a background thread.
+   *
+   * @param decoder Decoder used to render frames. Must not be used by anything else afterwards.
+   */
+  public GifDrawable(@NonNull GifDecoder decoder) {
+    this.decoder = decoder;
+    this.frameCount = decoder.getFrameCount();
+    this.loopCount = decoder.getLoopCount();
+
+    frontBitmap = Bitmap.createBitmap(decoder.getWidth(), decoder.getHeight(), Bitmap.Config.ARGB_8888);
+    decoder.renderFrame(0, frontBitmap);
+    if (frameCount > 1) {
+      backBitmap = Bitmap.createBitmap(decoder.getWidth(), decoder.getHeight(), Bitmap.Config.ARGB_8888);
+    }
+  }
+
+  @Override
+  public void draw(Canvas canvas) {
+    if (!isRecycled) {
+      canvas.drawBitmap(frontBitmap, null, getBounds(), paint);
+    }
+  }
+
+  @Override
+  public int getIntrinsicWidth() {
+    return decoder.getWidth();
+  }
+
+  @Override
+  public int getIntrinsicHeight() {
+    return decoder.getHeight();
+  }
+
+  @Override
+  public void setAlpha(int alpha) {
+    paint.setAlpha(alpha);
+    invalidateSelf();
+  }
+
+  @Override
+  public void setColorFilter(ColorFilter colorFilter) {
+    paint.setColorFilter(colorFilter);
+    invalidateSelf();
+  }
+
+  @Override
+  public int getOpacity() {
+    return PixelFormat.TRANSLUCENT;
+  }
+
+  @Override
+  public boolean setVisible(boolean visible, boolean restart) {
+    final boolean changed = super.setVisible(visible, restart);
+    if (!visible) {
+      stop();
+    }
+    return changed;
+  }
+
+  @Override
+  public void start() {
+    if (isRunning || isRecycled || frameCount <= 1) {
+      return;
+    }
+    isRunning = true;
+    loopsPlayed = 0;
+    currentFrameTime = SystemClock.uptimeMillis();
+    renderNextFrame();
+  }
+
+  @Override
+  public void stop() {
+    isRunning = false;
+  }
+
+  @Override
+  public boolean isRunning() {
+    return isRunning;
+  }
+
+  /** Stop the animation and release the frame bitmaps. */
+  public void recycle() {
+    stop();
+    isRecycled = true;
+
+    // Recycle the bitmaps on the render thread, so they aren't recycled in the middle of rendering a frame.
+    final Bitmap front = frontBitmap;
+    final Bitmap back = backBitmap;
+    renderExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        front.recycle();
+        if (back != null) {
+          back.recycle();
+        }
+      }
+    });
+  }
+
+  /** Render the next frame in the background and schedule it to be swapped in once the current frame's delay ends. */
+  private void renderNextFrame() {
+    if (isRendering || !isRunning) {
+      return;
+    }
+    isRendering = true;
+
+    final int frame = (currentFrame + 1) % frameCount;
+    final Bitmap bitmap = backBitmap;
+    final long frameTime = currentFrameTime + decoder.getFrameDelay(currentFrame);
+    renderExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        if (!bitmap.isRecycled()) {
+          decoder.renderFrame(frame, bitmap);
+        }
+        mainHandler.postAtTime(new Runnable() {
+          @Override
+          public void run() {
+            swapFrame(frame);
+          }
+        }, frameTime);
+      }
+    });
+  }
+
+  /**
+   * Display a frame rendered into the back bitmap.
+   *
+   * @param frame Index of the rendered frame.
+   */
+  private void swapFrame(int frame) {
+    isRendering = false;
+    if (isRecycled) {
+      return;
+    }
+
+    // Swap the bitmaps.
+    final Bitmap bitmap = frontBitmap;
+    frontBitmap = backBitmap;
+    backBitmap = bitmap;
+    currentFrame = frame;
+    currentFrameTime = SystemClock.uptimeMillis();
+    invalidateSelf();
+
+    // Stop after the last loop.
+    if (frame == frameCount - 1 && loopCount > 0 && ++loopsPlayed >= loopCount) {
+      stop();
+    }
+    renderNextFrame();
+  }
+}
@@ -0,0 +1,291 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.image;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.util.SparseArray;
+
+import com.squareup.okhttp.Call;
+import com.squareup.okhttp.Callback;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.nori.fragment.TiledImageFragment;
+import io.github.tjg1.nori.net.HttpEngine;
+import io.github.tjg1.nori.search.PagedSearchResult;
+import okio.Buffer;
+import okio.BufferedSource;
+
+/**
+ * Downloads the images next to the one displayed in {@link io.github.tjg1.nori.ImageViewerActivity}, so that swiping
+ * to them doesn't have to wait for the network. Sample images are read into the shared HTTP disk cache. Original files
+ * are downloaded into the {@link ImageStore}, the same as when they are displayed, so that they don't take up space in
+ * the HTTP cache as well.
+ * <p/>
+ * Images are not decoded ahead of time: several full-size images decoded at once could run out of memory, and the
+ * image fragments decode at the size they display anyway. Reading a cached image from disk is fast compared to
+ * downloading it.
+ * <p/>
+ * More images are preloaded in the direction the user is swiping in than behind them. When the direction changes,
+ * preloads that are no longer needed are cancelled.
+ * <p/>
+ * All methods must be called from the UI thread.
+ */
+public class ImagePreloader {
+  /** Size of the buffer used to read preloaded images into the cache, in bytes. */
+  private static final long READ_BUFFER_SIZE = 64 * 1024;
+  /** Thread downloading original files into the image store, one at a time, closest images first. */
+  private static final ExecutorService preloadExecutor = Executors.newSingleThreadExecutor();
+  /** Android context. */
+  private final Context context;
+  /** Handler used to deliver completed preloads on the UI thread. */
+  private final Handler handler = new Handler(Looper.getMainLooper());
+  /** Number of images to preload in the direction the user is swiping in. */
+  private final int lookAhead;
+  /** Number of images to preload in the opposite direction. */
+  private final int lookBehind;
+  /** Preloads currently in flight, keyed by image position. */
+  private final SparseArray<Preload> pendingPreloads = new SparseArray<>();
+  /** Position of the last selected image. */
+  private int lastPosition = -1;
+  /** Direction the user is swiping in. 1 for forward, -1 for backward. */
+  private int direction = 1;
+
+  /**
+   * Create a new image preloader.
+   *
+   * @param context    Android context.
+   * @param lookAhead  Number of images to preload in the direction the user is swiping in.
+   * @param lookBehind Number of images to preload in the opposite direction.
+   */
+  public ImagePreloader(@NonNull Context context, int lookAhead, int lookBehind) {
+    this.context = context.getApplicationContext();
+    this.lookAhead = lookAhead;
+    this.lookBehind = lookBehind;
+  }
+
+  /**
+   * Called when a new image is selected in the image viewer.
+   *
+   * @param searchResult Search result displayed in the image viewer.
+   * @param position     Position of the selected image.
+   * @param loadSamples  True if sample images are displayed instead of the full-size images.
+   */
+  public void onPageSelected(PagedSearchResult searchResult, int position, boolean loadSamples) {
+    // Update swiping direction.
+    if (lastPosition != -1 && position != lastPosition) {
+      direction = position > lastPosition ? 1 : -1;
+    }
+    lastPosition = position;
+
+    // Cancel preloads for images no longer in range.
+    for (int i = pendingPreloads.size() - 1; i >= 0; i--) {
+      if (!isInRange(pendingPreloads.keyAt(i), position)) {
+        pendingPreloads.valueAt(i).cancel();
+        pendingPreloads.removeAt(i);
+      }
+    }
+
+    // Preload the images closest to the selected one first.
+    for (int distance = 1; distance <= Math.max(lookAhead, lookBehind); distance++) {
+      if (distance <= lookAhead) {
+        preload(searchResult, position + direction * distance, loadSamples);
+      }
+      if (distance <= lookBehind) {
+        preload(searchResult, position - direction * distance, loadSamples);
+      }
+    }
+  }
+
+  /**
+   * Called when images are appended to the search result. Preloads the added images that are within range of the
+   * selected image.
+   *
+   * @param searchResult  Search result displayed in the image viewer.
+   * @param positionStart Position of the first added image.
+   * @param itemCount     Number of added images.
+   * @param loadSamples   True if sample images are displayed instead of the full-size images.
+   */
+  public void onImagesAdded(PagedSearchResult searchResult, int positionStart, int itemCount, boolean loadSamples) {
+    if (lastPosition == -1) {
+      return;
+    }
+    final int positionEnd = Math.min(positionStart + itemCount, lastPosition + lookAhead + 1);
+    for (int position = positionStart; position < positionEnd; position++) {
+      if (isInRange(position, lastPosition)) {
+        preload(searchResult, position, loadSamples);
+      }
+    }
+  }
+
+  /** Cancel all pending preloads. */
+  public void cancel() {
+    for (int i = 0; i < pendingPreloads.size(); i++) {
+      pendingPreloads.valueAt(i).cancel();
+    }
+    pendingPreloads.clear();
+  }
+
+  /**
+   * Check if an image should be preloaded.
+   *
+   * @param position         Image position.
+   * @param selectedPosition Position of the selected image.
+   * @return True if the image is within the preload range.
+   */
+  private boolean isInRange(int position, int selectedPosition) {
+    final int distance = (position - selectedPosition) * direction;
+    return distance != 0 && distance <= lookAhead && -distance <= lookBehind;
+  }
+
+  /**
+   * Start preloading an image, unless it is already being preloaded.
+   *
+   * @param searchResult Search result displayed in the image viewer.
+   * @param position     Position of the image to preload.
+   * @param loadSamples  True if the sample image should be preloaded instead of the full-size image.
+   */
+  private void preload(PagedSearchResult searchResult, int position, boolean loadSamples) {
+    if (position < 0 || position >= searchResult.getCount() || pendingPreloads.get(position) != null) {
+      return;
+    }
+    // Large images are displayed by TiledImageFragment, which shows the sample image until the full-size image has
+    // been downloaded. The full-size image is downloaded when it is displayed.
+    final Image image = searchResult.getImage(position);
+    if (image == null) {
+      // Not in memory. Preloaded from onPageSelected once it has been read back from disk.
+      return;
+    }
+    final String url = loadSamples || TiledImageFragment.isLargeImage(context, image) ? image.sampleUrl : image.fileUrl;
+    if (url == null) {
+      return;
+    }
+
+    if (url.equals(image.fileUrl)) {
+      pendingPreloads.put(position, new OriginalPreload(position, image));
+    } else {
+      pendingPreloads.put(position, new SamplePreload(position, url));
+    }
+  }
+
+  /**
+   * Remove a completed preload from the pending preloads, on the UI thread.
+   *
+   * @param position Position of the preloaded image.
+   * @param preload  Completed preload.
+   */
+  private void removePreload(final int position, final Preload preload) {
+    handler.post(new Runnable() {
+      @Override
+      public void run() {
+        if (pendingPreloads.get(position) == preload) {
+          pendingPreloads.remove(position);
+        }
+      }
+    });
+  }
+
+  /** Image download started by the preloader. */
+  private interface Preload {
+    /** Cancel the download. */
+    void cancel();
+  }
+
+  /** Preload reading a sample image into the HTTP disk cache on OkHttp's dispatcher thread. */
+  private class SamplePreload implements Preload, Callback {
+    /** Position of the preloaded image. */
+    private final int position;
+    /** Call preloading the image. */
+    private final Call call;
+
+    /**
+     * Create and start a new sample image preload.
+     *
+     * @param position Position of the preloaded image.
+     * @param url      URL of the sample image.
+     */
+    public SamplePreload(int position, String url) {
+      this.position = position;
+      // Request the image with the same URL as the image fragments, so that both share a disk cache entry.
+      this.call = HttpEngine.getClient(context).newCall(new Request.Builder().url(url).build());
+      call.enqueue(this);
+    }
+
+    @Override
+    public void cancel() {
+      call.cancel();
+    }
+
+    @Override
+    public void onFailure(Request request, IOException e) {
+      removePreload(position, this);
+    }
+
+    @Override
+    public void onResponse(Response response) throws IOException {
+      // The response is only written to the disk cache as it is read.
+      final BufferedSource source = response.body().source();
+      try {
+        final Buffer buffer = new Buffer();
+        while (source.read(buffer, READ_BUFFER_SIZE) != -1) {
+          buffer.clear();
+        }
+      } finally {
+        response.body().close();
+        removePreload(position, this);
+      }
+    }
+  }
+
+  /** Preload downloading an original file into the {@link ImageStore} on the preload executor. */
+  private class OriginalPreload implements Preload, Runnable {
+    /** Position of the preloaded image. */
+    private final int position;
+    /** Image to preload. */
+    private final Image image;
+    /** Task downloading the file. */
+    private final Future<?> future;
+
+    /**
+     * Create and start a new original file preload.
+     *
+     * @param position Position of the preloaded image.
+     * @param image    Image to preload.
+     */
+    public OriginalPreload(int position, Image image) {
+      this.position = position;
+      this.image = image;
+      this.future = preloadExecutor.submit(this);
+    }
+
+    @Override
+    public void cancel() {
+      // A download that has already started is finished, as the image fragment may be waiting for it in the store.
+      future.cancel(false);
+    }
+
+    @Override
+    public void run() {
+      try {
+        ImageStore.get(context).getFile(image);
+      } catch (IOException ignored) {
+        // The image is downloaded again when it is displayed.
+      } finally {
+        removePreload(position, this);
+      }
+    }
+  }
+}
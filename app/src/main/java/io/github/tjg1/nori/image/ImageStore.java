@@ -0,0 +1,359 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.image;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.nori.net.BulkDownloader;
+import io.github.tjg1.nori.net.CachedImageTransfer;
+import okio.ByteString;
+
+/**
+ * Content-addressed disk store for the original files of images, shared by the image viewer, downloads and the
+ * wallpaper.
+ * <p/>
+ * Files are keyed by the MD5 hash returned by the Search APIs, so the same post found on several services or by
+ * several queries is only downloaded once, whatever URL it was found under. Images without a (correct) MD5 hash are
+ * keyed by their file URL instead. The least recently used files are evicted once the store grows over its maximum
+ * size.
+ * <p/>
+ * All methods are thread-safe. Files are written to a temporary file first, so a file in the store is always complete.
+ */
+public class ImageStore {
+  /** Name of the store directory, relative to {@link Context#getCacheDir()}. */
+  private static final String DIRECTORY_NAME = "images";
+  /** Maximum size of the store, in bytes. */
+  private static final long MAX_SIZE = 128L * 1024L * 1024L;
+  /** Prefix of the keys of images stored by their file URL. */
+  private static final String URL_KEY_PREFIX = "url-";
+  /** Suffix of the files images are downloaded to before they are verified. */
+  private static final String TEMPORARY_FILE_SUFFIX = ".tmp";
+  /** Format of the MD5 hashes returned by the Search APIs. */
+  private static final Pattern MD5_PATTERN = Pattern.compile("[0-9a-fA-F]{32}");
+  /** Process-wide instance. */
+  private static ImageStore instance;
+  /** Application context. */
+  private final Context context;
+  /** Directory the files are stored in. */
+  private final File directory;
+  /** Maximum size of the store, in bytes. */
+  private final long maxSize;
+  /** Sizes of the stored files in bytes, keyed by file name and ordered from least to most recently used. */
+  private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(0, 0.75f, true);
+  /** Keys of the images currently being downloaded. */
+  private final Set<String> pendingKeys = new HashSet<>();
+  /** Total size of the stored files, in bytes. */
+  private long size;
+  /** True if the stored files have been read from the directory. */
+  private boolean isInitialized;
+
+  /**
+   * Create a new image store.
+   *
+   * @param context   Android context.
+   * @param directory Directory the files are stored in.
+   * @param maxSize   Maximum size of the store, in bytes.
+   */
+  public ImageStore(@NonNull Context context, @NonNull File directory, long maxSize) {
+    this.context = context.getApplicationContext();
+    this.directory = directory;
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Get the process-wide image store.
+   *
+   * @param context Android context.
+   * @return Shared image store.
+   */
+  @NonNull
+  public static synchronized ImageStore get(Context context) {
+    if (instance == null) {
+      instance = new ImageStore(context, new File(context.getCacheDir(), DIRECTORY_NAME), MAX_SIZE);
+    }
+    return instance;
+  }
+
+  /**
+   * Get the key an image is stored under.
+   *
+   * @param image Image.
+   * @return Lower-case MD5 hash of the image, or a hash of its file URL if the Search API didn't return one.
+   * Null if the image has no file URL.
+   */
+  @Nullable
+  public static String getKey(@NonNull Image image) {
+    if (!TextUtils.isEmpty(image.md5) && MD5_PATTERN.matcher(image.md5).matches()) {
+      return image.md5.toLowerCase(Locale.US);
+    }
+    return getUrlKey(image);
+  }
+
+  /**
+   * Get the stored original file of an image, without downloading it. Only touches the disk to mark the file as
+   * recently used.
+   *
+   * @param image Image.
+   * @return Stored file. Null if the image isn't in the store.
+   */
+  @Nullable
+  public synchronized File getStoredFile(@NonNull Image image) {
+    initialize();
+    File file = getStoredFile(getKey(image));
+    if (file == null) {
+      // The file may have been stored by URL, if its MD5 hash didn't match.
+      file = getStoredFile(getUrlKey(image));
+    }
+    return file;
+  }
+
+  /**
+   * Get the original file of an image, downloading it into the store if it isn't stored yet. Reads the file from the
+   * HTTP disk cache if possible. Performs network and disk I/O and should not be called from the UI thread.
+   *
+   * @param image Image.
+   * @return Stored file. May be evicted once other files are stored, so it should be opened soon.
+   * @throws IOException The image has no file URL, network error or the file couldn't be written.
+   */
+  @NonNull
+  public File getFile(@NonNull Image image) throws IOException {
+    final String key = getKey(image);
+    if (key == null) {
+      throw new IOException("Image has no file URL");
+    }
+
+    // Wait for other threads downloading the same image.
+    synchronized (this) {
+      initialize();
+      File file;
+      while ((file = getStoredFile(image)) == null && pendingKeys.contains(key)) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+      }
+      if (file != null) {
+        return file;
+      }
+      pendingKeys.add(key);
+    }
+
+    String storedKey = null;
+    try {
+      final File temporaryFile = getTemporaryFile(key);
+      CachedImageTransfer.copy(context, image.fileUrl, temporaryFile);
+      storedKey = commitTemporaryFile(image, key, temporaryFile);
+      return new File(directory, storedKey);
+    } finally {
+      releaseKey(key, storedKey);
+    }
+  }
+
+  /**
+   * Add the original file of an image downloaded elsewhere, e.g. by the {@link BulkDownloader}, to the store. The file
+   * is copied, so the caller keeps its own file. Does nothing if the image is already stored or being downloaded.
+   * Performs disk I/O and should not be called from the UI thread.
+   *
+   * @param image  Image.
+   * @param source Original file of the image.
+   * @throws IOException The file couldn't be copied.
+   */
+  public void put(@NonNull Image image, @NonNull File source) throws IOException {
+    final String key = getKey(image);
+    if (key == null) {
+      return;
+    }
+    synchronized (this) {
+      initialize();
+      if (getStoredFile(image) != null || pendingKeys.contains(key)) {
+        return;
+      }
+      pendingKeys.add(key);
+    }
+
+    String storedKey = null;
+    try {
+      final File temporaryFile = getTemporaryFile(key);
+      CachedImageTransfer.copyFile(source, temporaryFile);
+      storedKey = commitTemporaryFile(image, key, temporaryFile);
+    } finally {
+      releaseKey(key, storedKey);
+    }
+  }
+
+  /** @return Total size of the stored files, in bytes. */
+  public synchronized long size() {
+    initialize();
+    return size;
+  }
+
+  /** @return Number of stored files. */
+  public synchronized int getCount() {
+    initialize();
+    return entries.size();
+  }
+
+  /**
+   * Get the key an image is stored under if its MD5 hash is unknown.
+   *
+   * @param image Image.
+   * @return Hash of the file URL. Null if the image has no file URL.
+   */
+  @Nullable
+  private static String getUrlKey(Image image) {
+    if (TextUtils.isEmpty(image.fileUrl)) {
+      return null;
+    }
+    return URL_KEY_PREFIX + ByteString.encodeUtf8(image.fileUrl).md5().hex();
+  }
+
+  /**
+   * Get the temporary file an image is written to before it is verified, creating the store directory if necessary.
+   *
+   * @param key Key of the image.
+   * @return Temporary file.
+   * @throws IOException The directory couldn't be created.
+   */
+  private File getTemporaryFile(String key) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+      throw new IOException("Could not create " + directory);
+    }
+    return new File(directory, key + TEMPORARY_FILE_SUFFIX);
+  }
+
+  /**
+   * Move a completely written temporary file to its place in the store.
+   *
+   * @param image         Image.
+   * @param key           Key the image was requested under.
+   * @param temporaryFile Temporary file.
+   * @return Key the file was stored under.
+   * @throws IOException The file couldn't be read or renamed.
+   */
+  private String commitTemporaryFile(Image image, String key, File temporaryFile) throws IOException {
+    // Only share the file with other posts if it is what the Search API says it is.
+    final String fileKey = key.startsWith(URL_KEY_PREFIX) || key.equals(BulkDownloader.md5(temporaryFile)) ? key
+        : getUrlKey(image);
+    if (!temporaryFile.renameTo(new File(directory, fileKey))) {
+      //noinspection ResultOfMethodCallIgnored
+      temporaryFile.delete();
+      throw new IOException("Could not rename " + temporaryFile);
+    }
+    return fileKey;
+  }
+
+  /**
+   * Add a stored file and wake up the threads waiting for the image, once it has been written or has failed.
+   *
+   * @param key       Key the image was requested under.
+   * @param storedKey Key the file was stored under. Null if it couldn't be stored.
+   */
+  private synchronized void releaseKey(String key, @Nullable String storedKey) {
+    pendingKeys.remove(key);
+    if (storedKey != null) {
+      putEntry(storedKey, new File(directory, storedKey).length());
+      trimToSize();
+    }
+    notifyAll();
+  }
+
+  /**
+   * Get a stored file and mark it as recently used. Must be called while holding the lock.
+   *
+   * @param key Key of the file.
+   * @return Stored file. Null if there is none.
+   */
+  @Nullable
+  private File getStoredFile(String key) {
+    if (key == null || entries.get(key) == null) {
+      return null;
+    }
+    final File file = new File(directory, key);
+    if (!file.exists()) {
+      // Removed by the system when running out of storage.
+      size -= entries.remove(key);
+      return null;
+    }
+    // Keep the order of use across app restarts.
+    //noinspection ResultOfMethodCallIgnored
+    file.setLastModified(System.currentTimeMillis());
+    return file;
+  }
+
+  /**
+   * Add a stored file. Must be called while holding the lock.
+   *
+   * @param key      Key of the file.
+   * @param fileSize Size of the file, in bytes.
+   */
+  private void putEntry(String key, long fileSize) {
+    final Long previousSize = entries.put(key, fileSize);
+    size += fileSize - (previousSize != null ? previousSize : 0);
+  }
+
+  /** Evict the least recently used files until the store fits its maximum size. Must be called holding the lock. */
+  private void trimToSize() {
+    final Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+    // Always keep the most recently stored file, even if it is larger than the whole store.
+    while (size > maxSize && entries.size() > 1 && it.hasNext()) {
+      final Map.Entry<String, Long> entry = it.next();
+      //noinspection ResultOfMethodCallIgnored
+      new File(directory, entry.getKey()).delete();
+      size -= entry.getValue();
+      it.remove();
+    }
+  }
+
+  /** Read the stored files from the directory, if it hasn't been done yet. Must be called while holding the lock. */
+  private void initialize() {
+    if (isInitialized) {
+      return;
+    }
+    isInitialized = true;
+
+    final File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    // Restore the order of use from the modification times.
+    Arrays.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(File lhs, File rhs) {
+        final long lhsModified = lhs.lastModified();
+        final long rhsModified = rhs.lastModified();
+        return lhsModified < rhsModified ? -1 : (lhsModified == rhsModified ? 0 : 1);
+      }
+    });
+    for (File file : files) {
+      if (file.getName().contains(TEMPORARY_FILE_SUFFIX) || !file.isFile()) {
+        // Left over from a download interrupted by the app being killed.
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+      } else {
+        putEntry(file.getName(), file.length());
+      }
+    }
+    trimToSize();
+  }
+}
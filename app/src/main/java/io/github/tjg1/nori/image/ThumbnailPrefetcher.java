@@ -0,0 +1,240 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.image;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.widget.AbsListView;
+import android.widget.Adapter;
+
+import com.squareup.picasso.Callback;
+import com.squareup.picasso.Picasso;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.nori.net.BandwidthEstimator;
+import io.github.tjg1.nori.util.NetworkUtils;
+
+/**
+ * Warms Picasso's memory and disk caches with thumbnails for the grid rows just below the visible range, so that
+ * they can be shown immediately when scrolled into view.
+ * <p/>
+ * Thumbnails are requested with the same size and transformation as the grid cells, so that both share a single
+ * cache key. Prefetches that scroll out of range before they are started are dropped, and prefetching is paused while
+ * the grid is being flung on a slow or metered connection.
+ * <p/>
+ * All methods must be called from the UI thread.
+ */
+public class ThumbnailPrefetcher {
+  /** Number of rows below the visible range to prefetch, until the bandwidth has been measured. */
+  private static final int PREFETCH_ROWS = 3;
+  /** Maximum number of rows below the visible range to prefetch on fast connections. */
+  private static final int MAX_PREFETCH_ROWS = 6;
+  /** Measured bandwidth needed for each prefetched row, in bits per second. */
+  private static final long BITRATE_PER_PREFETCH_ROW = 1000L * 1000L;
+  /** Maximum number of prefetch requests in flight at once, so that they don't compete with visible thumbnails. */
+  private static final int MAX_REQUESTS_IN_FLIGHT = 2;
+  /** Number of prefetched thumbnail URLs remembered to compute the hit rate. */
+  private static final int PREFETCHED_URL_HISTORY_SIZE = 512;
+  /** Android context. */
+  private final Context context;
+  /** Tag used for all prefetch requests sent to Picasso by this prefetcher. */
+  private final Object picassoTag = new Object();
+  /** URLs of the thumbnails waiting to be prefetched, in order of priority. */
+  private final ArrayDeque<String> queue = new ArrayDeque<>();
+  /** URLs of the thumbnails currently being prefetched. */
+  private final Set<String> inFlight = new HashSet<>();
+  /** Recently prefetched thumbnail URLs. */
+  private final Map<String, Boolean> prefetched = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+      return size() > PREFETCHED_URL_HISTORY_SIZE;
+    }
+  };
+  /** Size of the thumbnails, in pixels. */
+  private int thumbnailSize;
+  /** True if prefetching is paused while the grid is being flung. */
+  private boolean isPaused;
+  /** Recently bound thumbnail URLs, so that cells bound again while scrolling back are only counted once. */
+  private final Map<String, Boolean> bound = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+      return size() > PREFETCHED_URL_HISTORY_SIZE;
+    }
+  };
+  /** Number of thumbnails bound to grid cells after being prefetched. */
+  private int hitCount;
+  /** Number of thumbnails bound to grid cells without being prefetched first. */
+  private int missCount;
+
+  /**
+   * Create a new thumbnail prefetcher.
+   *
+   * @param context Android context.
+   */
+  public ThumbnailPrefetcher(@NonNull Context context) {
+    this.context = context.getApplicationContext();
+  }
+
+  /**
+   * Set the size the thumbnails are resized to. Must match the size used when binding thumbnails to grid cells.
+   *
+   * @param thumbnailSize Thumbnail width and height, in pixels.
+   */
+  public void setThumbnailSize(int thumbnailSize) {
+    if (this.thumbnailSize != thumbnailSize) {
+      this.thumbnailSize = thumbnailSize;
+      prefetched.clear();
+    }
+  }
+
+  /**
+   * Called when the visible range of the grid changes. Schedules thumbnails below it to be prefetched and drops
+   * queued prefetches that are no longer in range.
+   *
+   * @param adapter          Adapter containing {@link Image}s.
+   * @param firstVisibleItem Position of the first visible item.
+   * @param visibleItemCount Number of visible items.
+   * @param columnCount      Number of columns in the grid.
+   */
+  public void onScroll(Adapter adapter, int firstVisibleItem, int visibleItemCount, int columnCount) {
+    queue.clear();
+    if (thumbnailSize <= 0 || columnCount <= 0) {
+      return;
+    }
+
+    final int start = firstVisibleItem + visibleItemCount;
+    final int end = Math.min(adapter.getCount(), start + getPrefetchRows() * columnCount);
+    for (int position = start; position < end; position++) {
+      // Images in chunks that haven't been read back from disk yet are skipped.
+      final Image image = (Image) adapter.getItem(position);
+      final String url = image != null ? image.previewUrl : null;
+      if (url != null && !inFlight.contains(url) && !prefetched.containsKey(url)) {
+        queue.add(url);
+      }
+    }
+    sendRequests();
+  }
+
+  /**
+   * Get the number of rows to prefetch. Fast connections prefetch further ahead, so that fast scrolling doesn't reach
+   * thumbnails that haven't been loaded, while slow connections only prefetch what is about to be shown.
+   *
+   * @return Number of rows below the visible range to prefetch.
+   */
+  private int getPrefetchRows() {
+    final long bitrate = BandwidthEstimator.get(context).getBitrate();
+    if (bitrate == BandwidthEstimator.UNKNOWN) {
+      return PREFETCH_ROWS;
+    }
+    return (int) Math.max(1, Math.min(MAX_PREFETCH_ROWS, bitrate / BITRATE_PER_PREFETCH_ROW));
+  }
+
+  /**
+   * Called when the scroll state of the grid changes.
+   *
+   * @param scrollState Scroll state, as defined in {@link AbsListView.OnScrollListener}.
+   */
+  public void onScrollStateChanged(int scrollState) {
+    if (scrollState == AbsListView.OnScrollListener.SCROLL_STATE_FLING) {
+      // Flinging past thumbnails the user won't see is a waste of bandwidth on slow or metered connections.
+      if (!isPaused && NetworkUtils.shouldFetchImageSamples(context)) {
+        isPaused = true;
+        Picasso.with(context).pauseTag(picassoTag);
+      }
+    } else if (isPaused) {
+      isPaused = false;
+      Picasso.with(context).resumeTag(picassoTag);
+      sendRequests();
+    }
+  }
+
+  /**
+   * Called when a thumbnail is bound to a grid cell. Used to keep track of the prefetch hit rate.
+   *
+   * @param url Thumbnail URL.
+   */
+  public void onThumbnailBound(String url) {
+    if (bound.put(url, Boolean.TRUE) != null) {
+      return;
+    }
+    if (prefetched.containsKey(url)) {
+      hitCount++;
+    } else {
+      missCount++;
+    }
+  }
+
+  /** Cancel all prefetch requests, including the ones already sent to Picasso. */
+  public void cancel() {
+    queue.clear();
+    inFlight.clear();
+    Picasso.with(context).cancelTag(picassoTag);
+    if (isPaused) {
+      isPaused = false;
+      Picasso.with(context).resumeTag(picassoTag);
+    }
+  }
+
+  /** @return Number of thumbnails that were already prefetched when they were first bound to a grid cell. */
+  public int getHitCount() {
+    return hitCount;
+  }
+
+  /** @return Number of thumbnails that were not prefetched when they were first bound to a grid cell. */
+  public int getMissCount() {
+    return missCount;
+  }
+
+  /** Send queued requests to Picasso, up to {@link #MAX_REQUESTS_IN_FLIGHT} at once. */
+  private void sendRequests() {
+    while (!isPaused && inFlight.size() < MAX_REQUESTS_IN_FLIGHT && !queue.isEmpty()) {
+      final String url = queue.poll();
+      inFlight.add(url);
+      Picasso.with(context)
+          .load(url)
+          .resize(thumbnailSize, thumbnailSize)
+          .centerCrop()
+          .priority(Picasso.Priority.LOW)
+          .tag(picassoTag)
+          .fetch(new PrefetchCallback(url));
+    }
+  }
+
+  /** Callback notified when a single prefetch request completes. */
+  private class PrefetchCallback implements Callback {
+    /** Thumbnail URL. */
+    private final String url;
+
+    /**
+     * Create a new prefetch callback.
+     *
+     * @param url Thumbnail URL.
+     */
+    public PrefetchCallback(String url) {
+      this.url = url;
+    }
+
+    @Override
+    public void onSuccess() {
+      inFlight.remove(url);
+      prefetched.put(url, Boolean.TRUE);
+      sendRequests();
+    }
+
+    @Override
+    public void onError() {
+      inFlight.remove(url);
+      sendRequests();
+    }
+  }
+}
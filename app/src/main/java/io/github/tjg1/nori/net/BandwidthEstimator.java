@@ -0,0 +1,166 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.net;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Estimates the bandwidth available to the app from the timings of the response bodies received by the shared
+ * {@link HttpEngine} client.
+ * <p/>
+ * Transfers running at the same time are measured together, so that several thumbnails loaded in parallel don't each
+ * look like a slow connection. Time is only counted while at least one transfer is running, and small transfers are
+ * accumulated until there are enough bytes for a meaningful sample. Samples are combined into an exponentially
+ * weighted moving average, where larger samples have more weight. The estimate is discarded when the device switches
+ * to a different network.
+ * <p/>
+ * All methods are thread-safe.
+ */
+public class BandwidthEstimator {
+  /** Returned by {@link #getBitrate()} if there is no estimate for the current network yet. */
+  public static final long UNKNOWN = -1;
+  /** Minimum number of bytes received before a sample is taken. Smaller transfers are dominated by latency. */
+  private static final long MIN_SAMPLE_BYTES = 64 * 1024;
+  /** Number of bytes after which samples have half of the weight in the estimate. */
+  private static final long HALF_LIFE_BYTES = 1024 * 1024;
+  /** Process-wide instance. */
+  private static BandwidthEstimator instance;
+  /** Application context, used to detect network changes. Null if network changes aren't detected. */
+  private final Context context;
+  /** Estimated bandwidth, in bits per second, or {@link #UNKNOWN}. */
+  private long bitrate = UNKNOWN;
+  /** Network the estimate was measured on. */
+  private String networkKey;
+  /** Number of transfers currently running. */
+  private int activeTransfers;
+  /** Time the running transfers were last accounted for, in milliseconds. */
+  private long activeSince;
+  /** Bytes received since the last sample was taken. */
+  private long sampleBytes;
+  /** Time spent receiving {@link #sampleBytes}, in milliseconds. */
+  private long sampleMillis;
+
+  /**
+   * Create a new bandwidth estimator.
+   *
+   * @param context Android context, used to discard estimates made on another network. May be null, in which case
+   *                network changes are not detected.
+   */
+  public BandwidthEstimator(@Nullable Context context) {
+    this.context = context != null ? context.getApplicationContext() : null;
+  }
+
+  /**
+   * Get the process-wide bandwidth estimator, fed by the shared {@link HttpEngine} client.
+   *
+   * @param context Android context.
+   * @return Shared bandwidth estimator.
+   */
+  @NonNull
+  public static synchronized BandwidthEstimator get(Context context) {
+    if (instance == null) {
+      instance = new BandwidthEstimator(context);
+    }
+    return instance;
+  }
+
+  /**
+   * Get the estimated bandwidth of the current network.
+   *
+   * @return Estimated bandwidth, in bits per second, or {@link #UNKNOWN} if nothing has been measured on the current
+   * network yet.
+   */
+  public synchronized long getBitrate() {
+    if (bitrate != UNKNOWN && !isSameNetwork(getNetworkKey())) {
+      return UNKNOWN;
+    }
+    return bitrate;
+  }
+
+  /**
+   * Called when a response body starts being received.
+   *
+   * @param now Current time, from {@link android.os.SystemClock#elapsedRealtime()}.
+   */
+  public synchronized void onTransferStart(long now) {
+    if (activeTransfers++ == 0) {
+      activeSince = now;
+    }
+  }
+
+  /**
+   * Called when bytes of a running transfer have been received.
+   *
+   * @param byteCount Number of bytes received.
+   */
+  public synchronized void onBytesTransferred(long byteCount) {
+    sampleBytes += byteCount;
+  }
+
+  /**
+   * Called when a transfer has been completed, failed or was cancelled.
+   *
+   * @param now Current time, from {@link android.os.SystemClock#elapsedRealtime()}.
+   */
+  public synchronized void onTransferEnd(long now) {
+    if (activeTransfers == 0) {
+      return;
+    }
+    activeTransfers--;
+
+    // Account for the time spent so far, so that long-running parallel transfers are sampled as well.
+    sampleMillis += Math.max(0, now - activeSince);
+    activeSince = now;
+    if (sampleBytes < MIN_SAMPLE_BYTES || sampleMillis == 0) {
+      return;
+    }
+
+    final long sampleBitrate = sampleBytes * 8 * 1000 / sampleMillis;
+    final String currentNetworkKey = getNetworkKey();
+    if (bitrate == UNKNOWN || !isSameNetwork(currentNetworkKey)) {
+      bitrate = sampleBitrate;
+      networkKey = currentNetworkKey;
+    } else {
+      final double weight = 1 - Math.pow(0.5, (double) sampleBytes / HALF_LIFE_BYTES);
+      bitrate = Math.round(weight * sampleBitrate + (1 - weight) * bitrate);
+    }
+    sampleBytes = 0;
+    sampleMillis = 0;
+  }
+
+  /**
+   * Check if the estimate was measured on the given network.
+   *
+   * @param currentNetworkKey Key of the current network.
+   * @return True if the current network is the one the estimate was measured on.
+   */
+  private boolean isSameNetwork(String currentNetworkKey) {
+    return networkKey == null ? currentNetworkKey == null : networkKey.equals(currentNetworkKey);
+  }
+
+  /**
+   * Get a key identifying the current network.
+   *
+   * @return Network type, subtype and, for Wi-Fi networks, the SSID. Null if it can't be determined.
+   */
+  @Nullable
+  private String getNetworkKey() {
+    if (context == null) {
+      return null;
+    }
+    final ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+    final NetworkInfo networkInfo = cm.getActiveNetworkInfo();
+    if (networkInfo == null) {
+      return null;
+    }
+    return networkInfo.getType() + ":" + networkInfo.getSubtype() + ":" + networkInfo.getExtraInfo();
+  }
+}
@@ -0,0 +1,614 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.net;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+
+import com.squareup.okhttp.HttpUrl;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.nori.image.ImageStore;
+import io.github.tjg1.nori.util.StringUtils;
+
+/**
+ * Downloads the original files of many images at once, e.g. a whole search result.
+ * <p/>
+ * Files are downloaded by a fixed number of worker threads, and requests to each host are spaced out so that a single
+ * image board isn't flooded with requests. Files are written to a partial file first. If a download is interrupted, it
+ * is resumed with a HTTP Range request the next time the image is downloaded. Images already in the destination
+ * directory are recognised by their MD5 hash and skipped. Images in the {@link ImageStore} are copied from there, and
+ * downloaded files are added to it.
+ * <p/>
+ * All public methods are thread-safe. The listener is called from the worker threads, one call at a time. Once the
+ * downloads have been cancelled, it is only told about the cancellation and about files that finished downloading.
+ */
+public class BulkDownloader {
+  /** Suffix of the files images are downloaded to before they are complete. */
+  private static final String PARTIAL_FILE_SUFFIX = ".part";
+  /** Size of the buffer used to copy response bodies to files, in bytes. */
+  private static final int BUFFER_SIZE = 16 * 1024;
+  /** Minimum time between progress updates sent to the listener while a file is downloaded, in nanoseconds. */
+  private static final long PROGRESS_INTERVAL = TimeUnit.MILLISECONDS.toNanos(500);
+  /** Time idle worker threads are kept alive, in seconds. */
+  private static final int KEEP_ALIVE_TIME = 30;
+  /** The file was downloaded. */
+  private static final int RESULT_COMPLETED = 0;
+  /** The file was already in the destination directory. */
+  private static final int RESULT_SKIPPED = 1;
+  /** The file could not be downloaded. */
+  private static final int RESULT_FAILED = 2;
+  /** HTTP client used to download files. */
+  private final OkHttpClient okHttpClient;
+  /** Directory files are downloaded to. */
+  private final File directory;
+  /** Store images viewed before are copied from, and downloaded images are added to. Null if there is none. */
+  private final ImageStore imageStore;
+  /** Minimum time between the start of two requests to the same host, in nanoseconds. */
+  private final long hostRequestInterval;
+  /** Listener notified about the progress of the downloads. Null if there is none. */
+  private final Listener listener;
+  /** Lock held while the listener is called, so that no callback is made after the downloads are cancelled. */
+  private final Object listenerLock = new Object();
+  /** Worker threads. */
+  private final ThreadPoolExecutor executor;
+  /** Time the next request to each host may be started at, keyed by host name. */
+  private final Map<String, Long> nextRequestTimes = new HashMap<>();
+  /** Destination files of the queued and running downloads, used to drop duplicate images. */
+  private final Set<File> queuedFiles = new HashSet<>();
+  /** Time the first download of the current batch was queued at, in nanoseconds. */
+  private long startTime;
+  /** Number of images queued in the current batch. */
+  private int fileCount;
+  /** Number of images downloaded in the current batch. */
+  private int completedCount;
+  /** Number of images in the current batch skipped because they were already downloaded. */
+  private int skippedCount;
+  /** Number of images in the current batch that could not be downloaded. */
+  private int failedCount;
+  /** Number of bytes received in the current batch. */
+  private long bytesReceived;
+  /** Time the listener was last notified about the progress, in nanoseconds. */
+  private long lastProgressTime;
+  /** True if the downloads have been cancelled. */
+  private volatile boolean isCancelled;
+
+  /**
+   * Create a new bulk downloader.
+   *
+   * @param okHttpClient        HTTP client used to download files.
+   * @param directory           Directory files are downloaded to.
+   * @param imageStore          Store images are copied from and added to. Null if there is none.
+   * @param threadCount         Number of files downloaded in parallel.
+   * @param hostRequestInterval Minimum time between the start of two requests to the same host, in milliseconds.
+   * @param listener            Listener notified about the progress of the downloads. Null if there is none.
+   */
+  public BulkDownloader(@NonNull OkHttpClient okHttpClient, @NonNull File directory, @Nullable ImageStore imageStore,
+                        int threadCount, long hostRequestInterval, @Nullable Listener listener) {
+    this.okHttpClient = okHttpClient;
+    this.directory = directory;
+    this.imageStore = imageStore;
+    this.hostRequestInterval = TimeUnit.MILLISECONDS.toNanos(hostRequestInterval);
+    this.listener = listener;
+
+    executor = new ThreadPoolExecutor(threadCount, threadCount, KEEP_ALIVE_TIME, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+      @Override
+      public Thread newThread(@NonNull Runnable runnable) {
+        final Thread thread = new Thread(runnable, "BulkDownloader");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+      }
+    });
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Queue the original files of images for download. Images without a file URL, or with the same file name as an image
+   * already queued, are ignored. Files already in the directory with a different MD5 hash are replaced.
+   *
+   * @param images Images to download.
+   */
+  public void download(@NonNull List<Image> images) {
+    for (Image image : images) {
+      if (TextUtils.isEmpty(image.fileUrl) || HttpUrl.parse(image.fileUrl) == null) {
+        continue;
+      }
+      final File file = new File(directory, getFileName(image));
+      synchronized (this) {
+        if (isCancelled || !queuedFiles.add(file)) {
+          continue;
+        }
+        // Start a new batch once all downloads of the previous one have finished.
+        if (queuedFiles.size() == 1) {
+          startTime = System.nanoTime();
+          fileCount = completedCount = skippedCount = failedCount = 0;
+          bytesReceived = 0;
+        }
+        fileCount++;
+        executor.execute(new DownloadTask(image, file));
+      }
+    }
+  }
+
+  /**
+   * Cancel all queued and running downloads. Partial files are kept, so the downloads can be resumed later. If any
+   * downloads were queued, the listener is notified with {@link Listener#onCancelled(Progress)} on the calling thread,
+   * and not called again afterwards.
+   */
+  public void cancel() {
+    // Wait for running callbacks to return, so that none is made after the cancellation is reported.
+    synchronized (listenerLock) {
+      if (isCancelled) {
+        return;
+      }
+      isCancelled = true;
+    }
+
+    final Progress progress;
+    synchronized (this) {
+      final boolean wasIdle = queuedFiles.isEmpty();
+      // Downloads that haven't started are dropped. Running downloads are interrupted and report their result, so
+      // that awaitCompletion() returns once they have stopped.
+      for (Runnable runnable : executor.shutdownNow()) {
+        queuedFiles.remove(((DownloadTask) runnable).file);
+      }
+      notifyAll();
+      if (wasIdle) {
+        return;
+      }
+      progress = getProgress();
+    }
+    if (listener != null) {
+      listener.onCancelled(progress);
+    }
+  }
+
+  /**
+   * Wait for all queued downloads to finish. Used in tests.
+   *
+   * @param timeout Maximum time to wait.
+   * @param unit    Unit of the timeout.
+   * @return True if all downloads finished in time.
+   * @throws InterruptedException The current thread was interrupted while waiting.
+   */
+  public boolean awaitCompletion(long timeout, TimeUnit unit) throws InterruptedException {
+    final long deadline = System.nanoTime() + unit.toNanos(timeout);
+    synchronized (this) {
+      while (!queuedFiles.isEmpty()) {
+        final long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          return false;
+        }
+        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+      }
+    }
+    return true;
+  }
+
+  /** @return True if there are no queued or running downloads. */
+  public synchronized boolean isIdle() {
+    return queuedFiles.isEmpty();
+  }
+
+  /** @return Progress of the current batch of downloads. */
+  @NonNull
+  public synchronized Progress getProgress() {
+    return new Progress(fileCount, completedCount, skippedCount, failedCount, bytesReceived,
+        System.nanoTime() - startTime);
+  }
+
+  /**
+   * Get the name of the file an image is downloaded to.
+   *
+   * @param image Image.
+   * @return Last path segment of the file URL.
+   */
+  @NonNull
+  public static String getFileName(@NonNull Image image) {
+    final List<String> pathSegments = HttpUrl.parse(image.fileUrl).pathSegments();
+    return pathSegments.get(pathSegments.size() - 1);
+  }
+
+  /**
+   * Compute the MD5 hash of a file.
+   *
+   * @param file File.
+   * @return Hex-encoded MD5 digest, as returned by the Search APIs.
+   * @throws IOException The file couldn't be read.
+   */
+  @NonNull
+  public static String md5(@NonNull File file) throws IOException {
+    final MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      // MD5 is always available on Android.
+      throw new IllegalStateException(e);
+    }
+    final InputStream inputStream = new FileInputStream(file);
+    try {
+      final byte[] buffer = new byte[BUFFER_SIZE];
+      int length;
+      while ((length = inputStream.read(buffer)) != -1) {
+        digest.update(buffer, 0, length);
+      }
+    } finally {
+      inputStream.close();
+    }
+    return StringUtils.toHexString(digest.digest());
+  }
+
+  /**
+   * Get the position of the first byte of a partial response body.
+   *
+   * @param contentRange Value of the Content-Range header, e.g. "bytes 5-9/10". May be null.
+   * @return Position of the first byte. -1 if the header is missing or malformed.
+   */
+  public static long getContentRangeStart(@Nullable String contentRange) {
+    if (contentRange == null || !contentRange.startsWith("bytes ")) {
+      return -1;
+    }
+    final int separator = contentRange.indexOf('-');
+    if (separator == -1) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(contentRange.substring("bytes ".length(), separator).trim());
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Check if a file has the MD5 hash the Search API returned for an image.
+   *
+   * @param image Image.
+   * @param file  File.
+   * @return True if the file has the same MD5 hash, or if the Search API didn't return one.
+   * @throws IOException The file couldn't be read.
+   */
+  private static boolean hasMatchingMd5(Image image, File file) throws IOException {
+    return TextUtils.isEmpty(image.md5) || image.md5.equalsIgnoreCase(md5(file));
+  }
+
+  /**
+   * Wait until a request may be sent to a host, so that requests to the same host are at least
+   * {@link #hostRequestInterval} apart.
+   *
+   * @param host Host name.
+   * @throws InterruptedException The downloads were cancelled while waiting.
+   */
+  private void awaitHostRequestSlot(String host) throws InterruptedException {
+    final long now = System.nanoTime();
+    final long requestTime;
+    synchronized (nextRequestTimes) {
+      final Long nextRequestTime = nextRequestTimes.get(host);
+      requestTime = (nextRequestTime != null) ? Math.max(now, nextRequestTime) : now;
+      nextRequestTimes.put(host, requestTime + hostRequestInterval);
+    }
+    TimeUnit.NANOSECONDS.sleep(requestTime - now);
+  }
+
+  /**
+   * Add received bytes to the progress and notify the listener, if it hasn't been notified recently.
+   *
+   * @param byteCount Number of bytes received.
+   */
+  private void onBytesReceived(long byteCount) {
+    final Progress progress;
+    synchronized (this) {
+      bytesReceived += byteCount;
+      final long now = System.nanoTime();
+      if (listener == null || now - lastProgressTime < PROGRESS_INTERVAL) {
+        return;
+      }
+      lastProgressTime = now;
+      progress = getProgress();
+    }
+    synchronized (listenerLock) {
+      if (!isCancelled) {
+        listener.onProgress(progress);
+      }
+    }
+  }
+
+  /**
+   * Record the result of a download and notify the listener.
+   *
+   * @param file   Destination file.
+   * @param result One of {@link #RESULT_COMPLETED}, {@link #RESULT_SKIPPED} or {@link #RESULT_FAILED}.
+   */
+  private void onDownloadFinished(File file, int result) {
+    final Progress progress;
+    final boolean isFinished;
+    synchronized (this) {
+      switch (result) {
+        case RESULT_COMPLETED:
+          completedCount++;
+          break;
+        case RESULT_SKIPPED:
+          skippedCount++;
+          break;
+        default:
+          failedCount++;
+      }
+      queuedFiles.remove(file);
+      isFinished = queuedFiles.isEmpty();
+      progress = getProgress();
+      lastProgressTime = System.nanoTime();
+      notifyAll();
+    }
+    if (listener == null) {
+      return;
+    }
+    synchronized (listenerLock) {
+      // The file is kept even if the downloads were cancelled in the meantime.
+      if (result == RESULT_COMPLETED) {
+        listener.onFileDownloaded(file);
+      }
+      if (!isCancelled) {
+        listener.onProgress(progress);
+        if (isFinished) {
+          listener.onFinished(progress);
+        }
+      }
+    }
+  }
+
+  /** Downloads the original file of a single image. */
+  private class DownloadTask implements Runnable {
+    /** Image to download. */
+    private final Image image;
+    /** Destination file. */
+    private final File file;
+
+    /**
+     * Create a new download task.
+     *
+     * @param image Image to download.
+     * @param file  Destination file.
+     */
+    private DownloadTask(Image image, File file) {
+      this.image = image;
+      this.file = file;
+    }
+
+    @Override
+    public void run() {
+      int result = RESULT_FAILED;
+      try {
+        if (file.exists() && hasMatchingMd5(image, file)) {
+          result = RESULT_SKIPPED;
+        } else if (!isCancelled) {
+          if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("Could not create " + directory);
+          }
+          if (copyFromImageStore()) {
+            result = RESULT_COMPLETED;
+          } else if (download()) {
+            result = RESULT_COMPLETED;
+            putInImageStore();
+          }
+        }
+      } catch (IOException | InterruptedException ignored) {
+        // Partial files are kept, so the download can be resumed.
+      } finally {
+        onDownloadFinished(file, result);
+      }
+    }
+
+    /**
+     * Copy the file from the image store, if it has been downloaded before.
+     *
+     * @return True if the file was copied.
+     * @throws IOException The file couldn't be copied.
+     */
+    private boolean copyFromImageStore() throws IOException {
+      final File storedFile = imageStore != null ? imageStore.getStoredFile(image) : null;
+      if (storedFile == null || !hasMatchingMd5(image, storedFile)) {
+        return false;
+      }
+      CachedImageTransfer.copyFile(storedFile, file);
+      return true;
+    }
+
+    /** Copy the downloaded file to the image store, so that the viewer doesn't download it again. */
+    private void putInImageStore() {
+      if (imageStore == null) {
+        return;
+      }
+      try {
+        imageStore.put(image, file);
+      } catch (IOException ignored) {
+        // The file has been downloaded. The store only saves the viewer from downloading it again.
+      }
+    }
+
+    /**
+     * Download the file, resuming from the partial file if there is one.
+     *
+     * @return True if the file was downloaded and has the expected MD5 hash.
+     * @throws IOException          Network error or the file couldn't be written.
+     * @throws InterruptedException The downloads were cancelled.
+     */
+    private boolean download() throws IOException, InterruptedException {
+      final File partialFile = new File(file.getPath() + PARTIAL_FILE_SUFFIX);
+      final long resumeOffset = partialFile.length();
+      final HttpUrl url = HttpUrl.parse(image.fileUrl);
+
+      // Ask for the rest of the file, if part of it has been downloaded before.
+      final Request.Builder requestBuilder = new Request.Builder().url(url);
+      if (resumeOffset > 0) {
+        requestBuilder.header("Range", String.format(Locale.US, "bytes=%d-", resumeOffset));
+      }
+      awaitHostRequestSlot(url.host());
+      final Response response = okHttpClient.newCall(requestBuilder.build()).execute();
+
+      // Append to the partial file only if the server resumed the download at its end.
+      final boolean isResumed = response.code() == 206;
+      if (isResumed && getContentRangeStart(response.header("Content-Range")) != resumeOffset) {
+        // The server sent another part of the file. Start over, rather than appending it at the wrong position.
+        response.body().close();
+        //noinspection ResultOfMethodCallIgnored
+        partialFile.delete();
+        if (resumeOffset == 0) {
+          throw new IOException("Unexpected Content-Range: " + response.header("Content-Range"));
+        }
+        return download();
+      }
+
+      try {
+        if (response.code() == 416 && resumeOffset > 0) {
+          // The partial file is already complete.
+          return finish(partialFile);
+        } else if (!response.isSuccessful()) {
+          throw new IOException("Unexpected HTTP response code: " + response.code());
+        }
+
+        final InputStream inputStream = response.body().byteStream();
+        final OutputStream outputStream = new FileOutputStream(partialFile, isResumed);
+        try {
+          final byte[] buffer = new byte[BUFFER_SIZE];
+          int length;
+          while ((length = inputStream.read(buffer)) != -1) {
+            if (isCancelled) {
+              throw new InterruptedException();
+            }
+            outputStream.write(buffer, 0, length);
+            onBytesReceived(length);
+          }
+        } finally {
+          outputStream.close();
+        }
+      } finally {
+        response.body().close();
+      }
+      return finish(partialFile);
+    }
+
+    /**
+     * Check the downloaded file and move it to its destination.
+     *
+     * @param partialFile Downloaded file.
+     * @return True if the file has the expected MD5 hash.
+     * @throws IOException The file couldn't be read or moved.
+     */
+    private boolean finish(File partialFile) throws IOException {
+      if (!hasMatchingMd5(image, partialFile)) {
+        // Start over next time, instead of resuming a corrupted file.
+        //noinspection ResultOfMethodCallIgnored
+        partialFile.delete();
+        return false;
+      }
+      if (!partialFile.renameTo(file)) {
+        throw new IOException("Could not rename " + partialFile);
+      }
+      return true;
+    }
+  }
+
+  /** Progress of a batch of downloads. Immutable. */
+  public static class Progress {
+    /** Number of images queued. */
+    public final int fileCount;
+    /** Number of images downloaded. */
+    public final int completedCount;
+    /** Number of images skipped because they were already downloaded. */
+    public final int skippedCount;
+    /** Number of images that could not be downloaded. */
+    public final int failedCount;
+    /** Number of bytes received. */
+    public final long bytesReceived;
+    /** Time since the first image was queued, in nanoseconds. */
+    public final long elapsedTime;
+
+    /**
+     * Create a new progress snapshot.
+     *
+     * @param fileCount      Number of images queued.
+     * @param completedCount Number of images downloaded.
+     * @param skippedCount   Number of images skipped because they were already downloaded.
+     * @param failedCount    Number of images that could not be downloaded.
+     * @param bytesReceived  Number of bytes received.
+     * @param elapsedTime    Time since the first image was queued, in nanoseconds.
+     */
+    public Progress(int fileCount, int completedCount, int skippedCount, int failedCount, long bytesReceived,
+                    long elapsedTime) {
+      this.fileCount = fileCount;
+      this.completedCount = completedCount;
+      this.skippedCount = skippedCount;
+      this.failedCount = failedCount;
+      this.bytesReceived = bytesReceived;
+      this.elapsedTime = elapsedTime;
+    }
+
+    /** @return Number of images that have been downloaded, skipped or failed. */
+    public int getFinishedCount() {
+      return completedCount + skippedCount + failedCount;
+    }
+
+    /** @return Average download throughput, in bytes per second. */
+    public long getThroughput() {
+      return elapsedTime > 0 ? bytesReceived * TimeUnit.SECONDS.toNanos(1) / elapsedTime : 0;
+    }
+  }
+
+  /** Listener notified about the progress of the downloads. Called from the worker threads. */
+  public interface Listener {
+    /**
+     * Called periodically while files are downloaded, and whenever a download finishes.
+     *
+     * @param progress Progress of the current batch.
+     */
+    void onProgress(Progress progress);
+
+    /**
+     * Called when a file has been downloaded.
+     *
+     * @param file Downloaded file.
+     */
+    void onFileDownloaded(File file);
+
+    /**
+     * Called when all queued downloads have finished.
+     *
+     * @param progress Progress of the finished batch.
+     */
+    void onFinished(Progress progress);
+
+    /**
+     * Called instead of {@link #onFinished(Progress)} when the downloads are cancelled before they have finished.
+     *
+     * @param progress Progress of the batch when it was cancelled.
+     */
+    void onCancelled(Progress progress);
+  }
+}
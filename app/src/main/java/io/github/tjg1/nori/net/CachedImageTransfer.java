@@ -0,0 +1,200 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.net;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.squareup.okhttp.CacheControl;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Saves images the viewer has already downloaded to files, without fetching them again or decoding them.
+ * <p/>
+ * Response bodies are read from the shared HTTP disk cache of {@link HttpEngine} first, through the cached
+ * {@link Response}, and copied to the destination file with {@link FileChannel#transferFrom}. The layout of the cache
+ * directory is private to OkHttp, so cache files are never opened directly. The network is only used on a cache miss.
+ */
+public abstract class CachedImageTransfer {
+  /** Suffix of the files images are copied to before they are complete. */
+  private static final String PARTIAL_FILE_SUFFIX = ".part";
+  /** Maximum number of bytes transferred by a single channel call. */
+  private static final long TRANSFER_CHUNK_SIZE = 1024 * 1024;
+  /** Keeps files downloaded by {@link #copy(Context, String, File)} out of the HTTP disk cache. */
+  private static final CacheControl NO_STORE = new CacheControl.Builder().noStore().build();
+
+  /**
+   * Copy an image to a file, if its response is in the HTTP disk cache. Never uses the network. Performs disk I/O and
+   * should not be called from the UI thread.
+   *
+   * @param context     Android context.
+   * @param url         URL of the image.
+   * @param destination File to copy the image to. Replaced if it already exists.
+   * @return True if the image was copied. False if it isn't in the cache.
+   * @throws IOException The cache couldn't be read or the file couldn't be written.
+   */
+  public static boolean copyFromCache(@NonNull Context context, @NonNull String url, @NonNull File destination)
+      throws IOException {
+    final Response response = getCachedResponse(context, url);
+    if (response == null) {
+      return false;
+    }
+    // Closing the channel closes the response body.
+    transfer(Channels.newChannel(response.body().byteStream()), destination);
+    return true;
+  }
+
+  /**
+   * Copy an image to a file, reading it from the HTTP disk cache if possible and from the network otherwise. Files
+   * downloaded from the network are not added to the cache, as the caller keeps its own copy.
+   * Performs network and disk I/O and should not be called from the UI thread.
+   *
+   * @param context     Android context.
+   * @param url         URL of the image.
+   * @param destination File to copy the image to. Replaced if it already exists.
+   * @throws IOException Network error, unsuccessful HTTP response code or the file couldn't be written.
+   */
+  public static void copy(@NonNull Context context, @NonNull String url, @NonNull File destination)
+      throws IOException {
+    if (!copyFromCache(context, url, destination)) {
+      transfer(Channels.newChannel(HttpEngine.openStream(context, url, NO_STORE)), destination);
+    }
+  }
+
+  /**
+   * Open a stream to an image, reading it from the HTTP disk cache if possible and from the network otherwise. The
+   * stream has to be closed by the caller.
+   *
+   * @param context Android context.
+   * @param url     URL of the image.
+   * @return Input stream with the image file.
+   * @throws IOException Network error or unsuccessful HTTP response code.
+   */
+  @NonNull
+  public static InputStream openStream(@NonNull Context context, @NonNull String url) throws IOException {
+    final Response response = getCachedResponse(context, url);
+    return response != null ? response.body().byteStream() : HttpEngine.openStream(context, url);
+  }
+
+  /**
+   * Get the response to a request from the HTTP disk cache, without using the network. Stale responses are returned
+   * as well, as image files don't change once they have been uploaded.
+   *
+   * @param context Android context.
+   * @param url     URL of the image.
+   * @return Cached response, which has to be closed by the caller. Null if there is none.
+   * @throws IOException The cache couldn't be read.
+   */
+  @Nullable
+  private static Response getCachedResponse(Context context, String url) throws IOException {
+    final Request request = new Request.Builder()
+        .url(url)
+        .cacheControl(CacheControl.FORCE_CACHE)
+        .build();
+    final Response response = HttpEngine.getClient(context).newCall(request).execute();
+    // OkHttp answers with 504 Gateway Timeout if the response isn't cached.
+    if (!response.isSuccessful() || response.cacheResponse() == null) {
+      response.body().close();
+      return null;
+    }
+    return response;
+  }
+
+  /**
+   * Copy a file to another file with a channel-to-channel transfer.
+   *
+   * @param source      Source file.
+   * @param destination Destination file. Replaced if it already exists.
+   * @throws IOException The source couldn't be read or the destination couldn't be written.
+   */
+  public static void copyFile(@NonNull File source, @NonNull File destination) throws IOException {
+    final File partialFile = new File(destination.getPath() + PARTIAL_FILE_SUFFIX);
+    final FileChannel sourceChannel = new FileInputStream(source).getChannel();
+    try {
+      final FileChannel destinationChannel = new FileOutputStream(partialFile).getChannel();
+      try {
+        final long size = sourceChannel.size();
+        long position = 0;
+        while (position < size) {
+          final long count = sourceChannel.transferTo(position, Math.min(TRANSFER_CHUNK_SIZE, size - position),
+              destinationChannel);
+          if (count <= 0) {
+            // The file was truncated while it was being copied.
+            throw new IOException("Unexpected end of " + source);
+          }
+          position += count;
+        }
+      } finally {
+        destinationChannel.close();
+      }
+    } catch (IOException e) {
+      //noinspection ResultOfMethodCallIgnored
+      partialFile.delete();
+      throw e;
+    } finally {
+      sourceChannel.close();
+    }
+    moveFile(partialFile, destination);
+  }
+
+  /**
+   * Copy a stream to a file with a channel transfer. The source channel is closed afterwards.
+   *
+   * @param source      Source channel.
+   * @param destination Destination file. Replaced if it already exists.
+   * @throws IOException The source couldn't be read or the destination couldn't be written.
+   */
+  private static void transfer(ReadableByteChannel source, File destination) throws IOException {
+    final File partialFile = new File(destination.getPath() + PARTIAL_FILE_SUFFIX);
+    try {
+      final FileChannel destinationChannel = new FileOutputStream(partialFile).getChannel();
+      try {
+        // A blocking source transfers nothing only once it has been exhausted.
+        long position = 0;
+        long count;
+        while ((count = destinationChannel.transferFrom(source, position, TRANSFER_CHUNK_SIZE)) > 0) {
+          position += count;
+        }
+      } finally {
+        destinationChannel.close();
+      }
+    } catch (IOException e) {
+      //noinspection ResultOfMethodCallIgnored
+      partialFile.delete();
+      throw e;
+    } finally {
+      source.close();
+    }
+    moveFile(partialFile, destination);
+  }
+
+  /**
+   * Move a completely written file to its destination.
+   *
+   * @param source      Written file.
+   * @param destination Destination file. Replaced if it already exists.
+   * @throws IOException The file couldn't be moved.
+   */
+  private static void moveFile(File source, File destination) throws IOException {
+    if (!source.renameTo(destination)) {
+      //noinspection ResultOfMethodCallIgnored
+      source.delete();
+      throw new IOException("Could not move " + source + " to " + destination);
+    }
+  }
+}
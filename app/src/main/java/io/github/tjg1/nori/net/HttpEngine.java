@@ -0,0 +1,299 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.net;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.squareup.okhttp.Cache;
+import com.squareup.okhttp.CacheControl;
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
+import com.squareup.picasso.OkHttpDownloader;
+import com.squareup.picasso.Picasso;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import io.github.tjg1.nori.image.BitmapCache;
+import io.github.tjg1.nori.util.NetworkUtils;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+
+/**
+ * App-wide HTTP engine. Every network consumer in the app (Search API clients, Picasso and the wallpaper/download code)
+ * shares the same OkHttp connection pool and disk cache, so that connections, TLS sessions and DNS lookups
+ * to the same image board are reused instead of being set up again by each component.
+ * <p/>
+ * The shared client is handed to its consumers explicitly with {@link #getClient(Context)}. Connections made by
+ * other code in the process through {@link java.net.URL} are left alone, so they are never served from the cache
+ * while offline or counted by the {@link BandwidthEstimator}.
+ */
+public abstract class HttpEngine {
+  /** Name of the HTTP disk cache directory, relative to {@link Context#getCacheDir()}. */
+  private static final String CACHE_DIRECTORY_NAME = "http";
+  /** Maximum size of the HTTP disk cache, in bytes. */
+  private static final long CACHE_MAX_SIZE = 64L * 1024L * 1024L;
+  /** Maximum number of concurrent asynchronous requests. */
+  private static final int MAX_REQUESTS = 16;
+  /** Maximum number of concurrent asynchronous requests to a single host. */
+  private static final int MAX_REQUESTS_PER_HOST = 4;
+  /** Connect timeout, in seconds. */
+  private static final int CONNECT_TIMEOUT = 15;
+  /** Read timeout, in seconds. */
+  private static final int READ_TIMEOUT = 30;
+  /** Shared OkHttp client instance. */
+  private static OkHttpClient okHttpClient;
+
+  /**
+   * Set up the shared HTTP engine. Should be called once from {@link android.app.Application#onCreate()}, before any
+   * network requests are made.
+   *
+   * @param context Android context.
+   */
+  public static synchronized void install(Context context) {
+    if (okHttpClient != null) {
+      return;
+    }
+    okHttpClient = createOkHttpClient(context.getApplicationContext());
+
+    // Make Picasso.with(Context) return an instance that uses the shared client and the two-tier memory cache.
+    Picasso picasso = new Picasso.Builder(context.getApplicationContext())
+        .downloader(new OkHttpDownloader(okHttpClient))
+        .memoryCache(BitmapCache.get(context))
+        .build();
+    try {
+      Picasso.setSingletonInstance(picasso);
+    } catch (IllegalStateException ignored) {
+      // Picasso singleton has already been created.
+    }
+  }
+
+  /**
+   * Get the shared {@link OkHttpClient} instance.
+   *
+   * @param context Android context.
+   * @return Shared OkHttp client.
+   */
+  @NonNull
+  public static synchronized OkHttpClient getClient(Context context) {
+    if (okHttpClient == null) {
+      install(context);
+    }
+    return okHttpClient;
+  }
+
+  /**
+   * Open a stream to the body of a HTTP resource using the shared client. The stream has to be closed by the caller.
+   *
+   * @param context Android context.
+   * @param url     URL of the resource.
+   * @return Input stream with the response body.
+   * @throws IOException Network error or unsuccessful HTTP response code.
+   */
+  @NonNull
+  public static InputStream openStream(Context context, String url) throws IOException {
+    return openStream(context, url, null);
+  }
+
+  /**
+   * Open a stream to the body of a HTTP resource using the shared client. The stream has to be closed by the caller.
+   *
+   * @param context      Android context.
+   * @param url          URL of the resource.
+   * @param cacheControl Cache control directives of the request. Null to use the default caching behaviour.
+   * @return Input stream with the response body.
+   * @throws IOException Network error or unsuccessful HTTP response code.
+   */
+  @NonNull
+  public static InputStream openStream(Context context, String url, @Nullable CacheControl cacheControl)
+      throws IOException {
+    final Request.Builder requestBuilder = new Request.Builder().url(url);
+    if (cacheControl != null) {
+      requestBuilder.cacheControl(cacheControl);
+    }
+    Response response = getClient(context).newCall(requestBuilder.build()).execute();
+    if (!response.isSuccessful()) {
+      response.body().close();
+      throw new IOException("Unexpected HTTP response code: " + response.code());
+    }
+    return response.body().byteStream();
+  }
+
+  /**
+   * Create a new OkHttp client configured for the app.
+   *
+   * @param context Application context.
+   * @return New OkHttp client.
+   */
+  private static OkHttpClient createOkHttpClient(Context context) {
+    // OkHttp 2.x falls back to ConnectionPool.getDefault() in every client that doesn't set its own pool
+    // (such as the ones created by the norilib Search API clients), so using it here lets the search, thumbnail
+    // and image requests share connections. The pool keeps OkHttp's default size.
+    OkHttpClient client = new OkHttpClient();
+    client.setConnectionPool(ConnectionPool.getDefault());
+    client.setCache(new Cache(new File(context.getCacheDir(), CACHE_DIRECTORY_NAME), CACHE_MAX_SIZE));
+    client.setProtocols(Arrays.asList(Protocol.HTTP_2, Protocol.SPDY_3, Protocol.HTTP_1_1));
+    client.setConnectTimeout(CONNECT_TIMEOUT, TimeUnit.SECONDS);
+    client.setReadTimeout(READ_TIMEOUT, TimeUnit.SECONDS);
+    client.getDispatcher().setMaxRequests(MAX_REQUESTS);
+    client.getDispatcher().setMaxRequestsPerHost(MAX_REQUESTS_PER_HOST);
+    client.interceptors().add(new OfflineInterceptor(context));
+    client.networkInterceptors().add(new BandwidthInterceptor(BandwidthEstimator.get(context)));
+
+    return client;
+  }
+
+  /**
+   * Interceptor serving every request from the disk cache while the device is offline. Stale thumbnails and images
+   * are returned instead of failing to revalidate them, and requests for anything that isn't cached fail right away
+   * with 504 Gateway Timeout instead of waiting for the connect timeout.
+   */
+  private static class OfflineInterceptor implements Interceptor {
+    /** Application context, used to check the network connection. */
+    private final Context context;
+
+    /**
+     * Create a new offline interceptor.
+     *
+     * @param context Application context.
+     */
+    public OfflineInterceptor(Context context) {
+      this.context = context;
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+      Request request = chain.request();
+      if (!NetworkUtils.isConnected(context)) {
+        request = request.newBuilder()
+            .cacheControl(CacheControl.FORCE_CACHE)
+            .build();
+      }
+      return chain.proceed(request);
+    }
+  }
+
+  /**
+   * Network interceptor feeding the timings of received response bodies to the {@link BandwidthEstimator}. Only sees
+   * responses received from the network, with their body as transferred (before it is decompressed).
+   */
+  private static class BandwidthInterceptor implements Interceptor {
+    /** Bandwidth estimator fed with the transfer timings. */
+    private final BandwidthEstimator bandwidthEstimator;
+
+    /**
+     * Create a new bandwidth interceptor.
+     *
+     * @param bandwidthEstimator Bandwidth estimator fed with the transfer timings.
+     */
+    public BandwidthInterceptor(BandwidthEstimator bandwidthEstimator) {
+      this.bandwidthEstimator = bandwidthEstimator;
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+      final Response response = chain.proceed(chain.request());
+      return response.newBuilder()
+          .body(new MeasuredResponseBody(response.body(), bandwidthEstimator))
+          .build();
+    }
+  }
+
+  /** Response body reporting the time spent reading it to a {@link BandwidthEstimator}. */
+  private static class MeasuredResponseBody extends ResponseBody {
+    /** Response body received from the network. */
+    private final ResponseBody body;
+    /** Bandwidth estimator the transfer is reported to. */
+    private final BandwidthEstimator bandwidthEstimator;
+    /** Measured source of the body. */
+    private BufferedSource source;
+
+    /**
+     * Create a new measured response body.
+     *
+     * @param body               Response body received from the network.
+     * @param bandwidthEstimator Bandwidth estimator the transfer is reported to.
+     */
+    public MeasuredResponseBody(ResponseBody body, BandwidthEstimator bandwidthEstimator) {
+      this.body = body;
+      this.bandwidthEstimator = bandwidthEstimator;
+    }
+
+    @Override
+    public MediaType contentType() {
+      return body.contentType();
+    }
+
+    @Override
+    public long contentLength() throws IOException {
+      return body.contentLength();
+    }
+
+    @Override
+    public BufferedSource source() throws IOException {
+      if (source == null) {
+        source = Okio.buffer(new ForwardingSource(body.source()) {
+          /** True if the first bytes have been requested. */
+          private boolean isStarted;
+          /** True if the transfer has been reported as finished. */
+          private boolean isFinished;
+
+          @Override
+          public long read(Buffer sink, long byteCount) throws IOException {
+            // The transfer starts when the body is first read, not when the headers are received.
+            if (!isStarted) {
+              isStarted = true;
+              bandwidthEstimator.onTransferStart(SystemClock.elapsedRealtime());
+            }
+            final long bytesRead;
+            try {
+              bytesRead = super.read(sink, byteCount);
+            } catch (IOException e) {
+              finish();
+              throw e;
+            }
+            if (bytesRead == -1) {
+              finish();
+            } else {
+              bandwidthEstimator.onBytesTransferred(bytesRead);
+            }
+            return bytesRead;
+          }
+
+          @Override
+          public void close() throws IOException {
+            finish();
+            super.close();
+          }
+
+          /** Report the end of the transfer, if it has been started and not reported yet. */
+          private void finish() {
+            if (isStarted && !isFinished) {
+              isFinished = true;
+              bandwidthEstimator.onTransferEnd(SystemClock.elapsedRealtime());
+            }
+          }
+        });
+      }
+      return source;
+    }
+  }
+}
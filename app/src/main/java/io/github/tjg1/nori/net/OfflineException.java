@@ -0,0 +1,24 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.net;
+
+import java.io.IOException;
+
+/**
+ * Thrown when something isn't available from the disk caches and can't be fetched because the device is offline.
+ * Unlike other network errors, the request should be retried as soon as a connection is available again.
+ */
+public class OfflineException extends IOException {
+  /**
+   * Create a new exception.
+   *
+   * @param message Detail message.
+   */
+  public OfflineException(String message) {
+    super(message);
+  }
+}
@@ -0,0 +1,578 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.search;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.SearchResult;
+import io.github.tjg1.library.norilib.Tag;
+import io.github.tjg1.library.norilib.clients.SearchClient;
+
+/**
+ * Sends a query to several Search APIs at once and merges the received pages into a single {@link PagedSearchResult}.
+ * <p/>
+ * Pages are appended in the order they arrive, so a slow service never holds back the images from the faster ones.
+ * Images cross-posted to more than one service are only added once, using their MD5 checksum or file URL to recognise
+ * them. Each service only has a single request in flight at a time. Its timeout adapts to the latency measured for
+ * that service, and failed requests are retried after an exponentially increasing delay. Requests are run on a small
+ * shared thread pool, where they are filtered with the {@link SearchResultFilter}. Latency and timeouts are measured
+ * from the time a request starts running, so time spent waiting for a free thread never counts against a service.
+ * <p/>
+ * All methods must be called from the UI thread.
+ */
+public class FederatedSearch {
+  /** Maximum number of requests run at the same time, across all federated searches. */
+  private static final int MAX_CONCURRENT_REQUESTS = 4;
+  /** Time idle request threads are kept alive for, in seconds. */
+  private static final long THREAD_KEEP_ALIVE = 30;
+  /** Fetch more pages when there are fewer images than this left below the scroll position. */
+  private static final int MIN_ITEMS_AHEAD = 20;
+  /** Latency assumed for a service until its first page has been received, in milliseconds. */
+  private static final long DEFAULT_LATENCY = 3000;
+  /** Weight given to new samples in the moving average of each service's latency. */
+  private static final float SMOOTHING_FACTOR = 0.3f;
+  /** A request times out after this many times the average latency of its service. */
+  private static final int TIMEOUT_FACTOR = 4;
+  /** Shortest timeout given to a request, in milliseconds. */
+  private static final long MIN_TIMEOUT = 5000;
+  /** Longest timeout given to a request, in milliseconds. */
+  private static final long MAX_TIMEOUT = 30000;
+  /** Delay before the first retry of a failed request, in milliseconds. Doubled after every consecutive failure. */
+  private static final long MIN_BACKOFF = 1000;
+  /** Longest delay between retries of a failed request, in milliseconds. */
+  private static final long MAX_BACKOFF = 60000;
+  /** A service is given up on after this many consecutive failures. */
+  private static final int MAX_FAILURES = 5;
+  /** Offset passed to fetch the first page with the API's default offset. */
+  private static final int FIRST_PAGE = -1;
+  /** Identifier used to keep the offset of the next page of each service in a saved instance state bundle. */
+  private static final String BUNDLE_ID_NEXT_OFFSETS = "io.github.tjg1.nori.FederatedSearch.nextOffsets";
+  /** Identifier used to keep the services that have returned their last page in a saved instance state bundle. */
+  private static final String BUNDLE_ID_REACHED_LAST_PAGE = "io.github.tjg1.nori.FederatedSearch.reachedLastPage";
+  /** Identifier used to keep the service each image in the search result came from in a saved instance state bundle. */
+  private static final String BUNDLE_ID_SERVICE_INDICES = "io.github.tjg1.nori.FederatedSearch.serviceIndices";
+  /** Thread pool running the requests. */
+  private static final ExecutorService requestExecutor;
+  /** Application context, used to get the filter preferences. */
+  private final Context context;
+  /** Search result the received pages are merged into. */
+  private final PagedSearchResult searchResult;
+  /** Query string (a space-separated list of tags). */
+  private final String query;
+  /** Listener notified of failed requests and fetching state changes. */
+  private final Listener listener;
+  /** Services searched. */
+  private final List<Service> services;
+  /** Used to deliver results and timeouts on the UI thread. */
+  private final Handler handler = new Handler(Looper.getMainLooper());
+  /** MD5 checksums and file URLs of the merged images. */
+  private final Set<String> mergedImages = new HashSet<>();
+  /** Retries failed requests once their backoff delay has passed. */
+  private final Runnable retryRunnable = new Runnable() {
+    @Override
+    public void run() {
+      requestPages(true);
+    }
+  };
+  /** Index of the service each image in the search result came from, by position. */
+  private byte[] serviceIndices = new byte[0];
+  /** Number of used entries in {@link #serviceIndices}. */
+  private int serviceIndexCount;
+  /** Set to true while the merged images are read back after the search has been restored. */
+  private boolean isRestoring;
+  /** Set to true if pages were requested while {@link #isRestoring}. */
+  private boolean isFetchPending;
+  /** Set to true when this search has been cancelled. */
+  private boolean isCancelled;
+  /** Fetching state last reported to the listener. */
+  private boolean wasFetching;
+
+  static {
+    final ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_CONCURRENT_REQUESTS, MAX_CONCURRENT_REQUESTS,
+        THREAD_KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+    executor.allowCoreThreadTimeOut(true);
+    requestExecutor = executor;
+  }
+
+  /**
+   * Create a new federated search. Call {@link #fetchMore()} to request the first pages.
+   *
+   * @param context      Android context.
+   * @param settings     Settings of the services to search.
+   * @param searchResult Search result the received pages are merged into. Should be created with
+   *                     {@link PagedSearchResult#PagedSearchResult(Context, Tag[])}.
+   * @param listener     Listener notified of failed requests and fetching state changes.
+   */
+  public FederatedSearch(@NonNull Context context, @NonNull List<SearchClient.Settings> settings,
+                         @NonNull PagedSearchResult searchResult, @NonNull Listener listener) {
+    this.context = context.getApplicationContext();
+    this.searchResult = searchResult;
+    this.query = Tag.stringFromArray(searchResult.getQuery());
+    this.listener = listener;
+    this.services = new ArrayList<>(settings.size());
+    for (SearchClient.Settings serviceSettings : settings) {
+      services.add(new Service(serviceSettings));
+    }
+  }
+
+  /**
+   * Check if this federated search is fetching pages for given search result.
+   *
+   * @param searchResult Search result.
+   * @return True if pages are merged into the given search result.
+   */
+  public boolean isSearching(PagedSearchResult searchResult) {
+    return !isCancelled && this.searchResult == searchResult;
+  }
+
+  /** @return True if there are requests in flight. */
+  public boolean isFetching() {
+    for (Service service : services) {
+      if (service.pendingRequest != null) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Get the settings of the service an image was received from.
+   *
+   * @param position Position of the image in the search result.
+   * @return Settings of the service the image was received from. Null if the image wasn't merged by this search.
+   */
+  @Nullable
+  public SearchClient.Settings getSettings(int position) {
+    if (position < 0 || position >= serviceIndexCount) {
+      return null;
+    }
+    return services.get(serviceIndices[position]).settings;
+  }
+
+  /**
+   * Called when the scroll position changes. Requests the next page from every service when the user gets close to
+   * the end of the search result.
+   *
+   * @param position  Position of the last visible item.
+   * @param itemCount Total number of items currently in the search result.
+   */
+  public void onPositionChanged(int position, int itemCount) {
+    if (itemCount - position - 1 < MIN_ITEMS_AHEAD) {
+      fetchMore();
+    }
+  }
+
+  /**
+   * Request the next page from every service that has more pages, isn't waiting for a page already and isn't backing
+   * off after a failure.
+   */
+  public void fetchMore() {
+    requestPages(false);
+  }
+
+  /** Cancel all pending requests. Received pages will no longer be merged into the search result. */
+  public void cancel() {
+    isCancelled = true;
+    handler.removeCallbacksAndMessages(null);
+    for (Service service : services) {
+      if (service.pendingRequest != null) {
+        service.pendingRequest.cancel();
+        service.pendingRequest = null;
+      }
+    }
+  }
+
+  /**
+   * Keep the progress of each service in a bundle, so that the search can be resumed after the activity is recreated.
+   *
+   * @param outState Bundle to save the state to.
+   */
+  public void onSaveInstanceState(@NonNull Bundle outState) {
+    final int[] nextOffsets = new int[services.size()];
+    final boolean[] reachedLastPage = new boolean[services.size()];
+    for (int i = 0; i < services.size(); i++) {
+      nextOffsets[i] = services.get(i).nextOffset;
+      reachedLastPage[i] = services.get(i).reachedLastPage;
+    }
+    outState.putIntArray(BUNDLE_ID_NEXT_OFFSETS, nextOffsets);
+    outState.putBooleanArray(BUNDLE_ID_REACHED_LAST_PAGE, reachedLastPage);
+    outState.putByteArray(BUNDLE_ID_SERVICE_INDICES, Arrays.copyOf(serviceIndices, serviceIndexCount));
+  }
+
+  /**
+   * Resume the search from the state saved by {@link #onSaveInstanceState(Bundle)}. The images already in the search
+   * result are read back in the background, so that they aren't merged again. No pages are requested until then.
+   *
+   * @param savedInstanceState Bundle the state was saved to. Ignored if it was saved for a different set of services.
+   */
+  public void onRestoreInstanceState(@Nullable Bundle savedInstanceState) {
+    if (savedInstanceState == null) {
+      return;
+    }
+    final int[] nextOffsets = savedInstanceState.getIntArray(BUNDLE_ID_NEXT_OFFSETS);
+    final boolean[] reachedLastPage = savedInstanceState.getBooleanArray(BUNDLE_ID_REACHED_LAST_PAGE);
+    final byte[] serviceIndices = savedInstanceState.getByteArray(BUNDLE_ID_SERVICE_INDICES);
+    if (nextOffsets == null || reachedLastPage == null || serviceIndices == null
+        || nextOffsets.length != services.size() || reachedLastPage.length != services.size()) {
+      return;
+    }
+    for (int i = 0; i < services.size(); i++) {
+      services.get(i).nextOffset = nextOffsets[i];
+      services.get(i).reachedLastPage = reachedLastPage[i];
+    }
+    this.serviceIndices = serviceIndices;
+    this.serviceIndexCount = serviceIndices.length;
+
+    // Read back the images merged before the search was restored.
+    isRestoring = true;
+    searchResult.getAllImages(new PagedSearchResult.AllImagesCallback() {
+      @Override
+      public void onAllImagesLoaded(@NonNull List<Image> images) {
+        for (Image image : images) {
+          addMergedImage(image);
+        }
+        isRestoring = false;
+        if (isFetchPending) {
+          isFetchPending = false;
+          requestPages(false);
+        }
+      }
+    });
+  }
+
+  /**
+   * Request the next page from services that aren't waiting for a page already and aren't backing off after a failure.
+   *
+   * @param retryOnly Only send requests to services recovering from a failure.
+   */
+  private void requestPages(boolean retryOnly) {
+    if (isCancelled) {
+      return;
+    } else if (isRestoring) {
+      isFetchPending = true;
+      return;
+    }
+    final long now = SystemClock.uptimeMillis();
+    for (Service service : services) {
+      if (!service.reachedLastPage && service.pendingRequest == null && now >= service.retryTime
+          && (!retryOnly || service.failureCount > 0)) {
+        // The request posts its own timeout once it starts running.
+        service.pendingRequest = new Request(service);
+        requestExecutor.execute(service.pendingRequest);
+      }
+    }
+    scheduleRetry();
+    updateFetchingState();
+  }
+
+  /** Schedule a retry for the service recovering from a failure that will be the first to finish its backoff delay. */
+  private void scheduleRetry() {
+    long retryTime = Long.MAX_VALUE;
+    for (Service service : services) {
+      if (!service.reachedLastPage && service.pendingRequest == null && service.failureCount > 0) {
+        retryTime = Math.min(retryTime, service.retryTime);
+      }
+    }
+    handler.removeCallbacks(retryRunnable);
+    if (retryTime != Long.MAX_VALUE) {
+      handler.postAtTime(retryRunnable, retryTime);
+    }
+  }
+
+  /**
+   * Called on the UI thread when a request has finished.
+   *
+   * @param request Finished request.
+   */
+  private void onRequestFinished(Request request) {
+    final Service service = request.service;
+    if (request.isCancelled || service.pendingRequest != request) {
+      return;
+    }
+    handler.removeCallbacks(request.timeoutRunnable);
+    service.pendingRequest = null;
+
+    if (request.error != null) {
+      onRequestFailed(service, request.error);
+    } else {
+      // Update the service's latency estimate and move on to the next page.
+      service.latency = SMOOTHING_FACTOR * (SystemClock.uptimeMillis() - request.requestTime)
+          + (1 - SMOOTHING_FACTOR) * service.latency;
+      service.failureCount = 0;
+      service.nextOffset = request.pageOffset + 1;
+      service.reachedLastPage = request.isLastPage;
+      mergeImages(service, request.images);
+    }
+    updateLastPage();
+    updateFetchingState();
+  }
+
+  /** Mark the search result as complete once every service has returned its last page, or has been given up on. */
+  private void updateLastPage() {
+    for (Service service : services) {
+      if (!service.reachedLastPage) {
+        return;
+      }
+    }
+    searchResult.onLastPage();
+  }
+
+  /**
+   * Back off from a service after a failed request.
+   *
+   * @param service Service the request was sent to.
+   * @param e       Error.
+   */
+  private void onRequestFailed(Service service, IOException e) {
+    service.failureCount++;
+    if (service.failureCount >= MAX_FAILURES) {
+      // Stop waiting for a service that keeps failing, so that the search result can be completed.
+      service.reachedLastPage = true;
+    } else {
+      service.retryTime = SystemClock.uptimeMillis() + service.getBackoff();
+    }
+    scheduleRetry();
+    listener.onServiceFailed(service.settings, e);
+  }
+
+  /**
+   * Append images received from a service to the search result, skipping images already received from other
+   * services.
+   *
+   * @param service Service the images were received from.
+   * @param images  Filtered images.
+   */
+  private void mergeImages(Service service, Image[] images) {
+    final Image[] newImages = new Image[images.length];
+    int count = 0;
+    for (Image image : images) {
+      if (addMergedImage(image)) {
+        newImages[count++] = image;
+      }
+    }
+
+    // Remember which service each new position came from.
+    if (serviceIndexCount + count > serviceIndices.length) {
+      serviceIndices = Arrays.copyOf(serviceIndices, Math.max(serviceIndexCount + count, serviceIndices.length * 2));
+    }
+    Arrays.fill(serviceIndices, serviceIndexCount, serviceIndexCount + count, (byte) services.indexOf(service));
+    serviceIndexCount += count;
+
+    // The offset of the search result counts the pages merged into it.
+    searchResult.addImages(Arrays.copyOf(newImages, count), searchResult.getCurrentOffset() + 1);
+  }
+
+  /**
+   * Remember an image as merged into the search result.
+   *
+   * @param image Image.
+   * @return False if the same image has already been merged.
+   */
+  private boolean addMergedImage(Image image) {
+    final boolean hasMd5 = !TextUtils.isEmpty(image.md5);
+    if ((hasMd5 && mergedImages.contains(image.md5))
+        || (image.fileUrl != null && mergedImages.contains(image.fileUrl))) {
+      return false;
+    }
+    if (hasMd5) {
+      mergedImages.add(image.md5);
+    }
+    if (image.fileUrl != null) {
+      mergedImages.add(image.fileUrl);
+    }
+    return true;
+  }
+
+  /** Notify the listener if the fetching state has changed since it was last reported. */
+  private void updateFetchingState() {
+    if (!isCancelled && wasFetching != isFetching()) {
+      wasFetching = isFetching();
+      listener.onFetchingStateChanged(wasFetching);
+    }
+  }
+
+  /** Listener notified of the progress of a federated search. */
+  public interface Listener {
+    /**
+     * Called when a request to one of the services has failed or timed out. The request is retried later, unless the
+     * service has failed too many times.
+     *
+     * @param settings Settings of the service.
+     * @param e        Error.
+     */
+    void onServiceFailed(SearchClient.Settings settings, IOException e);
+
+    /**
+     * Called when the search starts or stops waiting for pages from the services.
+     *
+     * @param isFetching True if there are requests in flight.
+     */
+    void onFetchingStateChanged(boolean isFetching);
+  }
+
+  /** State of the search on one of the services. */
+  private static class Service {
+    /** Service settings. */
+    private final SearchClient.Settings settings;
+    /** Search API client. */
+    private final SearchClient searchClient;
+    /** Offset of the next page to request, or {@link #FIRST_PAGE}. */
+    private int nextOffset = FIRST_PAGE;
+    /** Set to true when the service has returned its last page, or failed too many times. */
+    private boolean reachedLastPage;
+    /** Request currently in flight. */
+    private Request pendingRequest;
+    /** Number of consecutive failed requests. */
+    private int failureCount;
+    /** Time before which no request should be sent, while backing off after a failure. */
+    private long retryTime;
+    /** Average time it takes the service to return a page, in milliseconds. */
+    private float latency = DEFAULT_LATENCY;
+
+    /**
+     * Create the search state for a service.
+     *
+     * @param settings Service settings.
+     */
+    public Service(SearchClient.Settings settings) {
+      this.settings = settings;
+      this.searchClient = settings.createSearchClient();
+    }
+
+    /** @return Time to wait for a page before giving up on the request, in milliseconds. */
+    public long getTimeout() {
+      return Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, (long) (latency * TIMEOUT_FACTOR)));
+    }
+
+    /** @return Time to wait before retrying after the last failure, in milliseconds. */
+    public long getBackoff() {
+      return Math.min(MAX_BACKOFF, MIN_BACKOFF << Math.min(failureCount - 1, 16));
+    }
+  }
+
+  /** Request for a single page, run on the {@link #requestExecutor}. */
+  private class Request implements Runnable {
+    /** Service the request is sent to. */
+    private final Service service;
+    /** Offset of the requested page, or {@link #FIRST_PAGE}. */
+    private final int offset;
+    /** Time to wait for the page once the request has started running, in milliseconds. */
+    private final long timeout;
+    /** Gives up on the request if the service doesn't respond in time. */
+    private final Runnable timeoutRunnable = new Runnable() {
+      @Override
+      public void run() {
+        if (!isCancelled && service.pendingRequest == Request.this) {
+          // The result will be ignored if it is still received.
+          cancel();
+          service.pendingRequest = null;
+          onRequestFailed(service, new InterruptedIOException("Request timed out."));
+          updateLastPage();
+          updateFetchingState();
+        }
+      }
+    };
+    /** Set to true if the result should no longer be merged into the search result. */
+    private volatile boolean isCancelled;
+    /** Time the request started running at. Read on the UI thread once the request has finished. */
+    private long requestTime;
+    /** Thread running the request, interrupted when the request is cancelled. Guarded by this request's lock. */
+    private Thread thread;
+    /** Images received that passed the user's filters. */
+    private Image[] images;
+    /** Offset of the received page. */
+    private int pageOffset;
+    /** True if the service returned no images. */
+    private boolean isLastPage;
+    /** Error thrown while fetching the page. */
+    private IOException error;
+
+    /**
+     * Create a request for the next page of a service.
+     *
+     * @param service Service to send the request to.
+     */
+    public Request(Service service) {
+      this.service = service;
+      this.offset = service.nextOffset;
+      this.timeout = service.getTimeout();
+    }
+
+    /** Cancel the request, interrupting the network call if it is running. Called from the UI thread. */
+    public synchronized void cancel() {
+      isCancelled = true;
+      if (thread != null) {
+        // The Search API clients don't expose their calls, but Okio gives up on interrupted threads.
+        thread.interrupt();
+      }
+    }
+
+    @Override
+    public void run() {
+      // Skip requests cancelled while waiting for a free thread.
+      synchronized (this) {
+        if (isCancelled) {
+          return;
+        }
+        thread = Thread.currentThread();
+      }
+      // Start measuring the latency now, rather than when the request was queued.
+      requestTime = SystemClock.uptimeMillis();
+      handler.postDelayed(timeoutRunnable, timeout);
+
+      // Fetch and filter the page on the background thread.
+      try {
+        final SearchResult page = (offset == FIRST_PAGE) ? service.searchClient.search(query)
+            : service.searchClient.search(query, offset);
+        final Image[] pageImages = page.getImages();
+        TagDictionary.intern(pageImages);
+        images = SearchResultFilter.get(context).apply(pageImages);
+        pageOffset = page.getCurrentOffset();
+        isLastPage = pageImages.length == 0;
+      } catch (IOException e) {
+        error = e;
+      } catch (RuntimeException e) {
+        // The norilib parsers throw unchecked exceptions on malformed responses.
+        error = new IOException(e);
+      } finally {
+        synchronized (this) {
+          thread = null;
+          // Don't leave an interrupt behind for the next request run on this thread.
+          Thread.interrupted();
+        }
+      }
+
+      // Merge the result on the UI thread.
+      handler.post(new Runnable() {
+        @Override
+        public void run() {
+          onRequestFinished(Request.this);
+        }
+      });
+    }
+  }
+}
@@ -0,0 +1,251 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.search;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.SearchResult;
+import io.github.tjg1.library.norilib.Tag;
+import io.github.tjg1.library.norilib.clients.SearchClient;
+import io.github.tjg1.nori.net.OfflineException;
+import io.github.tjg1.nori.util.NetworkUtils;
+import io.github.tjg1.nori.util.Timeline;
+
+/**
+ * Fetches a page from the Search API and filters it with the {@link SearchResultFilter} on a background thread.
+ * <p/>
+ * The asynchronous methods of {@link SearchClient} deliver the received page on the UI thread, where filtering
+ * thousands of images against the user's tag filter would drop frames. This task uses the blocking API instead, so
+ * that the UI thread only ever receives the images that should be displayed.
+ * <p/>
+ * Received pages are stored in the {@link SearchPageCache}. Cached pages younger than the time-to-live set by the
+ * user are delivered without contacting the API. Older pages are delivered immediately to a
+ * {@link RevalidatingCallback}, while a fresh copy is fetched from the API in the background.
+ * <p/>
+ * While the device is offline, cached pages of any age are delivered with
+ * {@link Callback#onOfflinePage(SearchResult, boolean)} instead. Pages that aren't cached fail with an
+ * {@link OfflineException} without waiting for the connection to time out. If the device is online but the API
+ * request fails, the outdated cached page is delivered with {@link Callback#onStalePage(SearchResult, boolean,
+ * IOException)}, together with the error.
+ */
+public class FilteredSearchTask extends AsyncTask<Void, SearchResult, SearchResult> {
+  /** Offset passed to fetch the first page with the API's default offset. */
+  public static final int FIRST_PAGE = -1;
+  /** Application context, used to get the filter preferences. */
+  private final Context context;
+  /** Search API client used to fetch the page. */
+  private final SearchClient searchClient;
+  /** Query string (a space-separated list of tags). */
+  private final String query;
+  /** Page offset, or {@link #FIRST_PAGE}. */
+  private final int offset;
+  /** Callback receiving the filtered page on the UI thread. */
+  private final Callback callback;
+  /** True if the API returned no images, so there are no more pages to fetch. */
+  private boolean isLastPage;
+  /** True if the cached page delivered to the {@link RevalidatingCallback} was the last page. */
+  private boolean isCachedLastPage;
+  /** True if the API returned the same images as the cached page delivered to the {@link RevalidatingCallback}. */
+  private boolean isNotModified;
+  /** True if the page was read from the cache because the device is offline. */
+  private boolean isOffline;
+  /** True if the page was read from the cache because the API request failed while the device was online. */
+  private boolean isStale;
+  /** Error thrown while fetching the page. */
+  private IOException error;
+
+  /**
+   * Create a new task. Use {@link #execute(Context, SearchClient, String, int, Callback)} to start it.
+   *
+   * @param context      Android context.
+   * @param searchClient Search API client used to fetch the page.
+   * @param query        Query string (a space-separated list of tags).
+   * @param offset       Page offset, or {@link #FIRST_PAGE}.
+   * @param callback     Callback receiving the filtered page on the UI thread.
+   */
+  private FilteredSearchTask(@NonNull Context context, @NonNull SearchClient searchClient, @NonNull String query,
+                             int offset, @NonNull Callback callback) {
+    this.context = context.getApplicationContext();
+    this.searchClient = searchClient;
+    this.query = query;
+    this.offset = offset;
+    this.callback = callback;
+  }
+
+  /**
+   * Fetch and filter a page in the background. Must be called from the UI thread.
+   * <p/>
+   * If the callback is a {@link RevalidatingCallback}, an outdated cached copy of the page is delivered to it while
+   * the page is being fetched.
+   *
+   * @param context      Android context.
+   * @param searchClient Search API client used to fetch the page.
+   * @param query        Query string (a space-separated list of tags).
+   * @param offset       Page offset, or {@link #FIRST_PAGE}.
+   * @param callback     Callback receiving the filtered page on the UI thread.
+   */
+  public static void execute(@NonNull Context context, @NonNull SearchClient searchClient, @NonNull String query,
+                             int offset, @NonNull Callback callback) {
+    new FilteredSearchTask(context, searchClient, query, offset, callback)
+        .executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+  }
+
+  @Override
+  protected SearchResult doInBackground(Void... params) {
+    // Don't wait for the connection to time out while offline, show whatever has been cached instead.
+    if (!NetworkUtils.isConnected(context)) {
+      final SearchPageCache.Entry offlinePage =
+          SearchPageCache.get(context, searchClient.getSettings(), query, offset, true);
+      if (offlinePage == null) {
+        error = new OfflineException("Page is not cached and the device is offline");
+        return null;
+      }
+      isOffline = true;
+      isLastPage = offlinePage.images.length == 0;
+      return filter(offlinePage.images, offlinePage.currentOffset);
+    }
+
+    // Use the cached page if it is recent enough, otherwise show it while it is being fetched again.
+    final long timeToLive = SearchPageCache.getTimeToLive(context);
+    final SearchPageCache.Entry cachedPage = (timeToLive != SearchPageCache.DISABLED) ?
+        SearchPageCache.get(context, searchClient.getSettings(), query, offset) : null;
+    if (cachedPage != null && cachedPage.isFresh(timeToLive)) {
+      isLastPage = cachedPage.images.length == 0;
+      return filter(cachedPage.images, cachedPage.currentOffset);
+    }
+    final boolean isRevalidating = cachedPage != null && callback instanceof RevalidatingCallback;
+    if (isRevalidating) {
+      isCachedLastPage = cachedPage.images.length == 0;
+      publishProgress(filter(cachedPage.images, cachedPage.currentOffset));
+    }
+
+    final SearchResult page;
+    final long startTime = Timeline.beginSection("SearchClient.search");
+    try {
+      page = (offset == FIRST_PAGE) ? searchClient.search(query) : searchClient.search(query, offset);
+    } catch (IOException | RuntimeException e) {
+      // The norilib parsers throw unchecked exceptions on malformed responses.
+      error = (e instanceof IOException) ? (IOException) e : new IOException(e);
+      if (cachedPage != null && !isRevalidating) {
+        // Fall back to the outdated page, e.g. if the network is up but the API can't be reached.
+        isStale = true;
+        isLastPage = cachedPage.images.length == 0;
+        return filter(cachedPage.images, cachedPage.currentOffset);
+      }
+      return null;
+    } finally {
+      Timeline.endSection("SearchClient.search", startTime);
+    }
+    final Image[] images = page.getImages();
+    if (timeToLive != SearchPageCache.DISABLED) {
+      SearchPageCache.put(context, searchClient.getSettings(), query, offset, images, page.getCurrentOffset());
+    }
+    if (isRevalidating && cachedPage.isSamePage(images)) {
+      isNotModified = true;
+      return null;
+    }
+    isLastPage = images.length == 0;
+    return filter(images, page.getCurrentOffset());
+  }
+
+  @Override
+  protected void onProgressUpdate(SearchResult... cachedPage) {
+    ((RevalidatingCallback) callback).onCachedPage(cachedPage[0], isCachedLastPage);
+  }
+
+  @Override
+  protected void onPostExecute(SearchResult page) {
+    if (page != null && isOffline) {
+      callback.onOfflinePage(page, isLastPage);
+    } else if (page != null && isStale) {
+      callback.onStalePage(page, isLastPage, error);
+    } else if (page != null) {
+      callback.onSuccess(page, isLastPage);
+    } else if (isNotModified) {
+      ((RevalidatingCallback) callback).onNotModified();
+    } else {
+      callback.onFailure(error);
+    }
+  }
+
+  /**
+   * Filter a page. Only the images that pass the user's filters are handed to the UI thread, with their tags interned.
+   *
+   * @param images        Images received from the API.
+   * @param currentOffset Offset of the page returned by the API.
+   * @return Filtered page.
+   */
+  private SearchResult filter(Image[] images, int currentOffset) {
+    TagDictionary.intern(images);
+    final SearchResult filteredPage = new SearchResult(SearchResultFilter.get(context).apply(images),
+        Tag.arrayFromString(query), currentOffset);
+    if (images.length == 0) {
+      filteredPage.onLastPage();
+    }
+    return filteredPage;
+  }
+
+  /** Callback receiving the filtered page on the UI thread. */
+  public interface Callback {
+    /**
+     * Called if the page could not be fetched.
+     *
+     * @param e Error.
+     */
+    void onFailure(IOException e);
+
+    /**
+     * Called when the page has been fetched and filtered.
+     *
+     * @param page       Images from the page that should be shown. May be empty even if there are more pages.
+     * @param isLastPage True if the API returned no images, so there are no more pages to fetch.
+     */
+    void onSuccess(SearchResult page, boolean isLastPage);
+
+    /**
+     * Called instead of {@link #onSuccess(SearchResult, boolean)} if the device is offline, but an outdated copy of
+     * the page was found in the cache.
+     *
+     * @param page       Images from the cached page that should be shown.
+     * @param isLastPage True if the cached page was empty.
+     */
+    void onOfflinePage(SearchResult page, boolean isLastPage);
+
+    /**
+     * Called instead of {@link #onFailure(IOException)} if the device is online but the API request failed, and an
+     * outdated copy of the page was found in the cache.
+     *
+     * @param page       Images from the cached page that should be shown.
+     * @param isLastPage True if the cached page was empty.
+     * @param e          Error returned by the API request.
+     */
+    void onStalePage(SearchResult page, boolean isLastPage, IOException e);
+  }
+
+  /**
+   * Callback receiving the cached copy of the page while a fresh copy is fetched from the API. If the cached page is
+   * shown, exactly one of {@link #onSuccess(SearchResult, boolean)}, {@link #onNotModified()} or
+   * {@link #onFailure(IOException)} is called once the page has been fetched.
+   */
+  public interface RevalidatingCallback extends Callback {
+    /**
+     * Called with the cached copy of the page, before the page has been fetched.
+     *
+     * @param page       Images from the cached page that should be shown.
+     * @param isLastPage True if the cached page was empty.
+     */
+    void onCachedPage(SearchResult page, boolean isLastPage);
+
+    /** Called if the fetched page contains the same images as the cached page passed to {@link #onCachedPage}. */
+    void onNotModified();
+  }
+}
@@ -0,0 +1,286 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.search;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Date;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.Tag;
+
+/**
+ * Binary format used to store {@link Image}s in the cache directory: search result chunks, cached API pages and the
+ * launch snapshot.
+ * <p/>
+ * {@link android.os.Parcel#marshall()} is not meant for persistent storage, as its format may change between platform
+ * versions. This format only depends on the fields of {@link Image} and starts with a version number, so data written
+ * by another version of the app is rejected instead of being misread.
+ */
+public abstract class ImageSerializer {
+  /** Identifies data written by this class. */
+  private static final int MAGIC = 0x6E6F7269;
+  /** Format version. Must be changed whenever the format changes. */
+  private static final int VERSION = 1;
+  /** Written in place of a length or an enum ordinal to mark a null value. */
+  private static final int NULL = -1;
+
+  /**
+   * Serialize images.
+   *
+   * @param images Images to serialize.
+   * @return Serialized images.
+   */
+  @NonNull
+  public static byte[] serialize(@NonNull Image[] images) {
+    final ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+    final DataOutputStream outputStream = new DataOutputStream(byteStream);
+    try {
+      outputStream.writeInt(MAGIC);
+      outputStream.writeInt(VERSION);
+      outputStream.writeInt(images.length);
+      for (Image image : images) {
+        writeImage(outputStream, image);
+      }
+      outputStream.flush();
+    } catch (IOException e) {
+      // ByteArrayOutputStream doesn't throw.
+      throw new AssertionError(e);
+    }
+    return byteStream.toByteArray();
+  }
+
+  /**
+   * Deserialize images serialized using {@link #serialize(Image[])}. The tags of the images are interned in the
+   * {@link TagDictionary}.
+   *
+   * @param data Serialized images.
+   * @return Images.
+   * @throws IOException The data is corrupted or was written in another format.
+   */
+  @NonNull
+  public static Image[] deserialize(@NonNull byte[] data) throws IOException {
+    final DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(data));
+    try {
+      if (inputStream.readInt() != MAGIC || inputStream.readInt() != VERSION) {
+        throw new IOException("Unsupported image format.");
+      }
+      final Image[] images = new Image[readLength(inputStream)];
+      for (int i = 0; i < images.length; i++) {
+        images[i] = readImage(inputStream);
+      }
+      // Share the tag objects with the rest of the app, rather than keeping a copy per image.
+      TagDictionary.intern(images);
+      return images;
+    } catch (RuntimeException e) {
+      // Invalid enum ordinals and other corruption not caught by readLength.
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Write a single image.
+   *
+   * @param out   Output stream.
+   * @param image Image.
+   * @throws IOException Error writing to the stream.
+   */
+  private static void writeImage(DataOutputStream out, Image image) throws IOException {
+    writeString(out, image.fileUrl);
+    writeInteger(out, image.width);
+    writeInteger(out, image.height);
+    writeString(out, image.previewUrl);
+    writeInteger(out, image.previewWidth);
+    writeInteger(out, image.previewHeight);
+    writeString(out, image.sampleUrl);
+    writeInteger(out, image.sampleWidth);
+    writeInteger(out, image.sampleHeight);
+    writeTags(out, image.tags);
+    writeString(out, image.id);
+    writeString(out, image.parentId);
+    writeString(out, image.webUrl);
+    writeString(out, image.pixivId);
+    out.writeInt(image.obscenityRating != null ? image.obscenityRating.ordinal() : NULL);
+    writeInteger(out, image.score);
+    writeString(out, image.md5);
+    writeString(out, image.source);
+    out.writeLong(image.createdAt != null ? image.createdAt.getTime() : Long.MIN_VALUE);
+    writeInteger(out, image.searchPage);
+    writeInteger(out, image.searchPagePosition);
+  }
+
+  /**
+   * Read a single image written by {@link #writeImage(DataOutputStream, Image)}.
+   *
+   * @param in Input stream.
+   * @return Image.
+   * @throws IOException Error reading from the stream.
+   */
+  private static Image readImage(DataInputStream in) throws IOException {
+    final Image image = new Image();
+    image.fileUrl = readString(in);
+    image.width = readInteger(in);
+    image.height = readInteger(in);
+    image.previewUrl = readString(in);
+    image.previewWidth = readInteger(in);
+    image.previewHeight = readInteger(in);
+    image.sampleUrl = readString(in);
+    image.sampleWidth = readInteger(in);
+    image.sampleHeight = readInteger(in);
+    image.tags = readTags(in);
+    image.id = readString(in);
+    image.parentId = readString(in);
+    image.webUrl = readString(in);
+    image.pixivId = readString(in);
+    final int obscenityRating = in.readInt();
+    image.obscenityRating = obscenityRating != NULL ? Image.ObscenityRating.values()[obscenityRating] : null;
+    image.score = readInteger(in);
+    image.md5 = readString(in);
+    image.source = readString(in);
+    final long createdAt = in.readLong();
+    image.createdAt = createdAt != Long.MIN_VALUE ? new Date(createdAt) : null;
+    image.searchPage = readInteger(in);
+    image.searchPagePosition = readInteger(in);
+    return image;
+  }
+
+  /**
+   * Write an array of tags.
+   *
+   * @param out  Output stream.
+   * @param tags Tags. May be null.
+   * @throws IOException Error writing to the stream.
+   */
+  private static void writeTags(DataOutputStream out, @Nullable Tag[] tags) throws IOException {
+    if (tags == null) {
+      out.writeInt(NULL);
+      return;
+    }
+    out.writeInt(tags.length);
+    for (Tag tag : tags) {
+      writeString(out, tag.getName());
+      out.writeInt(tag.getType() != null ? tag.getType().ordinal() : NULL);
+    }
+  }
+
+  /**
+   * Read an array of tags written by {@link #writeTags(DataOutputStream, Tag[])}.
+   *
+   * @param in Input stream.
+   * @return Tags. May be null.
+   * @throws IOException Error reading from the stream.
+   */
+  @Nullable
+  private static Tag[] readTags(DataInputStream in) throws IOException {
+    final int length = in.readInt();
+    if (length == NULL) {
+      return null;
+    }
+    final Tag[] tags = new Tag[checkLength(in, length)];
+    for (int i = 0; i < tags.length; i++) {
+      final String name = readString(in);
+      final int type = in.readInt();
+      tags[i] = type != NULL ? new Tag(name, Tag.Type.values()[type]) : new Tag(name);
+    }
+    return tags;
+  }
+
+  /**
+   * Write a string, which may be null. Unlike {@link DataOutputStream#writeUTF(String)}, strings are not limited to
+   * 64 KiB.
+   *
+   * @param out    Output stream.
+   * @param string String. May be null.
+   * @throws IOException Error writing to the stream.
+   */
+  private static void writeString(DataOutputStream out, @Nullable String string) throws IOException {
+    if (string == null) {
+      out.writeInt(NULL);
+      return;
+    }
+    final byte[] bytes = string.getBytes("UTF-8");
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Read a string written by {@link #writeString(DataOutputStream, String)}.
+   *
+   * @param in Input stream.
+   * @return String. May be null.
+   * @throws IOException Error reading from the stream.
+   */
+  @Nullable
+  private static String readString(DataInputStream in) throws IOException {
+    final int length = in.readInt();
+    if (length == NULL) {
+      return null;
+    }
+    final byte[] bytes = new byte[checkLength(in, length)];
+    in.readFully(bytes);
+    return new String(bytes, "UTF-8");
+  }
+
+  /**
+   * Write an integer, which may be null.
+   *
+   * @param out   Output stream.
+   * @param value Integer. May be null.
+   * @throws IOException Error writing to the stream.
+   */
+  private static void writeInteger(DataOutputStream out, @Nullable Integer value) throws IOException {
+    out.writeBoolean(value != null);
+    if (value != null) {
+      out.writeInt(value);
+    }
+  }
+
+  /**
+   * Read an integer written by {@link #writeInteger(DataOutputStream, Integer)}.
+   *
+   * @param in Input stream.
+   * @return Integer. May be null.
+   * @throws IOException Error reading from the stream.
+   */
+  @Nullable
+  private static Integer readInteger(DataInputStream in) throws IOException {
+    return in.readBoolean() ? in.readInt() : null;
+  }
+
+  /**
+   * Read the length of an array, which can't be null.
+   *
+   * @param in Input stream.
+   * @return Array length.
+   * @throws IOException The length is invalid.
+   */
+  private static int readLength(DataInputStream in) throws IOException {
+    return checkLength(in, in.readInt());
+  }
+
+  /**
+   * Check that a length read from the stream is plausible, so that corrupted data can't cause huge allocations. Every
+   * element takes at least one byte.
+   *
+   * @param in     Input stream.
+   * @param length Length read from the stream.
+   * @return The length.
+   * @throws IOException The length is negative or larger than the remaining data.
+   */
+  private static int checkLength(DataInputStream in, int length) throws IOException {
+    if (length < 0 || length > in.available()) {
+      throw new IOException("Corrupted data (invalid length " + length + ").");
+    }
+    return length;
+  }
+}
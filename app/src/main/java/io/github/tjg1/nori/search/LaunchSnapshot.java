@@ -0,0 +1,198 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.search;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.SearchResult;
+import io.github.tjg1.library.norilib.Tag;
+import io.github.tjg1.library.norilib.clients.SearchClient;
+import io.github.tjg1.nori.util.Timeline;
+
+/**
+ * Snapshot of the first page of the default query of the last selected service.
+ * <p/>
+ * On launch, the service settings have to be loaded from the database and the first page fetched from the Search API
+ * before anything can be shown in the grid. The snapshot is shown in the meantime, and replaced once the page has
+ * been fetched again.
+ * <p/>
+ * The page itself is kept in the {@link SearchPageCache}. The snapshot only records its cache key, so that it can be
+ * found before the service settings have been loaded. There is no snapshot while the user has disabled the cache.
+ */
+public abstract class LaunchSnapshot {
+  /** Log tag. */
+  private static final String TAG = "LaunchSnapshot";
+  /** Name of the snapshot file in the app's cache directory. */
+  private static final String FILE_NAME = "launch_snapshot";
+  /** Version of the snapshot file format. Snapshots written with a different version are ignored. */
+  private static final int SNAPSHOT_VERSION = 2;
+  /** Thread the snapshot is read and written on, so that a snapshot is never read while it is being replaced. */
+  private static final ExecutorService diskExecutor = Executors.newSingleThreadExecutor();
+
+  /**
+   * Replace the snapshot in the background.
+   *
+   * @param context   Android context.
+   * @param serviceId Database row ID of the service the page was fetched from.
+   * @param settings  Settings of the service the page was fetched from.
+   * @param query     Default query of the service.
+   */
+  public static void save(@NonNull Context context, final long serviceId, @NonNull final SearchClient.Settings settings,
+                          @NonNull final String query) {
+    final Context applicationContext = context.getApplicationContext();
+    diskExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        write(applicationContext, serviceId, settings, query);
+      }
+    });
+  }
+
+  /**
+   * Read the snapshot in the background.
+   *
+   * @param context   Android context.
+   * @param serviceId Database row ID of the last selected service.
+   * @param callback  Callback receiving the snapshot on the UI thread. Not called if there is no snapshot for the
+   *                  service.
+   */
+  public static void load(@NonNull Context context, final long serviceId, @NonNull final Callback callback) {
+    final Context applicationContext = context.getApplicationContext();
+    new AsyncTask<Void, Void, SearchResult>() {
+      @Override
+      protected SearchResult doInBackground(Void... params) {
+        final long startTime = Timeline.beginSection("LaunchSnapshot.read");
+        try {
+          return read(applicationContext, serviceId);
+        } finally {
+          Timeline.endSection("LaunchSnapshot.read", startTime);
+        }
+      }
+
+      @Override
+      protected void onPostExecute(SearchResult page) {
+        if (page != null) {
+          callback.onSnapshotLoaded(page);
+        }
+      }
+    }.executeOnExecutor(diskExecutor);
+  }
+
+  /**
+   * Write the snapshot. The first page of the query should already be in the {@link SearchPageCache}. Performs disk
+   * I/O and should not be called from the UI thread.
+   *
+   * @param context   Android context.
+   * @param serviceId Database row ID of the service the page was fetched from.
+   * @param settings  Settings of the service the page was fetched from.
+   * @param query     Default query of the service.
+   */
+  public static void write(@NonNull Context context, long serviceId, @NonNull SearchClient.Settings settings,
+                           @NonNull String query) {
+    final File file = getFile(context);
+    if (SearchPageCache.getTimeToLive(context) == SearchPageCache.DISABLED) {
+      // The page hasn't been cached.
+      //noinspection ResultOfMethodCallIgnored
+      file.delete();
+      return;
+    }
+    final File tempFile = new File(file.getPath() + ".tmp");
+    try {
+      final DataOutputStream outputStream = new DataOutputStream(new FileOutputStream(tempFile));
+      try {
+        outputStream.writeInt(SNAPSHOT_VERSION);
+        outputStream.writeLong(serviceId);
+        outputStream.writeUTF(query);
+        outputStream.writeUTF(SearchPageCache.getKey(settings, query, FilteredSearchTask.FIRST_PAGE));
+      } finally {
+        outputStream.close();
+      }
+      if (!tempFile.renameTo(file)) {
+        throw new IOException("Could not rename " + tempFile);
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Could not write launch snapshot.", e);
+      //noinspection ResultOfMethodCallIgnored
+      tempFile.delete();
+    }
+  }
+
+  /**
+   * Read the snapshot. Performs disk I/O and should not be called from the UI thread.
+   *
+   * @param context   Android context.
+   * @param serviceId Database row ID of the last selected service.
+   * @return First page of the default query, filtered with the current {@link SearchResultFilter}. Null if there is
+   * no snapshot for the service, or the page is no longer cached.
+   */
+  @Nullable
+  public static SearchResult read(@NonNull Context context, long serviceId) {
+    final String query;
+    final String key;
+    try {
+      final DataInputStream inputStream = new DataInputStream(new FileInputStream(getFile(context)));
+      try {
+        if (inputStream.readInt() != SNAPSHOT_VERSION || inputStream.readLong() != serviceId) {
+          return null;
+        }
+        query = inputStream.readUTF();
+        key = inputStream.readUTF();
+      } finally {
+        inputStream.close();
+      }
+    } catch (FileNotFoundException e) {
+      return null;
+    } catch (IOException e) {
+      Log.w(TAG, "Could not read launch snapshot.", e);
+      return null;
+    }
+
+    // The page is shown however old it is, as it is replaced right away.
+    final SearchPageCache.Entry page = SearchPageCache.get(context, key, true);
+    if (page == null) {
+      return null;
+    }
+    // Pages are cached before the user's filters are applied.
+    final Image[] images = SearchResultFilter.get(context).apply(page.images);
+    return new SearchResult(images, Tag.arrayFromString(query), page.currentOffset);
+  }
+
+  /**
+   * Get the snapshot file.
+   *
+   * @param context Android context.
+   * @return Snapshot file.
+   */
+  private static File getFile(Context context) {
+    return new File(context.getCacheDir(), FILE_NAME);
+  }
+
+  /** Callback receiving the snapshot on the UI thread. */
+  public interface Callback {
+    /**
+     * Called when the snapshot has been read.
+     *
+     * @param page First page of the default query, filtered with the current {@link SearchResultFilter}.
+     */
+    void onSnapshotLoaded(SearchResult page);
+  }
+}
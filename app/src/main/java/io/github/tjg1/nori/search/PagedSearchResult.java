@@ -0,0 +1,778 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.search;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.SearchResult;
+import io.github.tjg1.library.norilib.Tag;
+
+/**
+ * Search result displayed by the app, holding the images of all the pages the user has scrolled through.
+ * <p/>
+ * Images are stored in an append-only list of fixed-size chunks, so that appending a page never copies the images
+ * received before it, and an image is found in constant time from its position. Unlike {@link SearchResult}, which
+ * keeps every image on the heap, only the chunks around the visible range are kept in memory. Each chunk is appended
+ * to a file in the cache directory as soon as it is full, and dropped from memory once the user has scrolled away
+ * from it. Chunks are read back from disk in the background when the user scrolls towards them again, and observers
+ * are notified once they have been loaded. Images in chunks that are still being loaded are reported as null, so the
+ * UI thread never waits for the disk.
+ * <p/>
+ * The chunk file doubles as the snapshot used to restore the search result after process death, see
+ * {@link #saveSnapshot()} and {@link #restore(Context, String)}.
+ * <p/>
+ * All methods must be called from the UI thread.
+ */
+public class PagedSearchResult {
+  /** Log tag. */
+  private static final String TAG = "PagedSearchResult";
+  /** Name of the directory containing chunk files and snapshots, relative to {@link Context#getCacheDir()}. */
+  private static final String DIRECTORY_NAME = "search_results";
+  /** File name extension of chunk files. Snapshots are named after the search result ID, without an extension. */
+  private static final String CHUNK_FILE_EXTENSION = ".chunks";
+  /** Snapshot file format version. */
+  private static final int SNAPSHOT_VERSION = 3;
+  /** Maximum number of search results kept on disk. Older ones are deleted when a new snapshot is written. */
+  private static final int MAX_SNAPSHOTS = 8;
+  /** Number of images in a chunk is 2^CHUNK_SHIFT, so the chunk containing an image is found with a bit shift. */
+  private static final int CHUNK_SHIFT = 6;
+  /** Number of images in a chunk. */
+  private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+  /** Mask used to get the position of an image within its chunk. */
+  private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+  /** Number of images kept in memory before and after the visible range. */
+  private static final int WINDOW_SIZE = 256;
+  /** Background thread used to read and write chunks and snapshots, shared by all instances. */
+  private static final ExecutorService diskExecutor = Executors.newSingleThreadExecutor();
+  /** IDs of the search results currently in memory. Their files are never deleted. Guarded by itself. */
+  private static final Set<String> openIds = new HashSet<>();
+  /** Unique ID of this search result. */
+  private final String id;
+  /** Tags searched for. */
+  private final Tag[] query;
+  /** Chunk file. */
+  private final File chunkFile;
+  /** Snapshot file. */
+  private final File snapshotFile;
+  /** Chunks of images, in order. All chunks but the last one are full. */
+  private final List<Chunk> chunks = new ArrayList<>();
+  /** Full chunks currently in memory. */
+  private final List<Chunk> residentChunks = new ArrayList<>();
+  /** Observers notified when images are added. */
+  private final List<Observer> observers = new ArrayList<>();
+  /** Handler used to hand chunks read from disk back to the UI thread. */
+  private final Handler handler = new Handler(Looper.getMainLooper());
+  /** Lock guarding {@link #randomAccessFile}. */
+  private final Object chunkFileLock = new Object();
+  /** Chunk file opened for reading and writing. Lazily opened. */
+  private RandomAccessFile randomAccessFile;
+  /** Total number of images. */
+  private int count;
+  /** Offset of the last page appended. */
+  private int currentOffset;
+  /** False once the last page has been reached. */
+  private boolean hasNextPage;
+  /** Position of the first visible image. */
+  private int firstVisiblePosition;
+  /** Position of the last visible image. */
+  private int lastVisiblePosition;
+  /** Number of images included in the last snapshot. -1 if no snapshot has been written. */
+  private int snapshotCount = -1;
+  /** Value of {@link #hasNextPage} included in the last snapshot. */
+  private boolean snapshotHasNextPage;
+  /** True once the search result has been closed. */
+  private boolean isClosed;
+
+  /**
+   * Create a new search result from the first page received from the Search API.
+   *
+   * @param context      Android context.
+   * @param searchResult First page of the search result.
+   */
+  public PagedSearchResult(@NonNull Context context, @NonNull SearchResult searchResult) {
+    this(getDirectory(context), UUID.randomUUID().toString(), searchResult.getQuery(),
+        searchResult.getCurrentOffset(), searchResult.hasNextPage());
+    append(searchResult.getImages());
+  }
+
+  /**
+   * Create a new, empty search result, to be filled with pages merged from several Search APIs.
+   *
+   * @param context Android context.
+   * @param query   Tags searched for.
+   */
+  public PagedSearchResult(@NonNull Context context, @NonNull Tag[] query) {
+    this(getDirectory(context), UUID.randomUUID().toString(), query, 0, true);
+  }
+
+  /**
+   * Create a new, empty search result.
+   *
+   * @param directory     Directory containing chunk files and snapshots.
+   * @param id            Search result ID.
+   * @param query         Tags searched for.
+   * @param currentOffset Offset of the last page.
+   * @param hasNextPage   False if the last page has been reached.
+   */
+  private PagedSearchResult(File directory, String id, Tag[] query, int currentOffset, boolean hasNextPage) {
+    this.id = id;
+    this.query = query;
+    this.chunkFile = new File(directory, id + CHUNK_FILE_EXTENSION);
+    this.snapshotFile = new File(directory, id);
+    this.currentOffset = currentOffset;
+    this.hasNextPage = hasNextPage;
+    synchronized (openIds) {
+      openIds.add(id);
+    }
+  }
+
+  /**
+   * Restore a search result from the last snapshot written by {@link #saveSnapshot()}. Images in full chunks are read
+   * from disk when they are accessed. Performs disk I/O and should not be called from the UI thread, see
+   * {@link #restore(Context, String, RestoreCallback)}.
+   *
+   * @param context Android context.
+   * @param id      Search result ID.
+   * @return Search result.
+   * @throws IOException The snapshot doesn't exist or couldn't be read.
+   */
+  @NonNull
+  public static PagedSearchResult restore(@NonNull Context context, @NonNull String id) throws IOException {
+    final File directory = getDirectory(context);
+    final DataInputStream snapshotStream = new DataInputStream(new FileInputStream(new File(directory, id)));
+    final PagedSearchResult searchResult;
+    final int fullChunkCount;
+    final byte[] lastChunk;
+    try {
+      if (snapshotStream.readInt() != SNAPSHOT_VERSION) {
+        throw new IOException("Unsupported snapshot version.");
+      }
+      final Tag[] query = Tag.arrayFromString(snapshotStream.readUTF());
+      final int currentOffset = snapshotStream.readInt();
+      final boolean hasNextPage = snapshotStream.readBoolean();
+      fullChunkCount = snapshotStream.readInt();
+      lastChunk = new byte[snapshotStream.readInt()];
+      snapshotStream.readFully(lastChunk);
+      searchResult = new PagedSearchResult(directory, id, query, currentOffset, hasNextPage);
+    } finally {
+      snapshotStream.close();
+    }
+
+    try {
+      // Rebuild the chunk index from the chunk headers. Chunks appended after the snapshot was written are discarded,
+      // so that new chunks are appended right after the last one in the index.
+      final RandomAccessFile file = searchResult.openChunkFile();
+      synchronized (searchResult.chunkFileLock) {
+        long fileOffset = 0;
+        for (int i = 0; i < fullChunkCount; i++) {
+          file.seek(fileOffset);
+          final Chunk chunk = new Chunk(i, null);
+          chunk.byteCount = file.readInt();
+          chunk.fileOffset = fileOffset;
+          searchResult.chunks.add(chunk);
+          fileOffset += 4 + chunk.byteCount;
+        }
+        file.setLength(fileOffset);
+      }
+      searchResult.count = fullChunkCount * CHUNK_SIZE;
+
+      // The last chunk isn't full, so it is stored in the snapshot itself.
+      searchResult.append(ImageSerializer.deserialize(lastChunk));
+    } catch (IOException e) {
+      searchResult.close();
+      throw e;
+    }
+    searchResult.snapshotCount = searchResult.count;
+    searchResult.snapshotHasNextPage = searchResult.hasNextPage;
+    return searchResult;
+  }
+
+  /**
+   * Restore a search result from the last snapshot in the background.
+   *
+   * @param context  Android context.
+   * @param id       Search result ID.
+   * @param callback Callback receiving the search result on the UI thread.
+   */
+  public static void restore(@NonNull Context context, @NonNull final String id,
+                             @NonNull final RestoreCallback callback) {
+    final Context appContext = context.getApplicationContext();
+    final Handler handler = new Handler(Looper.getMainLooper());
+    diskExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        PagedSearchResult searchResult = null;
+        IOException error = null;
+        try {
+          searchResult = restore(appContext, id);
+        } catch (IOException e) {
+          error = e;
+        }
+        final PagedSearchResult restoredSearchResult = searchResult;
+        final IOException restoreError = error;
+        handler.post(new Runnable() {
+          @Override
+          public void run() {
+            callback.onRestored(restoredSearchResult, restoreError);
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Get the directory containing chunk files and snapshots.
+   *
+   * @param context Android context.
+   * @return Directory.
+   */
+  private static File getDirectory(Context context) {
+    return new File(context.getCacheDir(), DIRECTORY_NAME);
+  }
+
+  /** @return Unique ID of this search result. */
+  @NonNull
+  public String getId() {
+    return id;
+  }
+
+  /** @return Tags searched for. */
+  public Tag[] getQuery() {
+    return query;
+  }
+
+  /** @return Offset of the last page appended to this search result. */
+  public int getCurrentOffset() {
+    return currentOffset;
+  }
+
+  /** @return True if more pages may be available from the Search API. */
+  public boolean hasNextPage() {
+    return hasNextPage;
+  }
+
+  /** Mark this search result as having reached the last page. */
+  public void onLastPage() {
+    hasNextPage = false;
+  }
+
+  /** @return Number of images in this search result. */
+  public int getCount() {
+    return count;
+  }
+
+  /**
+   * Get an image. If its chunk isn't currently in memory, it is read from disk in the background and
+   * {@link Observer#onImagesLoaded(int, int)} is called once it is available.
+   *
+   * @param position Image position.
+   * @return Image at given position, or null if it isn't in memory. Callers should show a placeholder.
+   */
+  @Nullable
+  public Image getImage(int position) {
+    if (position < 0 || position >= count) {
+      throw new IndexOutOfBoundsException("Invalid position " + position + ", count is " + count);
+    }
+    final Chunk chunk = chunks.get(position >>> CHUNK_SHIFT);
+    if (chunk.images == null) {
+      loadChunk(chunk);
+      return null;
+    }
+    return chunk.images[position & CHUNK_MASK];
+  }
+
+  /**
+   * Get all images in the background, including the ones that have been dropped from memory. Images in chunks that
+   * can't be read from disk are left out.
+   *
+   * @param callback Callback receiving the images on the UI thread. Not called if the search result is closed first.
+   */
+  public void getAllImages(@NonNull final AllImagesCallback callback) {
+    // Capture the chunks on the UI thread. Images appended afterwards are not included.
+    final int count = this.count;
+    final Chunk[] chunks = this.chunks.toArray(new Chunk[this.chunks.size()]);
+    final Image[][] chunkImages = new Image[chunks.length][];
+    for (int i = 0; i < chunks.length; i++) {
+      chunkImages[i] = chunks[i].images;
+    }
+
+    diskExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        final List<Image> images = new ArrayList<>(count);
+        for (int i = 0; i < chunks.length; i++) {
+          final Image[] chunk = chunkImages[i] != null ? chunkImages[i] : readChunk(chunks[i]);
+          if (chunk != null) {
+            images.addAll(Arrays.asList(chunk).subList(0, Math.min(CHUNK_SIZE, count - (i << CHUNK_SHIFT))));
+          }
+        }
+        handler.post(new Runnable() {
+          @Override
+          public void run() {
+            if (!isClosed) {
+              callback.onAllImagesLoaded(images);
+            }
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Append images from the next page received from the Search API. Observers are notified of the added range.
+   *
+   * @param images Images to append.
+   * @param offset Offset of the page the images were received from.
+   */
+  public void addImages(Image[] images, int offset) {
+    currentOffset = offset;
+    if (images.length == 0) {
+      return;
+    }
+    final int positionStart = count;
+    append(images);
+    trimMemory();
+
+    for (int i = observers.size() - 1; i >= 0; i--) {
+      observers.get(i).onImagesAdded(positionStart, images.length);
+    }
+  }
+
+  /**
+   * Register an observer notified when images are added to this search result.
+   *
+   * @param observer Observer to register.
+   */
+  public void registerObserver(@NonNull Observer observer) {
+    if (!observers.contains(observer)) {
+      observers.add(observer);
+    }
+  }
+
+  /**
+   * Unregister an observer registered using {@link #registerObserver(Observer)}.
+   *
+   * @param observer Observer to unregister.
+   */
+  public void unregisterObserver(@NonNull Observer observer) {
+    observers.remove(observer);
+  }
+
+  /**
+   * Set the range of images currently displayed. Chunks far away from the visible range are dropped from memory, and
+   * the chunks around it are read back from disk in the background, so they are in memory by the time they are shown.
+   *
+   * @param firstVisiblePosition Position of the first visible image.
+   * @param lastVisiblePosition  Position of the last visible image.
+   */
+  public void setVisibleRange(int firstVisiblePosition, int lastVisiblePosition) {
+    this.firstVisiblePosition = firstVisiblePosition;
+    this.lastVisiblePosition = lastVisiblePosition;
+    trimMemory();
+    if (chunks.isEmpty()) {
+      return;
+    }
+
+    // Load the chunks within the window, starting with the visible ones.
+    final int firstChunk = Math.max(0, firstVisiblePosition - WINDOW_SIZE) >>> CHUNK_SHIFT;
+    final int lastChunk = Math.min(chunks.size() - 1, Math.max(0, lastVisiblePosition + WINDOW_SIZE) >>> CHUNK_SHIFT);
+    final int visibleChunk = Math.min(Math.max(0, firstVisiblePosition) >>> CHUNK_SHIFT, lastChunk);
+    for (int i = 0; visibleChunk - i >= firstChunk || visibleChunk + i <= lastChunk; i++) {
+      if (visibleChunk + i <= lastChunk) {
+        loadChunk(chunks.get(visibleChunk + i));
+      }
+      if (i > 0 && visibleChunk - i >= firstChunk) {
+        loadChunk(chunks.get(visibleChunk - i));
+      }
+    }
+  }
+
+  /**
+   * Write a snapshot in the background, so this search result can be restored after process death. Does nothing if
+   * nothing has changed since the last snapshot.
+   */
+  public void saveSnapshot() {
+    if (isClosed || (count == snapshotCount && hasNextPage == snapshotHasNextPage)) {
+      return;
+    }
+    snapshotCount = count;
+    snapshotHasNextPage = hasNextPage;
+
+    // Full chunks are written on the same thread, so they are all on disk before the snapshot refers to them.
+    final String query = Tag.stringFromArray(this.query);
+    final int currentOffset = this.currentOffset;
+    final boolean hasNextPage = this.hasNextPage;
+    final int fullChunkCount = count >>> CHUNK_SHIFT;
+    // The last chunk is never dropped from memory, as it isn't full.
+    final Image[] lastChunk = (count & CHUNK_MASK) == 0 ? new Image[0]
+        : Arrays.copyOf(chunks.get(fullChunkCount).images, count & CHUNK_MASK);
+    diskExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        final File tempFile = new File(snapshotFile.getPath() + ".tmp");
+        try {
+          final byte[] lastChunkData = ImageSerializer.serialize(lastChunk);
+          final DataOutputStream outputStream = new DataOutputStream(new FileOutputStream(tempFile));
+          try {
+            outputStream.writeInt(SNAPSHOT_VERSION);
+            outputStream.writeUTF(query);
+            outputStream.writeInt(currentOffset);
+            outputStream.writeBoolean(hasNextPage);
+            outputStream.writeInt(fullChunkCount);
+            outputStream.writeInt(lastChunkData.length);
+            outputStream.write(lastChunkData);
+          } finally {
+            outputStream.close();
+          }
+          if (!tempFile.renameTo(snapshotFile)) {
+            throw new IOException("Could not rename " + tempFile);
+          }
+        } catch (IOException e) {
+          Log.w(TAG, "Could not write search result snapshot.", e);
+          //noinspection ResultOfMethodCallIgnored
+          tempFile.delete();
+        }
+        deleteOldSnapshots(snapshotFile.getParentFile());
+      }
+    });
+  }
+
+  /**
+   * Release the memory and file handle used by this search result. The chunk file is deleted if no snapshot refers
+   * to it. The search result can no longer be used afterwards.
+   */
+  public void close() {
+    if (isClosed) {
+      return;
+    }
+    isClosed = true;
+    handler.removeCallbacksAndMessages(null);
+    chunks.clear();
+    residentChunks.clear();
+    observers.clear();
+    final boolean deleteFiles = snapshotCount == -1;
+    diskExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        synchronized (chunkFileLock) {
+          if (randomAccessFile != null) {
+            try {
+              randomAccessFile.close();
+            } catch (IOException ignored) {
+            }
+            randomAccessFile = null;
+          }
+        }
+        if (deleteFiles) {
+          //noinspection ResultOfMethodCallIgnored
+          chunkFile.delete();
+        }
+        synchronized (openIds) {
+          openIds.remove(id);
+        }
+      }
+    });
+  }
+
+  /**
+   * Append images to the last chunk, starting new chunks as needed. Full chunks are written to the chunk file in the
+   * background.
+   *
+   * @param images Images to append.
+   */
+  private void append(Image[] images) {
+    for (Image image : images) {
+      final int index = count & CHUNK_MASK;
+      if (index == 0) {
+        chunks.add(new Chunk(chunks.size(), new Image[CHUNK_SIZE]));
+      }
+      final Chunk chunk = chunks.get(chunks.size() - 1);
+      chunk.images[index] = image;
+      count++;
+
+      if (index == CHUNK_MASK) {
+        // The chunk is full and will never be modified again.
+        residentChunks.add(chunk);
+        final Image[] chunkImages = chunk.images;
+        diskExecutor.execute(new Runnable() {
+          @Override
+          public void run() {
+            writeChunk(chunk, chunkImages);
+          }
+        });
+      }
+    }
+  }
+
+  /**
+   * Drop the full chunks outside of the window around the visible range from memory. Chunks that haven't been written
+   * to disk yet are kept.
+   */
+  private void trimMemory() {
+    final int windowStart = firstVisiblePosition - WINDOW_SIZE;
+    final int windowEnd = lastVisiblePosition + WINDOW_SIZE;
+    final Iterator<Chunk> iterator = residentChunks.iterator();
+    while (iterator.hasNext()) {
+      final Chunk chunk = iterator.next();
+      final int chunkStart = chunk.index << CHUNK_SHIFT;
+      if (chunk.fileOffset != -1 && (chunkStart + CHUNK_SIZE <= windowStart || chunkStart > windowEnd)) {
+        chunk.images = null;
+        iterator.remove();
+      }
+    }
+  }
+
+  /**
+   * Read a chunk back from disk in the background, unless it is already in memory or being read. Observers are notified
+   * once it has been loaded. Chunks that can't be read are not retried, and their images stay null.
+   *
+   * @param chunk Chunk to load.
+   */
+  private void loadChunk(final Chunk chunk) {
+    if (chunk.images != null || chunk.isLoading || chunk.isUnreadable || isClosed) {
+      return;
+    }
+    chunk.isLoading = true;
+    diskExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        final Image[] images = readChunk(chunk);
+        handler.post(new Runnable() {
+          @Override
+          public void run() {
+            onChunkLoaded(chunk, images);
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Called on the UI thread when a chunk has been read from disk.
+   *
+   * @param chunk  Chunk read.
+   * @param images Images in the chunk, or null if it couldn't be read.
+   */
+  private void onChunkLoaded(Chunk chunk, @Nullable Image[] images) {
+    chunk.isLoading = false;
+    if (isClosed) {
+      return;
+    }
+    if (images == null) {
+      chunk.isUnreadable = true;
+      return;
+    }
+    chunk.images = images;
+    residentChunks.add(chunk);
+    for (int i = observers.size() - 1; i >= 0; i--) {
+      observers.get(i).onImagesLoaded(chunk.index << CHUNK_SHIFT, CHUNK_SIZE);
+    }
+    // The chunk is dropped again by the next call to trimMemory() if the user has scrolled away in the meantime.
+  }
+
+  /**
+   * Open the chunk file, if it isn't open already.
+   *
+   * @return Chunk file.
+   * @throws IOException The file couldn't be opened.
+   */
+  private RandomAccessFile openChunkFile() throws IOException {
+    synchronized (chunkFileLock) {
+      if (randomAccessFile == null) {
+        final File directory = chunkFile.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+          throw new IOException("Could not create " + directory);
+        }
+        randomAccessFile = new RandomAccessFile(chunkFile, "rw");
+      }
+      return randomAccessFile;
+    }
+  }
+
+  /**
+   * Append a full chunk to the chunk file. Called on {@link #diskExecutor}.
+   *
+   * @param chunk  Chunk to write.
+   * @param images Images in the chunk.
+   */
+  private void writeChunk(Chunk chunk, Image[] images) {
+    try {
+      final byte[] data = ImageSerializer.serialize(images);
+      synchronized (chunkFileLock) {
+        final RandomAccessFile file = openChunkFile();
+        final long fileOffset = file.length();
+        file.seek(fileOffset);
+        file.writeInt(data.length);
+        file.write(data);
+        chunk.byteCount = data.length;
+        chunk.fileOffset = fileOffset;
+      }
+    } catch (IOException e) {
+      // The chunk stays in memory.
+      Log.w(TAG, "Could not write search result chunk.", e);
+    }
+  }
+
+  /**
+   * Read a full chunk from the chunk file. Called on {@link #diskExecutor}.
+   *
+   * @param chunk Chunk to read.
+   * @return Images in the chunk, or null if the chunk couldn't be read (e.g. the cache directory was cleared).
+   */
+  @Nullable
+  private Image[] readChunk(Chunk chunk) {
+    try {
+      final byte[] data = new byte[chunk.byteCount];
+      synchronized (chunkFileLock) {
+        final RandomAccessFile file = openChunkFile();
+        file.seek(chunk.fileOffset + 4);
+        file.readFully(data);
+      }
+      final Image[] images = ImageSerializer.deserialize(data);
+      if (images.length != CHUNK_SIZE) {
+        throw new IOException("Corrupted chunk.");
+      }
+      return images;
+    } catch (IOException | OutOfMemoryError e) {
+      Log.w(TAG, "Could not read search result chunk.", e);
+      return null;
+    }
+  }
+
+  /**
+   * Delete the files of the oldest search results, keeping the {@link #MAX_SNAPSHOTS} newest ones and the ones in
+   * memory. Called on {@link #diskExecutor}.
+   *
+   * @param directory Directory containing chunk files and snapshots.
+   */
+  private static void deleteOldSnapshots(File directory) {
+    final File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+
+    // Group the files of each search result and find when they were last modified.
+    final Map<String, Long> lastModified = new HashMap<>();
+    for (File file : files) {
+      final String id = file.getName().split("\\.", 2)[0];
+      final Long modified = lastModified.get(id);
+      lastModified.put(id, Math.max(file.lastModified(), modified != null ? modified : 0L));
+    }
+    final String[] ids = lastModified.keySet().toArray(new String[lastModified.size()]);
+    Arrays.sort(ids, new Comparator<String>() {
+      @Override
+      public int compare(String lhs, String rhs) {
+        return lastModified.get(rhs).compareTo(lastModified.get(lhs));
+      }
+    });
+
+    final Set<String> keptIds = new HashSet<>(Arrays.asList(ids).subList(0, Math.min(MAX_SNAPSHOTS, ids.length)));
+    synchronized (openIds) {
+      keptIds.addAll(openIds);
+    }
+    for (File file : files) {
+      if (!keptIds.contains(file.getName().split("\\.", 2)[0])) {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+      }
+    }
+  }
+
+  /** Observer notified when images are added to a search result. */
+  public interface Observer {
+    /**
+     * Called when images are appended to the search result.
+     *
+     * @param positionStart Position of the first added image.
+     * @param itemCount     Number of added images.
+     */
+    void onImagesAdded(int positionStart, int itemCount);
+
+    /**
+     * Called when images that had been dropped from memory have been read back from disk. Images previously reported
+     * as null by {@link #getImage(int)} are now available.
+     *
+     * @param positionStart Position of the first loaded image.
+     * @param itemCount     Number of loaded images.
+     */
+    void onImagesLoaded(int positionStart, int itemCount);
+  }
+
+  /** Callback receiving the images read by {@link #getAllImages(AllImagesCallback)}. */
+  public interface AllImagesCallback {
+    /**
+     * Called on the UI thread once all images have been read.
+     *
+     * @param images Images, in order.
+     */
+    void onAllImagesLoaded(@NonNull List<Image> images);
+  }
+
+  /** Callback receiving the search result read by {@link #restore(Context, String, RestoreCallback)}. */
+  public interface RestoreCallback {
+    /**
+     * Called on the UI thread once the snapshot has been read.
+     *
+     * @param searchResult Restored search result. Null if the snapshot couldn't be read.
+     * @param e            Error reading the snapshot. Null if the search result was restored.
+     */
+    void onRestored(@Nullable PagedSearchResult searchResult, @Nullable IOException e);
+  }
+
+  /** Chunk of {@link #CHUNK_SIZE} consecutive images. The last chunk of a search result may not be full. */
+  private static class Chunk {
+    /** Index of the chunk in the search result. */
+    private final int index;
+    /** Images, or null if the chunk is only on disk. Only accessed from the UI thread. */
+    private Image[] images;
+    /** True while the chunk is being read from disk. Only accessed from the UI thread. */
+    private boolean isLoading;
+    /** True if the chunk couldn't be read from disk. Only accessed from the UI thread. */
+    private boolean isUnreadable;
+    /** Offset of the chunk in the chunk file, or -1 if it hasn't been written yet. */
+    private volatile long fileOffset = -1;
+    /** Size of the serialized images, in bytes. */
+    private volatile int byteCount;
+
+    /**
+     * Create a new chunk.
+     *
+     * @param index  Index of the chunk in the search result.
+     * @param images Images, or null if the chunk is only on disk.
+     */
+    public Chunk(int index, Image[] images) {
+      this.index = index;
+      this.images = images;
+    }
+  }
+}
@@ -0,0 +1,318 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.search;
+
+import android.content.Context;
+import android.preference.PreferenceManager;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.clients.SearchClient;
+import io.github.tjg1.nori.R;
+import io.github.tjg1.nori.util.StringUtils;
+
+/**
+ * On-disk cache of the pages received from the Search APIs, keyed by the service endpoint, query and offset.
+ * <p/>
+ * Pages are stored as received, before the user's filters are applied, so that changing the filters doesn't
+ * invalidate the cache. Pages younger than the time-to-live set by the user are used without contacting the API.
+ * Older pages can still be shown while a fresh copy is fetched, or while the device is offline, see
+ * {@link FilteredSearchTask}.
+ * <p/>
+ * Methods of this class perform disk I/O and should not be called from the UI thread.
+ */
+public abstract class SearchPageCache {
+  /** Returned by {@link #getTimeToLive(Context)} if caching is disabled. */
+  public static final long DISABLED = -1;
+  /** Log tag. */
+  private static final String TAG = "SearchPageCache";
+  /** Name of the directory in the app's cache directory containing cached pages. */
+  private static final String DIRECTORY_NAME = "search_pages";
+  /** Version of the cache file format. Files written with a different version are ignored. */
+  private static final int CACHE_VERSION = 2;
+  /** Maximum number of pages kept on disk. */
+  private static final int MAX_ENTRIES = 64;
+  /** Pages older than this are never shown, even while a fresh copy is being fetched. */
+  private static final long MAX_STALE_MILLIS = TimeUnit.DAYS.toMillis(7);
+
+  /**
+   * Get the time pages can be used for without contacting the API, as set by the user.
+   *
+   * @param context Android context.
+   * @return Time-to-live, in milliseconds. 0 if cached pages should always be revalidated, {@link #DISABLED} if
+   * caching is disabled.
+   */
+  public static long getTimeToLive(@NonNull Context context) {
+    final long timeToLive = Long.parseLong(PreferenceManager.getDefaultSharedPreferences(context)
+        .getString(context.getString(R.string.preference_searchCacheTtl_key),
+            context.getString(R.string.preference_searchCacheTtl_default)));
+    return timeToLive < 0 ? DISABLED : TimeUnit.SECONDS.toMillis(timeToLive);
+  }
+
+  /**
+   * Get a cached page.
+   *
+   * @param context  Android context.
+   * @param settings Settings of the service the page was received from.
+   * @param query    Query string (a space-separated list of tags).
+   * @param offset   Page offset requested from the API.
+   * @return Cached page, or null if the page isn't cached or is too old to be shown.
+   */
+  @Nullable
+  public static Entry get(@NonNull Context context, @NonNull SearchClient.Settings settings, @NonNull String query,
+                          int offset) {
+    return get(context, settings, query, offset, false);
+  }
+
+  /**
+   * Get a cached page.
+   *
+   * @param context    Android context.
+   * @param settings   Settings of the service the page was received from.
+   * @param query      Query string (a space-separated list of tags).
+   * @param offset     Page offset requested from the API.
+   * @param allowStale True to return pages of any age, e.g. while the device is offline and the page can't be
+   *                   fetched again.
+   * @return Cached page, or null if the page isn't cached or is too old to be shown.
+   */
+  @Nullable
+  public static Entry get(@NonNull Context context, @NonNull SearchClient.Settings settings, @NonNull String query,
+                          int offset, boolean allowStale) {
+    return get(context, getKey(settings, query, offset), allowStale);
+  }
+
+  /**
+   * Get a cached page, using a key returned by {@link #getKey(SearchClient.Settings, String, int)}.
+   *
+   * @param context    Android context.
+   * @param key        Cache key.
+   * @param allowStale True to return pages of any age.
+   * @return Cached page, or null if the page isn't cached or is too old to be shown.
+   */
+  @Nullable
+  public static Entry get(@NonNull Context context, @NonNull String key, boolean allowStale) {
+    final File file = new File(getDirectory(context), getFileName(key));
+    try {
+      final DataInputStream inputStream = new DataInputStream(new FileInputStream(file));
+      try {
+        if (inputStream.readInt() != CACHE_VERSION || !key.equals(inputStream.readUTF())) {
+          return null;
+        }
+        final long fetchedAt = inputStream.readLong();
+        final int currentOffset = inputStream.readInt();
+        final byte[] data = new byte[inputStream.readInt()];
+        inputStream.readFully(data);
+        if (!allowStale && System.currentTimeMillis() - fetchedAt > MAX_STALE_MILLIS) {
+          return null;
+        }
+        return new Entry(ImageSerializer.deserialize(data), currentOffset, fetchedAt);
+      } finally {
+        inputStream.close();
+      }
+    } catch (FileNotFoundException e) {
+      return null;
+    } catch (IOException e) {
+      Log.w(TAG, "Could not read cached search page.", e);
+      //noinspection ResultOfMethodCallIgnored
+      file.delete();
+      return null;
+    }
+  }
+
+  /**
+   * Store a page received from the API. The oldest pages are evicted once there are more than {@link #MAX_ENTRIES}.
+   *
+   * @param context       Android context.
+   * @param settings      Settings of the service the page was received from.
+   * @param query         Query string (a space-separated list of tags).
+   * @param offset        Page offset requested from the API.
+   * @param images        Images received from the API, before filtering.
+   * @param currentOffset Offset of the page returned by the API.
+   */
+  public static void put(@NonNull Context context, @NonNull SearchClient.Settings settings, @NonNull String query,
+                         int offset, @NonNull Image[] images, int currentOffset) {
+    final String key = getKey(settings, query, offset);
+    final File directory = getDirectory(context);
+    final File file = new File(directory, getFileName(key));
+    // Pages are written to a temporary file first, so that concurrent readers never see a partially written page.
+    final File tempFile = new File(directory, file.getName() + "." + Thread.currentThread().getId() + ".tmp");
+    try {
+      if (!directory.isDirectory() && !directory.mkdirs()) {
+        throw new IOException("Could not create " + directory);
+      }
+      final byte[] data = ImageSerializer.serialize(images);
+      final DataOutputStream outputStream = new DataOutputStream(new FileOutputStream(tempFile));
+      try {
+        outputStream.writeInt(CACHE_VERSION);
+        outputStream.writeUTF(key);
+        outputStream.writeLong(System.currentTimeMillis());
+        outputStream.writeInt(currentOffset);
+        outputStream.writeInt(data.length);
+        outputStream.write(data);
+      } finally {
+        outputStream.close();
+      }
+      if (!tempFile.renameTo(file)) {
+        throw new IOException("Could not rename " + tempFile);
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Could not write cached search page.", e);
+      //noinspection ResultOfMethodCallIgnored
+      tempFile.delete();
+    }
+    evictOldEntries(directory);
+  }
+
+  /**
+   * Get the directory containing cached pages.
+   *
+   * @param context Android context.
+   * @return Directory.
+   */
+  private static File getDirectory(Context context) {
+    return new File(context.getCacheDir(), DIRECTORY_NAME);
+  }
+
+  /**
+   * Get the key identifying a page, so that it can be read back before the service settings are available.
+   * Credentials are part of the key, as they can change the images returned. The key is stored in the cache file, so
+   * they are only included as a digest.
+   *
+   * @param settings Settings of the service the page was received from.
+   * @param query    Query string (a space-separated list of tags).
+   * @param offset   Page offset requested from the API.
+   * @return Cache key.
+   */
+  @NonNull
+  public static String getKey(@NonNull SearchClient.Settings settings, @NonNull String query, int offset) {
+    return settings.getApiType() + "\n" + settings.getEndpoint() + "\n"
+        + digest("SHA-1", settings.getUsername() + "\n" + settings.getPassword()) + "\n" + query.trim() + "\n"
+        + offset;
+  }
+
+  /**
+   * Get the name of the file a page is stored in.
+   *
+   * @param key Cache key.
+   * @return Hex-encoded MD5 digest of the key.
+   */
+  private static String getFileName(String key) {
+    return digest("MD5", key);
+  }
+
+  /**
+   * Compute the digest of a string.
+   *
+   * @param algorithm Digest algorithm.
+   * @param string    String.
+   * @return Hex-encoded digest of the UTF-8 encoded string.
+   */
+  private static String digest(String algorithm, String string) {
+    try {
+      return StringUtils.toHexString(MessageDigest.getInstance(algorithm).digest(string.getBytes("UTF-8")));
+    } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+      // MD5, SHA-1 and UTF-8 are always available on Android.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Delete the least recently written pages, keeping the {@link #MAX_ENTRIES} newest ones.
+   *
+   * @param directory Directory containing cached pages.
+   */
+  private static void evictOldEntries(File directory) {
+    final File[] files = directory.listFiles();
+    if (files == null || files.length <= MAX_ENTRIES) {
+      return;
+    }
+    final long[] lastModified = new long[files.length];
+    final Integer[] order = new Integer[files.length];
+    for (int i = 0; i < files.length; i++) {
+      lastModified[i] = files[i].lastModified();
+      order[i] = i;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer lhs, Integer rhs) {
+        return Long.valueOf(lastModified[rhs]).compareTo(lastModified[lhs]);
+      }
+    });
+    for (int i = MAX_ENTRIES; i < order.length; i++) {
+      //noinspection ResultOfMethodCallIgnored
+      files[order[i]].delete();
+    }
+  }
+
+  /** Page read from the cache. */
+  public static class Entry {
+    /** Images received from the API, before filtering. */
+    public final Image[] images;
+    /** Offset of the page returned by the API. */
+    public final int currentOffset;
+    /** Time the page was received from the API, in milliseconds since the epoch. */
+    public final long fetchedAt;
+
+    /**
+     * Create a new cache entry.
+     *
+     * @param images        Images received from the API, before filtering.
+     * @param currentOffset Offset of the page returned by the API.
+     * @param fetchedAt     Time the page was received from the API, in milliseconds since the epoch.
+     */
+    private Entry(Image[] images, int currentOffset, long fetchedAt) {
+      this.images = images;
+      this.currentOffset = currentOffset;
+      this.fetchedAt = fetchedAt;
+    }
+
+    /**
+     * Check if the page can be used without contacting the API.
+     *
+     * @param timeToLive Time-to-live set by the user, in milliseconds.
+     * @return True if the page is younger than the time-to-live. Always false if the time-to-live is 0.
+     */
+    public boolean isFresh(long timeToLive) {
+      final long age = System.currentTimeMillis() - fetchedAt;
+      return age >= 0 && age < timeToLive;
+    }
+
+    /**
+     * Check if a page received from the API contains the same images as this one.
+     *
+     * @param images Images received from the API.
+     * @return True if the image IDs are the same, in the same order.
+     */
+    public boolean isSamePage(Image[] images) {
+      if (images.length != this.images.length) {
+        return false;
+      }
+      for (int i = 0; i < images.length; i++) {
+        if (images[i].id == null ? this.images[i].id != null : !images[i].id.equals(this.images[i].id)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,420 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.search;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.SparseArray;
+
+import java.io.IOException;
+
+import io.github.tjg1.library.norilib.SearchResult;
+import io.github.tjg1.library.norilib.Tag;
+import io.github.tjg1.library.norilib.clients.SearchClient;
+
+/**
+ * Keeps pages of a {@link PagedSearchResult} requested ahead of the user's scroll position to implement endless scrolling
+ * without stalling at the end of the list.
+ * <p/>
+ * The number of pages kept in flight is estimated from the scroll velocity and the measured latency of previous
+ * page requests. Pages may arrive out of order, but they are always handed to the {@link Listener} in order of their
+ * offset, so that {@link PagedSearchResult#getCurrentOffset()} is only ever increased one page at a time.
+ * <p/>
+ * Failed pages are retried with an exponential backoff. The listener is only told about the first failure of a
+ * streak of failed requests.
+ * <p/>
+ * All methods must be called from the UI thread.
+ */
+public class SearchPagePrefetcher {
+  /** Maximum number of pages requested ahead of the last page appended to the search result. */
+  private static final int MAX_PAGES_AHEAD = 3;
+  /** Always keep at least this many items loaded past the current scroll position. */
+  private static final int MIN_ITEMS_AHEAD = 10;
+  /** Page size assumed until the first page has been received. */
+  private static final int DEFAULT_PAGE_SIZE = 20;
+  /** Page latency assumed until the first page has been received, in milliseconds. */
+  private static final long DEFAULT_PAGE_LATENCY = 2000;
+  /** Weight given to new samples in the exponentially weighted moving averages. */
+  private static final float SMOOTHING_FACTOR = 0.3f;
+  /** Scroll velocity samples older than this are discarded (the user stopped scrolling), in milliseconds. */
+  private static final long VELOCITY_TIMEOUT = 1000;
+  /** Time to wait before retrying after the first failed page request, in milliseconds. */
+  private static final long INITIAL_RETRY_DELAY = 1000;
+  /** Maximum time to wait before retrying failed page requests, in milliseconds. */
+  private static final long MAX_RETRY_DELAY = 60000;
+  /** Handler used to retry failed page requests. */
+  private final Handler handler = new Handler(Looper.getMainLooper());
+  /** Retries failed page requests once the backoff delay has passed. */
+  private final Runnable retryRunnable = new Runnable() {
+    @Override
+    public void run() {
+      retry();
+    }
+  };
+  /** Android context used to run the {@link FilteredSearchTask}s fetching the pages. */
+  private final Context context;
+  /** Search API client used to fetch pages. */
+  private final SearchClient searchClient;
+  /** Search result pages are fetched for. */
+  private final PagedSearchResult searchResult;
+  /** Query string of the search result. */
+  private final String query;
+  /** Listener receiving fetched pages. */
+  private final Listener listener;
+  /** Page requests currently in flight, keyed by offset. */
+  private final SparseArray<PageCallback> pendingPages = new SparseArray<>();
+  /** Pages received out of order, waiting for the previous pages to arrive. Keyed by offset. */
+  private final SparseArray<SearchResult> fetchedPages = new SparseArray<>();
+  /** Offset of the last page handed to the listener. */
+  private int lastDeliveredOffset;
+  /** Offset of the last page requested from the API. */
+  private int lastRequestedOffset;
+  /** Set to true when the last page has been handed to the listener. */
+  private boolean reachedLastPage;
+  /** Offset of the first page the API returned no images for, or {@link Integer#MAX_VALUE} if not received yet. */
+  private int lastPageOffset = Integer.MAX_VALUE;
+  /** Set to true when this prefetcher has been cancelled. */
+  private boolean isCancelled;
+  /** Fetching state last reported to the listener. */
+  private boolean wasFetching;
+  /** Average number of items received per page. */
+  private float pageSize = DEFAULT_PAGE_SIZE;
+  /** Average time it takes to fetch a page, in milliseconds. */
+  private float pageLatency = DEFAULT_PAGE_LATENCY;
+  /** Average scroll velocity, in items per millisecond. */
+  private float scrollVelocity;
+  /** Last reported scroll position. */
+  private int lastPosition = -1;
+  /** Number of items in the search result when the scroll position was last reported. */
+  private int lastItemCount;
+  /** Time the last scroll position was reported at. */
+  private long lastPositionTime;
+  /** Number of page requests that failed in a row. */
+  private int failureCount;
+  /** Time no pages are requested before, while backing off after a failure, in milliseconds. */
+  private long retryTime;
+
+  /**
+   * Create a new prefetcher.
+   *
+   * @param context      Android context.
+   * @param searchClient Search API client used to fetch pages.
+   * @param searchResult Search result to fetch more pages for.
+   * @param listener     Listener receiving the fetched pages.
+   */
+  public SearchPagePrefetcher(@NonNull Context context, @NonNull SearchClient searchClient,
+                              @NonNull PagedSearchResult searchResult, @NonNull Listener listener) {
+    this.context = context.getApplicationContext();
+    this.searchClient = searchClient;
+    this.searchResult = searchResult;
+    this.query = Tag.stringFromArray(searchResult.getQuery());
+    this.listener = listener;
+    this.lastDeliveredOffset = searchResult.getCurrentOffset();
+    this.lastRequestedOffset = lastDeliveredOffset;
+    this.reachedLastPage = !searchResult.hasNextPage();
+  }
+
+  /**
+   * Check if this prefetcher is fetching pages for given search result.
+   *
+   * @param searchResult Search result.
+   * @return True if pages are fetched for the given search result.
+   */
+  public boolean isPrefetching(PagedSearchResult searchResult) {
+    return !isCancelled && this.searchResult == searchResult;
+  }
+
+  /** @return True if there are page requests in flight. */
+  public boolean isFetching() {
+    return pendingPages.size() > 0;
+  }
+
+  /**
+   * Called when the scroll position changes. Requests as many pages as needed to keep ahead of the user.
+   *
+   * @param position  Position of the last visible item.
+   * @param itemCount Total number of items currently in the search result.
+   */
+  public void onPositionChanged(int position, int itemCount) {
+    updateScrollVelocity(position);
+    lastItemCount = itemCount;
+
+    if (isCancelled || reachedLastPage || SystemClock.uptimeMillis() < retryTime) {
+      return;
+    }
+
+    // Number of items the user will scroll past while waiting for a page to arrive.
+    final float itemsNeeded = Math.max(MIN_ITEMS_AHEAD, scrollVelocity * pageLatency);
+    final int pagesToRequest = getPagesToRequest(itemCount - position - 1, lastRequestedOffset - lastDeliveredOffset,
+        pageSize, itemsNeeded);
+    for (int i = 0; i < pagesToRequest; i++) {
+      requestPage(lastRequestedOffset + 1);
+    }
+  }
+
+  /**
+   * Request the pages needed at the last reported scroll position again, without waiting for the backoff delay,
+   * e.g. after pages failed to load while the device was offline and a connection has become available.
+   */
+  public void retry() {
+    handler.removeCallbacks(retryRunnable);
+    retryTime = 0;
+    if (lastPosition != -1) {
+      onPositionChanged(lastPosition, lastItemCount);
+    }
+  }
+
+  /** Cancel all pending page requests. Fetched pages will no longer be delivered to the listener. */
+  public void cancel() {
+    isCancelled = true;
+    handler.removeCallbacks(retryRunnable);
+    cancelPagesAfter(lastDeliveredOffset);
+  }
+
+  /**
+   * Get the number of pages to request to stay ahead of the user.
+   *
+   * @param itemsAhead  Number of items past the last visible item.
+   * @param pagesAhead  Number of pages already requested, but not appended to the search result yet.
+   * @param pageSize    Average number of items received per page.
+   * @param itemsNeeded Number of items the user will scroll past while waiting for a page to arrive.
+   * @return Number of pages to request, so that no more than {@link #MAX_PAGES_AHEAD} pages are in flight.
+   */
+  public static int getPagesToRequest(int itemsAhead, int pagesAhead, float pageSize, float itemsNeeded) {
+    int pagesToRequest = 0;
+    // Pages already requested will extend the list by an average page size each.
+    while (pagesAhead + pagesToRequest < MAX_PAGES_AHEAD
+        && (itemsAhead + (pagesAhead + pagesToRequest) * pageSize) <= itemsNeeded) {
+      pagesToRequest++;
+    }
+    return pagesToRequest;
+  }
+
+  /**
+   * Get the time to wait before retrying after a streak of failed page requests.
+   *
+   * @param failureCount Number of page requests that failed in a row.
+   * @return Backoff delay, doubled after each failure, in milliseconds.
+   */
+  public static long getRetryDelay(int failureCount) {
+    if (failureCount <= 0) {
+      return 0;
+    }
+    // Avoid overflowing the shift.
+    final int exponent = Math.min(failureCount - 1, 16);
+    return Math.min(MAX_RETRY_DELAY, INITIAL_RETRY_DELAY << exponent);
+  }
+
+  /**
+   * Update the scroll velocity estimate.
+   *
+   * @param position Position of the last visible item.
+   */
+  private void updateScrollVelocity(int position) {
+    final long now = SystemClock.uptimeMillis();
+    if (lastPosition == -1 || (now - lastPositionTime) > VELOCITY_TIMEOUT) {
+      // Start a new measurement.
+      scrollVelocity = 0;
+    } else if (position != lastPosition && now > lastPositionTime) {
+      // Only forward movement brings the user closer to the end of the list.
+      final float velocity = Math.max(0, (float) (position - lastPosition) / (now - lastPositionTime));
+      scrollVelocity = SMOOTHING_FACTOR * velocity + (1 - SMOOTHING_FACTOR) * scrollVelocity;
+    } else if (position == lastPosition) {
+      // Don't update the timestamp when the position hasn't changed, so slow scrolling still gets measured.
+      return;
+    }
+    lastPosition = position;
+    lastPositionTime = now;
+  }
+
+  /**
+   * Request a page from the Search API, unless it's already in flight.
+   *
+   * @param offset Page offset.
+   */
+  private void requestPage(int offset) {
+    if (pendingPages.get(offset) != null || fetchedPages.get(offset) != null) {
+      return;
+    }
+    final PageCallback callback = new PageCallback(offset);
+    pendingPages.put(offset, callback);
+    lastRequestedOffset = Math.max(lastRequestedOffset, offset);
+    FilteredSearchTask.execute(context, searchClient, query, offset, callback);
+    updateFetchingState();
+  }
+
+  /**
+   * Cancel page requests and discard pages fetched after given offset.
+   *
+   * @param offset Offset of the last page to keep.
+   */
+  private void cancelPagesAfter(int offset) {
+    for (int i = pendingPages.size() - 1; i >= 0; i--) {
+      if (pendingPages.keyAt(i) > offset) {
+        pendingPages.valueAt(i).cancel();
+        pendingPages.removeAt(i);
+      }
+    }
+    for (int i = fetchedPages.size() - 1; i >= 0; i--) {
+      if (fetchedPages.keyAt(i) > offset) {
+        fetchedPages.removeAt(i);
+      }
+    }
+    lastRequestedOffset = Math.min(lastRequestedOffset, offset);
+    updateFetchingState();
+  }
+
+  /** Notify the listener if the fetching state has changed since it was last reported. */
+  private void updateFetchingState() {
+    if (!isCancelled && wasFetching != isFetching()) {
+      wasFetching = isFetching();
+      listener.onFetchingStateChanged(wasFetching);
+    }
+  }
+
+  /** Hand consecutive fetched pages over to the listener. */
+  private void deliverPages() {
+    SearchResult page;
+    while (!isCancelled && (page = fetchedPages.get(lastDeliveredOffset + 1)) != null) {
+      fetchedPages.remove(lastDeliveredOffset + 1);
+      lastDeliveredOffset++;
+
+      final boolean isLastPage = lastDeliveredOffset >= lastPageOffset;
+      if (isLastPage) {
+        // There are no more pages to fetch.
+        reachedLastPage = true;
+        cancelPagesAfter(lastDeliveredOffset);
+      }
+      listener.onPageFetched(searchResult, page, isLastPage);
+    }
+  }
+
+  /** Listener receiving pages fetched by the prefetcher. */
+  public interface Listener {
+    /**
+     * Called when the next page of the search result has been fetched. Pages are delivered in order of their offset.
+     *
+     * @param searchResult Search result the page was fetched for.
+     * @param page         Fetched page, with the images hidden by the user's filters removed. May be empty even if
+     *                     there are more pages available.
+     * @param isLastPage   True if there are no more pages available.
+     */
+    void onPageFetched(PagedSearchResult searchResult, SearchResult page, boolean isLastPage);
+
+    /**
+     * Called when a page could not be fetched. Requests for the pages after it are cancelled and will be retried
+     * with an exponential backoff. Only called for the first failure of a streak of failed requests.
+     *
+     * @param e Error.
+     */
+    void onPageFetchFailed(IOException e);
+
+    /**
+     * Called when the prefetcher starts or stops waiting for pages from the Search API.
+     *
+     * @param isFetching True if there are page requests in flight.
+     */
+    void onFetchingStateChanged(boolean isFetching);
+  }
+
+  /** Callback waiting for a single page from the Search API. */
+  private class PageCallback implements FilteredSearchTask.Callback {
+    /** Offset of the requested page. */
+    private final int offset;
+    /** Time the request was sent at. */
+    private final long requestTime = SystemClock.uptimeMillis();
+    /** Callback cancelled and should no longer respond to received SearchResult. */
+    private boolean isCancelled = false;
+
+    /**
+     * Create a new page callback.
+     *
+     * @param offset Offset of the requested page.
+     */
+    public PageCallback(int offset) {
+      this.offset = offset;
+    }
+
+    @Override
+    public void onFailure(IOException e) {
+      if (!isCancelled) {
+        // Pages have to be appended in order, so the failed page and everything after it has to be fetched again.
+        cancelPagesAfter(offset - 1);
+
+        // Back off before requesting the page again, and only report the first failure in a row.
+        failureCount++;
+        final long retryDelay = getRetryDelay(failureCount);
+        retryTime = SystemClock.uptimeMillis() + retryDelay;
+        handler.removeCallbacks(retryRunnable);
+        handler.postDelayed(retryRunnable, retryDelay);
+        if (failureCount == 1) {
+          listener.onPageFetchFailed(e);
+        }
+      }
+    }
+
+    @Override
+    public void onSuccess(SearchResult page, boolean isLastPage) {
+      if (!isCancelled) {
+        // Update page latency and size estimates. The page size is measured after filtering, since that's how
+        // much the list is extended by.
+        pageLatency = SMOOTHING_FACTOR * (SystemClock.uptimeMillis() - requestTime) + (1 - SMOOTHING_FACTOR) * pageLatency;
+        if (page.getImages().length > 0) {
+          pageSize = SMOOTHING_FACTOR * page.getImages().length + (1 - SMOOTHING_FACTOR) * pageSize;
+        }
+        addPage(page, isLastPage);
+      }
+    }
+
+    @Override
+    public void onOfflinePage(SearchResult page, boolean isLastPage) {
+      if (!isCancelled) {
+        // Pages read from the cache say nothing about the API's latency.
+        addPage(page, isLastPage);
+      }
+    }
+
+    @Override
+    public void onStalePage(SearchResult page, boolean isLastPage, IOException e) {
+      if (!isCancelled) {
+        // Show the outdated page rather than stalling the list, but report the failure of the API.
+        final boolean isFirstFailure = failureCount == 0;
+        addPage(page, isLastPage);
+        // Only report the first of a streak of failed requests, as for pages that aren't cached.
+        failureCount = 1;
+        if (isFirstFailure) {
+          listener.onPageFetchFailed(e);
+        }
+      }
+    }
+
+    /**
+     * Queue a received page to be handed to the listener once the pages before it have arrived.
+     *
+     * @param page       Received page.
+     * @param isLastPage True if the API returned no images.
+     */
+    private void addPage(SearchResult page, boolean isLastPage) {
+      failureCount = 0;
+      if (isLastPage) {
+        lastPageOffset = Math.min(lastPageOffset, offset);
+      }
+      pendingPages.remove(offset);
+      fetchedPages.put(offset, page);
+      deliverPages();
+      updateFetchingState();
+    }
+
+    /** Cancels this callback. */
+    public void cancel() {
+      this.isCancelled = true;
+    }
+  }
+}
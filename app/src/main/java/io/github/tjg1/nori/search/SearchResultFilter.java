@@ -0,0 +1,141 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.search;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.support.annotation.NonNull;
+import android.text.TextUtils;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.Tag;
+import io.github.tjg1.nori.R;
+
+/**
+ * Removes images hidden by the user's obscenity rating and tag filters from search results.
+ * <p/>
+ * The filter preferences are parsed once into a bitmask of allowed obscenity ratings and a set of blocked tag names,
+ * so that filtering a page costs a bit test and a hash lookup per tag, without taking any locks. The compiled filter
+ * is immutable and shared by all threads. It is only rebuilt after
+ * {@link io.github.tjg1.nori.NSFWFilterSettingsActivity} or {@link io.github.tjg1.nori.TagFilterSettingsActivity}
+ * change the filter preferences.
+ */
+public class SearchResultFilter {
+  /** Filter compiled from the current preferences. Null if the preferences changed since it was compiled. */
+  private static SearchResultFilter instance;
+  /** Invalidates {@link #instance} when the filter preferences change. Referenced here, since SharedPreferences only keeps weak references to its listeners. */
+  private static SharedPreferences.OnSharedPreferenceChangeListener preferenceChangeListener;
+  /** Bit i is set if images with the obscenity rating of ordinal i are shown. */
+  private final int allowedRatings;
+  /** Names of the tags of images that should be removed. */
+  private final Set<String> blockedTagNames = new HashSet<>();
+
+  /**
+   * Create a new compiled filter.
+   *
+   * @param allowedRatings Obscenity ratings of the images that should be shown.
+   * @param blockedTags    Tags of images that should be removed.
+   */
+  public SearchResultFilter(@NonNull Image.ObscenityRating[] allowedRatings, @NonNull Tag[] blockedTags) {
+    int ratingMask = 0;
+    for (Image.ObscenityRating rating : allowedRatings) {
+      if (rating != null) {
+        ratingMask |= 1 << rating.ordinal();
+      }
+    }
+    this.allowedRatings = ratingMask;
+    for (Tag tag : blockedTags) {
+      blockedTagNames.add(tag.getName());
+    }
+  }
+
+  /**
+   * Get the filter compiled from the current filter preferences. Can be called from any thread.
+   *
+   * @param context Android context.
+   * @return Compiled filter.
+   */
+  @NonNull
+  public static synchronized SearchResultFilter get(@NonNull Context context) {
+    if (instance != null) {
+      return instance;
+    }
+
+    final Context appContext = context.getApplicationContext();
+    final SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(appContext);
+    final String nsfwFilterKey = appContext.getString(R.string.preference_nsfwFilter_key);
+    final String tagFilterKey = appContext.getString(R.string.preference_tagFilter_key);
+    if (preferenceChangeListener == null) {
+      preferenceChangeListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+          if (nsfwFilterKey.equals(key) || tagFilterKey.equals(key)) {
+            invalidate();
+          }
+        }
+      };
+      sharedPreferences.registerOnSharedPreferenceChangeListener(preferenceChangeListener);
+    }
+
+    // Get the obscenity rating filter from shared preferences, or fall back to the default value.
+    final String nsfwFilter = sharedPreferences.getString(nsfwFilterKey, "").trim();
+    final String[] ratings = !TextUtils.isEmpty(nsfwFilter) ? nsfwFilter.split(" ")
+        : appContext.getResources().getStringArray(R.array.preference_nsfwFilter_defaultValues);
+
+    instance = new SearchResultFilter(Image.ObscenityRating.arrayFromStrings(ratings),
+        Tag.arrayFromString(sharedPreferences.getString(tagFilterKey, "")));
+    return instance;
+  }
+
+  /** Discard the compiled filter, so it is rebuilt from the preferences the next time it is used. */
+  private static synchronized void invalidate() {
+    instance = null;
+  }
+
+  /**
+   * Check if an image should be shown.
+   *
+   * @param image Image.
+   * @return True if the image passes the obscenity rating and tag filters.
+   */
+  public boolean accept(@NonNull Image image) {
+    if (image.obscenityRating == null || (allowedRatings & (1 << image.obscenityRating.ordinal())) == 0) {
+      return false;
+    }
+    if (image.tags != null && !blockedTagNames.isEmpty()) {
+      for (Tag tag : image.tags) {
+        if (blockedTagNames.contains(tag.getName())) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Filter images received from the Search API.
+   *
+   * @param images Images to filter.
+   * @return Images that should be shown, in their original order.
+   */
+  @NonNull
+  public Image[] apply(@NonNull Image[] images) {
+    final Image[] filteredImages = new Image[images.length];
+    int count = 0;
+    for (Image image : images) {
+      if (accept(image)) {
+        filteredImages[count++] = image;
+      }
+    }
+    return (count == images.length) ? filteredImages : Arrays.copyOf(filteredImages, count);
+  }
+}
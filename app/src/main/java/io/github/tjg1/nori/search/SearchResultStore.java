@@ -0,0 +1,169 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.search;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Process-wide registry of the {@link PagedSearchResult}s displayed by the app.
+ * <p/>
+ * Search results grow by a page each time the user scrolls to the end of the list, so passing them between activities
+ * as Intent extras and keeping them in the saved instance state means marshalling megabytes of data on the UI thread
+ * and eventually hitting the Binder transaction size limit. Instead, each result is registered here under a short
+ * token, which is all that has to be put in an Intent or Bundle. Every component displaying the result holds a
+ * reference to the same live object, so images appended by one of them are visible to the others without copying.
+ * <p/>
+ * The store itself only keeps search results in memory. To survive process death, the components holding a token call
+ * {@link PagedSearchResult#saveSnapshot()} when their instance state is saved, and the snapshot is only read back
+ * here, on a background thread, if the result is no longer in memory.
+ * <p/>
+ * All methods must be called from the UI thread.
+ */
+public abstract class SearchResultStore {
+  /** Log tag. */
+  private static final String TAG = "SearchResultStore";
+  /** Number of released search results kept in memory, so they can be re-acquired after a configuration change. */
+  private static final int RELEASED_CACHE_SIZE = 2;
+  /** Callbacks waiting for search results that are being restored from their snapshots, keyed by token. */
+  private static final Map<String, List<AcquireCallback>> pendingCallbacks = new HashMap<>();
+  /** Search results currently in use, keyed by token. */
+  private static final Map<String, Entry> entries = new HashMap<>();
+  /** Search results that are no longer in use, but may be acquired again shortly, keyed by token. */
+  private static final LruCache<String, PagedSearchResult> releasedSearchResults =
+      new LruCache<String, PagedSearchResult>(RELEASED_CACHE_SIZE) {
+        @Override
+        protected void entryRemoved(boolean evicted, String key, PagedSearchResult oldValue,
+                                    PagedSearchResult newValue) {
+          // Release the memory used by search results that are not re-acquired.
+          if (evicted) {
+            oldValue.close();
+          }
+        }
+      };
+
+  /**
+   * Register a search result and acquire a reference to it.
+   *
+   * @param searchResult Search result.
+   * @return Token identifying the search result. Must be passed to {@link #release(String)} once no longer used.
+   */
+  @NonNull
+  public static String acquire(@NonNull PagedSearchResult searchResult) {
+    final String token = searchResult.getId();
+    final Entry entry = entries.get(token);
+    if (entry != null) {
+      entry.referenceCount++;
+    } else {
+      releasedSearchResults.remove(token);
+      entries.put(token, new Entry(searchResult));
+    }
+    return token;
+  }
+
+  /**
+   * Acquire a reference to the search result registered under the given token. If the process was restarted since the
+   * token was issued, the search result is restored from its last snapshot on a background thread.
+   *
+   * @param context  Android context.
+   * @param token    Token returned by {@link #acquire(PagedSearchResult)}.
+   * @param callback Callback receiving the search result. Called right away if the search result is in memory.
+   */
+  public static void acquire(@NonNull Context context, @NonNull final String token,
+                             @NonNull AcquireCallback callback) {
+    // Look for the search result in memory.
+    final Entry entry = entries.get(token);
+    if (entry != null) {
+      entry.referenceCount++;
+      callback.onSearchResultAcquired(entry.searchResult);
+      return;
+    }
+    final PagedSearchResult searchResult = releasedSearchResults.remove(token);
+    if (searchResult != null) {
+      entries.put(token, new Entry(searchResult));
+      callback.onSearchResultAcquired(searchResult);
+      return;
+    }
+
+    // Fall back to the snapshot written before the process was killed. Callers acquiring the same search result while
+    // it is being restored share the restored object.
+    List<AcquireCallback> callbacks = pendingCallbacks.get(token);
+    if (callbacks != null) {
+      callbacks.add(callback);
+      return;
+    }
+    callbacks = new ArrayList<>();
+    callbacks.add(callback);
+    pendingCallbacks.put(token, callbacks);
+    PagedSearchResult.restore(context, token, new PagedSearchResult.RestoreCallback() {
+      @Override
+      public void onRestored(@Nullable PagedSearchResult searchResult, @Nullable IOException e) {
+        final List<AcquireCallback> callbacks = pendingCallbacks.remove(token);
+        if (searchResult == null) {
+          Log.w(TAG, "Could not restore search result.", e);
+        } else {
+          final Entry entry = new Entry(searchResult);
+          entry.referenceCount = callbacks.size();
+          entries.put(token, entry);
+        }
+        for (AcquireCallback callback : callbacks) {
+          callback.onSearchResultAcquired(searchResult);
+        }
+      }
+    });
+  }
+
+  /**
+   * Release a reference to a search result. The search result is forgotten once all references have been released.
+   *
+   * @param token Token returned by {@link #acquire(PagedSearchResult)}.
+   */
+  public static void release(@NonNull String token) {
+    final Entry entry = entries.get(token);
+    if (entry != null && --entry.referenceCount <= 0) {
+      entries.remove(token);
+      releasedSearchResults.put(token, entry.searchResult);
+    }
+  }
+
+  /** Callback receiving a search result acquired by {@link #acquire(Context, String, AcquireCallback)}. */
+  public interface AcquireCallback {
+    /**
+     * Called on the UI thread once the search result is available. The reference has to be released with
+     * {@link #release(String)}, even if the caller no longer needs it.
+     *
+     * @param searchResult Search result, or null if it is no longer available.
+     */
+    void onSearchResultAcquired(@Nullable PagedSearchResult searchResult);
+  }
+
+  /** Search result registered in the store. */
+  private static class Entry {
+    /** The search result. */
+    private final PagedSearchResult searchResult;
+    /** Number of references acquired. */
+    private int referenceCount = 1;
+
+    /**
+     * Create a new entry with a single reference.
+     *
+     * @param searchResult Search result.
+     */
+    public Entry(PagedSearchResult searchResult) {
+      this.searchResult = searchResult;
+    }
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.search;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.Tag;
+
+/**
+ * Process-wide dictionary of shared {@link Tag} instances.
+ * <p/>
+ * Every {@link Image} parsed from an API response or read back from a {@link android.os.Parcel} holds its own
+ * {@link Tag} objects and name strings, even though most images share the same few hundred tags. Interning the tags of
+ * an image replaces them with flyweight {@link Tag} instances owned by the dictionary, so each distinct tag is kept in
+ * memory only once, and the tags of an image cost one reference each. Tags with the same name, but a different type
+ * share the same name string.
+ * <p/>
+ * The dictionary holds at most {@link #MAX_SIZE} names. Once it is full, it is cleared and starts over, so that long
+ * sessions browsing many different tags don't keep every name ever seen in memory. Tags interned before that stay
+ * valid, but are no longer shared with tags interned afterwards. All methods are thread-safe.
+ */
+public abstract class TagDictionary {
+  /** Maximum number of tag names in the dictionary. */
+  public static final int MAX_SIZE = 32 * 1024;
+  /** Number of flyweight slots reserved for each tag ID: one for each {@link Tag.Type}, and one for tags without a type. */
+  private static final int TYPE_SLOTS = Tag.Type.values().length + 1;
+  /** Initial capacity of the dictionary. Enough for the tags in the suggestion list bundled with the app. */
+  private static final int INITIAL_CAPACITY = 1024;
+  /** Tag IDs, keyed by name. */
+  private static final Map<String, Integer> ids = new HashMap<>(INITIAL_CAPACITY);
+  /** Tag names, indexed by ID. */
+  private static final List<String> names = new ArrayList<>(INITIAL_CAPACITY);
+  /** Flyweight tags, indexed by {@code ID * TYPE_SLOTS + type slot}. Created on first use. */
+  private static Tag[] tags = new Tag[INITIAL_CAPACITY * TYPE_SLOTS];
+
+  /**
+   * Get the ID of a tag, adding it to the dictionary if it hasn't been seen before. IDs index the flyweight tags and
+   * are only valid until the dictionary is cleared. Must be called while holding the dictionary lock.
+   *
+   * @param name Tag name.
+   * @return Tag ID.
+   */
+  private static int getId(@NonNull String name) {
+    final Integer id = ids.get(name);
+    if (id != null) {
+      return id;
+    }
+    if (names.size() >= MAX_SIZE) {
+      clear();
+    }
+    final int newId = names.size();
+    ids.put(name, newId);
+    names.add(name);
+    return newId;
+  }
+
+  /** @return Number of tags in the dictionary. */
+  public static synchronized int size() {
+    return names.size();
+  }
+
+  /** Remove all tags from the dictionary. */
+  private static void clear() {
+    ids.clear();
+    names.clear();
+    tags = new Tag[INITIAL_CAPACITY * TYPE_SLOTS];
+  }
+
+  /**
+   * Get the shared instance of a tag.
+   *
+   * @param tag Tag.
+   * @return Flyweight tag with the same name and type.
+   */
+  @NonNull
+  public static synchronized Tag intern(@NonNull Tag tag) {
+    final int slot = getId(tag.getName()) * TYPE_SLOTS + (tag.getType() != null ? tag.getType().ordinal() + 1 : 0);
+    if (slot >= tags.length) {
+      tags = Arrays.copyOf(tags, Math.max(tags.length * 2, slot + TYPE_SLOTS));
+    }
+    Tag flyweight = tags[slot];
+    if (flyweight == null) {
+      // Use the dictionary's copy of the name, so it is shared by tags of all types.
+      final String name = names.get(slot / TYPE_SLOTS);
+      if (name == tag.getName()) {
+        flyweight = tag;
+      } else {
+        flyweight = (tag.getType() != null) ? new Tag(name, tag.getType()) : new Tag(name);
+      }
+      tags[slot] = flyweight;
+    }
+    return flyweight;
+  }
+
+  /**
+   * Replace the tags of an image with their shared instances.
+   *
+   * @param image Image.
+   */
+  public static void intern(@Nullable Image image) {
+    if (image == null || image.tags == null) {
+      return;
+    }
+    for (int i = 0; i < image.tags.length; i++) {
+      image.tags[i] = intern(image.tags[i]);
+    }
+  }
+
+  /**
+   * Replace the tags of images with their shared instances.
+   *
+   * @param images Images.
+   */
+  public static void intern(@NonNull Image[] images) {
+    for (Image image : images) {
+      intern(image);
+    }
+  }
+}
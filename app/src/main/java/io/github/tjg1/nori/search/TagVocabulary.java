@@ -0,0 +1,412 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.search;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Xml;
+
+import com.squareup.okhttp.HttpUrl;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.github.tjg1.library.norilib.clients.SearchClient;
+import io.github.tjg1.nori.database.SearchSuggestionDatabase;
+import io.github.tjg1.nori.net.HttpEngine;
+
+/**
+ * Fetches the tag vocabulary of a service from its tag API into the {@link SearchSuggestionDatabase}, so that tags can
+ * be suggested for every service and not just the Safebooru tags bundled with the app.
+ * <p/>
+ * The first refresh fetches the most popular tags. Later refreshes only fetch the tags created since then, using the
+ * ID of the newest tag seen as a cursor, and the most popular tags are fetched again once their post counts are out of
+ * date. The cursor only ever covers tags that were actually fetched, so no tag is skipped when a refresh stops early.
+ */
+public abstract class TagVocabulary {
+  /** Time after which new tags are fetched again, in milliseconds. */
+  public static final long REFRESH_INTERVAL = TimeUnit.DAYS.toMillis(1);
+  /** Time after which the most popular tags are fetched again to update their post counts, in milliseconds. */
+  private static final long FULL_REFRESH_INTERVAL = TimeUnit.DAYS.toMillis(30);
+  /** Number of tags requested per page. */
+  private static final int PAGE_SIZE = 500;
+  /** Maximum number of pages of the most popular tags fetched in a full refresh. */
+  private static final int MAX_POPULAR_PAGES = 10;
+  /** Maximum number of pages of new tags fetched in an incremental refresh. */
+  private static final int MAX_NEW_TAG_PAGES = 10;
+
+  /**
+   * Check if the tag API of a service is supported.
+   *
+   * @param settings Service settings.
+   * @return True if the tag vocabulary of the service can be fetched.
+   */
+  public static boolean isSupported(@NonNull SearchClient.Settings settings) {
+    return getPopularTagsUrl(settings, 0) != null;
+  }
+
+  /**
+   * Check if the tag vocabulary of a service should be refreshed.
+   *
+   * @param state State of the vocabulary. Null if it has never been fetched.
+   * @param now   Current time, in milliseconds since the epoch.
+   * @return True if the vocabulary should be refreshed.
+   */
+  public static boolean isRefreshDue(@Nullable SearchSuggestionDatabase.VocabularyState state, long now) {
+    return state == null || now - state.refreshedAt >= REFRESH_INTERVAL || now < state.refreshedAt;
+  }
+
+  /**
+   * Refresh the tag vocabulary of a service. Performs network and disk I/O and should not be called from the UI
+   * thread.
+   *
+   * @param context   Android context.
+   * @param db        Search suggestion database the vocabulary is stored in.
+   * @param serviceId Database row ID of the service in {@link io.github.tjg1.nori.database.APISettingsDatabase}.
+   * @param settings  Service settings.
+   * @return Number of tags fetched.
+   * @throws IOException Network error, unsuccessful HTTP response code or malformed response.
+   */
+  public static int refresh(@NonNull Context context, @NonNull SearchSuggestionDatabase db, long serviceId,
+                            @NonNull SearchClient.Settings settings) throws IOException {
+    if (!isSupported(settings)) {
+      return 0;
+    }
+    final SearchSuggestionDatabase.VocabularyState state = db.getVocabularyState(serviceId);
+    final long now = System.currentTimeMillis();
+    final boolean isFullRefresh = state == null || now - state.fullRefreshedAt >= FULL_REFRESH_INTERVAL
+        || now < state.fullRefreshedAt;
+    final long afterId = state != null ? state.maxTagId : 0;
+    long maxTagId = afterId;
+    int tagCount = 0;
+
+    if (isFullRefresh) {
+      // The most popular tags are mostly old, so the cursor is seeded from the newest tag instead. It is fetched first,
+      // so that tags created during the refresh are picked up by the next incremental refresh.
+      final List<SearchSuggestionDatabase.ServiceTag> newestTags =
+          parseTags(settings.getApiType(), fetch(context, getNewestTagUrl(settings)));
+      for (SearchSuggestionDatabase.ServiceTag tag : newestTags) {
+        maxTagId = Math.max(maxTagId, tag.id);
+      }
+
+      // Each page is stored as soon as it is fetched.
+      for (int page = 0; page < MAX_POPULAR_PAGES; page++) {
+        final List<SearchSuggestionDatabase.ServiceTag> tags =
+            parseTags(settings.getApiType(), fetch(context, getPopularTagsUrl(settings, page)));
+        tagCount += putUsedTags(db, serviceId, tags);
+        if (tags.size() < PAGE_SIZE) {
+          break;
+        }
+      }
+    } else {
+      // Pages that start right after the cursor cover contiguous ranges of tag IDs, so the cursor can be moved after
+      // each of them. Other APIs return pages in no particular order, so the cursor is only moved once every page of
+      // new tags has been fetched: tags left out by a refresh that stops at the page limit are fetched again next time.
+      final boolean isContiguous = hasContiguousNewTagPages(settings.getApiType());
+      long fetchedMaxTagId = afterId;
+      boolean isComplete = false;
+      for (int page = 0; page < MAX_NEW_TAG_PAGES; page++) {
+        final HttpUrl url = isContiguous ? getNewTagsUrl(settings, maxTagId, 0)
+            : getNewTagsUrl(settings, afterId, page);
+        final List<SearchSuggestionDatabase.ServiceTag> tags = parseTags(settings.getApiType(), fetch(context, url));
+        for (SearchSuggestionDatabase.ServiceTag tag : tags) {
+          fetchedMaxTagId = Math.max(fetchedMaxTagId, tag.id);
+        }
+        tagCount += putUsedTags(db, serviceId, tags);
+        if (isContiguous) {
+          maxTagId = fetchedMaxTagId;
+        }
+        if (tags.size() < PAGE_SIZE) {
+          isComplete = true;
+          break;
+        }
+      }
+      if (isComplete) {
+        maxTagId = fetchedMaxTagId;
+      }
+    }
+
+    db.setVocabularyState(serviceId, new SearchSuggestionDatabase.VocabularyState(maxTagId, now,
+        isFullRefresh ? now : state.fullRefreshedAt));
+    return tagCount;
+  }
+
+  /**
+   * Store the tags of a page that have posts. Tags without posts would only lead to empty search results.
+   *
+   * @param db        Search suggestion database the vocabulary is stored in.
+   * @param serviceId Database row ID of the service in {@link io.github.tjg1.nori.database.APISettingsDatabase}.
+   * @param tags      Tags on the page.
+   * @return Number of tags stored.
+   */
+  private static int putUsedTags(SearchSuggestionDatabase db, long serviceId,
+                                 List<SearchSuggestionDatabase.ServiceTag> tags) {
+    final List<SearchSuggestionDatabase.ServiceTag> usedTags = new ArrayList<>(tags.size());
+    for (SearchSuggestionDatabase.ServiceTag tag : tags) {
+      if (tag.postCount > 0) {
+        usedTags.add(tag);
+      }
+    }
+    db.putServiceTags(serviceId, usedTags);
+    return usedTags.size();
+  }
+
+  /**
+   * Check if the tag API of a service returns the new tags right after the cursor, in ascending ID order. Only then
+   * does each page cover a contiguous range of tag IDs.
+   *
+   * @param apiType API type of the service.
+   * @return True if the pages of new tags are contiguous.
+   */
+  private static boolean hasContiguousNewTagPages(SearchClient.Settings.APIType apiType) {
+    // Danbooru's "a<id>" pages hold the tags following the ID.
+    return apiType == SearchClient.Settings.APIType.DANBOORU;
+  }
+
+  /**
+   * Get the URL of the newest tag of a service.
+   *
+   * @param settings Service settings.
+   * @return URL of a page holding the newest tag. Null if the tag API of the service isn't supported.
+   */
+  @Nullable
+  public static HttpUrl getNewestTagUrl(@NonNull SearchClient.Settings settings) {
+    final HttpUrl endpoint = HttpUrl.parse(settings.getEndpoint());
+    if (endpoint == null) {
+      return null;
+    }
+    switch (settings.getApiType()) {
+      case DANBOORU:
+        return endpoint.newBuilder()
+            .addPathSegment("tags.json")
+            .addQueryParameter("search[order]", "date")
+            .addQueryParameter("limit", "1")
+            .build();
+      case DANBOORU_LEGACY:
+        return endpoint.newBuilder()
+            .addPathSegment("tag.json")
+            .addQueryParameter("order", "date")
+            .addQueryParameter("limit", "1")
+            .build();
+      case GELBOORU:
+        return endpoint.newBuilder()
+            .addPathSegment("index.php")
+            .addQueryParameter("page", "dapi")
+            .addQueryParameter("s", "tag")
+            .addQueryParameter("q", "index")
+            .addQueryParameter("limit", "1")
+            .addQueryParameter("orderby", "date")
+            .addQueryParameter("order", "DESC")
+            .build();
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Get the URL of a page of the most popular tags of a service.
+   *
+   * @param settings Service settings.
+   * @param page     Page number, starting at 0.
+   * @return URL of the page. Null if the tag API of the service isn't supported.
+   */
+  @Nullable
+  public static HttpUrl getPopularTagsUrl(@NonNull SearchClient.Settings settings, int page) {
+    final HttpUrl endpoint = HttpUrl.parse(settings.getEndpoint());
+    if (endpoint == null) {
+      return null;
+    }
+    switch (settings.getApiType()) {
+      case DANBOORU:
+        return endpoint.newBuilder()
+            .addPathSegment("tags.json")
+            .addQueryParameter("search[order]", "count")
+            .addQueryParameter("search[hide_empty]", "yes")
+            .addQueryParameter("limit", Integer.toString(PAGE_SIZE))
+            .addQueryParameter("page", Integer.toString(page + 1))
+            .build();
+      case DANBOORU_LEGACY:
+        return endpoint.newBuilder()
+            .addPathSegment("tag.json")
+            .addQueryParameter("order", "count")
+            .addQueryParameter("limit", Integer.toString(PAGE_SIZE))
+            .addQueryParameter("page", Integer.toString(page + 1))
+            .build();
+      case GELBOORU:
+        return getGelbooruTagsUrl(endpoint, page)
+            .addQueryParameter("orderby", "count")
+            .addQueryParameter("order", "DESC")
+            .build();
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Get the URL of a page of the tags created on a service after given tag. Danbooru pages always start right after
+   * the tag, so the page number is ignored and the tag ID is moved forward instead.
+   *
+   * @param settings Service settings.
+   * @param afterId  ID of the last tag fetched.
+   * @param page     Page number, starting at 0.
+   * @return URL of the page. Null if the tag API of the service isn't supported.
+   */
+  @Nullable
+  public static HttpUrl getNewTagsUrl(@NonNull SearchClient.Settings settings, long afterId, int page) {
+    final HttpUrl endpoint = HttpUrl.parse(settings.getEndpoint());
+    if (endpoint == null) {
+      return null;
+    }
+    switch (settings.getApiType()) {
+      case DANBOORU:
+        return endpoint.newBuilder()
+            .addPathSegment("tags.json")
+            .addQueryParameter("search[hide_empty]", "yes")
+            .addQueryParameter("limit", Integer.toString(PAGE_SIZE))
+            .addQueryParameter("page", "a" + afterId)
+            .build();
+      case DANBOORU_LEGACY:
+        return endpoint.newBuilder()
+            .addPathSegment("tag.json")
+            .addQueryParameter("after_id", Long.toString(afterId))
+            .addQueryParameter("limit", Integer.toString(PAGE_SIZE))
+            .addQueryParameter("page", Integer.toString(page + 1))
+            .build();
+      case GELBOORU:
+        return getGelbooruTagsUrl(endpoint, page)
+            .addQueryParameter("after_id", Long.toString(afterId))
+            .build();
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Start building the URL of a page of the Gelbooru tag API.
+   *
+   * @param endpoint API endpoint.
+   * @param page     Page number, starting at 0.
+   * @return URL builder.
+   */
+  private static HttpUrl.Builder getGelbooruTagsUrl(HttpUrl endpoint, int page) {
+    return endpoint.newBuilder()
+        .addPathSegment("index.php")
+        .addQueryParameter("page", "dapi")
+        .addQueryParameter("s", "tag")
+        .addQueryParameter("q", "index")
+        .addQueryParameter("limit", Integer.toString(PAGE_SIZE))
+        .addQueryParameter("pid", Integer.toString(page));
+  }
+
+  /**
+   * Fetch a page of the tag API using the shared HTTP client.
+   *
+   * @param context Android context.
+   * @param url     URL of the page.
+   * @return Response body.
+   * @throws IOException Network error or unsuccessful HTTP response code.
+   */
+  private static String fetch(Context context, HttpUrl url) throws IOException {
+    final Response response = HttpEngine.getClient(context).newCall(new Request.Builder().url(url).build()).execute();
+    if (!response.isSuccessful()) {
+      response.body().close();
+      throw new IOException("Unexpected HTTP response code: " + response.code());
+    }
+    return response.body().string();
+  }
+
+  /**
+   * Parse a page of the tag API.
+   *
+   * @param apiType API type of the service.
+   * @param body    Response body.
+   * @return Tags on the page.
+   * @throws IOException Malformed response.
+   */
+  @NonNull
+  public static List<SearchSuggestionDatabase.ServiceTag> parseTags(@NonNull SearchClient.Settings.APIType apiType,
+                                                                    @NonNull String body) throws IOException {
+    switch (apiType) {
+      case DANBOORU:
+        return parseJsonTags(body, "post_count");
+      case DANBOORU_LEGACY:
+        return parseJsonTags(body, "count");
+      case GELBOORU:
+        return parseXmlTags(body);
+      default:
+        throw new IllegalArgumentException("Unsupported API type: " + apiType);
+    }
+  }
+
+  /**
+   * Parse a JSON array of tags, as returned by Danbooru and Moebooru.
+   *
+   * @param body            Response body.
+   * @param postCountColumn Name of the member holding the post count.
+   * @return Tags.
+   * @throws IOException Malformed response.
+   */
+  private static List<SearchSuggestionDatabase.ServiceTag> parseJsonTags(String body, String postCountColumn)
+      throws IOException {
+    try {
+      final JSONArray array = new JSONArray(body);
+      final List<SearchSuggestionDatabase.ServiceTag> tags = new ArrayList<>(array.length());
+      for (int i = 0; i < array.length(); i++) {
+        final JSONObject tag = array.getJSONObject(i);
+        tags.add(new SearchSuggestionDatabase.ServiceTag(tag.getLong("id"), tag.getString("name"),
+            tag.optLong(postCountColumn)));
+      }
+      return tags;
+    } catch (JSONException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Parse an XML list of tags, as returned by Gelbooru.
+   *
+   * @param body Response body.
+   * @return Tags.
+   * @throws IOException Malformed response.
+   */
+  private static List<SearchSuggestionDatabase.ServiceTag> parseXmlTags(String body) throws IOException {
+    try {
+      final XmlPullParser parser = Xml.newPullParser();
+      parser.setInput(new StringReader(body));
+      final List<SearchSuggestionDatabase.ServiceTag> tags = new ArrayList<>(PAGE_SIZE);
+
+      // Tags are empty <tag> elements, with the values in their attributes.
+      int event;
+      while ((event = parser.next()) != XmlPullParser.END_DOCUMENT) {
+        if (event == XmlPullParser.START_TAG && "tag".equals(parser.getName())) {
+          final String id = parser.getAttributeValue(null, "id");
+          final String name = parser.getAttributeValue(null, "name");
+          final String count = parser.getAttributeValue(null, "count");
+          if (id != null && name != null) {
+            tags.add(new SearchSuggestionDatabase.ServiceTag(Long.parseLong(id), name,
+                count != null ? Long.parseLong(count) : 0));
+          }
+        }
+      }
+      return tags;
+    } catch (XmlPullParserException | NumberFormatException e) {
+      throw new IOException(e);
+    }
+  }
+}
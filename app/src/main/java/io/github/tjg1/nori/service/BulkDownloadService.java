@@ -0,0 +1,227 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.service;
+
+import android.app.Notification;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.media.MediaScannerConnection;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.v4.app.NotificationCompat;
+import android.support.v4.app.NotificationManagerCompat;
+import android.text.format.Formatter;
+
+import com.squareup.okhttp.OkHttpClient;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.nori.R;
+import io.github.tjg1.nori.image.ImageStore;
+import io.github.tjg1.nori.net.BulkDownloader;
+import io.github.tjg1.nori.net.HttpEngine;
+
+/**
+ * Service used by {@link io.github.tjg1.nori.SearchActivity} to download the original files of many images at once
+ * with a {@link BulkDownloader}. Progress and throughput are shown in a notification, which can be used to cancel the
+ * downloads.
+ */
+public class BulkDownloadService extends Service implements BulkDownloader.Listener {
+  /** Intent action used to cancel the downloads from the notification. */
+  private static final String ACTION_CANCEL = "io.github.tjg1.nori.service.BulkDownloadService.cancel";
+  /** ID of the progress notification. */
+  private static final int NOTIFICATION_ID = 0x01;
+  /** Number of files downloaded in parallel. */
+  private static final int THREAD_COUNT = 3;
+  /** Minimum time between the start of two requests to the same host, in milliseconds. */
+  private static final long HOST_REQUEST_INTERVAL = 250;
+  /** Minimum time between updates of the progress notification, in nanoseconds. */
+  private static final long NOTIFICATION_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+  /** Images queued by {@link #download(Context, List)}, waiting to be handed to the downloader. */
+  private static final List<Image> pendingImages = new ArrayList<>();
+  /** Handler used to stop the service on the main thread. */
+  private final Handler handler = new Handler(Looper.getMainLooper());
+  /** Downloads the queued images. */
+  private BulkDownloader bulkDownloader;
+  /** Used to show the progress notification. */
+  private NotificationManagerCompat notificationManager;
+  /** ID of the last start request, used to stop the service. */
+  private int lastStartId;
+  /** Time the progress notification was last updated, in nanoseconds. */
+  private long lastNotificationTime;
+
+  /**
+   * Download the original files of images in the background. The images are handed to the service in memory, as a
+   * whole search result may not fit in an Intent.
+   *
+   * @param context Android context.
+   * @param images  Images to download.
+   */
+  public static void download(@NonNull Context context, @NonNull List<Image> images) {
+    synchronized (pendingImages) {
+      pendingImages.addAll(images);
+    }
+    context.startService(new Intent(context, BulkDownloadService.class));
+  }
+
+  @Override
+  public void onCreate() {
+    super.onCreate();
+    notificationManager = NotificationManagerCompat.from(this);
+    bulkDownloader = createBulkDownloader();
+  }
+
+  @Override
+  public int onStartCommand(Intent intent, int flags, int startId) {
+    lastStartId = startId;
+
+    if (intent != null && ACTION_CANCEL.equals(intent.getAction())) {
+      // Partial files are kept, so the downloads are resumed if the images are downloaded again. A cancelled downloader
+      // can't be restarted, so images queued afterwards, before the service is destroyed, are handed to a new one.
+      bulkDownloader.cancel();
+      bulkDownloader = createBulkDownloader();
+      stopForeground(true);
+      stopSelf(startId);
+      return START_NOT_STICKY;
+    }
+
+    // Hand the queued images to the downloader.
+    final List<Image> images;
+    synchronized (pendingImages) {
+      images = new ArrayList<>(pendingImages);
+      pendingImages.clear();
+    }
+    bulkDownloader.download(images);
+
+    if (bulkDownloader.isIdle()) {
+      stopSelf(startId);
+    } else {
+      startForeground(NOTIFICATION_ID, createProgressNotification(bulkDownloader.getProgress()));
+    }
+    return START_NOT_STICKY;
+  }
+
+  @Override
+  public void onDestroy() {
+    bulkDownloader.cancel();
+    super.onDestroy();
+  }
+
+  @Override
+  public IBinder onBind(Intent intent) {
+    return null;
+  }
+
+  @Override
+  public void onProgress(BulkDownloader.Progress progress) {
+    synchronized (this) {
+      final long now = System.nanoTime();
+      if (now - lastNotificationTime < NOTIFICATION_INTERVAL) {
+        return;
+      }
+      lastNotificationTime = now;
+    }
+    notificationManager.notify(NOTIFICATION_ID, createProgressNotification(progress));
+  }
+
+  @Override
+  public void onFileDownloaded(File file) {
+    // Add the image to the system gallery app.
+    MediaScannerConnection.scanFile(this, new String[]{file.getPath()}, null, null);
+  }
+
+  @Override
+  public void onFinished(final BulkDownloader.Progress progress) {
+    handler.post(new Runnable() {
+      @Override
+      public void run() {
+        // More images may have been queued in the meantime.
+        if (!bulkDownloader.isIdle()) {
+          return;
+        }
+        stopForeground(true);
+        notificationManager.notify(NOTIFICATION_ID, createFinishedNotification(progress, false));
+        stopSelf(lastStartId);
+      }
+    });
+  }
+
+  @Override
+  public void onCancelled(final BulkDownloader.Progress progress) {
+    handler.post(new Runnable() {
+      @Override
+      public void run() {
+        // Images queued after cancelling are being downloaded by a new downloader, which shows its own progress.
+        if (!bulkDownloader.isIdle()) {
+          return;
+        }
+        // Replace the ongoing progress notification with a summary of the downloads finished before cancelling.
+        stopForeground(true);
+        notificationManager.notify(NOTIFICATION_ID, createFinishedNotification(progress, true));
+      }
+    });
+  }
+
+  /** @return New downloader saving the original files to the downloads directory and the image store. */
+  private BulkDownloader createBulkDownloader() {
+    // Share connections with the rest of the app, but keep the original files out of the HTTP cache.
+    final OkHttpClient okHttpClient = HttpEngine.getClient(this).clone();
+    okHttpClient.setCache(null);
+    return new BulkDownloader(okHttpClient,
+        Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS), ImageStore.get(this),
+        THREAD_COUNT, HOST_REQUEST_INTERVAL, this);
+  }
+
+  /**
+   * Create the notification shown while images are downloaded.
+   *
+   * @param progress Progress of the downloads.
+   * @return Progress notification.
+   */
+  private Notification createProgressNotification(BulkDownloader.Progress progress) {
+    final PendingIntent cancelIntent = PendingIntent.getService(this, 0,
+        new Intent(this, BulkDownloadService.class).setAction(ACTION_CANCEL), PendingIntent.FLAG_UPDATE_CURRENT);
+
+    return new NotificationCompat.Builder(this)
+        .setSmallIcon(android.R.drawable.stat_sys_download)
+        .setContentTitle(getString(R.string.notification_bulkDownload_title))
+        .setContentText(getString(R.string.notification_bulkDownload_progress, progress.getFinishedCount(),
+            progress.fileCount, Formatter.formatShortFileSize(this, progress.getThroughput())))
+        .setProgress(progress.fileCount, progress.getFinishedCount(), false)
+        .setOngoing(true)
+        .setOnlyAlertOnce(true)
+        .addAction(0, getString(R.string.cancel), cancelIntent)
+        .build();
+  }
+
+  /**
+   * Create the notification shown once all images have been downloaded, or the downloads have been cancelled.
+   *
+   * @param progress    Progress of the finished downloads.
+   * @param isCancelled True if the downloads were cancelled.
+   * @return Summary notification.
+   */
+  private Notification createFinishedNotification(BulkDownloader.Progress progress, boolean isCancelled) {
+    return new NotificationCompat.Builder(this)
+        .setSmallIcon(android.R.drawable.stat_sys_download_done)
+        .setContentTitle(getString(isCancelled ? R.string.notification_bulkDownload_cancelled_title
+            : R.string.notification_bulkDownload_finished_title))
+        .setContentText(getString(R.string.notification_bulkDownload_finished, progress.completedCount,
+            progress.skippedCount, progress.failedCount))
+        .setAutoCancel(true)
+        .build();
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.service;
+
+import android.app.IntentService;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+import java.io.IOException;
+
+import io.github.tjg1.library.norilib.clients.SearchClient;
+import io.github.tjg1.nori.database.SearchSuggestionDatabase;
+import io.github.tjg1.nori.search.TagVocabulary;
+
+/**
+ * Service used by {@link io.github.tjg1.nori.SearchActivity} to refresh the tag vocabulary of the selected service in
+ * the background, so that its tags can be suggested while the user types.
+ */
+public class TagVocabularyService extends IntentService {
+  /** Log tag. */
+  private static final String TAG = "TagVocabularyService";
+  /** Intent extra holding the database row ID of the service. */
+  private static final String EXTRA_SERVICE_ID = "io.github.tjg1.nori.service.TagVocabularyService.serviceId";
+  /** Intent extra holding the {@link SearchClient.Settings} of the service. */
+  private static final String EXTRA_SETTINGS = "io.github.tjg1.nori.service.TagVocabularyService.settings";
+
+  public TagVocabularyService() {
+    // Set service name (useful for debugging).
+    super("TagVocabularyService");
+  }
+
+  /**
+   * Refresh the tag vocabulary of a service in the background, if it is out of date.
+   *
+   * @param context   Android context.
+   * @param serviceId Database row ID of the service in {@link io.github.tjg1.nori.database.APISettingsDatabase}.
+   * @param settings  Service settings.
+   */
+  public static void start(Context context, long serviceId, SearchClient.Settings settings) {
+    if (!TagVocabulary.isSupported(settings)) {
+      return;
+    }
+    final Intent intent = new Intent(context, TagVocabularyService.class);
+    intent.putExtra(EXTRA_SERVICE_ID, serviceId);
+    intent.putExtra(EXTRA_SETTINGS, settings);
+    context.startService(intent);
+  }
+
+  @Override
+  protected void onHandleIntent(Intent intent) {
+    final long serviceId = intent.getLongExtra(EXTRA_SERVICE_ID, -1L);
+    final SearchClient.Settings settings = intent.getParcelableExtra(EXTRA_SETTINGS);
+
+    // Open the search suggestion database.
+    SearchSuggestionDatabase db = new SearchSuggestionDatabase(this);
+
+    // Intents are queued while a refresh is running, so check again if the vocabulary is still out of date.
+    if (TagVocabulary.isRefreshDue(db.getVocabularyState(serviceId), System.currentTimeMillis())) {
+      try {
+        TagVocabulary.refresh(this, db, serviceId, settings);
+      } catch (IOException e) {
+        Log.w(TAG, "Could not refresh the tag vocabulary of " + settings.getName(), e);
+      }
+    }
+
+    // Close the database resource.
+    db.close();
+  }
+}
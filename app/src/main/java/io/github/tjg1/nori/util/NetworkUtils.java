@@ -13,16 +13,20 @@ import android.net.NetworkInfo;
 import android.os.Build;
 import android.telephony.TelephonyManager;
 
+import io.github.tjg1.nori.net.BandwidthEstimator;
+
 /**
  * Network utility class.
  */
 public abstract class NetworkUtils {
+  /** Minimum measured bandwidth to fetch full-size images by default, in bits per second. */
+  public static final long ORIGINAL_IMAGE_MIN_BITRATE = 4L * 1000L * 1000L;
 
   /**
    * Decides if low-resolution ("sample") images should be fetched by default instead of full-size images, based on:
    * - Screen density
-   * - Network link speed and quality
    * - Is the network metered? ($$$ per MB)
+   * - Bandwidth measured by the {@link BandwidthEstimator}, or the network type until there are enough measurements
    *
    * @return true if low-resolution images should be used.
    */
@@ -41,9 +45,37 @@ public abstract class NetworkUtils {
     if (isActiveNetworkMetered(cm)) {
       return true;
     }
-    // Check link quality.
+    // Check measured bandwidth. Network types say little about congested Wi-Fi or fast mobile networks.
+    final long bitrate = BandwidthEstimator.get(context).getBitrate();
+    if (bitrate != BandwidthEstimator.UNKNOWN) {
+      return bitrate < ORIGINAL_IMAGE_MIN_BITRATE;
+    }
+    // Check link quality. Without a connection, images can only be loaded from the cache, so it doesn't matter.
     NetworkInfo networkInfo = cm.getActiveNetworkInfo();
-    return !isConnectionFast(networkInfo.getType(), networkInfo.getSubtype());
+    return networkInfo != null && !isConnectionFast(networkInfo.getType(), networkInfo.getSubtype());
+  }
+
+  /**
+   * Check if the device is connected to a network. If it isn't, search results and images can only be loaded from
+   * the disk caches.
+   *
+   * @param context Android context.
+   * @return true if a network connection is available.
+   */
+  public static boolean isConnected(Context context) {
+    ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+    NetworkInfo networkInfo = cm.getActiveNetworkInfo();
+    return networkInfo != null && networkInfo.isConnected();
+  }
+
+  /**
+   * Check if the user pays for the bandwidth used on the active connection. (API 16+)
+   *
+   * @param context Android context.
+   * @return true if user pays for bandwidth.
+   */
+  public static boolean isActiveNetworkMetered(Context context) {
+    return isActiveNetworkMetered((ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE));
   }
 
   /**
@@ -35,4 +35,18 @@ public abstract class StringUtils {
     // Return merged string.
     return sb.toString();
   }
+
+  /**
+   * Encode bytes as a lower case hexadecimal string, e.g. to print a message digest.
+   *
+   * @param bytes Bytes to encode.
+   * @return Hexadecimal string, two characters per byte.
+   */
+  public static String toHexString(byte[] bytes) {
+    final StringBuilder sb = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return sb.toString();
+  }
 }
@@ -0,0 +1,215 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.util;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.support.v4.os.TraceCompat;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Records named spans of time spent in the stages of the app's startup, such as opening the databases, searching the
+ * API and showing the first thumbnail.
+ * <p/>
+ * Spans on a single thread are also emitted as {@link android.os.Trace} sections, so that they show up in systrace.
+ * Spans started on one thread and finished on another (e.g. a search started on the UI thread and received in a
+ * callback) are only recorded in the timeline. The timeline can be exported as a JSON trace (the Trace Event Format
+ * used by chrome://tracing), so startup times can be compared between releases.
+ * <p/>
+ * Only the last {@link #MAX_EVENTS} events are kept. All methods are thread-safe.
+ */
+public abstract class Timeline {
+  /** Maximum number of events kept in the timeline. Older events are overwritten. */
+  private static final int MAX_EVENTS = 512;
+  /** Duration of instant events, which mark a point in time rather than a span. */
+  private static final long INSTANT = -1;
+  /** Time the timeline was started at, in nanoseconds. Timestamps in the exported trace are relative to it. */
+  private static final long originTime = System.nanoTime();
+  /** Names of the recorded events. Used as a ring buffer, together with the arrays below. */
+  private static final String[] names = new String[MAX_EVENTS];
+  /** Start times of the recorded events, in nanoseconds. */
+  private static final long[] startTimes = new long[MAX_EVENTS];
+  /** Durations of the recorded events, in nanoseconds, or {@link #INSTANT}. */
+  private static final long[] durations = new long[MAX_EVENTS];
+  /** IDs of the threads that finished the recorded events. */
+  private static final long[] threadIds = new long[MAX_EVENTS];
+  /** Names of the threads that recorded events, keyed by thread ID. */
+  private static final Map<Long, String> threadNames = new HashMap<>();
+  /** Total number of events recorded. The next event is stored at this index, modulo {@link #MAX_EVENTS}. */
+  private static int eventCount = 0;
+
+  /** @return Current time, in nanoseconds. Pass to {@link #record(String, long)} when the span ends. */
+  public static long now() {
+    return System.nanoTime();
+  }
+
+  /**
+   * Begin a span that will end on the same thread. Must be followed by {@link #endSection(String, long)}, in a
+   * finally block.
+   *
+   * @param name Name of the span.
+   * @return Start time of the span, to be passed to {@link #endSection(String, long)}.
+   */
+  public static long beginSection(@NonNull String name) {
+    TraceCompat.beginSection(name);
+    return now();
+  }
+
+  /**
+   * End a span started with {@link #beginSection(String)} on the same thread.
+   *
+   * @param name      Name of the span.
+   * @param startTime Start time returned by {@link #beginSection(String)}.
+   */
+  public static void endSection(@NonNull String name, long startTime) {
+    TraceCompat.endSection();
+    record(name, startTime);
+  }
+
+  /**
+   * Record a span that ends now. The span may have started on a different thread.
+   *
+   * @param name      Name of the span.
+   * @param startTime Start time of the span, returned by {@link #now()}.
+   */
+  public static void record(@NonNull String name, long startTime) {
+    final long endTime = now();
+    add(name, startTime, endTime - startTime);
+  }
+
+  /**
+   * Record an instant event.
+   *
+   * @param name Name of the event.
+   */
+  public static void mark(@NonNull String name) {
+    add(name, now(), INSTANT);
+  }
+
+  /**
+   * Add an event to the timeline.
+   *
+   * @param name      Name of the event.
+   * @param startTime Start time, in nanoseconds.
+   * @param duration  Duration, in nanoseconds, or {@link #INSTANT}.
+   */
+  private static synchronized void add(String name, long startTime, long duration) {
+    final Thread thread = Thread.currentThread();
+    final int index = eventCount % MAX_EVENTS;
+    names[index] = name;
+    startTimes[index] = startTime;
+    durations[index] = duration;
+    threadIds[index] = thread.getId();
+    if (!threadNames.containsKey(thread.getId())) {
+      threadNames.put(thread.getId(), thread.getName());
+    }
+    eventCount++;
+  }
+
+  /**
+   * Export the timeline as a JSON trace.
+   *
+   * @param context Android context, used to describe the app version in the trace.
+   * @return Trace, in the Trace Event Format.
+   */
+  @NonNull
+  public static synchronized String toJson(@NonNull Context context) {
+    final StringBuilder json = new StringBuilder("{\"traceEvents\":[");
+    final int pid = android.os.Process.myPid();
+
+    // Name the threads, so that they can be told apart in the trace viewer.
+    boolean isFirst = true;
+    for (Map.Entry<Long, String> thread : threadNames.entrySet()) {
+      if (!isFirst) {
+        json.append(',');
+      }
+      isFirst = false;
+      json.append("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":").append(pid)
+          .append(",\"tid\":").append(thread.getKey())
+          .append(",\"args\":{\"name\":").append(JSONObject.quote(thread.getValue())).append("}}");
+    }
+
+    // Events are written oldest first. Timestamps and durations are in microseconds.
+    for (int i = Math.max(0, eventCount - MAX_EVENTS); i < eventCount; i++) {
+      final int index = i % MAX_EVENTS;
+      if (!isFirst) {
+        json.append(',');
+      }
+      isFirst = false;
+      json.append("{\"name\":").append(JSONObject.quote(names[index]))
+          .append(",\"ts\":").append((startTimes[index] - originTime) / 1000)
+          .append(",\"pid\":").append(pid)
+          .append(",\"tid\":").append(threadIds[index]);
+      if (durations[index] == INSTANT) {
+        json.append(",\"ph\":\"i\",\"s\":\"p\"}");
+      } else {
+        json.append(",\"ph\":\"X\",\"dur\":").append(durations[index] / 1000).append('}');
+      }
+    }
+
+    json.append("],\"displayTimeUnit\":\"ms\",\"otherData\":{\"versionName\":")
+        .append(JSONObject.quote(getVersionName(context)))
+        .append(",\"device\":").append(JSONObject.quote(Build.MANUFACTURER + " " + Build.MODEL))
+        .append(",\"sdkInt\":").append(Build.VERSION.SDK_INT)
+        .append("}}");
+    return json.toString();
+  }
+
+  /**
+   * Write the timeline to a JSON trace file in the app's external files directory, where it can be pulled with adb.
+   * Performs disk I/O and should not be called from the UI thread.
+   *
+   * @param context Android context.
+   * @return Trace file.
+   * @throws IOException The file couldn't be written.
+   */
+  @NonNull
+  public static File export(@NonNull Context context) throws IOException {
+    File directory = context.getExternalFilesDir("traces");
+    if (directory == null) {
+      // External storage isn't available.
+      directory = new File(context.getFilesDir(), "traces");
+    }
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create " + directory);
+    }
+
+    final File file = new File(directory, "trace-" + System.currentTimeMillis() + ".json");
+    final Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+    try {
+      writer.write(toJson(context));
+    } finally {
+      writer.close();
+    }
+    return file;
+  }
+
+  /**
+   * Get the version of the app, so that traces from different releases can be told apart.
+   *
+   * @param context Android context.
+   * @return Version name.
+   */
+  private static String getVersionName(Context context) {
+    try {
+      return context.getPackageManager().getPackageInfo(context.getPackageName(), 0).versionName;
+    } catch (PackageManager.NameNotFoundException e) {
+      return "unknown";
+    }
+  }
+}
@@ -0,0 +1,369 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.widget;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.support.annotation.NonNull;
+import android.support.v4.graphics.BitmapCompat;
+import android.support.v4.util.LruCache;
+import android.util.AttributeSet;
+import android.util.DisplayMetrics;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import it.sephiroth.android.library.imagezoom.ImageViewTouch;
+
+/**
+ * {@link ImageViewTouch} displaying very large images without decoding them into a single bitmap.
+ * <p/>
+ * A subsampled, roughly screen-sized base layer is displayed as the view's drawable, so zooming, panning and
+ * {@link #canScroll(int)} work exactly like they do for regular images. When the user zooms in past the resolution of
+ * the base layer, only the tiles of the image that are visible on screen are decoded with a {@link BitmapRegionDecoder}
+ * at the resolution needed and drawn on top of it.
+ */
+public class TiledImageView extends ImageViewTouch {
+  /** Images wider or taller than this can't be drawn as a single bitmap on most devices. */
+  public static final int MAX_TEXTURE_SIZE = 4096;
+  /** Size of a decoded tile, in pixels. */
+  private static final int TILE_SIZE = 256;
+  /** Maximum memory used by decoded tiles, in multiples of the memory needed to cover the screen once. */
+  private static final int TILE_CACHE_SCREENS = 3;
+  /** Zoom level allowed past the full resolution of the image. */
+  private static final float MAX_ZOOM_PAST_FULL_RESOLUTION = 2.0f;
+  /**
+   * Background thread used to decode tiles. Shared by all instances, so decodes are serialised across all ViewPager
+   * pages and only one tile is decoded at a time, which bounds the memory used by decoding. Tiles of pages swiped off
+   * screen are skipped when their turn comes, but the page on screen still waits for the tile being decoded.
+   */
+  private static final ExecutorService decoderExecutor = Executors.newSingleThreadExecutor();
+  /** Paint used to draw tiles. */
+  private final Paint tilePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+  /** Tiles wanted for the last drawn frame. Accessed from the decoder thread, guarded by its own lock. */
+  private final Set<Tile> visibleTiles = new HashSet<>();
+  /** Tiles queued for decoding. Accessed only from the UI thread. */
+  private final Set<Tile> pendingTiles = new HashSet<>();
+  /** Matrix mapping base layer coordinates to view coordinates. */
+  private final Matrix viewMatrix = new Matrix();
+  /** Matrix mapping view coordinates to base layer coordinates. */
+  private final Matrix inverseMatrix = new Matrix();
+  /** Scratch rectangle used when drawing. */
+  private final RectF rectF = new RectF();
+  /** Scratch array used to read matrix values. */
+  private final float[] matrixValues = new float[9];
+  /** Decoded tiles. */
+  private final LruCache<Tile, Bitmap> tileCache;
+  /** Decoder used to decode tiles of the image. */
+  private BitmapRegionDecoder regionDecoder;
+  /** Bitmap config used to decode tiles. */
+  private Bitmap.Config tileConfig = Bitmap.Config.ARGB_8888;
+  /** Image width, in pixels. */
+  private int imageWidth;
+  /** Image height, in pixels. */
+  private int imageHeight;
+  /** Number of image pixels per base layer pixel. */
+  private float baseLayerScale = 1;
+
+  public TiledImageView(Context context) {
+    this(context, null);
+  }
+
+  public TiledImageView(Context context, AttributeSet attrs) {
+    super(context, attrs);
+
+    // Size the tile cache according to the screen size.
+    final DisplayMetrics displayMetrics = context.getResources().getDisplayMetrics();
+    final int screenBytes = displayMetrics.widthPixels * displayMetrics.heightPixels * 4;
+    tileCache = new LruCache<Tile, Bitmap>(TILE_CACHE_SCREENS * screenBytes) {
+      @Override
+      protected int sizeOf(Tile key, Bitmap value) {
+        return BitmapCompat.getAllocationByteCount(value);
+      }
+    };
+  }
+
+  /**
+   * Calculate the sample size used to decode the base layer of an image, so that it is about the size of the screen
+   * and can be drawn as a single texture.
+   *
+   * @param context     Android context.
+   * @param imageWidth  Image width, in pixels.
+   * @param imageHeight Image height, in pixels.
+   * @return Sample size, to be used as {@link android.graphics.BitmapFactory.Options#inSampleSize}.
+   */
+  public static int getBaseLayerSampleSize(Context context, int imageWidth, int imageHeight) {
+    final DisplayMetrics displayMetrics = context.getResources().getDisplayMetrics();
+    final int maxSize = Math.max(displayMetrics.widthPixels, displayMetrics.heightPixels);
+
+    int sampleSize = 1;
+    while (imageWidth / (sampleSize * 2) >= maxSize || imageHeight / (sampleSize * 2) >= maxSize) {
+      sampleSize *= 2;
+    }
+    // The base layer can be almost twice the size of the screen, which is too large to draw on high resolution screens.
+    while (divideRoundingUp(imageWidth, sampleSize) > MAX_TEXTURE_SIZE
+        || divideRoundingUp(imageHeight, sampleSize) > MAX_TEXTURE_SIZE) {
+      sampleSize *= 2;
+    }
+    return sampleSize;
+  }
+
+  /**
+   * Divide two positive integers, rounding up, as some decoders round subsampled dimensions up.
+   *
+   * @param dividend Dividend.
+   * @param divisor  Divisor.
+   * @return Quotient, rounded up.
+   */
+  private static int divideRoundingUp(int dividend, int divisor) {
+    return (dividend + divisor - 1) / divisor;
+  }
+
+  /**
+   * Display an image using a region decoder. The view takes ownership of the decoder and recycles it when a new image
+   * is set or {@link #recycle()} is called.
+   *
+   * @param regionDecoder Decoder used to decode tiles of the image.
+   * @param baseLayer     Subsampled version of the entire image, displayed when the image is not zoomed in.
+   * @param tileConfig    Bitmap config used to decode tiles.
+   */
+  public void setImageRegionDecoder(@NonNull BitmapRegionDecoder regionDecoder, @NonNull Bitmap baseLayer,
+                                    @NonNull Bitmap.Config tileConfig) {
+    recycle();
+    this.regionDecoder = regionDecoder;
+    this.tileConfig = tileConfig;
+    this.imageWidth = regionDecoder.getWidth();
+    this.imageHeight = regionDecoder.getHeight();
+    this.baseLayerScale = (float) imageWidth / baseLayer.getWidth();
+
+    // Allow zooming in past the full resolution of the image. ImageViewTouch zoom levels are relative to the base
+    // layer fitted to the screen.
+    final DisplayMetrics displayMetrics = getResources().getDisplayMetrics();
+    final int viewWidth = getWidth() > 0 ? getWidth() : displayMetrics.widthPixels;
+    final int viewHeight = getHeight() > 0 ? getHeight() : displayMetrics.heightPixels;
+    final float fullResolutionZoom = Math.max((float) imageWidth / viewWidth, (float) imageHeight / viewHeight);
+    setImageBitmap(baseLayer, null, ZOOM_INVALID,
+        Math.max(MAX_ZOOM_PAST_FULL_RESOLUTION, fullResolutionZoom * MAX_ZOOM_PAST_FULL_RESOLUTION));
+  }
+
+  /** Release the region decoder and the decoded tiles. */
+  public void recycle() {
+    if (regionDecoder != null) {
+      // Recycle the decoder on the decoder thread, so that it doesn't get recycled in the middle of decoding a tile.
+      final BitmapRegionDecoder decoder = regionDecoder;
+      decoderExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          decoder.recycle();
+        }
+      });
+      regionDecoder = null;
+    }
+    synchronized (visibleTiles) {
+      visibleTiles.clear();
+    }
+    pendingTiles.clear();
+    tileCache.evictAll();
+  }
+
+  @Override
+  protected void onDetachedFromWindow() {
+    super.onDetachedFromWindow();
+    // Drop decoded tiles. They will be decoded again if the view is re-attached.
+    tileCache.evictAll();
+  }
+
+  @Override
+  protected void onDraw(Canvas canvas) {
+    // Draw the base layer.
+    super.onDraw(canvas);
+
+    if (regionDecoder == null || getDrawable() == null || getWidth() == 0 || getHeight() == 0) {
+      return;
+    }
+
+    // Figure out the resolution the image is displayed at.
+    viewMatrix.set(getImageViewMatrix());
+    viewMatrix.getValues(matrixValues);
+    final float imagePixelsPerScreenPixel = baseLayerScale / matrixValues[Matrix.MSCALE_X];
+    int sampleSize = 1;
+    while (sampleSize * 2 <= imagePixelsPerScreenPixel) {
+      sampleSize *= 2;
+    }
+    if (sampleSize >= baseLayerScale) {
+      // The base layer has enough detail.
+      synchronized (visibleTiles) {
+        visibleTiles.clear();
+      }
+      return;
+    }
+
+    // Get the visible part of the image, in image coordinates.
+    if (!viewMatrix.invert(inverseMatrix)) {
+      return;
+    }
+    rectF.set(0, 0, getWidth(), getHeight());
+    inverseMatrix.mapRect(rectF);
+    final int left = Math.max(0, (int) (rectF.left * baseLayerScale));
+    final int top = Math.max(0, (int) (rectF.top * baseLayerScale));
+    final int right = Math.min(imageWidth, (int) Math.ceil(rectF.right * baseLayerScale));
+    final int bottom = Math.min(imageHeight, (int) Math.ceil(rectF.bottom * baseLayerScale));
+
+    // Draw the visible tiles, or queue them for decoding.
+    final int tileSize = TILE_SIZE * sampleSize;
+    synchronized (visibleTiles) {
+      visibleTiles.clear();
+      for (int y = (top / tileSize) * tileSize; y < bottom; y += tileSize) {
+        for (int x = (left / tileSize) * tileSize; x < right; x += tileSize) {
+          final Tile tile = new Tile(sampleSize, x, y,
+              Math.min(x + tileSize, imageWidth), Math.min(y + tileSize, imageHeight));
+          visibleTiles.add(tile);
+
+          final Bitmap bitmap = tileCache.get(tile);
+          if (bitmap != null) {
+            rectF.set(tile.left / baseLayerScale, tile.top / baseLayerScale,
+                tile.right / baseLayerScale, tile.bottom / baseLayerScale);
+            viewMatrix.mapRect(rectF);
+            canvas.drawBitmap(bitmap, null, rectF, tilePaint);
+          } else if (!pendingTiles.contains(tile)) {
+            decodeTile(tile);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Decode a tile on the decoder thread.
+   *
+   * @param tile Tile to decode.
+   */
+  private void decodeTile(final Tile tile) {
+    final BitmapRegionDecoder decoder = regionDecoder;
+    final Bitmap.Config config = tileConfig;
+    pendingTiles.add(tile);
+
+    decoderExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        // Skip tiles scrolled out of view while waiting in the queue.
+        synchronized (visibleTiles) {
+          if (!visibleTiles.contains(tile)) {
+            post(new TileDecodedRunnable(decoder, tile, null));
+            return;
+          }
+        }
+
+        Bitmap bitmap = null;
+        if (!decoder.isRecycled()) {
+          final BitmapFactory.Options options = new BitmapFactory.Options();
+          options.inSampleSize = tile.sampleSize;
+          options.inPreferredConfig = config;
+          try {
+            bitmap = decoder.decodeRegion(new Rect(tile.left, tile.top, tile.right, tile.bottom), options);
+          } catch (OutOfMemoryError e) {
+            // Fall back to the base layer for this tile.
+          }
+        }
+        post(new TileDecodedRunnable(decoder, tile, bitmap));
+      }
+    });
+  }
+
+  /** Runnable delivering a decoded tile to the UI thread. */
+  private class TileDecodedRunnable implements Runnable {
+    /** Decoder the tile was decoded with. */
+    private final BitmapRegionDecoder decoder;
+    /** Decoded tile. */
+    private final Tile tile;
+    /** Decoded tile bitmap. Null if the tile was not decoded. */
+    private final Bitmap bitmap;
+
+    /**
+     * Create a new runnable delivering a decoded tile.
+     *
+     * @param decoder Decoder the tile was decoded with.
+     * @param tile    Decoded tile.
+     * @param bitmap  Decoded tile bitmap. Null if the tile was not decoded.
+     */
+    public TileDecodedRunnable(BitmapRegionDecoder decoder, Tile tile, Bitmap bitmap) {
+      this.decoder = decoder;
+      this.tile = tile;
+      this.bitmap = bitmap;
+    }
+
+    @Override
+    public void run() {
+      // Ignore tiles decoded for a previous image.
+      if (decoder != regionDecoder) {
+        return;
+      }
+      pendingTiles.remove(tile);
+      if (bitmap != null) {
+        tileCache.put(tile, bitmap);
+        invalidate();
+      }
+    }
+  }
+
+  /** Rectangular region of the image, decoded at a given sample size. */
+  private static class Tile {
+    /** Sample size the tile is decoded at. */
+    public final int sampleSize;
+    /** Left edge of the tile, in image coordinates. */
+    public final int left;
+    /** Top edge of the tile, in image coordinates. */
+    public final int top;
+    /** Right edge of the tile, in image coordinates. */
+    public final int right;
+    /** Bottom edge of the tile, in image coordinates. */
+    public final int bottom;
+
+    /**
+     * Create a new tile.
+     *
+     * @param sampleSize Sample size the tile is decoded at.
+     * @param left       Left edge of the tile, in image coordinates.
+     * @param top        Top edge of the tile, in image coordinates.
+     * @param right      Right edge of the tile, in image coordinates.
+     * @param bottom     Bottom edge of the tile, in image coordinates.
+     */
+    public Tile(int sampleSize, int left, int top, int right, int bottom) {
+      this.sampleSize = sampleSize;
+      this.left = left;
+      this.top = top;
+      this.right = right;
+      this.bottom = bottom;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Tile)) {
+        return false;
+      }
+      final Tile tile = (Tile) o;
+      return sampleSize == tile.sampleSize && left == tile.left && top == tile.top;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * (31 * sampleSize + left) + top;
+    }
+  }
+}